@@ -0,0 +1,139 @@
+//License
+/***
+ * Java Modbus Library (jamod)
+ * Copyright (c) 2002-2004, jamod development team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.facade;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import com.ghgande.j2mod.modbus.ModbusSlaveException;
+import com.ghgande.j2mod.modbus.msg.ExceptionResponse;
+import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+import com.ghgande.j2mod.modbus.msg.ReadCoilsResponse;
+import com.ghgande.j2mod.modbus.msg.ReadInputDiscretesResponse;
+import com.ghgande.j2mod.modbus.msg.ReadInputRegistersResponse;
+import com.ghgande.j2mod.modbus.msg.ReadMultipleRegistersResponse;
+import com.ghgande.j2mod.modbus.msg.WriteCoilResponse;
+import com.ghgande.j2mod.modbus.procimg.InputRegister;
+import com.ghgande.j2mod.modbus.procimg.Register;
+import com.ghgande.j2mod.modbus.util.BitVector;
+
+/**
+ * Class holding the conversions from responses to the results returned by
+ * the asynchronous facade methods. The conversions match the ones done by
+ * the blocking facade methods.
+ */
+final class AsyncResponses {
+
+	static final Function<ModbusResponse, Boolean> COIL = new Function<ModbusResponse, Boolean>() {
+		public Boolean apply(ModbusResponse response) {
+			return Boolean.valueOf(((WriteCoilResponse) response).getCoil());
+		}
+	};
+
+	static final Function<ModbusResponse, InputRegister[]> INPUT_REGISTERS = new Function<ModbusResponse, InputRegister[]>() {
+		public InputRegister[] apply(ModbusResponse response) {
+			return ((ReadInputRegistersResponse) response).getRegisters();
+		}
+	};
+
+	static final Function<ModbusResponse, Register[]> REGISTERS = new Function<ModbusResponse, Register[]>() {
+		public Register[] apply(ModbusResponse response) {
+			return ((ReadMultipleRegistersResponse) response).getRegisters();
+		}
+	};
+
+	static final Function<ModbusResponse, Void> NONE = new Function<ModbusResponse, Void>() {
+		public Void apply(ModbusResponse response) {
+			return null;
+		}
+	};
+
+	/**
+	 * Prevents instantiation.
+	 */
+	private AsyncResponses() {
+	}
+
+	/**
+	 * Returns the conversion for a read coils response, with the number of
+	 * bits forced to the number requested.
+	 */
+	static Function<ModbusResponse, BitVector> coils(final int count) {
+		return new Function<ModbusResponse, BitVector>() {
+			public BitVector apply(ModbusResponse response) {
+				BitVector bv = ((ReadCoilsResponse) response).getCoils();
+				bv.forceSize(count);
+				return bv;
+			}
+		};
+	}
+
+	/**
+	 * Returns the conversion for a read input discretes response, with the
+	 * number of bits forced to the number requested.
+	 */
+	static Function<ModbusResponse, BitVector> discretes(final int count) {
+		return new Function<ModbusResponse, BitVector>() {
+			public BitVector apply(ModbusResponse response) {
+				BitVector bv = ((ReadInputDiscretesResponse) response)
+						.getDiscretes();
+				bv.forceSize(count);
+				return bv;
+			}
+		};
+	}
+
+	/**
+	 * Returns a future which fails with a <tt>ModbusSlaveException</tt> if
+	 * the given future completes with an <tt>ExceptionResponse</tt>.
+	 */
+	static CompletableFuture<ModbusResponse> checked(
+			CompletableFuture<ModbusResponse> future) {
+		final CompletableFuture<ModbusResponse> result = new CompletableFuture<ModbusResponse>();
+
+		future.whenComplete(new BiConsumer<ModbusResponse, Throwable>() {
+			public void accept(ModbusResponse response, Throwable failure) {
+				if (failure != null)
+					result.completeExceptionally(failure);
+				else if (response instanceof ExceptionResponse)
+					result.completeExceptionally(new ModbusSlaveException(
+							((ExceptionResponse) response).getExceptionCode()));
+				else
+					result.complete(response);
+			}
+		});
+		return result;
+	}
+}
@@ -0,0 +1,178 @@
+//License
+/***
+ * Java Modbus Library (jamod)
+ * Copyright (c) 2002-2004, jamod development team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.facade;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.ghgande.j2mod.modbus.ModbusIOException;
+import com.ghgande.j2mod.modbus.io.ModbusTransaction;
+import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+import com.ghgande.j2mod.modbus.util.ModbusThreadFactory;
+import com.ghgande.j2mod.modbus.util.ModbusTimer;
+
+/**
+ * Class implementing the asynchronous side of a master facade whose
+ * transport can only carry one transaction at a time.
+ *
+ * <p>
+ * All calls are queued to a single worker thread per facade, which runs the
+ * blocking facade methods in order. The caller gets a future which fails
+ * with a <tt>ModbusIOException</tt> if the call does not complete within
+ * its timeout, whether it was still queued or already on the wire.
+ */
+class AsyncWorker {
+
+	private String m_Name;
+	private ExecutorService m_Executor;
+
+	/**
+	 * Constructs a new <tt>AsyncWorker</tt>.
+	 *
+	 * @param name
+	 *            the name of the worker thread.
+	 */
+	AsyncWorker(String name) {
+		m_Name = name;
+	}
+
+	/**
+	 * Queues a call and returns a future for its result.
+	 *
+	 * @param call
+	 *            the blocking call to be made.
+	 * @param timeout
+	 *            the timeout in milliseconds.
+	 * @return the future result of the call.
+	 */
+	<T> CompletableFuture<T> submit(final Callable<T> call, int timeout) {
+		final CompletableFuture<T> result = new CompletableFuture<T>();
+
+		try {
+			getExecutor().execute(new Task<T>(call, result));
+		} catch (RejectedExecutionException ex) {
+			result.completeExceptionally(new ModbusIOException(
+					"Facade disconnected."));
+			return result;
+		}
+
+		ModbusTimer.expire(result, timeout, new Runnable() {
+			public void run() {
+				result.completeExceptionally(new ModbusIOException(
+						"Timeout waiting for response"));
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Queues a transaction and returns a future for its response.
+	 *
+	 * @param trans
+	 *            the <tt>ModbusTransaction</tt> to be executed.
+	 * @param timeout
+	 *            the timeout in milliseconds.
+	 * @return the future response.
+	 */
+	CompletableFuture<ModbusResponse> execute(final ModbusTransaction trans,
+			int timeout) {
+		return submit(new Callable<ModbusResponse>() {
+			public ModbusResponse call() throws Exception {
+				trans.execute();
+				return trans.getResponse();
+			}
+		}, timeout);
+	}
+
+	/**
+	 * Stops the worker thread. Calls which are still queued fail with a
+	 * <tt>ModbusIOException</tt>.
+	 */
+	synchronized void shutdown() {
+		if (m_Executor != null) {
+			for (Runnable task : m_Executor.shutdownNow())
+				((Task<?>) task).m_Result
+						.completeExceptionally(new ModbusIOException(
+								"Facade disconnected."));
+			m_Executor = null;
+		}
+	}
+
+	/**
+	 * Returns the executor, starting the worker thread the first time it is
+	 * needed.
+	 */
+	private synchronized ExecutorService getExecutor() {
+		if (m_Executor == null) {
+			m_Executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+						public Thread newThread(Runnable task) {
+							return ModbusThreadFactory.newThread(task, m_Name, true,
+									ModbusThreadFactory.isVirtualDefault());
+						}
+					});
+		}
+		return m_Executor;
+	}
+
+	/**
+	 * Inner class holding a queued call and its future result.
+	 */
+	private static class Task<T> implements Runnable {
+		private Callable<T> m_Call;
+		private CompletableFuture<T> m_Result;
+
+		Task(Callable<T> call, CompletableFuture<T> result) {
+			m_Call = call;
+			m_Result = result;
+		}
+
+		public void run() {
+			if (m_Result.isDone())
+				return;
+
+			try {
+				m_Result.complete(m_Call.call());
+			} catch (Exception ex) {
+				m_Result.completeExceptionally(ex);
+			}
+		}
+	}
+}
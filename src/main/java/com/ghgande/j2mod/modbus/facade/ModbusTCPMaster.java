@@ -36,9 +36,17 @@ package com.ghgande.j2mod.modbus.facade;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
 
+import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.io.BatchResult;
+import com.ghgande.j2mod.modbus.io.ModbusTCPPipeline;
 import com.ghgande.j2mod.modbus.io.ModbusTCPTransaction;
+import com.ghgande.j2mod.modbus.msg.ModbusRequest;
+import com.ghgande.j2mod.modbus.msg.ModbusResponse;
 import com.ghgande.j2mod.modbus.msg.ReadCoilsRequest;
 import com.ghgande.j2mod.modbus.msg.ReadCoilsResponse;
 import com.ghgande.j2mod.modbus.msg.ReadInputDiscretesRequest;
@@ -52,6 +60,7 @@ import com.ghgande.j2mod.modbus.msg.WriteCoilResponse;
 import com.ghgande.j2mod.modbus.msg.WriteMultipleCoilsRequest;
 import com.ghgande.j2mod.modbus.msg.WriteMultipleRegistersRequest;
 import com.ghgande.j2mod.modbus.msg.WriteSingleRegisterRequest;
+import com.ghgande.j2mod.modbus.net.CircuitBreaker;
 import com.ghgande.j2mod.modbus.net.TCPMasterConnection;
 import com.ghgande.j2mod.modbus.procimg.InputRegister;
 import com.ghgande.j2mod.modbus.procimg.Register;
@@ -59,6 +68,10 @@ import com.ghgande.j2mod.modbus.util.BitVector;
 
 /**
  * Modbus/TCP Master facade.
+ * <p/>
+ * The <tt>...Async</tt> methods return without waiting for the slave. On a
+ * pipelined master all of them share the connection at the same time;
+ * otherwise they are executed one after the other by a worker thread.
  *
  * @author Dieter Wimberger
  * @version 1.2rc1 (09/11/2004)
@@ -77,6 +90,16 @@ public class ModbusTCPMaster {
   private WriteSingleRegisterRequest m_WriteSingleRegisterRequest;
   private WriteMultipleRegistersRequest m_WriteMultipleRegistersRequest;
   private boolean m_Reconnecting = false;
+  private boolean m_Pipelined = false;
+  private int m_UnitID = Modbus.DEFAULT_UNIT_ID;
+  private AsyncWorker m_Worker;
+
+  /*
+   * Held while a blocking call uses the shared transaction. A lock rather
+   * than a monitor, so that a virtual thread waiting for the slave does
+   * not pin its carrier thread.
+   */
+  private final ReentrantLock m_Lock = new ReentrantLock();
 
   /**
    * Constructs a new master facade instance for communication
@@ -97,6 +120,7 @@ public class ModbusTCPMaster {
       m_ReadMultipleRegistersRequest = new ReadMultipleRegistersRequest();
       m_WriteSingleRegisterRequest = new WriteSingleRegisterRequest();
       m_WriteMultipleRegistersRequest = new WriteMultipleRegistersRequest();
+      m_Worker = new AsyncWorker("ModbusTCPMaster " + addr);
 
     } catch (UnknownHostException e) {
       throw new RuntimeException(e.getMessage());
@@ -124,6 +148,7 @@ public class ModbusTCPMaster {
   public void connect()
       throws Exception {
     if (m_Connection != null && !m_Connection.isConnected()) {
+      m_Connection.setPipelined(m_Pipelined);
       m_Connection.connect();
       m_Transaction = new ModbusTCPTransaction(m_Connection);
       m_Transaction.setReconnecting(m_Reconnecting);
@@ -138,6 +163,7 @@ public class ModbusTCPMaster {
       m_Connection.close();
       m_Transaction = null;
     }
+    m_Worker.shutdown();
   }//disconnect
 
   /**
@@ -165,6 +191,54 @@ public class ModbusTCPMaster {
     return m_Reconnecting;
   }//isReconnecting
 
+  /**
+   * Sets the flag that specifies whether requests are pipelined, allowing
+   * many transactions to be in flight on the connection at once.
+   * The flag takes effect the next time the master connects.
+   *
+   * @param b true if requests should be pipelined, false otherwise.
+   */
+  public void setPipelined(boolean b) {
+    m_Pipelined = b;
+  }//setPipelined
+
+  /**
+   * Tests if requests are pipelined.
+   *
+   * @return true if requests are pipelined, false otherwise.
+   */
+  public boolean isPipelined() {
+    return m_Pipelined;
+  }//isPipelined
+
+  /**
+   * Sets the timeout for connecting to the slave.
+   *
+   * @param timeout the connect timeout in milliseconds.
+   */
+  public void setConnectTimeout(int timeout) {
+    m_Connection.setConnectTimeout(timeout);
+  }//setConnectTimeout
+
+  /**
+   * Sets the circuit breaker which makes transactions fail at once while
+   * the slave is unreachable. By default no breaker is used.
+   *
+   * @param breaker the <tt>CircuitBreaker</tt>, or <tt>null</tt>.
+   */
+  public void setCircuitBreaker(CircuitBreaker breaker) {
+    m_Connection.setCircuitBreaker(breaker);
+  }//setCircuitBreaker
+
+  /**
+   * Returns the circuit breaker of this master.
+   *
+   * @return the <tt>CircuitBreaker</tt>, or <tt>null</tt> if none is used.
+   */
+  public CircuitBreaker getCircuitBreaker() {
+    return m_Connection.getCircuitBreaker();
+  }//getCircuitBreaker
+
   /**
    * Reads a given number of coil states from the slave.
    * <p/>
@@ -178,15 +252,20 @@ public class ModbusTCPMaster {
    * @throws ModbusException if an I/O error, a slave exception or
    *                         a transaction error occurs.
    */
-  public synchronized BitVector readCoils(int ref, int count)
+  public BitVector readCoils(int ref, int count)
       throws ModbusException {
-    m_ReadCoilsRequest.setReference(ref);
-    m_ReadCoilsRequest.setBitCount(count);
-    m_Transaction.setRequest(m_ReadCoilsRequest);
-    m_Transaction.execute();
-    BitVector bv = ((ReadCoilsResponse) m_Transaction.getResponse()).getCoils();
-    bv.forceSize(count);
-    return bv;
+    m_Lock.lock();
+    try {
+      m_ReadCoilsRequest.setReference(ref);
+      m_ReadCoilsRequest.setBitCount(count);
+      m_Transaction.setRequest(m_ReadCoilsRequest);
+      m_Transaction.execute();
+      BitVector bv = ((ReadCoilsResponse) m_Transaction.getResponse()).getCoils();
+      bv.forceSize(count);
+      return bv;
+    } finally {
+      m_Lock.unlock();
+    }
   }//readCoils
 
   /**
@@ -199,14 +278,19 @@ public class ModbusTCPMaster {
    * @throws ModbusException if an I/O error, a slave exception or
    *                         a transaction error occurs.
    */
-  public synchronized boolean writeCoil(int unitid, int ref, boolean state)
+  public boolean writeCoil(int unitid, int ref, boolean state)
       throws ModbusException {
-    m_WriteCoilRequest.setUnitID(unitid);
-    m_WriteCoilRequest.setReference(ref);
-    m_WriteCoilRequest.setCoil(state);
-    m_Transaction.setRequest(m_WriteCoilRequest);
-    m_Transaction.execute();
-    return ((WriteCoilResponse) m_Transaction.getResponse()).getCoil();
+    m_Lock.lock();
+    try {
+      m_WriteCoilRequest.setUnitID(unitid);
+      m_WriteCoilRequest.setReference(ref);
+      m_WriteCoilRequest.setCoil(state);
+      m_Transaction.setRequest(m_WriteCoilRequest);
+      m_Transaction.execute();
+      return ((WriteCoilResponse) m_Transaction.getResponse()).getCoil();
+    } finally {
+      m_Lock.unlock();
+    }
   }//writeCoil
 
   /**
@@ -220,12 +304,17 @@ public class ModbusTCPMaster {
    * @throws ModbusException if an I/O error, a slave exception or
    *                         a transaction error occurs.
    */
-  public synchronized void writeMultipleCoils(int ref, BitVector coils)
+  public void writeMultipleCoils(int ref, BitVector coils)
       throws ModbusException {
-    m_WriteMultipleCoilsRequest.setReference(ref);
-    m_WriteMultipleCoilsRequest.setCoils(coils);
-    m_Transaction.setRequest(m_WriteMultipleCoilsRequest);
-    m_Transaction.execute();
+    m_Lock.lock();
+    try {
+      m_WriteMultipleCoilsRequest.setReference(ref);
+      m_WriteMultipleCoilsRequest.setCoils(coils);
+      m_Transaction.setRequest(m_WriteMultipleCoilsRequest);
+      m_Transaction.execute();
+    } finally {
+      m_Lock.unlock();
+    }
   }//writeMultipleCoils
 
   /**
@@ -241,15 +330,20 @@ public class ModbusTCPMaster {
    * @throws ModbusException if an I/O error, a slave exception or
    *                         a transaction error occurs.
    */
-  public synchronized BitVector readInputDiscretes(int ref, int count)
+  public BitVector readInputDiscretes(int ref, int count)
       throws ModbusException {
-    m_ReadInputDiscretesRequest.setReference(ref);
-    m_ReadInputDiscretesRequest.setBitCount(count);
-    m_Transaction.setRequest(m_ReadInputDiscretesRequest);
-    m_Transaction.execute();
-    BitVector bv = ((ReadInputDiscretesResponse) m_Transaction.getResponse()).getDiscretes();
-    bv.forceSize(count);
-    return bv;
+    m_Lock.lock();
+    try {
+      m_ReadInputDiscretesRequest.setReference(ref);
+      m_ReadInputDiscretesRequest.setBitCount(count);
+      m_Transaction.setRequest(m_ReadInputDiscretesRequest);
+      m_Transaction.execute();
+      BitVector bv = ((ReadInputDiscretesResponse) m_Transaction.getResponse()).getDiscretes();
+      bv.forceSize(count);
+      return bv;
+    } finally {
+      m_Lock.unlock();
+    }
   }//readInputDiscretes
 
 
@@ -265,13 +359,48 @@ public class ModbusTCPMaster {
    * @throws ModbusException if an I/O error, a slave exception or
    *                         a transaction error occurs.
    */
-  public synchronized InputRegister[] readInputRegisters(int ref, int count)
+  public InputRegister[] readInputRegisters(int ref, int count)
       throws ModbusException {
-    m_ReadInputRegistersRequest.setReference(ref);
-    m_ReadInputRegistersRequest.setWordCount(count);
-    m_Transaction.setRequest(m_ReadInputRegistersRequest);
-    m_Transaction.execute();
-    return ((ReadInputRegistersResponse) m_Transaction.getResponse()).getRegisters();
+    m_Lock.lock();
+    try {
+      m_ReadInputRegistersRequest.setReference(ref);
+      m_ReadInputRegistersRequest.setWordCount(count);
+      m_Transaction.setRequest(m_ReadInputRegistersRequest);
+      m_Transaction.execute();
+      return ((ReadInputRegistersResponse) m_Transaction.getResponse()).getRegisters();
+    } finally {
+      m_Lock.unlock();
+    }
+  }//readInputRegisters
+
+  /**
+   * Reads a given number of input registers from the slave into an array,
+   * without creating a register object per value.
+   * <p/>
+   * Note that the number of values copied will be according to the
+   * number received in the slave response.
+   *
+   * @param ref   the offset of the register to start reading from.
+   * @param count the number of registers to be read.
+   * @param dst   the array receiving the unsigned register values, starting
+   *              at index 0.
+   * @return the number of values copied to <tt>dst</tt>.
+   * @throws ModbusException if an I/O error, a slave exception or
+   *                         a transaction error occurs.
+   */
+  public int readInputRegisters(int ref, int count,
+      int[] dst) throws ModbusException {
+    m_Lock.lock();
+    try {
+      m_ReadInputRegistersRequest.setReference(ref);
+      m_ReadInputRegistersRequest.setWordCount(count);
+      m_Transaction.setRequest(m_ReadInputRegistersRequest);
+      m_Transaction.execute();
+      return ((ReadInputRegistersResponse) m_Transaction.getResponse())
+          .getRegisterValues(dst, 0);
+    } finally {
+      m_Lock.unlock();
+    }
   }//readInputRegisters
 
   /**
@@ -286,13 +415,48 @@ public class ModbusTCPMaster {
    * @throws ModbusException if an I/O error, a slave exception or
    *                         a transaction error occurs.
    */
-  public synchronized Register[] readMultipleRegisters(int ref, int count)
+  public Register[] readMultipleRegisters(int ref, int count)
       throws ModbusException {
-    m_ReadMultipleRegistersRequest.setReference(ref);
-    m_ReadMultipleRegistersRequest.setWordCount(count);
-    m_Transaction.setRequest(m_ReadMultipleRegistersRequest);
-    m_Transaction.execute();
-    return ((ReadMultipleRegistersResponse) m_Transaction.getResponse()).getRegisters();
+    m_Lock.lock();
+    try {
+      m_ReadMultipleRegistersRequest.setReference(ref);
+      m_ReadMultipleRegistersRequest.setWordCount(count);
+      m_Transaction.setRequest(m_ReadMultipleRegistersRequest);
+      m_Transaction.execute();
+      return ((ReadMultipleRegistersResponse) m_Transaction.getResponse()).getRegisters();
+    } finally {
+      m_Lock.unlock();
+    }
+  }//readMultipleRegisters
+
+  /**
+   * Reads a given number of registers from the slave into an array,
+   * without creating a register object per value.
+   * <p/>
+   * Note that the number of values copied will be according to the
+   * number received in the slave response.
+   *
+   * @param ref   the offset of the register to start reading from.
+   * @param count the number of registers to be read.
+   * @param dst   the array receiving the unsigned register values, starting
+   *              at index 0.
+   * @return the number of values copied to <tt>dst</tt>.
+   * @throws ModbusException if an I/O error, a slave exception or
+   *                         a transaction error occurs.
+   */
+  public int readMultipleRegisters(int ref, int count,
+      int[] dst) throws ModbusException {
+    m_Lock.lock();
+    try {
+      m_ReadMultipleRegistersRequest.setReference(ref);
+      m_ReadMultipleRegistersRequest.setWordCount(count);
+      m_Transaction.setRequest(m_ReadMultipleRegistersRequest);
+      m_Transaction.execute();
+      return ((ReadMultipleRegistersResponse) m_Transaction.getResponse())
+          .getRegisterValues(dst, 0);
+    } finally {
+      m_Lock.unlock();
+    }
   }//readMultipleRegisters
 
   /**
@@ -304,12 +468,17 @@ public class ModbusTCPMaster {
    * @throws ModbusException if an I/O error, a slave exception or
    *                         a transaction error occurs.
    */
-  public synchronized void writeSingleRegister(int ref, Register register)
+  public void writeSingleRegister(int ref, Register register)
       throws ModbusException {
-    m_WriteSingleRegisterRequest.setReference(ref);
-    m_WriteSingleRegisterRequest.setRegister(register);
-    m_Transaction.setRequest(m_WriteSingleRegisterRequest);
-    m_Transaction.execute();
+    m_Lock.lock();
+    try {
+      m_WriteSingleRegisterRequest.setReference(ref);
+      m_WriteSingleRegisterRequest.setRegister(register);
+      m_Transaction.setRequest(m_WriteSingleRegisterRequest);
+      m_Transaction.execute();
+    } finally {
+      m_Lock.unlock();
+    }
   }//writeSingleRegister
 
   /**
@@ -321,15 +490,42 @@ public class ModbusTCPMaster {
    * @throws ModbusException if an I/O error, a slave exception or
    *                         a transaction error occurs.
    */
-  public synchronized void writeMultipleRegisters(int ref, Register[] registers)
+  public void writeMultipleRegisters(int ref, Register[] registers)
       throws ModbusException {
-    m_WriteMultipleRegistersRequest.setReference(ref);
-    m_WriteMultipleRegistersRequest.setRegisters(registers);
-    m_Transaction.setRequest(m_WriteMultipleRegistersRequest);
-    m_Transaction.execute();
+    m_Lock.lock();
+    try {
+      m_WriteMultipleRegistersRequest.setReference(ref);
+      m_WriteMultipleRegistersRequest.setRegisters(registers);
+      m_Transaction.setRequest(m_WriteMultipleRegistersRequest);
+      m_Transaction.execute();
+    } finally {
+      m_Lock.unlock();
+    }
   }//writeMultipleRegisters
 
+  /**
+   * Executes several requests, writing them to the slave back to back
+   * and matching the responses by transaction identifier. Requests are
+   * not reused by the batch, so every entry of the list must be a
+   * distinct instance.
+   *
+   * @param requests the requests to be executed.
+   * @return a <tt>BatchResult</tt> holding the response or exception
+   *         of each request, in the order of the requests.
+   * @throws ModbusException if the connection could not be opened.
+   */
+  public BatchResult executeBatch(List<ModbusRequest> requests)
+      throws ModbusException {
+    m_Lock.lock();
+    try {
+      return m_Transaction.executeBatch(requests);
+    } finally {
+      m_Lock.unlock();
+    }
+  }//executeBatch
+
 	public void setUnitId(int i) {
+		m_UnitID = i;
 		m_ReadCoilsRequest.setUnitID(i);
 		m_ReadInputDiscretesRequest.setUnitID(i);
 		m_WriteCoilRequest.setUnitID(i);
@@ -340,4 +536,283 @@ public class ModbusTCPMaster {
 		m_WriteMultipleRegistersRequest.setUnitID(i);
 	}
 
+  /**
+   * Reads a given number of coil states from the slave, without blocking
+   * the calling thread.
+   *
+   * @param ref     the offset of the coil to start reading from.
+   * @param count   the number of coil states to be read.
+   * @param timeout the time to wait for the response, in milliseconds.
+   * @return a future <tt>BitVector</tt> holding the received coil states.
+   */
+  public CompletableFuture<BitVector> readCoilsAsync(int ref, int count,
+      int timeout) {
+    ReadCoilsRequest request = new ReadCoilsRequest(ref, count);
+    request.setUnitID(m_UnitID);
+    return send(request, timeout).thenApply(AsyncResponses.coils(count));
+  }//readCoilsAsync
+
+  /**
+   * Reads a given number of coil states from the slave, without blocking
+   * the calling thread. The call times out after the connection timeout.
+   *
+   * @param ref     the offset of the coil to start reading from.
+   * @param count   the number of coil states to be read.
+   * @return a future <tt>BitVector</tt> holding the received coil states.
+   */
+  public CompletableFuture<BitVector> readCoilsAsync(int ref, int count) {
+    return readCoilsAsync(ref, count, m_Connection.getTimeout());
+  }//readCoilsAsync
+
+  /**
+   * Writes a coil state to the slave, without blocking the calling
+   * thread.
+   *
+   * @param unitid  the slave unit id.
+   * @param ref     the offset of the coil to be written.
+   * @param state   the coil state to be written.
+   * @param timeout the time to wait for the response, in milliseconds.
+   * @return the future state of the coil as returned from the slave.
+   */
+  public CompletableFuture<Boolean> writeCoilAsync(int unitid, int ref,
+      boolean state, int timeout) {
+    WriteCoilRequest request = new WriteCoilRequest(ref, state);
+    request.setUnitID(unitid);
+    return send(request, timeout).thenApply(AsyncResponses.COIL);
+  }//writeCoilAsync
+
+  /**
+   * Writes a coil state to the slave, without blocking the calling
+   * thread. The call times out after the connection timeout.
+   *
+   * @param unitid  the slave unit id.
+   * @param ref     the offset of the coil to be written.
+   * @param state   the coil state to be written.
+   * @return the future state of the coil as returned from the slave.
+   */
+  public CompletableFuture<Boolean> writeCoilAsync(int unitid, int ref,
+      boolean state) {
+    return writeCoilAsync(unitid, ref, state, m_Connection.getTimeout());
+  }//writeCoilAsync
+
+  /**
+   * Writes a given number of coil states to the slave, without blocking
+   * the calling thread.
+   *
+   * @param ref     the offset of the coil to start writing to.
+   * @param coils   a <tt>BitVector</tt> which holds the coil states to be
+   *               written.
+   * @param timeout the time to wait for the response, in milliseconds.
+   * @return a future which completes when the slave has answered.
+   */
+  public CompletableFuture<Void> writeMultipleCoilsAsync(int ref,
+      BitVector coils, int timeout) {
+    WriteMultipleCoilsRequest request =
+        new WriteMultipleCoilsRequest(ref, coils);
+    request.setUnitID(m_UnitID);
+    return send(request, timeout).thenApply(AsyncResponses.NONE);
+  }//writeMultipleCoilsAsync
+
+  /**
+   * Writes a given number of coil states to the slave, without blocking
+   * the calling thread. The call times out after the connection timeout.
+   *
+   * @param ref     the offset of the coil to start writing to.
+   * @param coils   a <tt>BitVector</tt> which holds the coil states to be
+   *               written.
+   * @return a future which completes when the slave has answered.
+   */
+  public CompletableFuture<Void> writeMultipleCoilsAsync(int ref,
+      BitVector coils) {
+    return writeMultipleCoilsAsync(ref, coils, m_Connection.getTimeout());
+  }//writeMultipleCoilsAsync
+
+  /**
+   * Reads a given number of input discrete states from the slave, without
+   * blocking the calling thread.
+   *
+   * @param ref     the offset of the input discrete to start reading
+   *               from.
+   * @param count   the number of input discrete states to be read.
+   * @param timeout the time to wait for the response, in milliseconds.
+   * @return a future <tt>BitVector</tt> holding the received input
+   *         discrete states.
+   */
+  public CompletableFuture<BitVector> readInputDiscretesAsync(int ref,
+      int count, int timeout) {
+    ReadInputDiscretesRequest request =
+        new ReadInputDiscretesRequest(ref, count);
+    request.setUnitID(m_UnitID);
+    return send(request, timeout).thenApply(AsyncResponses.discretes(count));
+  }//readInputDiscretesAsync
+
+  /**
+   * Reads a given number of input discrete states from the slave, without
+   * blocking the calling thread. The call times out after the connection
+   * timeout.
+   *
+   * @param ref     the offset of the input discrete to start reading
+   *               from.
+   * @param count   the number of input discrete states to be read.
+   * @return a future <tt>BitVector</tt> holding the received input
+   *         discrete states.
+   */
+  public CompletableFuture<BitVector> readInputDiscretesAsync(int ref,
+      int count) {
+    return readInputDiscretesAsync(ref, count, m_Connection.getTimeout());
+  }//readInputDiscretesAsync
+
+  /**
+   * Reads a given number of input registers from the slave, without
+   * blocking the calling thread.
+   *
+   * @param ref     the offset of the input register to start reading
+   *               from.
+   * @param count   the number of input registers to be read.
+   * @param timeout the time to wait for the response, in milliseconds.
+   * @return a future <tt>InputRegister[]</tt> with the received input
+   *         registers.
+   */
+  public CompletableFuture<InputRegister[]> readInputRegistersAsync(int ref,
+      int count, int timeout) {
+    ReadInputRegistersRequest request =
+        new ReadInputRegistersRequest(ref, count);
+    request.setUnitID(m_UnitID);
+    return send(request, timeout).thenApply(AsyncResponses.INPUT_REGISTERS);
+  }//readInputRegistersAsync
+
+  /**
+   * Reads a given number of input registers from the slave, without
+   * blocking the calling thread. The call times out after the connection
+   * timeout.
+   *
+   * @param ref     the offset of the input register to start reading
+   *               from.
+   * @param count   the number of input registers to be read.
+   * @return a future <tt>InputRegister[]</tt> with the received input
+   *         registers.
+   */
+  public CompletableFuture<InputRegister[]> readInputRegistersAsync(int ref,
+      int count) {
+    return readInputRegistersAsync(ref, count, m_Connection.getTimeout());
+  }//readInputRegistersAsync
+
+  /**
+   * Reads a given number of registers from the slave, without blocking
+   * the calling thread.
+   *
+   * @param ref     the offset of the register to start reading from.
+   * @param count   the number of registers to be read.
+   * @param timeout the time to wait for the response, in milliseconds.
+   * @return a future <tt>Register[]</tt> holding the received registers.
+   */
+  public CompletableFuture<Register[]> readMultipleRegistersAsync(int ref,
+      int count, int timeout) {
+    ReadMultipleRegistersRequest request =
+        new ReadMultipleRegistersRequest(ref, count);
+    request.setUnitID(m_UnitID);
+    return send(request, timeout).thenApply(AsyncResponses.REGISTERS);
+  }//readMultipleRegistersAsync
+
+  /**
+   * Reads a given number of registers from the slave, without blocking
+   * the calling thread. The call times out after the connection timeout.
+   *
+   * @param ref     the offset of the register to start reading from.
+   * @param count   the number of registers to be read.
+   * @return a future <tt>Register[]</tt> holding the received registers.
+   */
+  public CompletableFuture<Register[]> readMultipleRegistersAsync(int ref,
+      int count) {
+    return readMultipleRegistersAsync(ref, count, m_Connection.getTimeout());
+  }//readMultipleRegistersAsync
+
+  /**
+   * Writes a single register to the slave, without blocking the calling
+   * thread.
+   *
+   * @param ref      the offset of the register to be written.
+   * @param register a <tt>Register</tt> holding the value of the register
+   *                to be written.
+   * @param timeout  the time to wait for the response, in milliseconds.
+   * @return a future which completes when the slave has answered.
+   */
+  public CompletableFuture<Void> writeSingleRegisterAsync(int ref,
+      Register register, int timeout) {
+    WriteSingleRegisterRequest request =
+        new WriteSingleRegisterRequest(ref, register);
+    request.setUnitID(m_UnitID);
+    return send(request, timeout).thenApply(AsyncResponses.NONE);
+  }//writeSingleRegisterAsync
+
+  /**
+   * Writes a single register to the slave, without blocking the calling
+   * thread. The call times out after the connection timeout.
+   *
+   * @param ref      the offset of the register to be written.
+   * @param register a <tt>Register</tt> holding the value of the register
+   *                to be written.
+   * @return a future which completes when the slave has answered.
+   */
+  public CompletableFuture<Void> writeSingleRegisterAsync(int ref,
+      Register register) {
+    return writeSingleRegisterAsync(ref, register, m_Connection.getTimeout());
+  }//writeSingleRegisterAsync
+
+  /**
+   * Writes a number of registers to the slave, without blocking the
+   * calling thread.
+   *
+   * @param ref       the offset of the register to start writing to.
+   * @param registers a <tt>Register[]</tt> holding the values of the
+   *                 registers to be written.
+   * @param timeout   the time to wait for the response, in milliseconds.
+   * @return a future which completes when the slave has answered.
+   */
+  public CompletableFuture<Void> writeMultipleRegistersAsync(int ref,
+      Register[] registers, int timeout) {
+    WriteMultipleRegistersRequest request =
+        new WriteMultipleRegistersRequest(ref, registers);
+    request.setUnitID(m_UnitID);
+    return send(request, timeout).thenApply(AsyncResponses.NONE);
+  }//writeMultipleRegistersAsync
+
+  /**
+   * Writes a number of registers to the slave, without blocking the
+   * calling thread. The call times out after the connection timeout.
+   *
+   * @param ref       the offset of the register to start writing to.
+   * @param registers a <tt>Register[]</tt> holding the values of the
+   *                 registers to be written.
+   * @return a future which completes when the slave has answered.
+   */
+  public CompletableFuture<Void> writeMultipleRegistersAsync(int ref,
+      Register[] registers) {
+    return writeMultipleRegistersAsync(ref, registers,
+        m_Connection.getTimeout());
+  }//writeMultipleRegistersAsync
+
+  /**
+   * Sends a request without waiting for the response. Pipelined requests
+   * go straight to the connection, or wait in the pipeline's queue while
+   * its window is full; any other request is queued for the worker thread.
+   *
+   * @param request the <tt>ModbusRequest</tt> to be sent.
+   * @param timeout the time to wait for the response, in milliseconds.
+   * @return the future response.
+   */
+  private CompletableFuture<ModbusResponse> send(ModbusRequest request,
+      int timeout) {
+    ModbusTCPPipeline pipeline = m_Connection.getPipeline();
+
+    if (pipeline == null || !pipeline.isRunning()) {
+      ModbusTCPTransaction trans = new ModbusTCPTransaction(m_Connection);
+      trans.setRequest(request);
+      trans.setReconnecting(m_Reconnecting);
+      return m_Worker.execute(trans, timeout);
+    }
+
+    return AsyncResponses.checked(pipeline.enqueue(request, timeout));
+  }//send
+
 }//class ModbusTCPMaster
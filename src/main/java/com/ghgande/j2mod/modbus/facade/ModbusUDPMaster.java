@@ -36,6 +36,8 @@ package com.ghgande.j2mod.modbus.facade;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.ghgande.j2mod.modbus.ModbusException;
 import com.ghgande.j2mod.modbus.io.ModbusUDPTransaction;
@@ -47,6 +49,9 @@ import com.ghgande.j2mod.modbus.util.BitVector;
 
 /**
  * Modbus/UDP Master facade.
+ * <p/>
+ * The <tt>...Async</tt> methods return without waiting for the slave. They
+ * are executed one after the other by a worker thread.
  *
  * @author Dieter Wimberger
  * @version 1.2rc1 (09/11/2004)
@@ -64,6 +69,14 @@ public class ModbusUDPMaster {
   private ReadMultipleRegistersRequest m_ReadMultipleRegistersRequest;
   private WriteSingleRegisterRequest m_WriteSingleRegisterRequest;
   private WriteMultipleRegistersRequest m_WriteMultipleRegistersRequest;
+  private AsyncWorker m_Worker;
+
+  /*
+   * Held while a blocking call uses the shared transaction. A lock rather
+   * than a monitor, so that a virtual thread waiting for the slave does
+   * not pin its carrier thread.
+   */
+  private final ReentrantLock m_Lock = new ReentrantLock();
 
   /**
    * Constructs a new master facade instance for communication
@@ -84,6 +97,7 @@ public class ModbusUDPMaster {
       m_ReadMultipleRegistersRequest = new ReadMultipleRegistersRequest();
       m_WriteSingleRegisterRequest = new WriteSingleRegisterRequest();
       m_WriteMultipleRegistersRequest = new WriteMultipleRegistersRequest();
+      m_Worker = new AsyncWorker("ModbusUDPMaster " + addr);
 
     } catch (UnknownHostException e) {
       throw new RuntimeException(e.getMessage());
@@ -124,6 +138,7 @@ public class ModbusUDPMaster {
       m_Connection.close();
       m_Transaction = null;
     }
+    m_Worker.shutdown();
   }//disconnect
 
   /**
@@ -139,15 +154,20 @@ public class ModbusUDPMaster {
    * @throws ModbusException if an I/O error, a slave exception or
    *                         a transaction error occurs.
    */
-  public synchronized BitVector readCoils(int ref, int count)
+  public BitVector readCoils(int ref, int count)
       throws ModbusException {
-    m_ReadCoilsRequest.setReference(ref);
-    m_ReadCoilsRequest.setBitCount(count);
-    m_Transaction.setRequest(m_ReadCoilsRequest);
-    m_Transaction.execute();
-    BitVector bv = ((ReadCoilsResponse) m_Transaction.getResponse()).getCoils();
-    bv.forceSize(count);
-    return bv;
+    m_Lock.lock();
+    try {
+      m_ReadCoilsRequest.setReference(ref);
+      m_ReadCoilsRequest.setBitCount(count);
+      m_Transaction.setRequest(m_ReadCoilsRequest);
+      m_Transaction.execute();
+      BitVector bv = ((ReadCoilsResponse) m_Transaction.getResponse()).getCoils();
+      bv.forceSize(count);
+      return bv;
+    } finally {
+      m_Lock.unlock();
+    }
   }//readCoils
 
   /**
@@ -160,14 +180,19 @@ public class ModbusUDPMaster {
    * @throws ModbusException if an I/O error, a slave exception or
    *                         a transaction error occurs.
    */
-  public synchronized boolean writeCoil(int unitid, int ref, boolean state)
+  public boolean writeCoil(int unitid, int ref, boolean state)
       throws ModbusException {
-    m_WriteCoilRequest.setUnitID(unitid);
-    m_WriteCoilRequest.setReference(ref);
-    m_WriteCoilRequest.setCoil(state);
-    m_Transaction.setRequest(m_WriteCoilRequest);
-    m_Transaction.execute();
-    return ((WriteCoilResponse) m_Transaction.getResponse()).getCoil();
+    m_Lock.lock();
+    try {
+      m_WriteCoilRequest.setUnitID(unitid);
+      m_WriteCoilRequest.setReference(ref);
+      m_WriteCoilRequest.setCoil(state);
+      m_Transaction.setRequest(m_WriteCoilRequest);
+      m_Transaction.execute();
+      return ((WriteCoilResponse) m_Transaction.getResponse()).getCoil();
+    } finally {
+      m_Lock.unlock();
+    }
   }//writeCoil
 
   /**
@@ -181,12 +206,17 @@ public class ModbusUDPMaster {
    * @throws ModbusException if an I/O error, a slave exception or
    *                         a transaction error occurs.
    */
-  public synchronized void writeMultipleCoils(int ref, BitVector coils)
+  public void writeMultipleCoils(int ref, BitVector coils)
       throws ModbusException {
-    m_WriteMultipleCoilsRequest.setReference(ref);
-    m_WriteMultipleCoilsRequest.setCoils(coils);
-    m_Transaction.setRequest(m_WriteMultipleCoilsRequest);
-    m_Transaction.execute();
+    m_Lock.lock();
+    try {
+      m_WriteMultipleCoilsRequest.setReference(ref);
+      m_WriteMultipleCoilsRequest.setCoils(coils);
+      m_Transaction.setRequest(m_WriteMultipleCoilsRequest);
+      m_Transaction.execute();
+    } finally {
+      m_Lock.unlock();
+    }
   }//writeMultipleCoils
 
   /**
@@ -202,15 +232,20 @@ public class ModbusUDPMaster {
    * @throws ModbusException if an I/O error, a slave exception or
    *                         a transaction error occurs.
    */
-  public synchronized BitVector readInputDiscretes(int ref, int count)
+  public BitVector readInputDiscretes(int ref, int count)
       throws ModbusException {
-    m_ReadInputDiscretesRequest.setReference(ref);
-    m_ReadInputDiscretesRequest.setBitCount(count);
-    m_Transaction.setRequest(m_ReadInputDiscretesRequest);
-    m_Transaction.execute();
-    BitVector bv = ((ReadInputDiscretesResponse) m_Transaction.getResponse()).getDiscretes();
-    bv.forceSize(count);
-    return bv;
+    m_Lock.lock();
+    try {
+      m_ReadInputDiscretesRequest.setReference(ref);
+      m_ReadInputDiscretesRequest.setBitCount(count);
+      m_Transaction.setRequest(m_ReadInputDiscretesRequest);
+      m_Transaction.execute();
+      BitVector bv = ((ReadInputDiscretesResponse) m_Transaction.getResponse()).getDiscretes();
+      bv.forceSize(count);
+      return bv;
+    } finally {
+      m_Lock.unlock();
+    }
   }//readInputDiscretes
 
 
@@ -226,13 +261,48 @@ public class ModbusUDPMaster {
    * @throws ModbusException if an I/O error, a slave exception or
    *                         a transaction error occurs.
    */
-  public synchronized InputRegister[] readInputRegisters(int ref, int count)
+  public InputRegister[] readInputRegisters(int ref, int count)
       throws ModbusException {
-    m_ReadInputRegistersRequest.setReference(ref);
-    m_ReadInputRegistersRequest.setWordCount(count);
-    m_Transaction.setRequest(m_ReadInputRegistersRequest);
-    m_Transaction.execute();
-    return ((ReadInputRegistersResponse) m_Transaction.getResponse()).getRegisters();
+    m_Lock.lock();
+    try {
+      m_ReadInputRegistersRequest.setReference(ref);
+      m_ReadInputRegistersRequest.setWordCount(count);
+      m_Transaction.setRequest(m_ReadInputRegistersRequest);
+      m_Transaction.execute();
+      return ((ReadInputRegistersResponse) m_Transaction.getResponse()).getRegisters();
+    } finally {
+      m_Lock.unlock();
+    }
+  }//readInputRegisters
+
+  /**
+   * Reads a given number of input registers from the slave into an array,
+   * without creating a register object per value.
+   * <p/>
+   * Note that the number of values copied will be according to the
+   * number received in the slave response.
+   *
+   * @param ref   the offset of the register to start reading from.
+   * @param count the number of registers to be read.
+   * @param dst   the array receiving the unsigned register values, starting
+   *              at index 0.
+   * @return the number of values copied to <tt>dst</tt>.
+   * @throws ModbusException if an I/O error, a slave exception or
+   *                         a transaction error occurs.
+   */
+  public int readInputRegisters(int ref, int count,
+      int[] dst) throws ModbusException {
+    m_Lock.lock();
+    try {
+      m_ReadInputRegistersRequest.setReference(ref);
+      m_ReadInputRegistersRequest.setWordCount(count);
+      m_Transaction.setRequest(m_ReadInputRegistersRequest);
+      m_Transaction.execute();
+      return ((ReadInputRegistersResponse) m_Transaction.getResponse())
+          .getRegisterValues(dst, 0);
+    } finally {
+      m_Lock.unlock();
+    }
   }//readInputRegisters
 
   /**
@@ -247,13 +317,48 @@ public class ModbusUDPMaster {
    * @throws ModbusException if an I/O error, a slave exception or
    *                         a transaction error occurs.
    */
-  public synchronized Register[] readMultipleRegisters(int ref, int count)
+  public Register[] readMultipleRegisters(int ref, int count)
       throws ModbusException {
-    m_ReadMultipleRegistersRequest.setReference(ref);
-    m_ReadMultipleRegistersRequest.setWordCount(count);
-    m_Transaction.setRequest(m_ReadMultipleRegistersRequest);
-    m_Transaction.execute();
-    return ((ReadMultipleRegistersResponse) m_Transaction.getResponse()).getRegisters();
+    m_Lock.lock();
+    try {
+      m_ReadMultipleRegistersRequest.setReference(ref);
+      m_ReadMultipleRegistersRequest.setWordCount(count);
+      m_Transaction.setRequest(m_ReadMultipleRegistersRequest);
+      m_Transaction.execute();
+      return ((ReadMultipleRegistersResponse) m_Transaction.getResponse()).getRegisters();
+    } finally {
+      m_Lock.unlock();
+    }
+  }//readMultipleRegisters
+
+  /**
+   * Reads a given number of registers from the slave into an array,
+   * without creating a register object per value.
+   * <p/>
+   * Note that the number of values copied will be according to the
+   * number received in the slave response.
+   *
+   * @param ref   the offset of the register to start reading from.
+   * @param count the number of registers to be read.
+   * @param dst   the array receiving the unsigned register values, starting
+   *              at index 0.
+   * @return the number of values copied to <tt>dst</tt>.
+   * @throws ModbusException if an I/O error, a slave exception or
+   *                         a transaction error occurs.
+   */
+  public int readMultipleRegisters(int ref, int count,
+      int[] dst) throws ModbusException {
+    m_Lock.lock();
+    try {
+      m_ReadMultipleRegistersRequest.setReference(ref);
+      m_ReadMultipleRegistersRequest.setWordCount(count);
+      m_Transaction.setRequest(m_ReadMultipleRegistersRequest);
+      m_Transaction.execute();
+      return ((ReadMultipleRegistersResponse) m_Transaction.getResponse())
+          .getRegisterValues(dst, 0);
+    } finally {
+      m_Lock.unlock();
+    }
   }//readMultipleRegisters
 
   /**
@@ -265,12 +370,17 @@ public class ModbusUDPMaster {
    * @throws ModbusException if an I/O error, a slave exception or
    *                         a transaction error occurs.
    */
-  public synchronized void writeSingleRegister(int ref, Register register)
+  public void writeSingleRegister(int ref, Register register)
       throws ModbusException {
-    m_WriteSingleRegisterRequest.setReference(ref);
-    m_WriteSingleRegisterRequest.setRegister(register);
-    m_Transaction.setRequest(m_WriteSingleRegisterRequest);
-    m_Transaction.execute();
+    m_Lock.lock();
+    try {
+      m_WriteSingleRegisterRequest.setReference(ref);
+      m_WriteSingleRegisterRequest.setRegister(register);
+      m_Transaction.setRequest(m_WriteSingleRegisterRequest);
+      m_Transaction.execute();
+    } finally {
+      m_Lock.unlock();
+    }
   }//writeSingleRegister
 
   /**
@@ -282,12 +392,279 @@ public class ModbusUDPMaster {
    * @throws ModbusException if an I/O error, a slave exception or
    *                         a transaction error occurs.
    */
-  public synchronized void writeMultipleRegisters(int ref, Register[] registers)
+  public void writeMultipleRegisters(int ref, Register[] registers)
       throws ModbusException {
-    m_WriteMultipleRegistersRequest.setReference(ref);
-    m_WriteMultipleRegistersRequest.setRegisters(registers);
-    m_Transaction.setRequest(m_WriteMultipleRegistersRequest);
-    m_Transaction.execute();
+    m_Lock.lock();
+    try {
+      m_WriteMultipleRegistersRequest.setReference(ref);
+      m_WriteMultipleRegistersRequest.setRegisters(registers);
+      m_Transaction.setRequest(m_WriteMultipleRegistersRequest);
+      m_Transaction.execute();
+    } finally {
+      m_Lock.unlock();
+    }
   }//writeMultipleRegisters
 
+  /**
+   * Reads a given number of coil states from the slave, without blocking
+   * the calling thread.
+   *
+   * @param ref     the offset of the coil to start reading from.
+   * @param count   the number of coil states to be read.
+   * @param timeout the time to wait for the response, in milliseconds.
+   * @return a future <tt>BitVector</tt> holding the received coil states.
+   */
+  public CompletableFuture<BitVector> readCoilsAsync(int ref, int count,
+      int timeout) {
+    ReadCoilsRequest request = new ReadCoilsRequest(ref, count);
+    return send(request, timeout).thenApply(AsyncResponses.coils(count));
+  }//readCoilsAsync
+
+  /**
+   * Reads a given number of coil states from the slave, without blocking
+   * the calling thread. The call times out after the connection timeout.
+   *
+   * @param ref     the offset of the coil to start reading from.
+   * @param count   the number of coil states to be read.
+   * @return a future <tt>BitVector</tt> holding the received coil states.
+   */
+  public CompletableFuture<BitVector> readCoilsAsync(int ref, int count) {
+    return readCoilsAsync(ref, count, m_Connection.getTimeout());
+  }//readCoilsAsync
+
+  /**
+   * Writes a coil state to the slave, without blocking the calling
+   * thread.
+   *
+   * @param unitid  the slave unit id.
+   * @param ref     the offset of the coil to be written.
+   * @param state   the coil state to be written.
+   * @param timeout the time to wait for the response, in milliseconds.
+   * @return the future state of the coil as returned from the slave.
+   */
+  public CompletableFuture<Boolean> writeCoilAsync(int unitid, int ref,
+      boolean state, int timeout) {
+    WriteCoilRequest request = new WriteCoilRequest(ref, state);
+    request.setUnitID(unitid);
+    return send(request, timeout).thenApply(AsyncResponses.COIL);
+  }//writeCoilAsync
+
+  /**
+   * Writes a coil state to the slave, without blocking the calling
+   * thread. The call times out after the connection timeout.
+   *
+   * @param unitid  the slave unit id.
+   * @param ref     the offset of the coil to be written.
+   * @param state   the coil state to be written.
+   * @return the future state of the coil as returned from the slave.
+   */
+  public CompletableFuture<Boolean> writeCoilAsync(int unitid, int ref,
+      boolean state) {
+    return writeCoilAsync(unitid, ref, state, m_Connection.getTimeout());
+  }//writeCoilAsync
+
+  /**
+   * Writes a given number of coil states to the slave, without blocking
+   * the calling thread.
+   *
+   * @param ref     the offset of the coil to start writing to.
+   * @param coils   a <tt>BitVector</tt> which holds the coil states to be
+   *               written.
+   * @param timeout the time to wait for the response, in milliseconds.
+   * @return a future which completes when the slave has answered.
+   */
+  public CompletableFuture<Void> writeMultipleCoilsAsync(int ref,
+      BitVector coils, int timeout) {
+    WriteMultipleCoilsRequest request =
+        new WriteMultipleCoilsRequest(ref, coils);
+    return send(request, timeout).thenApply(AsyncResponses.NONE);
+  }//writeMultipleCoilsAsync
+
+  /**
+   * Writes a given number of coil states to the slave, without blocking
+   * the calling thread. The call times out after the connection timeout.
+   *
+   * @param ref     the offset of the coil to start writing to.
+   * @param coils   a <tt>BitVector</tt> which holds the coil states to be
+   *               written.
+   * @return a future which completes when the slave has answered.
+   */
+  public CompletableFuture<Void> writeMultipleCoilsAsync(int ref,
+      BitVector coils) {
+    return writeMultipleCoilsAsync(ref, coils, m_Connection.getTimeout());
+  }//writeMultipleCoilsAsync
+
+  /**
+   * Reads a given number of input discrete states from the slave, without
+   * blocking the calling thread.
+   *
+   * @param ref     the offset of the input discrete to start reading
+   *               from.
+   * @param count   the number of input discrete states to be read.
+   * @param timeout the time to wait for the response, in milliseconds.
+   * @return a future <tt>BitVector</tt> holding the received input
+   *         discrete states.
+   */
+  public CompletableFuture<BitVector> readInputDiscretesAsync(int ref,
+      int count, int timeout) {
+    ReadInputDiscretesRequest request =
+        new ReadInputDiscretesRequest(ref, count);
+    return send(request, timeout).thenApply(AsyncResponses.discretes(count));
+  }//readInputDiscretesAsync
+
+  /**
+   * Reads a given number of input discrete states from the slave, without
+   * blocking the calling thread. The call times out after the connection
+   * timeout.
+   *
+   * @param ref     the offset of the input discrete to start reading
+   *               from.
+   * @param count   the number of input discrete states to be read.
+   * @return a future <tt>BitVector</tt> holding the received input
+   *         discrete states.
+   */
+  public CompletableFuture<BitVector> readInputDiscretesAsync(int ref,
+      int count) {
+    return readInputDiscretesAsync(ref, count, m_Connection.getTimeout());
+  }//readInputDiscretesAsync
+
+  /**
+   * Reads a given number of input registers from the slave, without
+   * blocking the calling thread.
+   *
+   * @param ref     the offset of the input register to start reading
+   *               from.
+   * @param count   the number of input registers to be read.
+   * @param timeout the time to wait for the response, in milliseconds.
+   * @return a future <tt>InputRegister[]</tt> with the received input
+   *         registers.
+   */
+  public CompletableFuture<InputRegister[]> readInputRegistersAsync(int ref,
+      int count, int timeout) {
+    ReadInputRegistersRequest request =
+        new ReadInputRegistersRequest(ref, count);
+    return send(request, timeout).thenApply(AsyncResponses.INPUT_REGISTERS);
+  }//readInputRegistersAsync
+
+  /**
+   * Reads a given number of input registers from the slave, without
+   * blocking the calling thread. The call times out after the connection
+   * timeout.
+   *
+   * @param ref     the offset of the input register to start reading
+   *               from.
+   * @param count   the number of input registers to be read.
+   * @return a future <tt>InputRegister[]</tt> with the received input
+   *         registers.
+   */
+  public CompletableFuture<InputRegister[]> readInputRegistersAsync(int ref,
+      int count) {
+    return readInputRegistersAsync(ref, count, m_Connection.getTimeout());
+  }//readInputRegistersAsync
+
+  /**
+   * Reads a given number of registers from the slave, without blocking
+   * the calling thread.
+   *
+   * @param ref     the offset of the register to start reading from.
+   * @param count   the number of registers to be read.
+   * @param timeout the time to wait for the response, in milliseconds.
+   * @return a future <tt>Register[]</tt> holding the received registers.
+   */
+  public CompletableFuture<Register[]> readMultipleRegistersAsync(int ref,
+      int count, int timeout) {
+    ReadMultipleRegistersRequest request =
+        new ReadMultipleRegistersRequest(ref, count);
+    return send(request, timeout).thenApply(AsyncResponses.REGISTERS);
+  }//readMultipleRegistersAsync
+
+  /**
+   * Reads a given number of registers from the slave, without blocking
+   * the calling thread. The call times out after the connection timeout.
+   *
+   * @param ref     the offset of the register to start reading from.
+   * @param count   the number of registers to be read.
+   * @return a future <tt>Register[]</tt> holding the received registers.
+   */
+  public CompletableFuture<Register[]> readMultipleRegistersAsync(int ref,
+      int count) {
+    return readMultipleRegistersAsync(ref, count, m_Connection.getTimeout());
+  }//readMultipleRegistersAsync
+
+  /**
+   * Writes a single register to the slave, without blocking the calling
+   * thread.
+   *
+   * @param ref      the offset of the register to be written.
+   * @param register a <tt>Register</tt> holding the value of the register
+   *                to be written.
+   * @param timeout  the time to wait for the response, in milliseconds.
+   * @return a future which completes when the slave has answered.
+   */
+  public CompletableFuture<Void> writeSingleRegisterAsync(int ref,
+      Register register, int timeout) {
+    WriteSingleRegisterRequest request =
+        new WriteSingleRegisterRequest(ref, register);
+    return send(request, timeout).thenApply(AsyncResponses.NONE);
+  }//writeSingleRegisterAsync
+
+  /**
+   * Writes a single register to the slave, without blocking the calling
+   * thread. The call times out after the connection timeout.
+   *
+   * @param ref      the offset of the register to be written.
+   * @param register a <tt>Register</tt> holding the value of the register
+   *                to be written.
+   * @return a future which completes when the slave has answered.
+   */
+  public CompletableFuture<Void> writeSingleRegisterAsync(int ref,
+      Register register) {
+    return writeSingleRegisterAsync(ref, register, m_Connection.getTimeout());
+  }//writeSingleRegisterAsync
+
+  /**
+   * Writes a number of registers to the slave, without blocking the
+   * calling thread.
+   *
+   * @param ref       the offset of the register to start writing to.
+   * @param registers a <tt>Register[]</tt> holding the values of the
+   *                 registers to be written.
+   * @param timeout   the time to wait for the response, in milliseconds.
+   * @return a future which completes when the slave has answered.
+   */
+  public CompletableFuture<Void> writeMultipleRegistersAsync(int ref,
+      Register[] registers, int timeout) {
+    WriteMultipleRegistersRequest request =
+        new WriteMultipleRegistersRequest(ref, registers);
+    return send(request, timeout).thenApply(AsyncResponses.NONE);
+  }//writeMultipleRegistersAsync
+
+  /**
+   * Writes a number of registers to the slave, without blocking the
+   * calling thread. The call times out after the connection timeout.
+   *
+   * @param ref       the offset of the register to start writing to.
+   * @param registers a <tt>Register[]</tt> holding the values of the
+   *                 registers to be written.
+   * @return a future which completes when the slave has answered.
+   */
+  public CompletableFuture<Void> writeMultipleRegistersAsync(int ref,
+      Register[] registers) {
+    return writeMultipleRegistersAsync(ref, registers,
+        m_Connection.getTimeout());
+  }//writeMultipleRegistersAsync
+  /**
+   * Queues a request for the worker thread.
+   *
+   * @param request the <tt>ModbusRequest</tt> to be sent.
+   * @param timeout the time to wait for the response, in milliseconds.
+   * @return the future response.
+   */
+  private CompletableFuture<ModbusResponse> send(ModbusRequest request,
+      int timeout) {
+    ModbusUDPTransaction trans = new ModbusUDPTransaction(m_Connection);
+    trans.setRequest(request);
+    return m_Worker.execute(trans, timeout);
+  }//send
+
 }//class ModbusUDPMaster
@@ -0,0 +1,188 @@
+//License
+/***
+ * Java Modbus Library (jamod)
+ * Copyright (c) 2002-2004, jamod development team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.io;
+
+import java.util.List;
+
+import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.ModbusSlaveException;
+import com.ghgande.j2mod.modbus.msg.ExceptionResponse;
+import com.ghgande.j2mod.modbus.msg.ModbusRequest;
+import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+
+/**
+ * Class holding the outcome of a batch of requests executed with
+ * <tt>ModbusTCPTransaction.executeBatch()</tt>, in the order of the
+ * requests.
+ *
+ * <p>
+ * Every request either has a response, or an exception describing why it
+ * failed. A slave exception counts as a failure; its
+ * <tt>ExceptionResponse</tt> is available as well.
+ */
+public class BatchResult {
+
+	// instance attributes
+	private ModbusRequest[] m_Requests;
+	private ModbusResponse[] m_Responses;
+	private ModbusException[] m_Exceptions;
+
+	/**
+	 * Constructs a new <tt>BatchResult</tt> with no outcome yet for any of
+	 * the given requests.
+	 *
+	 * @param requests
+	 *            the requests of the batch.
+	 */
+	BatchResult(List<ModbusRequest> requests) {
+		m_Requests = requests.toArray(new ModbusRequest[requests.size()]);
+		m_Responses = new ModbusResponse[m_Requests.length];
+		m_Exceptions = new ModbusException[m_Requests.length];
+	}
+
+	/**
+	 * Returns the number of requests in the batch.
+	 *
+	 * @return the number of requests.
+	 */
+	public int size() {
+		return m_Requests.length;
+	}
+
+	/**
+	 * Returns a request of the batch.
+	 *
+	 * @param index
+	 *            the index of the request.
+	 * @return the <tt>ModbusRequest</tt>.
+	 */
+	public ModbusRequest getRequest(int index) {
+		return m_Requests[index];
+	}
+
+	/**
+	 * Returns the response to a request.
+	 *
+	 * @param index
+	 *            the index of the request.
+	 * @return the <tt>ModbusResponse</tt>, which may be an
+	 *         <tt>ExceptionResponse</tt>, or <tt>null</tt> if none was
+	 *         received.
+	 */
+	public ModbusResponse getResponse(int index) {
+		return m_Responses[index];
+	}
+
+	/**
+	 * Returns the exception describing why a request failed.
+	 *
+	 * @param index
+	 *            the index of the request.
+	 * @return a <tt>ModbusSlaveException</tt> if the slave returned an
+	 *         exception response, another <tt>ModbusException</tt> if no
+	 *         response was received, or <tt>null</tt> if the request
+	 *         succeeded.
+	 */
+	public ModbusException getException(int index) {
+		return m_Exceptions[index];
+	}
+
+	/**
+	 * Tests if a request succeeded.
+	 *
+	 * @param index
+	 *            the index of the request.
+	 * @return true if a normal response was received, false otherwise.
+	 */
+	public boolean isSuccessful(int index) {
+		return m_Exceptions[index] == null && m_Responses[index] != null;
+	}
+
+	/**
+	 * Tests if every request succeeded.
+	 *
+	 * @return true if every request has a normal response, false otherwise.
+	 */
+	public boolean isSuccessful() {
+		return getFailureCount() == 0;
+	}
+
+	/**
+	 * Returns the number of requests which failed.
+	 *
+	 * @return the failure count.
+	 */
+	public int getFailureCount() {
+		int count = 0;
+
+		for (int i = 0; i < m_Requests.length; i++)
+			if (!isSuccessful(i))
+				count++;
+
+		return count;
+	}
+
+	/**
+	 * Tests if the outcome of a request is known.
+	 */
+	boolean isDone(int index) {
+		return m_Responses[index] != null || m_Exceptions[index] != null;
+	}
+
+	/**
+	 * Records the response to a request.
+	 */
+	void setResponse(int index, ModbusResponse response) {
+		m_Responses[index] = response;
+		if (response instanceof ExceptionResponse)
+			m_Exceptions[index] = new ModbusSlaveException(
+					((ExceptionResponse) response).getExceptionCode());
+	}
+
+	/**
+	 * Records why a request failed.
+	 */
+	void setException(int index, ModbusException ex) {
+		m_Exceptions[index] = ex;
+	}
+
+	/**
+	 * Records the same failure for every request without an outcome.
+	 */
+	void failRemaining(ModbusException ex) {
+		for (int i = 0; i < m_Requests.length; i++)
+			if (!isDone(i))
+				m_Exceptions[i] = ex;
+	}
+}
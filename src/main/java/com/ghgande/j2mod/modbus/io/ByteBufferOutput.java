@@ -0,0 +1,194 @@
+//License
+/***
+ * Java Modbus Library (jamod)
+ * Copyright (c) 2002-2004, jamod development team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.io;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Class implementing a <tt>DataOutput</tt> which writes straight into a
+ * <tt>ByteBuffer</tt>, heap or direct.
+ *
+ * <p>
+ * Values are written in network byte order at the position of the buffer,
+ * which is advanced accordingly. Writing past the limit of the buffer
+ * throws an <tt>IOException</tt>.
+ */
+public class ByteBufferOutput implements DataOutput {
+
+	// instance attributes
+	private ByteBuffer m_Buffer;
+
+	/**
+	 * Constructs a new <tt>ByteBufferOutput</tt>.
+	 *
+	 * @param buffer
+	 *            the <tt>ByteBuffer</tt> to be written to.
+	 */
+	public ByteBufferOutput(ByteBuffer buffer) {
+		m_Buffer = buffer;
+	}
+
+	/**
+	 * Returns the buffer written to.
+	 *
+	 * @return the <tt>ByteBuffer</tt>.
+	 */
+	public ByteBuffer getBuffer() {
+		return m_Buffer;
+	}
+
+	/**
+	 * Sets the buffer to be written to, so that the instance can be reused.
+	 *
+	 * @param buffer
+	 *            the <tt>ByteBuffer</tt> to be written to.
+	 */
+	public void setBuffer(ByteBuffer buffer) {
+		m_Buffer = buffer;
+	}
+
+	public void write(int b) throws IOException {
+		try {
+			m_Buffer.put((byte) b);
+		} catch (BufferOverflowException ex) {
+			throw overflow();
+		}
+	}
+
+	public void write(byte[] b) throws IOException {
+		write(b, 0, b.length);
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+		try {
+			m_Buffer.put(b, off, len);
+		} catch (BufferOverflowException ex) {
+			throw overflow();
+		}
+	}
+
+	public void writeBoolean(boolean v) throws IOException {
+		write(v ? 1 : 0);
+	}
+
+	public void writeByte(int v) throws IOException {
+		write(v);
+	}
+
+	public void writeShort(int v) throws IOException {
+		try {
+			m_Buffer.putShort((short) v);
+		} catch (BufferOverflowException ex) {
+			throw overflow();
+		}
+	}
+
+	public void writeChar(int v) throws IOException {
+		writeShort(v);
+	}
+
+	public void writeInt(int v) throws IOException {
+		try {
+			m_Buffer.putInt(v);
+		} catch (BufferOverflowException ex) {
+			throw overflow();
+		}
+	}
+
+	public void writeLong(long v) throws IOException {
+		try {
+			m_Buffer.putLong(v);
+		} catch (BufferOverflowException ex) {
+			throw overflow();
+		}
+	}
+
+	public void writeFloat(float v) throws IOException {
+		writeInt(Float.floatToIntBits(v));
+	}
+
+	public void writeDouble(double v) throws IOException {
+		writeLong(Double.doubleToLongBits(v));
+	}
+
+	public void writeBytes(String s) throws IOException {
+		for (int i = 0; i < s.length(); i++)
+			write(s.charAt(i));
+	}
+
+	public void writeChars(String s) throws IOException {
+		for (int i = 0; i < s.length(); i++)
+			writeChar(s.charAt(i));
+	}
+
+	/**
+	 * Writes a string in the modified UTF-8 format of
+	 * <tt>DataOutputStream.writeUTF()</tt>.
+	 */
+	public void writeUTF(String s) throws IOException {
+		int length = 0;
+
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			length += (c >= 0x0001 && c <= 0x007F) ? 1 : (c > 0x07FF ? 3 : 2);
+		}
+		if (length > 65535)
+			throw new UTFDataFormatException("encoded string too long: "
+					+ length + " bytes");
+
+		writeShort(length);
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+
+			if (c >= 0x0001 && c <= 0x007F) {
+				write(c);
+			} else if (c > 0x07FF) {
+				write(0xE0 | ((c >> 12) & 0x0F));
+				write(0x80 | ((c >> 6) & 0x3F));
+				write(0x80 | (c & 0x3F));
+			} else {
+				write(0xC0 | ((c >> 6) & 0x1F));
+				write(0x80 | (c & 0x3F));
+			}
+		}
+	}
+
+	private IOException overflow() {
+		return new IOException("Buffer overflow");
+	}
+}
@@ -0,0 +1,199 @@
+//License
+/***
+ * Java Modbus Library (jamod)
+ * Copyright (c) 2002-2004, jamod development team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+
+import com.ghgande.j2mod.modbus.Modbus;
+
+/**
+ * Class implementing an incremental decoder for Modbus/TCP frames.
+ *
+ * <p>
+ * Bytes are read from the stream into a ring buffer, as many as the stream
+ * has ready and the buffer can hold, and every complete frame is then cut
+ * out of the buffer without reading again. A frame which has only partially
+ * arrived is kept until the rest of it has been read, also across read
+ * timeouts. A peer which pipelines its requests or responses thus costs one
+ * read per batch of frames, rather than two or more per frame.
+ *
+ * <p>
+ * Instances are not thread safe.
+ */
+public class MBAPFrameDecoder {
+
+	/**
+	 * Defines the default capacity of the ring buffer (=<tt>4096</tt>).
+	 */
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	// instance attributes
+	private byte[] m_Buffer;
+	private int m_Mask;
+	private int m_Head = 0;
+	private int m_Count = 0;
+
+	/**
+	 * Constructs a new <tt>MBAPFrameDecoder</tt> with the default capacity.
+	 */
+	public MBAPFrameDecoder() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Constructs a new <tt>MBAPFrameDecoder</tt>. The capacity is rounded
+	 * up to a power of two which holds at least one frame of maximum length.
+	 *
+	 * @param capacity
+	 *            the size of the ring buffer in bytes.
+	 */
+	public MBAPFrameDecoder(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity,
+				Modbus.MAX_MESSAGE_LENGTH + 6) - 1) << 1;
+
+		m_Buffer = new byte[size];
+		m_Mask = size - 1;
+	}
+
+	/**
+	 * Returns the number of bytes buffered and not yet returned as part of a
+	 * frame.
+	 *
+	 * @return the number of buffered bytes.
+	 */
+	public int available() {
+		return m_Count;
+	}
+
+	/**
+	 * Tests if <tt>nextFrame()</tt> will return a frame, or throw because
+	 * the header of the next frame is invalid, without reading again.
+	 *
+	 * @return true if a complete frame or an invalid header is buffered,
+	 *         false otherwise.
+	 */
+	public boolean hasFrame() {
+		if (m_Count < 6)
+			return false;
+
+		int count = ((get(4) & 0xFF) << 8) | (get(5) & 0xFF);
+		return count < 2 || count > Modbus.MAX_MESSAGE_LENGTH
+				|| m_Count >= 6 + count;
+	}
+
+	/**
+	 * Discards every buffered byte, for instance after the stream has been
+	 * replaced.
+	 */
+	public void reset() {
+		m_Head = 0;
+		m_Count = 0;
+	}
+
+	/**
+	 * Reads from the given stream into the free space of the buffer. The
+	 * call blocks until at least one byte is read, and takes whatever else
+	 * the stream has ready, up to the next wrap of the buffer.
+	 *
+	 * @param in
+	 *            the <tt>InputStream</tt> to read from.
+	 * @return the number of bytes read, or <tt>-1</tt> at the end of the
+	 *         stream.
+	 * @throws IOException
+	 *             if the buffer is full or an I/O error occurs.
+	 */
+	public int fill(InputStream in) throws IOException {
+		if (m_Count == m_Buffer.length)
+			throw new IOException("Frame buffer overflow");
+
+		int tail = (m_Head + m_Count) & m_Mask;
+		int length = tail >= m_Head ? m_Buffer.length - tail : m_Head - tail;
+
+		int read = in.read(m_Buffer, tail, length);
+		if (read > 0)
+			m_Count += read;
+
+		return read;
+	}
+
+	/**
+	 * Copies the next complete frame, header included, to the start of the
+	 * given array and removes it from the buffer.
+	 *
+	 * @param dst
+	 *            the array receiving the frame; at least
+	 *            <tt>Modbus.MAX_MESSAGE_LENGTH + 6</tt> bytes long.
+	 * @return the length of the frame, or <tt>-1</tt> if no complete frame
+	 *         has been buffered yet.
+	 * @throws StreamCorruptedException
+	 *             if the header of the next frame is invalid; the buffer
+	 *             is cleared, as the stream cannot be resynchronized, and
+	 *             the connection should be closed.
+	 */
+	public int nextFrame(byte[] dst) throws StreamCorruptedException {
+		if (m_Count < 6)
+			return -1;
+
+		int count = ((get(4) & 0xFF) << 8) | (get(5) & 0xFF);
+		if (count < 2 || count > Modbus.MAX_MESSAGE_LENGTH) {
+			reset();
+			throw new StreamCorruptedException("Invalid frame length " + count);
+		}
+
+		int length = 6 + count;
+		if (m_Count < length)
+			return -1;
+
+		int first = Math.min(length, m_Buffer.length - m_Head);
+		System.arraycopy(m_Buffer, m_Head, dst, 0, first);
+		System.arraycopy(m_Buffer, 0, dst, first, length - first);
+
+		m_Head = (m_Head + length) & m_Mask;
+		m_Count -= length;
+		if (m_Count == 0)
+			m_Head = 0;
+
+		return length;
+	}
+
+	/**
+	 * Returns the buffered byte at the given offset from the start of the
+	 * next frame.
+	 */
+	private byte get(int offset) {
+		return m_Buffer[(m_Head + offset) & m_Mask];
+	}
+}
@@ -174,6 +174,19 @@ abstract public class ModbusSerialTransport
     }
   }
   
+  /**
+   * Returns the time a read waits for input.
+   *
+   * @return the timeout in milliseconds, or <tt>Modbus.DEFAULT_TIMEOUT</tt>
+   *         if reads are not timed out.
+   */
+  public int getReceiveTimeout() {
+    if (m_CommPort == null || !m_CommPort.isReceiveTimeoutEnabled())
+      return Modbus.DEFAULT_TIMEOUT;
+
+    return m_CommPort.getReceiveTimeout();
+  }
+
   /**
    * <code>setBaudRate</code> - Change the serial port baud rate
    * 
@@ -0,0 +1,594 @@
+//License
+/***
+ * Java Modbus Library (jamod)
+ * Copyright (c) 2002-2004, jamod development team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.io;
+
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.ModbusIOException;
+import com.ghgande.j2mod.modbus.msg.ModbusRequest;
+import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+import com.ghgande.j2mod.modbus.net.TCPMasterConnection;
+import com.ghgande.j2mod.modbus.util.ModbusThreadFactory;
+import com.ghgande.j2mod.modbus.util.ModbusTimer;
+
+/**
+ * Class implementing a pipelined request / response exchange over a single
+ * <tt>TCPMasterConnection</tt>.
+ *
+ * <p>
+ * Requests are written as soon as they are submitted, without waiting for
+ * the response to any earlier request. A dedicated reader thread takes every
+ * response off the connection and hands it to the caller which is waiting
+ * for the matching MBAP transaction identifier. The number of requests in
+ * flight is limited by <tt>getMaxOutstanding()</tt>, since most devices only
+ * queue a small number of transactions per connection. Requests passed to
+ * <tt>enqueue()</tt> wait in a queue instead of blocking the caller, and
+ * are written by a writer thread of the pipeline as slots are released, so
+ * that neither the reader nor the timer thread blocks on the socket.
+ *
+ * <p>
+ * The pipeline owns the transaction identifiers of the requests it sends.
+ * A request instance must not be submitted again until its response has
+ * been received.
+ */
+public class ModbusTCPPipeline implements Runnable {
+
+	/**
+	 * Defines the default number of requests which may be in flight at the
+	 * same time (=<tt>16</tt>).
+	 */
+	public static final int DEFAULT_MAX_OUTSTANDING = 16;
+
+	// instance attributes and associations
+	private TCPMasterConnection m_Connection;
+	private ModbusTransport m_IO;
+	private ConcurrentHashMap<Integer, CompletableFuture<ModbusResponse>> m_Pending;
+	private Semaphore m_Window;
+	private ConcurrentLinkedQueue<Waiting> m_Waiting = new ConcurrentLinkedQueue<Waiting>();
+	private int m_MaxOutstanding;
+	private int m_NextTransactionID = 1;
+	private final ReentrantLock m_WriteLock = new ReentrantLock();
+	private Thread m_Reader;
+	private Thread m_Writer;
+	private volatile boolean m_Running;
+
+	// signals the writer that queued requests may be written
+	private final ReentrantLock m_DrainLock = new ReentrantLock();
+	private final Condition m_DrainNeeded = m_DrainLock.newCondition();
+	private boolean m_DrainPending;
+
+	/**
+	 * Constructs a new <tt>ModbusTCPPipeline</tt> for the given connection.
+	 * The connection must be open before the pipeline is started.
+	 *
+	 * @param con
+	 *            the <tt>TCPMasterConnection</tt> to be shared.
+	 * @param maxOutstanding
+	 *            the number of requests which may be in flight at once.
+	 */
+	public ModbusTCPPipeline(TCPMasterConnection con, int maxOutstanding) {
+		if (maxOutstanding < 1)
+			throw new IllegalArgumentException("Invalid window: "
+					+ maxOutstanding);
+
+		m_Connection = con;
+		m_MaxOutstanding = maxOutstanding;
+		m_Window = new Semaphore(maxOutstanding, true);
+		m_Pending = new ConcurrentHashMap<Integer, CompletableFuture<ModbusResponse>>(
+				maxOutstanding * 2);
+	}
+
+	/**
+	 * Constructs a new <tt>ModbusTCPPipeline</tt> for the given connection,
+	 * using <tt>DEFAULT_MAX_OUTSTANDING</tt> as the window size.
+	 *
+	 * @param con
+	 *            the <tt>TCPMasterConnection</tt> to be shared.
+	 */
+	public ModbusTCPPipeline(TCPMasterConnection con) {
+		this(con, DEFAULT_MAX_OUTSTANDING);
+	}
+
+	/**
+	 * Returns the number of requests which may be in flight at once.
+	 *
+	 * @return the window size as <tt>int</tt>.
+	 */
+	public int getMaxOutstanding() {
+		return m_MaxOutstanding;
+	}
+
+	/**
+	 * Returns the number of requests currently waiting for a response.
+	 *
+	 * @return the number of outstanding requests.
+	 */
+	public int getOutstanding() {
+		return m_Pending.size();
+	}
+
+	/**
+	 * Tests if the reader of this pipeline is running.
+	 *
+	 * @return true if requests may be submitted, false otherwise.
+	 */
+	public boolean isRunning() {
+		return m_Running;
+	}
+
+	/**
+	 * Starts the reader thread of this pipeline.
+	 */
+	public synchronized void start() {
+		if (m_Running)
+			return;
+
+		m_IO = m_Connection.getModbusTransport();
+		m_Running = true;
+		m_Reader = ModbusThreadFactory.newThread(this, "ModbusTCPPipeline "
+				+ m_Connection.getAddress() + ":" + m_Connection.getPort(),
+				true, ModbusThreadFactory.isVirtualDefault());
+		m_Writer = ModbusThreadFactory.newThread(new Runnable() {
+			public void run() {
+				writeQueued();
+			}
+		}, "ModbusTCPPipeline writer " + m_Connection.getAddress() + ":"
+				+ m_Connection.getPort(), true,
+				ModbusThreadFactory.isVirtualDefault());
+		m_Reader.start();
+		m_Writer.start();
+	}
+
+	/**
+	 * Stops the reader thread. Every request which is still waiting for its
+	 * response fails with a <tt>ModbusIOException</tt>.
+	 *
+	 * <p>
+	 * The connection itself is not closed.
+	 */
+	public void stop() {
+		m_Running = false;
+		failAll(new ModbusIOException("Pipeline stopped.", true));
+		signalDrain();
+	}
+
+	/**
+	 * Waits for the reader and writer threads and any request being written
+	 * to finish, after the pipeline has been stopped and its socket closed,
+	 * so that none of them uses the transport once it is given a new socket.
+	 * A thread of the pipeline which calls this is not waited for.
+	 */
+	public void join() {
+		join(m_Reader);
+		join(m_Writer);
+		m_WriteLock.lock();
+		m_WriteLock.unlock();
+	}
+
+	private static void join(Thread thread) {
+		if (thread == null || thread == Thread.currentThread())
+			return;
+
+		boolean interrupted = false;
+		while (thread.isAlive()) {
+			try {
+				thread.join();
+			} catch (InterruptedException ex) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Returns the number of requests passed to <tt>enqueue()</tt> which are
+	 * waiting for room in the window. Requests which have timed out are
+	 * counted until the writer thread drops them.
+	 *
+	 * @return the number of queued requests.
+	 */
+	public int getQueued() {
+		return m_Waiting.size();
+	}
+
+	/**
+	 * Sends a request and returns a future for its response. The transaction
+	 * identifier of the request is replaced with one which is unique among
+	 * the requests in flight.
+	 *
+	 * <p>
+	 * If the window is full, this method blocks until a slot is released.
+	 * The future completes with the response, which may be an
+	 * <tt>ExceptionResponse</tt>, or exceptionally with a
+	 * <tt>ModbusIOException</tt>.
+	 *
+	 * @param request
+	 *            the <tt>ModbusRequest</tt> to be sent.
+	 * @return the future response.
+	 */
+	public CompletableFuture<ModbusResponse> submit(ModbusRequest request) {
+		CompletableFuture<ModbusResponse> result = new CompletableFuture<ModbusResponse>();
+
+		if (!m_Running) {
+			result.completeExceptionally(new ModbusIOException(
+					"Pipeline not running.", true));
+			return result;
+		}
+		try {
+			m_Window.acquire();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			result.completeExceptionally(new ModbusIOException(
+					"Interrupted waiting for pipeline."));
+			return result;
+		}
+		write(request, result);
+
+		return result;
+	}
+
+	/**
+	 * Sends a request once there is room in the window, without blocking
+	 * the calling thread. Requests which find the window full are queued,
+	 * and are written in order as responses release their slots.
+	 *
+	 * <p>
+	 * The future completes like the one returned by <tt>submit()</tt>, or
+	 * exceptionally with a <tt>ModbusIOException</tt> if there is no
+	 * response within the timeout, counted from this call.
+	 *
+	 * @param request
+	 *            the <tt>ModbusRequest</tt> to be sent.
+	 * @param timeout
+	 *            the time to wait for the response, in milliseconds.
+	 * @return the future response.
+	 */
+	public CompletableFuture<ModbusResponse> enqueue(ModbusRequest request,
+			int timeout) {
+		final Waiting waiting = new Waiting(request);
+
+		if (!m_Running) {
+			waiting.m_Future.completeExceptionally(new ModbusIOException(
+					"Pipeline not running.", true));
+			return waiting.m_Future;
+		}
+		m_Waiting.add(waiting);
+		ModbusTimer.expire(waiting.m_Future, timeout, new Runnable() {
+			public void run() {
+				expire(waiting);
+			}
+		});
+		signalDrain();
+
+		return waiting.m_Future;
+	}
+
+	/**
+	 * Writes a request for which a slot of the window has been taken.
+	 */
+	private void write(ModbusRequest request,
+			CompletableFuture<ModbusResponse> result) {
+		m_WriteLock.lock();
+		try {
+			if (!m_Running) {
+				m_Window.release();
+				result.completeExceptionally(new ModbusIOException(
+						"Pipeline stopped.", true));
+				return;
+			}
+			int tid = nextTransactionID();
+
+			request.setTransactionID(tid);
+			m_Pending.put(tid, result);
+
+			if (Modbus.debug)
+				System.err.println("pipelined request transaction ID = " + tid);
+
+			try {
+				m_IO.writeMessage(request);
+			} catch (ModbusIOException ex) {
+				release(tid, result);
+				result.completeExceptionally(ex);
+			}
+		} finally {
+			m_WriteLock.unlock();
+		}
+
+		/*
+		 * The reader may have stopped while the request was written.
+		 */
+		if (!m_Running && release(request.getTransactionID(), result))
+			result.completeExceptionally(new ModbusIOException(
+					"Pipeline stopped.", true));
+	}
+
+	/**
+	 * Wakes the writer thread, after a request has been queued or a slot has
+	 * been released.
+	 */
+	private void signalDrain() {
+		m_DrainLock.lock();
+		try {
+			m_DrainPending = true;
+			m_DrainNeeded.signal();
+		} finally {
+			m_DrainLock.unlock();
+		}
+	}
+
+	/**
+	 * Runs the writer thread, which writes queued requests whenever it is
+	 * signalled until the pipeline is stopped.
+	 */
+	private void writeQueued() {
+		while (m_Running) {
+			m_DrainLock.lock();
+			try {
+				while (!m_DrainPending && m_Running)
+					m_DrainNeeded.awaitUninterruptibly();
+
+				m_DrainPending = false;
+			} finally {
+				m_DrainLock.unlock();
+			}
+			drain();
+		}
+	}
+
+	/**
+	 * Writes queued requests while there is room in the window. Runs on the
+	 * writer thread only.
+	 */
+	private void drain() {
+		while (!m_Waiting.isEmpty() && m_Window.tryAcquire()) {
+			Waiting waiting = m_Waiting.poll();
+			if (waiting == null || waiting.m_Future.isDone()) {
+				m_Window.release();
+				continue;
+			}
+			write(waiting.m_Request, waiting.m_Future);
+
+			/*
+			 * The timer may have fired while the request was being written.
+			 */
+			waiting.m_TransactionID = waiting.m_Request.getTransactionID();
+			if (waiting.m_Expired)
+				timeout(waiting.m_TransactionID, waiting.m_Future);
+		}
+	}
+
+	/**
+	 * Times out a request passed to <tt>enqueue()</tt>, whether it is still
+	 * queued or has been written. Runs on the timer thread, so it only fails
+	 * the future and releases the slot; a queued request is dropped by the
+	 * writer thread when it comes to it.
+	 */
+	private void expire(Waiting waiting) {
+		waiting.m_Expired = true;
+		int tid = waiting.m_TransactionID;
+		if (tid < 0) {
+			waiting.m_Future.completeExceptionally(new ModbusIOException(
+					"Timeout waiting for response"));
+			return;
+		}
+		if (timeout(tid, waiting.m_Future))
+			signalDrain();
+	}
+
+	/**
+	 * Sends a request and waits for its response.
+	 *
+	 * @param request
+	 *            the <tt>ModbusRequest</tt> to be sent.
+	 * @param timeout
+	 *            the time to wait for the response, in milliseconds.
+	 * @return the response from the slave, which may be an
+	 *         <tt>ExceptionResponse</tt>.
+	 * @throws ModbusIOException
+	 *             if the request could not be sent or timed out.
+	 */
+	public ModbusResponse execute(ModbusRequest request, int timeout)
+			throws ModbusIOException {
+		CompletableFuture<ModbusResponse> future = submit(request);
+		try {
+			return future.get(timeout, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException ex) {
+			cancel(request.getTransactionID(), future);
+			throw new ModbusIOException("Timeout waiting for response");
+		} catch (InterruptedException ex) {
+			cancel(request.getTransactionID(), future);
+			Thread.currentThread().interrupt();
+			throw new ModbusIOException("Interrupted waiting for response");
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof ModbusIOException)
+				throw (ModbusIOException) ex.getCause();
+
+			throw new ModbusIOException("I/O exception - failed to read.");
+		}
+	}
+
+	/**
+	 * Abandons a request which is still waiting for its response. A response
+	 * which arrives later is discarded by the reader.
+	 *
+	 * @param tid
+	 *            the transaction identifier of the request.
+	 * @param future
+	 *            the future returned when the request was submitted.
+	 * @return true if the request was still outstanding.
+	 */
+	public boolean cancel(int tid, CompletableFuture<ModbusResponse> future) {
+		if (!timeout(tid, future))
+			return false;
+
+		signalDrain();
+		return true;
+	}
+
+	/**
+	 * Fails a request in flight with a timeout, without writing queued
+	 * requests into its slot.
+	 */
+	private boolean timeout(int tid, CompletableFuture<ModbusResponse> future) {
+		if (!release(tid, future))
+			return false;
+
+		future.completeExceptionally(new ModbusIOException(
+				"Timeout waiting for response"));
+		return true;
+	}
+
+	/**
+	 * Reads responses and completes the matching requests until the
+	 * pipeline is stopped or the connection fails.
+	 */
+	public void run() {
+		ModbusIOException failure = null;
+
+		while (m_Running) {
+			ModbusResponse response;
+
+			try {
+				response = m_IO.readResponse();
+			} catch (ModbusIOException ex) {
+				if (ex.isEOF()) {
+					failure = ex;
+					break;
+				}
+
+				/*
+				 * A read timeout just means nothing has arrived. Requests
+				 * which are overdue are timed out by their callers. Framing
+				 * errors, after which the stream is out of step, are
+				 * reported as the end of the stream.
+				 */
+				continue;
+			}
+			if (response == null)
+				continue;
+
+			int tid = response.getTransactionID();
+			CompletableFuture<ModbusResponse> future = m_Pending.get(tid);
+			if (future == null || !release(tid, future)) {
+				if (Modbus.debug)
+					System.err.println("discarding response transaction ID = "
+							+ tid);
+				continue;
+			}
+			future.complete(response);
+			if (!m_Waiting.isEmpty())
+				signalDrain();
+		}
+
+		if (m_Running) {
+			m_Running = false;
+			m_Connection.closeIfCurrent(this);
+		}
+		failAll(failure != null ? failure : new ModbusIOException(
+				"Pipeline stopped.", true));
+	}
+
+	/**
+	 * Removes a pending request and returns its slot to the window.
+	 *
+	 * @return true if the request was still pending.
+	 */
+	private boolean release(int tid, CompletableFuture<ModbusResponse> future) {
+		if (!m_Pending.remove(tid, future))
+			return false;
+
+		m_Window.release();
+		return true;
+	}
+
+	/**
+	 * Fails every pending request with the given exception.
+	 */
+	private void failAll(ModbusIOException ex) {
+		Iterator<Integer> keys = m_Pending.keySet().iterator();
+
+		while (keys.hasNext()) {
+			Integer tid = keys.next();
+			CompletableFuture<ModbusResponse> future = m_Pending.get(tid);
+
+			if (future != null && release(tid, future))
+				future.completeExceptionally(ex);
+		}
+
+		Waiting waiting;
+		while ((waiting = m_Waiting.poll()) != null)
+			waiting.m_Future.completeExceptionally(ex);
+	}
+
+	/**
+	 * Returns the next transaction identifier which is not in use by a
+	 * request in flight. Must be called holding the write lock.
+	 */
+	private int nextTransactionID() {
+		int tid;
+
+		do {
+			tid = m_NextTransactionID;
+			if (++m_NextTransactionID >= Modbus.MAX_TRANSACTION_ID)
+				m_NextTransactionID = 1;
+		} while (m_Pending.containsKey(tid));
+
+		return tid;
+	}
+
+	/**
+	 * A request passed to <tt>enqueue()</tt>.
+	 */
+	private static final class Waiting {
+		final ModbusRequest m_Request;
+		final CompletableFuture<ModbusResponse> m_Future = new CompletableFuture<ModbusResponse>();
+		volatile int m_TransactionID = -1;
+		volatile boolean m_Expired;
+
+		Waiting(ModbusRequest request) {
+			m_Request = request;
+		}
+	}
+}
@@ -33,6 +33,16 @@
  ***/
 package com.ghgande.j2mod.modbus.io;
 
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+
 import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.ModbusException;
 import com.ghgande.j2mod.modbus.ModbusIOException;
@@ -40,7 +50,9 @@ import com.ghgande.j2mod.modbus.ModbusSlaveException;
 import com.ghgande.j2mod.modbus.msg.ExceptionResponse;
 import com.ghgande.j2mod.modbus.msg.ModbusRequest;
 import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+import com.ghgande.j2mod.modbus.net.CircuitBreaker;
 import com.ghgande.j2mod.modbus.net.TCPMasterConnection;
+import com.ghgande.j2mod.modbus.net.TCPMasterConnectionPool;
 
 /**
  * Class implementing the <tt>ModbusTransaction</tt> interface.
@@ -58,6 +70,9 @@ public class ModbusTCPTransaction implements ModbusTransaction {
 
 	// instance attributes and associations
 	private TCPMasterConnection m_Connection;
+	private TCPMasterConnectionPool m_Pool;
+	private InetAddress m_Address;
+	private int m_Port = Modbus.DEFAULT_PORT;
 	private ModbusTransport m_IO;
 	private ModbusRequest m_Request;
 	private ModbusResponse m_Response;
@@ -96,6 +111,47 @@ public class ModbusTCPTransaction implements ModbusTransaction {
 		m_IO = con.getModbusTransport();
 	}
 
+	/**
+	 * Constructs a new <tt>ModbusTCPTransaction</tt> instance which borrows a
+	 * connection to the given slave from a <tt>TCPMasterConnectionPool</tt>
+	 * each time it is executed.
+	 * <p>
+	 * 
+	 * @param pool
+	 *            the <tt>TCPMasterConnectionPool</tt> to borrow from.
+	 * @param addr
+	 *            the address of the slave.
+	 * @param port
+	 *            the port of the slave.
+	 */
+	public ModbusTCPTransaction(TCPMasterConnectionPool pool,
+			InetAddress addr, int port) {
+		setConnectionPool(pool, addr, port);
+	}
+
+	/**
+	 * Sets the pool from which a connection to the given slave is borrowed
+	 * each time this <tt>ModbusTransaction</tt> is executed. The connection
+	 * is given back to the pool when the transaction completes, or closed if
+	 * it failed.
+	 * <p>
+	 * 
+	 * @param pool
+	 *            the <tt>TCPMasterConnectionPool</tt> to borrow from.
+	 * @param addr
+	 *            the address of the slave.
+	 * @param port
+	 *            the port of the slave.
+	 */
+	public void setConnectionPool(TCPMasterConnectionPool pool,
+			InetAddress addr, int port) {
+		m_Pool = pool;
+		m_Address = addr;
+		m_Port = port;
+		m_Connection = null;
+		m_IO = null;
+	}
+
 	/**
 	 * Sets the connection on which this <tt>ModbusTransaction</tt> should be
 	 * executed.
@@ -108,6 +164,7 @@ public class ModbusTCPTransaction implements ModbusTransaction {
 	 *            a <tt>TCPMasterConnection</tt>.
 	 */
 	public void setConnection(TCPMasterConnection con) {
+		m_Pool = null;
 		m_Connection = con;
 		m_IO = con.getModbusTransport();
 	}
@@ -188,12 +245,106 @@ public class ModbusTCPTransaction implements ModbusTransaction {
 	public void execute() throws ModbusIOException, ModbusSlaveException,
 			ModbusException {
 
-		if (m_Request == null || m_Connection == null)
+		if (m_Pool == null) {
+			executeTransaction();
+			return;
+		}
+
+		if (m_Request == null)
 			throw new ModbusException("Invalid request or connection");
 
 		/*
-		 * Automatically re-connect if disconnected.
+		 * Borrow a connection for this execution only. It goes back to the
+		 * pool unless the exchange itself failed.
 		 */
+		TCPMasterConnection con = m_Pool.borrow(m_Address, m_Port);
+		boolean valid = false;
+
+		m_Connection = con;
+		m_IO = con.getModbusTransport();
+		try {
+			executeTransaction();
+			valid = true;
+		} catch (ModbusSlaveException ex) {
+			valid = true;
+			throw ex;
+		} finally {
+			m_Connection = null;
+			m_IO = null;
+			if (valid)
+				m_Pool.release(con);
+			else
+				m_Pool.invalidate(con);
+		}
+	}
+
+	/**
+	 * Executes several requests on one connection. The requests are written
+	 * back to back, without waiting for a response in between, and the
+	 * responses are matched to them by transaction identifier, so a batch
+	 * costs about one round trip whatever its size.
+	 * 
+	 * <p>
+	 * Each request gets a transaction identifier of its own, so the list
+	 * must not hold the same instance twice. The request set with
+	 * <tt>setRequest()</tt> is not used. A request which fails does not fail
+	 * the batch; its exception is returned in the result. After a read error
+	 * or timeout the connection is closed, so that late responses are not
+	 * taken for those of later transactions. It is opened again by the next
+	 * execution.
+	 * 
+	 * @param requests
+	 *            the requests to be executed.
+	 * @return the <tt>BatchResult</tt>, in the order of the requests.
+	 * @throws ModbusException
+	 *             if the connection could not be opened, or the circuit
+	 *             breaker of the slave is open.
+	 */
+	public BatchResult executeBatch(List<ModbusRequest> requests)
+			throws ModbusException {
+		if (requests == null || requests.size() > Modbus.MAX_TRANSACTION_ID)
+			throw new ModbusException("Invalid batch");
+
+		if (m_Pool == null)
+			return executeBatchTransaction(requests);
+
+		TCPMasterConnection con = m_Pool.borrow(m_Address, m_Port);
+		boolean valid = false;
+
+		m_Connection = con;
+		m_IO = con.getModbusTransport();
+		try {
+			BatchResult result = executeBatchTransaction(requests);
+			valid = con.isConnected();
+			return result;
+		} finally {
+			m_Connection = null;
+			m_IO = null;
+			if (valid)
+				m_Pool.release(con);
+			else
+				m_Pool.invalidate(con);
+		}
+	}
+
+	/**
+	 * executeBatchTransaction -- Execute a batch on the current connection.
+	 */
+	private BatchResult executeBatchTransaction(List<ModbusRequest> requests)
+			throws ModbusException {
+		if (m_Connection == null)
+			throw new ModbusException("Invalid request or connection");
+
+		BatchResult result = new BatchResult(requests);
+		if (requests.isEmpty())
+			return result;
+
+		CircuitBreaker breaker = m_Connection.getCircuitBreaker();
+		if (breaker != null && !breaker.allowRequest())
+			throw new ModbusIOException("Circuit breaker open for "
+					+ m_Connection.getAddress().getHostAddress() + ":"
+					+ m_Connection.getPort());
+
 		if (!m_Connection.isConnected()) {
 			try {
 				m_Connection.connect();
@@ -202,71 +353,166 @@ public class ModbusTCPTransaction implements ModbusTransaction {
 			}
 		}
 
-		/*
-		 * Try sending the message up to m_Retries time. Note that the message
-		 * is read immediately after being written, with no flushing of buffers.
-		 */
-		int retryCounter = 0;
-		int retryLimit = (m_Retries > 0 ? m_Retries:1);
-		
-		while (retryCounter < retryLimit) {
-			try {
-				synchronized (m_IO) {
-					if (Modbus.debug)
-						System.err.println("request transaction ID = " + m_Request.getTransactionID());
-					
-					m_IO.writeMessage(m_Request);
-					m_Response = null;
-					do {
-						m_Response = m_IO.readResponse();
-						if (Modbus.debug) {
-							System.err.println("response transaction ID = " + m_Response.getTransactionID());
-						
-							if (m_Response.getTransactionID() != m_Request.getTransactionID()) {
-								System.err.println("expected " + m_Request.getTransactionID() +
-										", got " + m_Response.getTransactionID());
-							}
-						}
-					} while (m_Response != null
-							&& (! isCheckingValidity() ||
-									(m_Request.getTransactionID() != 0 &&
-								m_Request.getTransactionID() !=
-									m_Response.getTransactionID()))
-							&& ++retryCounter < retryLimit);
-
-					if (retryCounter >= retryLimit) {
-						throw new ModbusIOException(
-								"Executing transaction failed (tried "
-										+ m_Retries + " times)");
-					}
+		if (m_Connection.isPipelined())
+			exchangePipelined(requests, result);
+		else
+			exchange(requests, result);
 
-					/*
-					 * Both methods were successful, so the transaction must
-					 * have been executed.
-					 */
-					break;
-				}
-			} catch (ModbusIOException ex) {
-				if (! m_Connection.isConnected()) {
-					try {
-						m_Connection.connect();
-					} catch (Exception e) {
-						/*
-						 * Nope, fail this transaction.
-						 */
-						throw new ModbusIOException("Connection lost.");
-					}
-				}
-				if (retryCounter >= retryLimit) {
-					throw new ModbusIOException(
-							"Executing transaction failed (tried " + m_Retries
-									+ " times)");
-				} else {
-					retryCounter++;
+		if (breaker != null) {
+			boolean reached = false;
+			for (int i = 0; i < result.size() && !reached; i++)
+				reached = result.getResponse(i) != null;
+
+			if (reached)
+				breaker.recordSuccess();
+			else
+				breaker.recordFailure();
+		}
+
+		if (isReconnecting() && !m_Connection.isPipelined())
+			m_Connection.close();
+
+		return result;
+	}
+
+	/**
+	 * exchange -- Write a batch of requests and read the responses, holding
+	 * the transport for the whole batch.
+	 */
+	private void exchange(List<ModbusRequest> requests, BatchResult result) {
+		ModbusTCPTransport io = (ModbusTCPTransport) m_Connection
+				.getModbusTransport();
+		HashMap<Integer, Integer> pending = new HashMap<Integer, Integer>();
+
+		int tid = reserveTransactionIDs(requests.size());
+		for (int i = 0; i < requests.size(); i++) {
+			requests.get(i).setTransactionID(tid);
+			pending.put(tid, i);
+			tid = tid >= Modbus.MAX_TRANSACTION_ID ? 1 : tid + 1;
+		}
+
+		ReentrantLock lock = io.getLock();
+		lock.lock();
+		try {
+			io.writeMessages(requests);
+			while (!pending.isEmpty()) {
+				ModbusResponse response = io.readResponse();
+				Integer index = pending.remove(response.getTransactionID());
+
+				if (index == null) {
+					if (Modbus.debug)
+						System.err.println("discarding response transaction ID = "
+								+ response.getTransactionID());
 					continue;
 				}
+				result.setResponse(index, response);
+			}
+		} catch (ModbusIOException ex) {
+			result.failRemaining(ex);
+			m_Connection.close();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * exchangePipelined -- Submit a batch of requests to the pipeline of the
+	 * connection and wait for the responses. Each response is awaited for up
+	 * to the timeout of the connection.
+	 */
+	private void exchangePipelined(List<ModbusRequest> requests,
+			BatchResult result) throws ModbusIOException {
+		ModbusTCPPipeline pipeline = m_Connection.getPipeline();
+
+		if (pipeline == null || !pipeline.isRunning()) {
+			try {
+				pipeline = m_Connection.reconnectIfDead(pipeline);
+			} catch (Exception ex) {
+				throw new ModbusIOException("Connection lost.");
 			}
+			if (pipeline == null)
+				throw new ModbusIOException("Connection lost.");
+		}
+
+		List<CompletableFuture<ModbusResponse>> futures = new ArrayList<CompletableFuture<ModbusResponse>>(
+				requests.size());
+		for (ModbusRequest request : requests)
+			futures.add(pipeline.submit(request));
+
+		for (int i = 0; i < futures.size(); i++) {
+			CompletableFuture<ModbusResponse> future = futures.get(i);
+			int tid = requests.get(i).getTransactionID();
+
+			try {
+				result.setResponse(i, future.get(m_Connection.getTimeout(),
+						TimeUnit.MILLISECONDS));
+			} catch (TimeoutException ex) {
+				pipeline.cancel(tid, future);
+				result.setException(i, new ModbusIOException(
+						"Timeout waiting for response"));
+			} catch (InterruptedException ex) {
+				for (int j = i; j < futures.size(); j++)
+					pipeline.cancel(requests.get(j).getTransactionID(),
+							futures.get(j));
+
+				Thread.currentThread().interrupt();
+				result.failRemaining(new ModbusIOException(
+						"Interrupted waiting for response"));
+				return;
+			} catch (ExecutionException ex) {
+				result.setException(i,
+						ex.getCause() instanceof ModbusIOException ? (ModbusIOException) ex
+								.getCause() : new ModbusIOException(
+								"I/O exception - failed to read."));
+			}
+		}
+	}
+
+	/**
+	 * Reserves a range of transaction identifiers for a batch.
+	 * 
+	 * @return the first identifier of the range.
+	 */
+	private static synchronized int reserveTransactionIDs(int count) {
+		int first = c_TransactionID;
+		if (first <= 0 || first >= Modbus.MAX_TRANSACTION_ID)
+			first = 1;
+
+		c_TransactionID = (first - 1 + count) % Modbus.MAX_TRANSACTION_ID + 1;
+		return first;
+	}
+
+	/**
+	 * executeTransaction -- Execute the request on the current connection.
+	 */
+	private void executeTransaction() throws ModbusIOException,
+			ModbusSlaveException, ModbusException {
+
+		if (m_Request == null || m_Connection == null)
+			throw new ModbusException("Invalid request or connection");
+
+		/*
+		 * Fail at once while the slave is known to be unreachable.
+		 */
+		CircuitBreaker breaker = m_Connection.getCircuitBreaker();
+		if (breaker != null && !breaker.allowRequest())
+			throw new ModbusIOException("Circuit breaker open for "
+					+ m_Connection.getAddress().getHostAddress() + ":"
+					+ m_Connection.getPort());
+
+		try {
+			exchange();
+		} catch (ModbusIOException ex) {
+			/*
+			 * A failed connect has been recorded by the connection itself.
+			 */
+			if (breaker != null && m_Connection.isConnected())
+				breaker.recordFailure();
+
+			throw ex;
 		}
+		if (breaker != null)
+			breaker.recordSuccess();
 
 		/*
 		 * The slave may have returned an exception -- check for that.
@@ -276,9 +522,10 @@ public class ModbusTCPTransaction implements ModbusTransaction {
 					((ExceptionResponse) m_Response).getExceptionCode());
 
 		/*
-		 * Close the connection if it isn't supposed to stick around.
+		 * Close the connection if it isn't supposed to stick around. A
+		 * pipelined connection is shared, so it always stays open.
 		 */
-		if (isReconnecting())
+		if (isReconnecting() && !m_Connection.isPipelined())
 			m_Connection.close();
 
 		/*
@@ -290,6 +537,128 @@ public class ModbusTCPTransaction implements ModbusTransaction {
 		incrementTransactionID();
 	}
 
+	/**
+	 * exchange -- Write the request and read the response, opening the
+	 * connection first if needed.
+	 */
+	private void exchange() throws ModbusIOException {
+		/*
+		 * Automatically re-connect if disconnected.
+		 */
+		if (!m_Connection.isConnected()) {
+			try {
+				m_Connection.connect();
+			} catch (Exception ex) {
+				throw new ModbusIOException("Connection failed.");
+			}
+		}
+
+		/*
+		 * Try sending the message up to m_Retries time. Note that the message
+		 * is read immediately after being written, with no flushing of buffers.
+		 */
+		int retryCounter = 0;
+		int retryLimit = (m_Retries > 0 ? m_Retries:1);
+		
+		if (m_Connection.isPipelined()) {
+			executePipelined();
+		} else {
+			ReentrantLock lock = ((ModbusTCPTransport) m_IO).getLock();
+
+			while (retryCounter < retryLimit) {
+				try {
+					lock.lock();
+					try {
+						if (Modbus.debug)
+							System.err.println("request transaction ID = " + m_Request.getTransactionID());
+					
+						m_IO.writeMessage(m_Request);
+						m_Response = null;
+						do {
+							m_Response = m_IO.readResponse();
+							if (Modbus.debug) {
+								System.err.println("response transaction ID = " + m_Response.getTransactionID());
+						
+								if (m_Response.getTransactionID() != m_Request.getTransactionID()) {
+									System.err.println("expected " + m_Request.getTransactionID() +
+											", got " + m_Response.getTransactionID());
+								}
+							}
+						} while (m_Response != null
+								&& (! isCheckingValidity() ||
+										(m_Request.getTransactionID() != 0 &&
+									m_Request.getTransactionID() !=
+										m_Response.getTransactionID()))
+								&& ++retryCounter < retryLimit);
+
+						if (retryCounter >= retryLimit) {
+							throw new ModbusIOException(
+									"Executing transaction failed (tried "
+											+ m_Retries + " times)");
+						}
+
+						/*
+						 * Both methods were successful, so the transaction must
+						 * have been executed.
+						 */
+						break;
+					} finally {
+						lock.unlock();
+					}
+				} catch (ModbusIOException ex) {
+					if (! m_Connection.isConnected()) {
+						try {
+							m_Connection.connect();
+						} catch (Exception e) {
+							/*
+							 * Nope, fail this transaction.
+							 */
+							throw new ModbusIOException("Connection lost.");
+						}
+					}
+					if (++retryCounter >= retryLimit) {
+						throw new ModbusIOException(
+								"Executing transaction failed (tried " + m_Retries
+										+ " times)");
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * executePipelined -- Execute the request on the pipeline of the
+	 * connection. Other transactions may be in flight on the same connection,
+	 * so the connection is never closed after the transaction, and the
+	 * transaction identifier is assigned by the pipeline.
+	 */
+	private void executePipelined() throws ModbusIOException {
+		int retryCounter = 0;
+		int retryLimit = (m_Retries > 0 ? m_Retries : 1);
+
+		while (true) {
+			ModbusTCPPipeline pipeline = m_Connection.getPipeline();
+
+			try {
+				if (pipeline == null || !pipeline.isRunning()) {
+					pipeline = m_Connection.reconnectIfDead(pipeline);
+					if (pipeline == null)
+						throw new ModbusIOException("Connection lost.");
+				}
+				m_Response = pipeline.execute(m_Request,
+						m_Connection.getTimeout());
+				return;
+			} catch (ModbusIOException ex) {
+				if (++retryCounter >= retryLimit)
+					throw new ModbusIOException(
+							"Executing transaction failed (tried "
+									+ m_Retries + " times)");
+			} catch (Exception ex) {
+				throw new ModbusIOException("Connection lost.");
+			}
+		}
+	}
+
 	/**
 	 * checkValidity -- Verify the transaction IDs match or are zero.
 	 * 
@@ -39,9 +39,13 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.StreamCorruptedException;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.ModbusIOException;
@@ -66,12 +70,21 @@ public class ModbusTCPTransport implements ModbusTransport {
 	private DataInputStream m_Input; // input stream
 	private DataOutputStream m_Output; // output stream
 	private BytesInputStream m_ByteIn;
-	private BytesOutputStream m_ByteOut; // write frames
+	private MBAPFrameDecoder m_Decoder; // read frames
+	private ByteBuffer m_OutBuffer; // write frames
 	private int m_Timeout = Modbus.DEFAULT_TIMEOUT;
 	private Socket m_Socket = null;
 	private	TCPMasterConnection m_Master = null;
 	private boolean headless = false; // Some TCP implementations are.
 
+	/*
+	 * Locks rather than monitors, so that virtual threads blocked on the
+	 * socket do not pin their carrier thread.
+	 */
+	private final ReentrantLock m_Lock = new ReentrantLock(); // transactions
+	private final ReentrantLock m_ReadLock = new ReentrantLock();
+	private final ReentrantLock m_WriteLock = new ReentrantLock();
+
 	/**
 	 * Sets the <tt>Socket</tt> used for message transport and prepares the
 	 * streams used for the actual I/O.
@@ -126,29 +139,40 @@ public class ModbusTCPTransport implements ModbusTransport {
 	  }
 
 	public void writeMessage(ModbusMessage msg) throws ModbusIOException {
+		write(msg, null);
+	}
+
+	/**
+	 * Writes several messages back to back, flushing the stream only once so
+	 * that they leave in as few segments as possible.
+	 * 
+	 * @param msgs
+	 *            the messages to be written, in order.
+	 * @throws ModbusIOException
+	 *             if an I/O related error occurs.
+	 */
+	public void writeMessages(List<? extends ModbusMessage> msgs)
+			throws ModbusIOException {
+		write(null, msgs);
+	}
+
+	/**
+	 * Writes either one message or a list of messages, then flushes.
+	 */
+	private void write(ModbusMessage msg, List<? extends ModbusMessage> msgs)
+			throws ModbusIOException {
+		m_WriteLock.lock();
 		try {
-			byte message[] = msg.getMessage();
-
-			m_ByteOut.reset();
-			if (!headless) {
-				m_ByteOut.writeShort(msg.getTransactionID());
-				m_ByteOut.writeShort(msg.getProtocolID());
-				m_ByteOut
-						.writeShort((message != null ? message.length : 0) + 2);
+			if (msgs == null) {
+				writeFrame(msg);
+			} else {
+				for (ModbusMessage m : msgs)
+					writeFrame(m);
 			}
-			m_ByteOut.writeByte(msg.getUnitID());
-			m_ByteOut.writeByte(msg.getFunctionCode());
-			if (message != null && message.length > 0)
-				m_ByteOut.write(message);
-
-			m_Output.write(m_ByteOut.toByteArray());
 			m_Output.flush();
-			if (Modbus.debug)
-				System.err.println("Sent: "
-						+ ModbusUtil.toHex(m_ByteOut.toByteArray()));
 			// write more sophisticated exception handling
 		} catch (SocketException ex) {
-			if (! m_Master.isConnected()) {
+			if (m_Master != null && ! m_Master.isConnected()) {
 				try {
 					m_Master.connect();
 				} catch (Exception e) {
@@ -158,7 +182,41 @@ public class ModbusTCPTransport implements ModbusTransport {
 			throw new ModbusIOException("I/O exception - failed to write.");
 		} catch (Exception ex) {
 			throw new ModbusIOException("I/O exception - failed to write.");
+		} finally {
+			m_WriteLock.unlock();
+		}
+	}
+
+	/**
+	 * Encodes one frame and hands it to the buffered output stream.
+	 */
+	private void writeFrame(ModbusMessage msg) throws IOException {
+		ByteBuffer buffer = m_OutBuffer;
+		buffer.clear();
+
+		/*
+		 * Encode the frame in place, with the MBAP header if this transport
+		 * uses one, whatever the flag of the message.
+		 */
+		if (!headless && msg.isHeadless()) {
+			buffer.putShort((short) msg.getTransactionID());
+			buffer.putShort((short) msg.getProtocolID());
+			buffer.putShort((short) 0);
+			msg.writeTo(buffer);
+			buffer.putShort(4, (short) (buffer.position() - 6));
+		} else if (headless && !msg.isHeadless()) {
+			msg.writeTo(buffer);
+			System.arraycopy(buffer.array(), 6, buffer.array(), 0,
+					buffer.position() - 6);
+			buffer.position(buffer.position() - 6);
+		} else {
+			msg.writeTo(buffer);
 		}
+
+		m_Output.write(buffer.array(), 0, buffer.position());
+		if (Modbus.debug)
+			System.err.println("Sent: "
+					+ ModbusUtil.toHex(buffer.array(), 0, buffer.position()));
 	}
 
 	/**
@@ -174,13 +232,12 @@ public class ModbusTCPTransport implements ModbusTransport {
 			ModbusRequest req = null;
 			m_ByteIn.reset();
 
-			synchronized (m_ByteIn) {
+			m_ReadLock.lock();
+			try {
 				byte[] buffer = m_ByteIn.getBuffer();
 
 				if (!headless) {
-					if (m_Input.read(buffer, 0, 6) == -1)
-						throw new EOFException(
-								"Premature end of stream (Header truncated).");
+					int count = readFrame(buffer) - 6;
 
 					/*
 					 * The transaction ID must be treated as an unsigned short in
@@ -188,11 +245,6 @@ public class ModbusTCPTransport implements ModbusTransport {
 					 */
 					int transaction = ModbusUtil.registerToShort(buffer, 0) & 0x0000FFFF;
 					int protocol = ModbusUtil.registerToShort(buffer, 2);
-					int count = ModbusUtil.registerToShort(buffer, 4);
-
-					if (m_Input.read(buffer, 6, count) == -1)
-						throw new ModbusIOException(
-								"Premature end of stream (Message truncated).");
 
 					if (Modbus.debug)
 						System.err.println("Read: "
@@ -236,10 +288,17 @@ public class ModbusTCPTransport implements ModbusTransport {
 					if (Modbus.debug)
 						System.err.println("Read: "	+ req.getHexMessage());
 				}
+			} finally {
+				m_ReadLock.unlock();
 			}
 			return req;
 		} catch (EOFException eoex) {
 			throw new ModbusIOException("End of File", true);
+		} catch (StreamCorruptedException ex) {
+			/*
+			 * The frames cannot be told apart any more.
+			 */
+			throw new ModbusIOException(ex.getMessage(), true);
 		} catch (SocketTimeoutException x) {
 			throw new ModbusIOException("Timeout reading request");
 		} catch (SocketException sockex) {
@@ -255,40 +314,31 @@ public class ModbusTCPTransport implements ModbusTransport {
 
 			ModbusResponse response = null;
 
-			synchronized (m_ByteIn) {
+			m_ReadLock.lock();
+			try {
 				// use same buffer
 				byte[] buffer = m_ByteIn.getBuffer();
-				if (Modbus.debug)
-					System.err.println("Read: " +
-							ModbusUtil.toHex(buffer, 0, m_ByteIn.count));
-				
+
 				if (!headless) {
 					/*
-					 * All Modbus TCP transactions start with 6 bytes. Get them.
+					 * All Modbus TCP transactions start with 6 bytes, the last
+					 * two of which give the length of the rest of the frame.
 					 */
-					if (m_Input.read(buffer, 0, 6) == -1)
-						throw new ModbusIOException(
-								"Premature end of stream (Header truncated).");
+					int count = readFrame(buffer) - 6;
 
 					/*
 					 * The transaction ID is the first word (offset 0) in the
-					 * data that was just read. It will be echoed back to the
-					 * requester.
+					 * frame. It will be echoed back to the requester.
 					 * 
 					 * The protocol ID is the second word (offset 2) in the
 					 * data. It should always be 0, but I don't check.
-					 * 
-					 * The length of the payload is the third word (offset 4) in
-					 * the data that was just read. That's what I need in order
-					 * to read the rest of the response.
 					 */
 					int transaction = ModbusUtil.registerToShort(buffer, 0) & 0x0000FFFF;
 					int protocol = ModbusUtil.registerToShort(buffer, 2);
-					int count = ModbusUtil.registerToShort(buffer, 4);
 
-					if (m_Input.read(buffer, 6, count) == -1)
-						throw new ModbusIOException(
-								"Premature end of stream (Message truncated).");
+					if (Modbus.debug)
+						System.err.println("Read: "
+								+ ModbusUtil.toHex(buffer, 0, count + 6));
 
 					m_ByteIn.reset(buffer, (6 + count));
 
@@ -325,15 +375,95 @@ public class ModbusTCPTransport implements ModbusTransport {
 					 */
 					m_Input.readShort();
 				}
+			} finally {
+				m_ReadLock.unlock();
 			}
 			return response;
+		} catch (EOFException eoex) {
+			throw new ModbusIOException("End of File", true);
+		} catch (StreamCorruptedException ex) {
+			/*
+			 * The frames cannot be told apart any more.
+			 */
+			throw new ModbusIOException(ex.getMessage(), true);
 		} catch (SocketTimeoutException ex) {
 			throw new ModbusIOException("Timeout reading response");
+		} catch (SocketException sockex) {
+			throw new ModbusIOException("Socket Exception", true);
 		} catch (Exception ex) {
 			throw new ModbusIOException("I/O exception - failed to read.");
 		}
 	}
 
+	/**
+	 * Reads the next frame, header included, into the given array. The
+	 * stream is only read if no complete frame has been buffered by an
+	 * earlier read.
+	 * 
+	 * @return the length of the frame.
+	 */
+	private int readFrame(byte[] buffer) throws IOException {
+		int length;
+
+		while ((length = m_Decoder.nextFrame(buffer)) < 0) {
+			if (m_Decoder.fill(m_Input) < 0)
+				throw new EOFException("Premature end of stream"
+						+ (m_Decoder.available() > 0 ? " (Message truncated)."
+								: " (Header truncated)."));
+		}
+		return length;
+	}
+
+	/**
+	 * Returns the lock held by a transaction while it writes its request and
+	 * reads the response.
+	 */
+	ReentrantLock getLock() {
+		return m_Lock;
+	}
+
+	/**
+	 * Returns the number of bytes which have been received and not yet
+	 * returned as part of a message.
+	 * 
+	 * @return the number of unread bytes.
+	 * @throws IOException
+	 *             if an I/O related error occurs.
+	 */
+	public int available() throws IOException {
+		return m_Decoder.available() + m_Input.available();
+	}
+
+	/**
+	 * Tests if another message can be read without blocking, because its
+	 * frame has been received already or arrives with the bytes the socket
+	 * has ready. A slave uses this to answer requests which a master has
+	 * pipelined, and to send the responses together.
+	 * 
+	 * @return true if a complete message is available, false otherwise or
+	 *         if this transport is headless.
+	 */
+	public boolean isMessageAvailable() {
+		if (headless)
+			return false;
+
+		m_ReadLock.lock();
+		try {
+			while (!m_Decoder.hasFrame() && m_Input.available() > 0) {
+				if (m_Decoder.fill(m_Input) <= 0)
+					break;
+			}
+			return m_Decoder.hasFrame();
+		} catch (IOException ex) {
+			/*
+			 * The error is reported by the next read.
+			 */
+			return false;
+		} finally {
+			m_ReadLock.unlock();
+		}
+	}
+
 	/**
 	 * Prepares the input and output streams of this <tt>ModbusTCPTransport</tt>
 	 * instance based on the given socket.
@@ -369,8 +499,9 @@ public class ModbusTCPTransport implements ModbusTransport {
 		 * Modbus/TCP adds a header which must be accounted for.
 		 */
 		m_ByteIn = new BytesInputStream(Modbus.MAX_MESSAGE_LENGTH+6);
+		m_Decoder = new MBAPFrameDecoder();
 
-		m_ByteOut = new BytesOutputStream(Modbus.MAX_MESSAGE_LENGTH+6);
+		m_OutBuffer = ByteBuffer.allocate(Modbus.MAX_MESSAGE_LENGTH+6);
 	}
 
 	/**
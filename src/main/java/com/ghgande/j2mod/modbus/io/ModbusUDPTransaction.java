@@ -33,6 +33,8 @@
  ***/
 package com.ghgande.j2mod.modbus.io;
 
+import java.util.concurrent.locks.ReentrantLock;
+
 import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.ModbusException;
 import com.ghgande.j2mod.modbus.ModbusIOException;
@@ -40,12 +42,20 @@ import com.ghgande.j2mod.modbus.ModbusSlaveException;
 import com.ghgande.j2mod.modbus.msg.ExceptionResponse;
 import com.ghgande.j2mod.modbus.msg.ModbusRequest;
 import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+import com.ghgande.j2mod.modbus.net.RTTEstimator;
 import com.ghgande.j2mod.modbus.net.UDPMasterConnection;
 import com.ghgande.j2mod.modbus.net.UDPTerminal;
 
 /**
  * Class implementing the <tt>ModbusTransaction</tt>
  * interface for the UDP transport mechanism.
+ * <p>
+ * The time to wait for a response before the request is
+ * sent again adapts to the round trip time of the slave,
+ * as estimated by a <tt>RTTEstimator</tt>. While validity
+ * checking is on, every execution uses a new transaction
+ * identifier, and late or duplicate responses to earlier
+ * requests are discarded.
  *
  * @author Dieter Wimberger
  * @version 1.2rc1 (09/11/2004)
@@ -59,13 +69,14 @@ public class ModbusUDPTransaction
 
   //instance attributes and associations
   private UDPTerminal m_Terminal;
-  private ModbusTransport m_IO;
+  private ModbusUDPTransport m_IO;
   private ModbusRequest m_Request;
   private ModbusResponse m_Response;
   private boolean m_ValidityCheck =
       Modbus.DEFAULT_VALIDITYCHECK;
   private int m_Retries = Modbus.DEFAULT_RETRIES;
   private int m_RetryCounter = 0;
+  private RTTEstimator m_Estimator;
 
   /**
    * Constructs a new <tt>ModbusUDPTransaction</tt>
@@ -105,6 +116,7 @@ public class ModbusUDPTransaction
    */
   public ModbusUDPTransaction(UDPMasterConnection con) {
     setTerminal(con.getTerminal());
+    m_Estimator = con.getRTTEstimator();
   }//constructor
 
   /**
@@ -154,6 +166,30 @@ public class ModbusUDPTransaction
     m_Retries = num;
   }//setRetries
 
+  /**
+   * Returns the round trip time estimator used by this
+   * transaction.
+   *
+   * @return the <tt>RTTEstimator</tt>, or <tt>null</tt> if
+   *         none has been set or created yet.
+   */
+  public RTTEstimator getRTTEstimator() {
+    return m_Estimator;
+  }//getRTTEstimator
+
+  /**
+   * Sets the round trip time estimator used by this
+   * transaction, so that it can be shared by every
+   * transaction to the same slave. Transactions created for
+   * a <tt>UDPMasterConnection</tt> share the estimator of the
+   * connection; others create their own when first executed.
+   *
+   * @param estimator a <tt>RTTEstimator</tt> instance.
+   */
+  public void setRTTEstimator(RTTEstimator estimator) {
+    m_Estimator = estimator;
+  }//setRTTEstimator
+
   public void execute() throws ModbusIOException,
       ModbusSlaveException,
       ModbusException {
@@ -172,24 +208,36 @@ ex.printStackTrace();
       }
     }
 
-    //3. Retry transaction m_Retries times, in case of
-    //I/O Exception problems.
+    //3. Send the request, and again up to m_Retries times
+    //   if no response arrives within the adaptive timeout
+    if (m_Estimator == null) {
+      m_Estimator = new RTTEstimator();
+    }
+    if (isCheckingValidity()) {
+      m_Request.setTransactionID(nextTransactionID());
+    }
     m_RetryCounter = 0;
-    while (m_RetryCounter <= m_Retries) {
-      try {
-        //3. write request, and read response,
-        //   while holding the lock on the IO object
-        synchronized (m_IO) {
-          //write request message
-          m_IO.writeMessage(m_Request);
-          //read response message
-          m_Response = m_IO.readResponse();
+    ReentrantLock lock = m_IO.getLock();
+    lock.lock();
+    int timeout = m_Terminal.getTimeout();
+    try {
+      m_Estimator.setMaxTimeout(timeout);
+      while (true) {
+        try {
+          exchange();
           break;
+        } catch (ModbusIOException ex) {
+          if (++m_RetryCounter > m_Retries) {
+            throw new ModbusIOException(
+                "Executing transaction failed (tried "
+                + m_RetryCounter + " times)");
+          }
+          m_Estimator.backoff();
         }
-      } catch (ModbusIOException ex) {
-        m_RetryCounter++;
-        continue;
       }
+    } finally {
+      m_Terminal.setTimeout(timeout);
+      lock.unlock();
     }
 
     //4. deal with "application level" exceptions
@@ -202,11 +250,48 @@ ex.printStackTrace();
     if (isCheckingValidity()) {
       checkValidity();
     }
-
-    //toggle the id
-    incrementTransactionID();
   }//execute
 
+  /**
+   * Writes the request once and reads responses until the one
+   * to the request arrives, or the timeout passes. Only the
+   * round trip time of a request which was sent once is
+   * recorded, since the response to a request sent again
+   * may answer any of its attempts.
+   *
+   * @throws ModbusIOException if no response arrived in time.
+   */
+  private void exchange() throws ModbusIOException {
+    long timeout = m_Estimator.getTimeout();
+    long sent = System.nanoTime();
+    long deadline = sent + timeout * 1000000L;
+
+    m_Response = null;
+    m_Terminal.setTimeout((int) timeout);
+    m_IO.writeMessage(m_Request);
+    while (true) {
+      ModbusResponse response = m_IO.readResponse();
+      if (!isCheckingValidity()
+          || response.getTransactionID() == m_Request.getTransactionID()) {
+        m_Response = response;
+        break;
+      }
+      if (Modbus.debug) {
+        System.err.println("discarding response transaction ID = "
+            + response.getTransactionID() + ", expected "
+            + m_Request.getTransactionID());
+      }
+      long remaining = (deadline - System.nanoTime()) / 1000000L;
+      if (remaining <= 0) {
+        throw new ModbusIOException("Socket timed out.");
+      }
+      m_Terminal.setTimeout((int) remaining);
+    }
+    if (m_RetryCounter == 0) {
+      m_Estimator.addSample(System.nanoTime() - sent);
+    }
+  }//exchange
+
   /**
    * Asserts if this <tt>ModbusTCPTransaction</tt> is
    * executable.
@@ -232,11 +317,18 @@ ex.printStackTrace();
    * @throws ModbusException if this transaction has not been valid.
    */
   private void checkValidity() throws ModbusException {
-    //1.check transaction number
-    //if(m_Request.getTransactionID()!=m_Response.getTransactionID()) {
-
-    //}
-
+    //1. check transaction number
+    if (m_Request.getTransactionID() != m_Response.getTransactionID()) {
+      throw new ModbusException("Invalid transaction ID "
+          + m_Response.getTransactionID() + ", expected "
+          + m_Request.getTransactionID());
+    }
+    //2. check function code
+    if (m_Request.getFunctionCode() != m_Response.getFunctionCode()) {
+      throw new ModbusException("Invalid function code "
+          + m_Response.getFunctionCode() + ", expected "
+          + m_Request.getFunctionCode());
+    }
   }//checkValidity
 
   /**
@@ -244,16 +336,16 @@ ex.printStackTrace();
    * that each transaction has a distinctive
    * identifier.<br>
    * When the maximum value of 65535 has been reached,
-   * the identifiers will start from zero again.
+   * the identifiers will start from one again.
+   *
+   * @return the identifier for the next transaction.
    */
-	private void incrementTransactionID() {
-		if (isCheckingValidity()) {
-			if (c_TransactionID >= Modbus.MAX_TRANSACTION_ID) {
-				c_TransactionID = 1;
-			} else {
-				c_TransactionID++;
-			}
-		}
-		m_Request.setTransactionID(getTransactionID());
-	}
+  private static synchronized int nextTransactionID() {
+    if (c_TransactionID <= 0 || c_TransactionID >= Modbus.MAX_TRANSACTION_ID) {
+      c_TransactionID = 1;
+    } else {
+      c_TransactionID++;
+    }
+    return c_TransactionID;
+  }//nextTransactionID
 }//class ModbusUDPTransaction
@@ -34,9 +34,10 @@
 package com.ghgande.j2mod.modbus.io;
 
 import java.io.DataOutput;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InterruptedIOException;
-import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.ModbusIOException;
@@ -61,6 +62,20 @@ public class ModbusUDPTransport
   private BytesOutputStream m_ByteOut;
   private BytesInputStream m_ByteIn;
 
+  //locks rather than monitors, so that virtual threads blocked on the
+  //socket do not pin their carrier thread
+  private final ReentrantLock m_Lock = new ReentrantLock();
+  private final ReentrantLock m_ReadLock = new ReentrantLock();
+  private final ReentrantLock m_WriteLock = new ReentrantLock();
+
+  /**
+   * Returns the lock held by a transaction while it writes its request and
+   * reads the response.
+   */
+  ReentrantLock getLock() {
+    return m_Lock;
+  }//getLock
+
   public void close()
       throws IOException {
     //?
@@ -80,13 +95,12 @@ public class ModbusUDPTransport
   public void writeMessage(ModbusMessage msg)
       throws ModbusIOException {
     try {
-      synchronized (m_ByteOut) {
-    	  int len = msg.getOutputLength();
-    	  m_ByteOut.reset();
-    	  msg.writeTo((DataOutput) m_ByteOut);
-    	  byte data[] = m_ByteOut.getBuffer();
-    	  data = Arrays.copyOf(data, len);
-    	  m_Terminal.sendMessage(data);
+      m_WriteLock.lock();
+      try {
+    	  int len = encode(msg, m_ByteOut);
+    	  m_Terminal.sendMessage(m_ByteOut.getBuffer(), len);
+      } finally {
+        m_WriteLock.unlock();
       }
     } catch (Exception ex) {
       throw new ModbusIOException("I/O exception - failed to write.");
@@ -97,15 +111,16 @@ public class ModbusUDPTransport
       throws ModbusIOException {
     try {
       ModbusRequest req = null;
-      synchronized (m_ByteIn) {
-        m_ByteIn.reset(m_Terminal.receiveMessage());
-        m_ByteIn.skip(7);
-        int functionCode = m_ByteIn.readUnsignedByte();
-        m_ByteIn.reset();
-        req = ModbusRequest.createModbusRequest(functionCode);
-        req.readFrom(m_ByteIn);
+      m_ReadLock.lock();
+      try {
+        m_ByteIn.reset(m_Terminal.receiveMessage(m_ByteIn.getBuffer()));
+        req = decodeRequest(m_ByteIn);
+      } finally {
+        m_ReadLock.unlock();
       }
       return req;
+    } catch (EOFException ex) {
+      throw new ModbusIOException("End of File", true);
     } catch (Exception ex) {
       throw new ModbusIOException("I/O exception - failed to read.");
     }
@@ -116,13 +131,12 @@ public class ModbusUDPTransport
 
     try {
       ModbusResponse res = null;
-      synchronized (m_ByteIn) {
-        m_ByteIn.reset(m_Terminal.receiveMessage());
-        m_ByteIn.skip(7);
-        int functionCode = m_ByteIn.readUnsignedByte();
-        m_ByteIn.reset();
-        res = ModbusResponse.createModbusResponse(functionCode);
-        res.readFrom(m_ByteIn);
+      m_ReadLock.lock();
+      try {
+        m_ByteIn.reset(m_Terminal.receiveMessage(m_ByteIn.getBuffer()));
+        res = decodeResponse(m_ByteIn);
+      } finally {
+        m_ReadLock.unlock();
       }
       return res;
     } catch (InterruptedIOException ioex) {
@@ -133,6 +147,58 @@ public class ModbusUDPTransport
     }
   }//readResponse
 
+  /**
+   * Writes a message as a Modbus UDP frame.
+   *
+   * @param msg the <tt>ModbusMessage</tt> to be written.
+   * @param out the stream to write to, which is reset first.
+   * @return the length of the frame.
+   * @throws IOException if the message cannot be written.
+   */
+  public static int encode(ModbusMessage msg, BytesOutputStream out)
+      throws IOException {
+    out.reset();
+    msg.writeTo((DataOutput) out);
+
+    return out.size();
+  }//encode
+
+  /**
+   * Reads a request from a Modbus UDP frame.
+   *
+   * @param in the stream holding the frame, positioned at its start.
+   * @return the <tt>ModbusRequest</tt> read.
+   * @throws IOException if the frame is truncated.
+   */
+  public static ModbusRequest decodeRequest(BytesInputStream in)
+      throws IOException {
+    in.skip(7);
+    int functionCode = in.readUnsignedByte();
+    in.reset();
+    ModbusRequest req = ModbusRequest.createModbusRequest(functionCode);
+    req.readFrom(in);
+
+    return req;
+  }//decodeRequest
+
+  /**
+   * Reads a response from a Modbus UDP frame.
+   *
+   * @param in the stream holding the frame, positioned at its start.
+   * @return the <tt>ModbusResponse</tt> read.
+   * @throws IOException if the frame is truncated.
+   */
+  public static ModbusResponse decodeResponse(BytesInputStream in)
+      throws IOException {
+    in.skip(7);
+    int functionCode = in.readUnsignedByte();
+    in.reset();
+    ModbusResponse res = ModbusResponse.createModbusResponse(functionCode);
+    res.readFrom(in);
+
+    return res;
+  }//decodeResponse
+
 
 /**
    * Constructs a new <tt>ModbusTransport</tt> instance,
@@ -143,7 +209,7 @@ public class ModbusUDPTransport
   public ModbusUDPTransport(UDPTerminal terminal) {
     m_Terminal = terminal;
     m_ByteOut = new BytesOutputStream(Modbus.MAX_MESSAGE_LENGTH);
-    m_ByteIn = new BytesInputStream(Modbus.MAX_MESSAGE_LENGTH);
+    m_ByteIn = new BytesInputStream(Modbus.MAX_MESSAGE_LENGTH + 6);
   }//constructor
 
 }//class ModbusUDPTransport
@@ -0,0 +1,105 @@
+//License
+/***
+ * Java Modbus Library (jamod)
+ * Copyright (c) 2002-2004, jamod development team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.msg;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Class implementing a <tt>ModbusResponse</tt> whose data has already been
+ * encoded, such as a response taken from a cache. Writing it copies the
+ * encoded data, rather than encoding the values of a process image again.
+ */
+public final class EncodedResponse extends ModbusResponse {
+
+	// instance attributes
+	private byte[] m_Data;
+
+	/**
+	 * Constructs a new <tt>EncodedResponse</tt> answering a request.
+	 * 
+	 * @param request
+	 *            the <tt>ModbusRequest</tt> to be answered.
+	 * @param data
+	 *            the encoded data following the function code, which is not
+	 *            copied and must not be changed afterwards.
+	 */
+	public EncodedResponse(ModbusRequest request, byte[] data) {
+		setFunctionCode(request.getFunctionCode());
+		setUnitID(request.getUnitID());
+		setHeadless(request.isHeadless());
+		if (!request.isHeadless()) {
+			setProtocolID(request.getProtocolID());
+			setTransactionID(request.getTransactionID());
+		}
+		setDataLength(data.length);
+		m_Data = data;
+	}
+
+	/**
+	 * Encodes the data of a response, for use with
+	 * <tt>EncodedResponse</tt>.
+	 * 
+	 * @param response
+	 *            the <tt>ModbusResponse</tt> to encode.
+	 * @return the encoded data following the function code.
+	 */
+	public static byte[] encode(ModbusResponse response) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(
+				response.getDataLength());
+
+		try {
+			response.writeData(new DataOutputStream(out));
+		} catch (IOException ex) {
+			// Can't happen -- the output is in memory.
+		}
+		return out.toByteArray();
+	}
+
+	public void writeData(DataOutput dout) throws IOException {
+		dout.write(m_Data);
+	}
+
+	public void readData(DataInput din) throws IOException {
+		m_Data = new byte[getDataLength() - 2];
+		din.readFully(m_Data);
+	}
+
+	public byte[] getMessage() {
+		return m_Data.clone();
+	}
+}
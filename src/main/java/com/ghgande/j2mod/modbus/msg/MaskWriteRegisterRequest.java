@@ -75,6 +75,7 @@ import com.ghgande.j2mod.modbus.ModbusCoupler;
 import com.ghgande.j2mod.modbus.procimg.IllegalAddressException;
 import com.ghgande.j2mod.modbus.procimg.ProcessImage;
 import com.ghgande.j2mod.modbus.procimg.Register;
+import com.ghgande.j2mod.modbus.procimg.VersionedProcessImage;
 
 
 /**
@@ -166,12 +167,12 @@ public final class MaskWriteRegisterRequest extends ModbusRequest {
 	 * state or ID information.
 	 */
 	public ModbusResponse createResponse() {
+		return createResponse(ModbusCoupler.getReference().getProcessImage());
+	}
+
+	public ModbusResponse createResponse(ProcessImage procimg) {
 		MaskWriteRegisterResponse response = null;
 
-		/*
-		 * Get the process image.
-		 */
-		ProcessImage procimg = ModbusCoupler.getReference().getProcessImage();
 		try {
 			Register register = procimg.getRegister(m_Reference);
 			
@@ -188,6 +189,8 @@ public final class MaskWriteRegisterRequest extends ModbusRequest {
 			 * Store the modified value back where it came from.
 			 */
 			register.setValue(value);
+			incrementVersion(procimg, VersionedProcessImage.REGISTER,
+					m_Reference, 1);
 		} catch (IllegalAddressException iaex) {
 			return createExceptionResponse(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
 		}
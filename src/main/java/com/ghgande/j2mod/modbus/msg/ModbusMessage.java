@@ -34,7 +34,8 @@
 package com.ghgande.j2mod.modbus.msg;
 
 //import java.io.EOFException;
-//import java.io.IOException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import com.ghgande.j2mod.modbus.io.Transportable;
 
@@ -126,6 +127,22 @@ public interface ModbusMessage extends Transportable {
 	 */
 	public byte[] getMessage();
 
+	/**
+	 * Writes this message to the given <tt>ByteBuffer</tt>, starting at its
+	 * position.
+	 * <p>
+	 * Unless the message is headless, the MBAP header is written first, and
+	 * its length field is filled in once the data has been written. The
+	 * position of the buffer is advanced past the message.
+	 * 
+	 * @param buffer
+	 *            the <tt>ByteBuffer</tt> to write to, heap or direct.
+	 * @throws IOException
+	 *             if the buffer is too small or the message cannot be
+	 *             encoded.
+	 */
+	public void writeTo(ByteBuffer buffer) throws IOException;
+
 	/**
 	 * Returns the <i>raw</i> message as <tt>String</tt> containing a
 	 * hexadecimal series of bytes.
@@ -36,8 +36,10 @@ package com.ghgande.j2mod.modbus.msg;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.io.ByteBufferOutput;
 import com.ghgande.j2mod.modbus.util.ModbusUtil;
 
 /**
@@ -206,6 +208,40 @@ public abstract class ModbusMessageImpl implements ModbusMessage {
 		writeData(dout);
 	}
 
+	/**
+	 * Writes this message to the given <tt>ByteBuffer</tt>.
+	 * 
+	 * <p>
+	 * The length field of the header is computed from the data actually
+	 * written, rather than taken from <tt>getDataLength()</tt>.
+	 * 
+	 * @param buffer
+	 *            the <tt>ByteBuffer</tt> to write to.
+	 * @throws IOException
+	 *             if the buffer is too small.
+	 */
+	public void writeTo(ByteBuffer buffer) throws IOException {
+		int start = buffer.position();
+
+		if (!isHeadless()) {
+			if (buffer.remaining() < 6)
+				throw new IOException("Buffer overflow");
+
+			buffer.putShort((short) getTransactionID());
+			buffer.putShort((short) getProtocolID());
+			buffer.putShort((short) 0);
+		}
+		ByteBufferOutput out = new ByteBufferOutput(buffer);
+		out.writeByte(getUnitID());
+		out.writeByte(getFunctionCode());
+
+		writeData(out);
+
+		if (!isHeadless())
+			buffer.putShort(start + 4,
+					(short) (buffer.position() - start - 6));
+	}
+
 	/**
 	 * Writes the subclass specific data to the given DataOutput.
 	 * 
@@ -67,6 +67,8 @@
 package com.ghgande.j2mod.modbus.msg;
 
 import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.procimg.ProcessImage;
+import com.ghgande.j2mod.modbus.procimg.VersionedProcessImage;
 
 /**
  * Abstract class implementing a <tt>ModbusRequest</tt>. This class provides
@@ -119,6 +121,45 @@ public abstract class ModbusRequest extends ModbusMessageImpl {
 	 */
 	public abstract ModbusResponse createResponse();
 
+	/**
+	 * Returns the <tt>ModbusResponse</tt> that represents the answer to this
+	 * <tt>ModbusRequest</tt>, created from the given process image rather
+	 * than the one associated with the ModbusCoupler. This is how slaves
+	 * serving several units answer each of them from its own image.
+	 * 
+	 * <p>
+	 * Requests which do not access a process image answer as
+	 * <tt>createResponse()</tt> does.
+	 * 
+	 * @param procimg
+	 *            the <tt>ProcessImage</tt> to answer from.
+	 * @return the corresponding <tt>ModbusResponse</tt>.
+	 */
+	public ModbusResponse createResponse(ProcessImage procimg) {
+		return createResponse();
+	}
+
+	/**
+	 * Increments the version of a range of a process image which this
+	 * request has changed, if the image keeps versions.
+	 * 
+	 * @param procimg
+	 *            the <tt>ProcessImage</tt> which has been changed.
+	 * @param type
+	 *            the type of the objects, as defined by
+	 *            <tt>VersionedProcessImage</tt>.
+	 * @param ref
+	 *            the reference of the first object.
+	 * @param count
+	 *            the number of objects.
+	 */
+	protected static void incrementVersion(ProcessImage procimg, int type,
+			int ref, int count) {
+		if (procimg instanceof VersionedProcessImage)
+			((VersionedProcessImage) procimg).incrementVersion(type, ref,
+					count);
+	}
+
 	/**
 	 * Factory method for creating exception responses with the given exception
 	 * code.
@@ -110,12 +110,14 @@ public final class ReadCoilsRequest extends ModbusRequest {
 	}
 	
 	public ModbusResponse createResponse() {
+		return createResponse(ModbusCoupler.getReference().getProcessImage());
+	}
+
+	public ModbusResponse createResponse(ProcessImage procimg) {
 		ModbusResponse response = null;
 		DigitalOut[] douts = null;
 
-		// 1. get process image
-		ProcessImage procimg = ModbusCoupler.getReference().getProcessImage();
-		// 2. get input discretes range
+		// 1. get input discretes range
 		try {
 			douts = procimg.getDigitalOutRange(getReference(),
 					getBitCount());
@@ -138,14 +138,13 @@ public final class ReadFIFOQueueRequest extends ModbusRequest {
 	 * Create a response using the named register as the queue length count.
 	 */
 	public ModbusResponse createResponse() {
+		return createResponse(ModbusCoupler.getReference().getProcessImage());
+	}
+
+	public ModbusResponse createResponse(ProcessImage procimg) {
 		ReadFIFOQueueResponse response = null;
 		InputRegister[] registers = null;
 
-		/*
-		 * Get the process image.
-		 */
-		ProcessImage procimg = ModbusCoupler.getReference().getProcessImage();
-		
 		try {
 			/*
 			 * Get the FIFO queue location and read the count of available
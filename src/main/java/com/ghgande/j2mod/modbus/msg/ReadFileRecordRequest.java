@@ -223,14 +223,13 @@ public final class ReadFileRecordRequest extends ModbusRequest {
 	 * information.
 	 */
 	public ModbusResponse createResponse() {
+		return createResponse(ModbusCoupler.getReference().getProcessImage());
+	}
+
+	public ModbusResponse createResponse(ProcessImage procimg) {
 		ReadFileRecordResponse response = null;
 		response = (ReadFileRecordResponse) getResponse();
 
-		/*
-		 * Get the process image.
-		 */
-		ProcessImage procimg = ModbusCoupler.getReference().getProcessImage();
-
 		/*
 		 * There is a list of requests to be resolved.
 		 */
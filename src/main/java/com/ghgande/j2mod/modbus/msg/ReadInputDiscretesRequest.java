@@ -121,12 +121,14 @@ public final class ReadInputDiscretesRequest extends ModbusRequest {
 	}
 
 	public ModbusResponse createResponse() {
+		return createResponse(ModbusCoupler.getReference().getProcessImage());
+	}
+
+	public ModbusResponse createResponse(ProcessImage procimg) {
 		ReadInputDiscretesResponse response = null;
 		DigitalIn[] dins = null;
 
-		// 1. get process image
-		ProcessImage procimg = ModbusCoupler.getReference().getProcessImage();
-		// 2. get input discretes range
+		// 1. get input discretes range
 		try {
 			dins = procimg.getDigitalInRange(getReference(),
 					getBitCount());
@@ -45,6 +45,10 @@ import com.ghgande.j2mod.modbus.procimg.SimpleInputRegister;
  * Class implementing a <tt>ReadInputRegistersRequest</tt>. The implementation
  * directly correlates with the class 0 function <i>read multiple registers (FC
  * 4)</i>. It encapsulates the corresponding response message.
+ * <p>
+ * A response which has been read keeps the raw register data. The values
+ * can be copied into a caller's array with <tt>getRegisterValues()</tt>;
+ * <tt>InputRegister</tt> instances are only created if they are asked for.
  * 
  * @author Dieter Wimberger
  * @version 1.2rc1 (09/11/2004)
@@ -54,6 +58,7 @@ public final class ReadInputRegistersResponse extends ModbusResponse {
 	// instance attributes
 	private int m_ByteCount;
 	private InputRegister[] m_Registers;
+	private byte[] m_Data;
 
 	/**
 	 * Constructs a new <tt>ReadInputRegistersResponse</tt> instance.
@@ -76,8 +81,9 @@ public final class ReadInputRegistersResponse extends ModbusResponse {
 		setFunctionCode(Modbus.READ_INPUT_REGISTERS);
 		setDataLength(registers.length * 2 + 1);
 
-		m_ByteCount = registers.length * 2 + 1;
+		m_ByteCount = registers.length * 2;
 		m_Registers = registers;
+		m_Data = null;
 	}
 
 	/**
@@ -103,7 +109,7 @@ public final class ReadInputRegistersResponse extends ModbusResponse {
 	 * Set the number of words to be written.
 	 */
 	public void setWordCount(int count) {
-		m_ByteCount = count * 2 + 1;
+		m_ByteCount = count * 2;
 
 		InputRegister regs[] = new InputRegister[count];
 		if (m_Registers != null) {
@@ -134,7 +140,7 @@ public final class ReadInputRegistersResponse extends ModbusResponse {
 		if (index >= getWordCount())
 			throw new IndexOutOfBoundsException(index + " >= " + getWordCount());
 
-		return m_Registers[index];
+		return getRegisters()[index];
 	}
 
 	/**
@@ -151,15 +157,89 @@ public final class ReadInputRegistersResponse extends ModbusResponse {
 	 *             if the index is out of bounds.
 	 */
 	public int getRegisterValue(int index) throws IndexOutOfBoundsException {
-		return getRegister(index).toUnsignedShort();
+		if (m_Registers != null || m_Data == null)
+			return getRegister(index).toUnsignedShort();
+
+		if (index < 0)
+			throw new IndexOutOfBoundsException(index + " < 0");
+
+		if (index >= getWordCount())
+			throw new IndexOutOfBoundsException(index + " >= " + getWordCount());
+
+		return ((m_Data[index * 2] & 0xff) << 8) | (m_Data[index * 2 + 1] & 0xff);
+	}
+
+	/**
+	 * Copies the values of the registers read into an array, interpreted as
+	 * unsigned shorts. No objects are created.
+	 * 
+	 * @param dst
+	 *            the array to copy the values to.
+	 * @param offset
+	 *            the index in <tt>dst</tt> of the first value.
+	 * 
+	 * @return the number of values copied.
+	 * 
+	 * @throws IndexOutOfBoundsException
+	 *             if <tt>dst</tt> is too short.
+	 */
+	public int getRegisterValues(int[] dst, int offset) {
+		int count = getWordCount();
+
+		if (offset < 0 || offset + count > dst.length)
+			throw new IndexOutOfBoundsException(offset + count + " > "
+					+ dst.length);
+
+		for (int i = 0; i < count; i++)
+			dst[offset + i] = getRegisterValue(i);
+
+		return count;
+	}
+
+	/**
+	 * Copies the values of the registers read into an array. No objects are
+	 * created.
+	 * 
+	 * @param dst
+	 *            the array to copy the values to.
+	 * @param offset
+	 *            the index in <tt>dst</tt> of the first value.
+	 * 
+	 * @return the number of values copied.
+	 * 
+	 * @throws IndexOutOfBoundsException
+	 *             if <tt>dst</tt> is too short.
+	 */
+	public int getRegisterValues(short[] dst, int offset) {
+		int count = getWordCount();
+
+		if (offset < 0 || offset + count > dst.length)
+			throw new IndexOutOfBoundsException(offset + count + " > "
+					+ dst.length);
+
+		for (int i = 0; i < count; i++)
+			dst[offset + i] = (short) getRegisterValue(i);
+
+		return count;
 	}
 
 	/**
-	 * Returns a reference to the array of input registers read.
+	 * Returns a reference to the array of input registers read. The
+	 * registers of a response which has been read are created on the first
+	 * call.
 	 * 
 	 * @return a <tt>InputRegister[]</tt> instance.
 	 */
 	public InputRegister[] getRegisters() {
+		if (m_Registers == null && m_Data != null) {
+			InputRegister[] registers = new InputRegister[getWordCount()];
+
+			for (int k = 0; k < registers.length; k++)
+				registers[k] = new SimpleInputRegister(m_Data[k * 2],
+						m_Data[k * 2 + 1]);
+
+			m_Registers = registers;
+		}
 		return m_Registers;
 	}
 
@@ -169,32 +249,47 @@ public final class ReadInputRegistersResponse extends ModbusResponse {
 	public void setRegisters(InputRegister[] registers) {
 		setDataLength(registers.length * 2 + 1);
 
-		m_ByteCount = registers.length * 2 + 1;
+		m_ByteCount = registers.length * 2;
 		m_Registers = registers;
 	}
 
 	public void writeData(DataOutput dout) throws IOException {
 		dout.writeByte(m_ByteCount);
 
+		if (m_Registers == null) {
+			dout.write(m_Data, 0, m_ByteCount);
+			return;
+		}
 		for (int k = 0; k < getWordCount(); k++) {
 			dout.write(m_Registers[k].toBytes());
 		}
 	}
 
+	/**
+	 * Reads the register data as is. The buffer of a previous read is
+	 * reused if it is large enough.
+	 */
 	public void readData(DataInput din) throws IOException {
 		m_ByteCount = din.readUnsignedByte();
 
-		InputRegister[] registers = new InputRegister[getWordCount()];
-		for (int k = 0; k < getWordCount(); k++) {
-			registers[k] = new SimpleInputRegister(din.readByte(),
-					din.readByte());
-		}
-		m_Registers = registers;
+		if (m_Data == null || m_Data.length < m_ByteCount)
+			m_Data = new byte[m_ByteCount];
+
+		din.readFully(m_Data, 0, m_ByteCount);
+		m_Registers = null;
 
 		setDataLength(m_ByteCount + 1);
 	}
 
 	public byte[] getMessage() {
+		if (m_Registers == null) {
+			byte result[] = new byte[m_ByteCount + 1];
+
+			result[0] = (byte) m_ByteCount;
+			System.arraycopy(m_Data, 0, result, 1, m_ByteCount);
+			return result;
+		}
+
 		byte result[] = new byte[m_Registers.length * 2 + 1];
 		result[0] = (byte) (m_Registers.length * 2);
 
@@ -206,4 +301,4 @@ public final class ReadInputRegistersResponse extends ModbusResponse {
 		}
 		return result;
 	}
-}
\ No newline at end of file
+}
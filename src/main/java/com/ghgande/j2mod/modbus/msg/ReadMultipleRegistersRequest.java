@@ -104,12 +104,14 @@ public final class ReadMultipleRegistersRequest extends ModbusRequest {
 	}
 
 	public ModbusResponse createResponse() {
+		return createResponse(ModbusCoupler.getReference().getProcessImage());
+	}
+
+	public ModbusResponse createResponse(ProcessImage procimg) {
 		ReadMultipleRegistersResponse response = null;
 		Register[] regs = null;
 
-		// 1. get process image
-		ProcessImage procimg = ModbusCoupler.getReference().getProcessImage();
-		// 2. get input registers range
+		// 1. get input registers range
 		try {
 			regs = procimg.getRegisterRange(getReference(), getWordCount());
 		} catch (IllegalAddressException e) {
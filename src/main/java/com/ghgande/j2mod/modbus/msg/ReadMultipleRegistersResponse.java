@@ -45,6 +45,10 @@ import com.ghgande.j2mod.modbus.procimg.SimpleRegister;
  * Class implementing a <tt>ReadMultipleRegistersResponse</tt>. The
  * implementation directly correlates with the class 0 function <i>read multiple
  * registers (FC 3)</i>. It encapsulates the corresponding response message.
+ * <p>
+ * A response which has been read keeps the raw register data. The values
+ * can be copied into a caller's array with <tt>getRegisterValues()</tt>;
+ * <tt>Register</tt> instances are only created if they are asked for.
  * 
  * @author Dieter Wimberger
  * @version 1.2rc1 (09/11/2004)
@@ -57,6 +61,7 @@ public final class ReadMultipleRegistersResponse extends ModbusResponse {
 	// instance attributes
 	private int m_ByteCount;
 	private Register[] m_Registers;
+	private byte[] m_Data;
 
 	/**
 	 * Constructs a new <tt>ReadMultipleRegistersResponse</tt> instance.
@@ -115,16 +120,9 @@ public final class ReadMultipleRegistersResponse extends ModbusResponse {
 	 *             if the index is out of bounds.
 	 */
 	public Register getRegister(int index) {
-		if (m_Registers == null)
-			throw new IndexOutOfBoundsException("No registers defined!");			
-			
-		if (index < 0)
-			throw new IndexOutOfBoundsException("Negative index: " + index);
-
-		if (index >= getWordCount())
-			throw new IndexOutOfBoundsException(index + " > " + getWordCount());
+		checkIndex(index);
 
-		return m_Registers[index];
+		return getRegisters()[index];
 	}
 
 	/**
@@ -141,15 +139,84 @@ public final class ReadMultipleRegistersResponse extends ModbusResponse {
 	 *             if the index is out of bounds.
 	 */
 	public int getRegisterValue(int index) throws IndexOutOfBoundsException {
-		return getRegister(index).toUnsignedShort();
+		checkIndex(index);
+
+		if (m_Registers != null)
+			return m_Registers[index].toUnsignedShort();
+
+		return ((m_Data[index * 2] & 0xff) << 8) | (m_Data[index * 2 + 1] & 0xff);
+	}
+
+	/**
+	 * Copies the values of the registers read into an array, interpreted as
+	 * unsigned shorts. No objects are created.
+	 * 
+	 * @param dst
+	 *            the array to copy the values to.
+	 * @param offset
+	 *            the index in <tt>dst</tt> of the first value.
+	 * 
+	 * @return the number of values copied.
+	 * 
+	 * @throws IndexOutOfBoundsException
+	 *             if <tt>dst</tt> is too short.
+	 */
+	public int getRegisterValues(int[] dst, int offset) {
+		int count = getWordCount();
+
+		if (offset < 0 || offset + count > dst.length)
+			throw new IndexOutOfBoundsException(offset + count + " > "
+					+ dst.length);
+
+		for (int i = 0; i < count; i++)
+			dst[offset + i] = getRegisterValue(i);
+
+		return count;
 	}
 
 	/**
-	 * Returns the reference to the array of registers read.
+	 * Copies the values of the registers read into an array. No objects are
+	 * created.
+	 * 
+	 * @param dst
+	 *            the array to copy the values to.
+	 * @param offset
+	 *            the index in <tt>dst</tt> of the first value.
+	 * 
+	 * @return the number of values copied.
+	 * 
+	 * @throws IndexOutOfBoundsException
+	 *             if <tt>dst</tt> is too short.
+	 */
+	public int getRegisterValues(short[] dst, int offset) {
+		int count = getWordCount();
+
+		if (offset < 0 || offset + count > dst.length)
+			throw new IndexOutOfBoundsException(offset + count + " > "
+					+ dst.length);
+
+		for (int i = 0; i < count; i++)
+			dst[offset + i] = (short) getRegisterValue(i);
+
+		return count;
+	}
+
+	/**
+	 * Returns the reference to the array of registers read. The registers
+	 * of a response which has been read are created on the first call.
 	 * 
 	 * @return a <tt>Register[]</tt> instance.
 	 */
 	public Register[] getRegisters() {
+		if (m_Registers == null && m_Data != null) {
+			Register[] registers = new Register[getWordCount()];
+
+			for (int k = 0; k < registers.length; k++)
+				registers[k] = new SimpleRegister(m_Data[k * 2],
+						m_Data[k * 2 + 1]);
+
+			m_Registers = registers;
+		}
 		return m_Registers;
 	}
 
@@ -161,22 +228,32 @@ public final class ReadMultipleRegistersResponse extends ModbusResponse {
 		setDataLength(m_ByteCount + 1);
 
 		m_Registers = registers;
+		m_Data = null;
 	}
 
 	public void writeData(DataOutput dout) throws IOException {
 		dout.writeByte(m_ByteCount);
 
+		if (m_Registers == null) {
+			dout.write(m_Data, 0, m_ByteCount);
+			return;
+		}
 		for (int k = 0; k < getWordCount(); k++)
 			dout.write(m_Registers[k].toBytes());
 	}
 
+	/**
+	 * Reads the register data as is. The buffer of a previous read is
+	 * reused if it is large enough.
+	 */
 	public void readData(DataInput din) throws IOException {
 		m_ByteCount = din.readUnsignedByte();
 
-		m_Registers = new Register[getWordCount()];
+		if (m_Data == null || m_Data.length < m_ByteCount)
+			m_Data = new byte[m_ByteCount];
 
-		for (int k = 0; k < getWordCount(); k++)
-			m_Registers[k] = new SimpleRegister(din.readByte(), din.readByte());
+		din.readFully(m_Data, 0, m_ByteCount);
+		m_Registers = null;
 
 		setDataLength(m_ByteCount + 1);
 	}
@@ -189,6 +266,11 @@ public final class ReadMultipleRegistersResponse extends ModbusResponse {
 		int offset = 0;
 		result[offset++] = (byte) m_ByteCount;
 
+		if (m_Registers == null) {
+			System.arraycopy(m_Data, 0, result, offset, m_ByteCount);
+			return result;
+		}
+
 		for (int i = 0; i < m_Registers.length; i++) {
 			byte[] data = m_Registers[i].toBytes();
 			
@@ -197,4 +279,15 @@ public final class ReadMultipleRegistersResponse extends ModbusResponse {
 		}
 		return result;
 	}
-}
\ No newline at end of file
+
+	private void checkIndex(int index) {
+		if (m_Registers == null && m_Data == null)
+			throw new IndexOutOfBoundsException("No registers defined!");
+
+		if (index < 0)
+			throw new IndexOutOfBoundsException("Negative index: " + index);
+
+		if (index >= getWordCount())
+			throw new IndexOutOfBoundsException(index + " > " + getWordCount());
+	}
+}
@@ -79,6 +79,7 @@ import com.ghgande.j2mod.modbus.procimg.ProcessImage;
 import com.ghgande.j2mod.modbus.procimg.Register;
 import com.ghgande.j2mod.modbus.procimg.SimpleInputRegister;
 import com.ghgande.j2mod.modbus.procimg.SimpleRegister;
+import com.ghgande.j2mod.modbus.procimg.VersionedProcessImage;
 
 /**
  * Class implementing a <tt>Read / Write Multiple Registers</tt> request.
@@ -124,13 +125,15 @@ public final class ReadWriteMultipleRequest extends ModbusRequest {
 	}
 
 	public ModbusResponse createResponse() {
+		return createResponse(ModbusCoupler.getReference().getProcessImage());
+	}
+
+	public ModbusResponse createResponse(ProcessImage procimg) {
 		ReadWriteMultipleResponse response = null;
 		InputRegister[] readRegs = null;
 		Register[] writeRegs = null;
 
-		// 1. get process image
-		ProcessImage procimg = ModbusCoupler.getReference().getProcessImage();
-		// 2. get input registers range
+		// 1. get input registers range
 		try {
 			readRegs = procimg.getRegisterRange(getReadReference(),
 					getReadWordCount());
@@ -146,6 +149,8 @@ public final class ReadWriteMultipleRequest extends ModbusRequest {
 
 			for (int i = 0; i < writeRegs.length; i++)
 				writeRegs[i].setValue(getRegister(i).getValue());
+			incrementVersion(procimg, VersionedProcessImage.REGISTER,
+					getWriteReference(), writeRegs.length);
 		} catch (IllegalAddressException e) {
 			return createExceptionResponse(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
 		}
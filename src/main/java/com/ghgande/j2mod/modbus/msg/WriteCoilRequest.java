@@ -42,6 +42,7 @@ import com.ghgande.j2mod.modbus.ModbusCoupler;
 import com.ghgande.j2mod.modbus.procimg.DigitalOut;
 import com.ghgande.j2mod.modbus.procimg.IllegalAddressException;
 import com.ghgande.j2mod.modbus.procimg.ProcessImage;
+import com.ghgande.j2mod.modbus.procimg.VersionedProcessImage;
 
 /**
  * Class implementing a <tt>WriteCoilRequest</tt>. The implementation directly
@@ -101,16 +102,20 @@ public final class WriteCoilRequest extends ModbusRequest {
 	}
 
 	public ModbusResponse createResponse() {
+		return createResponse(ModbusCoupler.getReference().getProcessImage());
+	}
+
+	public ModbusResponse createResponse(ProcessImage procimg) {
 		WriteCoilResponse response = null;
 		DigitalOut dout = null;
 
-		// 1. get process image
-		ProcessImage procimg = ModbusCoupler.getReference().getProcessImage();
-		// 2. get coil
+		// 1. get coil
 		try {
 			dout = procimg.getDigitalOut(getReference());
-			// 3. set coil
+			// 2. set coil
 			dout.set(getCoil());
+			incrementVersion(procimg, VersionedProcessImage.DIGITAL_OUT,
+					getReference(), 1);
 		} catch (IllegalAddressException iaex) {
 			return createExceptionResponse(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
 		}
@@ -215,14 +215,13 @@ public final class WriteFileRecordRequest extends ModbusRequest {
 	 * The ModbusCoupler doesn't have a means of writing file records.
 	 */
 	public ModbusResponse createResponse() {
+		return createResponse(ModbusCoupler.getReference().getProcessImage());
+	}
+
+	public ModbusResponse createResponse(ProcessImage procimg) {
 		WriteFileRecordResponse response = null;
 		response = (WriteFileRecordResponse) getResponse();
 
-		/*
-		 * Get the process image.
-		 */
-		ProcessImage procimg = ModbusCoupler.getReference().getProcessImage();
-		
 		/*
 		 * There is a list of requests to be resolved.
 		 */
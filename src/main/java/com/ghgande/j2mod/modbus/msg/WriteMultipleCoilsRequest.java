@@ -42,6 +42,7 @@ import com.ghgande.j2mod.modbus.ModbusCoupler;
 import com.ghgande.j2mod.modbus.procimg.DigitalOut;
 import com.ghgande.j2mod.modbus.procimg.IllegalAddressException;
 import com.ghgande.j2mod.modbus.procimg.ProcessImage;
+import com.ghgande.j2mod.modbus.procimg.VersionedProcessImage;
 import com.ghgande.j2mod.modbus.util.BitVector;
 
 /**
@@ -80,18 +81,22 @@ public final class WriteMultipleCoilsRequest extends ModbusRequest {
 	}
 
 	public ModbusResponse createResponse() {
+		return createResponse(ModbusCoupler.getReference().getProcessImage());
+	}
+
+	public ModbusResponse createResponse(ProcessImage procimg) {
 		WriteMultipleCoilsResponse response = null;
 		DigitalOut douts[] = null;
 
-		// 1. get process image
-		ProcessImage procimg = ModbusCoupler.getReference().getProcessImage();
-		// 2. get coil range
+		// 1. get coil range
 		try {
 			douts = procimg.getDigitalOutRange(m_Reference, m_Coils.size());
-			// 3. set coils
+			// 2. set coils
 			for (int i = 0; i < douts.length; i++) {
 				douts[i].set(m_Coils.getBit(i));
 			}
+			incrementVersion(procimg, VersionedProcessImage.DIGITAL_OUT,
+					m_Reference, douts.length);
 		} catch (IllegalAddressException iaex) {
 			return createExceptionResponse(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
 		}
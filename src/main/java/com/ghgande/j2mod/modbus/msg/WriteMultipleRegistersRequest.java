@@ -127,18 +127,22 @@ public final class WriteMultipleRegistersRequest extends ModbusRequest {
 	 *          <tt>short</tt> values in the range of registers being processed.
 	 */
 	public ModbusResponse createResponse() {
+		return createResponse(ModbusCoupler.getReference().getProcessImage());
+	}
+
+	public ModbusResponse createResponse(ProcessImage procimg) {
 		WriteMultipleRegistersResponse response = null;
 
 		if (m_NonWordDataHandler == null) {
 			Register[] regs = null;
-			// 1. get process image
-			ProcessImage procimg = ModbusCoupler.getReference().getProcessImage();
-			// 2. get registers
+			// 1. get registers
 			try {
 				regs = procimg.getRegisterRange(getReference(), getWordCount());
-				// 3. set Register values
+				// 2. set Register values
 				for (int i = 0; i < regs.length; i++)
 					regs[i].setValue(this.getRegister(i).getValue());
+				incrementVersion(procimg, VersionedProcessImage.REGISTER,
+						getReference(), regs.length);
 			} catch (IllegalAddressException iaex) {
 				return createExceptionResponse(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
 			}
@@ -148,6 +152,8 @@ public final class WriteMultipleRegistersRequest extends ModbusRequest {
 			response.setWordCount(getWordCount());
 		} else {
 			int result = m_NonWordDataHandler.commitUpdate();
+			incrementVersion(procimg, VersionedProcessImage.REGISTER,
+					getReference(), m_NonWordDataHandler.getWordCount());
 			if (result > 0)
 				return createExceptionResponse(result);
 
@@ -43,6 +43,7 @@ import com.ghgande.j2mod.modbus.procimg.IllegalAddressException;
 import com.ghgande.j2mod.modbus.procimg.ProcessImage;
 import com.ghgande.j2mod.modbus.procimg.Register;
 import com.ghgande.j2mod.modbus.procimg.SimpleRegister;
+import com.ghgande.j2mod.modbus.procimg.VersionedProcessImage;
 
 /**
  * Class implementing a <tt>WriteSingleRegisterRequest</tt>. The implementation
@@ -102,16 +103,20 @@ public final class WriteSingleRegisterRequest extends ModbusRequest {
 	}
 
 	public ModbusResponse createResponse() {
+		return createResponse(ModbusCoupler.getReference().getProcessImage());
+	}
+
+	public ModbusResponse createResponse(ProcessImage procimg) {
 		WriteSingleRegisterResponse response = null;
 		Register reg = null;
 
-		// 1. get process image
-		ProcessImage procimg = ModbusCoupler.getReference().getProcessImage();
-		// 2. get register
+		// 1. get register
 		try {
 			reg = procimg.getRegister(m_Reference);
-			// 3. set Register
+			// 2. set Register
 			reg.setValue(m_Register.toBytes());
+			incrementVersion(procimg, VersionedProcessImage.REGISTER,
+					m_Reference, 1);
 		} catch (IllegalAddressException iaex) {
 			return createExceptionResponse(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
 		}
@@ -0,0 +1,385 @@
+//License
+/***
+ * Java Modbus Library (jamod)
+ * Copyright (c) 2002-2004, jamod development team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.net;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Class implementing a circuit breaker for one slave endpoint.
+ *
+ * <p>
+ * The breaker counts consecutive failures to reach the slave. Once
+ * <tt>getFailureThreshold()</tt> failures have been recorded it opens, and
+ * connections and transactions to the slave fail at once instead of
+ * blocking for a connect or response timeout. After a backoff delay the
+ * breaker becomes half open and lets a single trial request through, made
+ * by the thread which asked first; every other request keeps failing at
+ * once meanwhile. Success of the trial closes the breaker, while failure
+ * opens it again with twice the delay, up to <tt>getMaxBackoff()</tt>. A
+ * trial whose outcome is never recorded is given up after
+ * <tt>getMaxBackoff()</tt>, and another one is let through. Every delay is
+ * shortened by a random fraction of up to <tt>getJitter()</tt>, so that
+ * masters which lost many devices at once do not retry them all at the
+ * same instant.
+ *
+ * <p>
+ * A breaker is shared by every connection to the same endpoint, and may be
+ * queried by schedulers in order to skip devices which are unreachable.
+ * Instances are thread safe.
+ */
+public class CircuitBreaker {
+
+	/**
+	 * Defines the state in which requests are let through (=<tt>0</tt>).
+	 */
+	public static final int CLOSED = 0;
+
+	/**
+	 * Defines the state in which requests fail at once (=<tt>1</tt>).
+	 */
+	public static final int OPEN = 1;
+
+	/**
+	 * Defines the state in which a request is let through on trial after
+	 * the backoff delay has passed (=<tt>2</tt>).
+	 */
+	public static final int HALF_OPEN = 2;
+
+	/**
+	 * Defines the default number of consecutive failures which open the
+	 * breaker (=<tt>3</tt>).
+	 */
+	public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+
+	/**
+	 * Defines the default delay after the breaker opened for the first time
+	 * (=<tt>1000</tt> ms).
+	 */
+	public static final int DEFAULT_INITIAL_BACKOFF = 1000;
+
+	/**
+	 * Defines the default upper limit of the delay (=<tt>60000</tt> ms).
+	 */
+	public static final int DEFAULT_MAX_BACKOFF = 60000;
+
+	/**
+	 * Defines the default fraction by which delays are randomly shortened
+	 * (=<tt>0.5</tt>).
+	 */
+	public static final double DEFAULT_JITTER = 0.5;
+
+	// configuration
+	private volatile int m_FailureThreshold = DEFAULT_FAILURE_THRESHOLD;
+	private volatile int m_InitialBackoff = DEFAULT_INITIAL_BACKOFF;
+	private volatile int m_MaxBackoff = DEFAULT_MAX_BACKOFF;
+	private volatile double m_Jitter = DEFAULT_JITTER;
+
+	// state
+	private int m_State = CLOSED;
+	private int m_Failures;
+	private int m_Trips;
+	private long m_RetryAt;
+	private long m_TripCount;
+	private Thread m_Trial;
+	private long m_TrialStarted;
+
+	/**
+	 * Constructs a new <tt>CircuitBreaker</tt> with the default settings.
+	 */
+	public CircuitBreaker() {
+	}
+
+	/**
+	 * Constructs a new <tt>CircuitBreaker</tt>.
+	 *
+	 * @param threshold
+	 *            the number of consecutive failures which open the breaker.
+	 * @param initialBackoff
+	 *            the delay after the breaker opened for the first time, in
+	 *            milliseconds.
+	 * @param maxBackoff
+	 *            the upper limit of the delay, in milliseconds.
+	 */
+	public CircuitBreaker(int threshold, int initialBackoff, int maxBackoff) {
+		setFailureThreshold(threshold);
+		setInitialBackoff(initialBackoff);
+		setMaxBackoff(maxBackoff);
+	}
+
+	/**
+	 * Returns the number of consecutive failures which open the breaker.
+	 *
+	 * @return the failure threshold.
+	 */
+	public int getFailureThreshold() {
+		return m_FailureThreshold;
+	}
+
+	/**
+	 * Sets the number of consecutive failures which open the breaker. The
+	 * default is defined as <tt>DEFAULT_FAILURE_THRESHOLD</tt>.
+	 *
+	 * @param threshold
+	 *            the failure threshold.
+	 */
+	public void setFailureThreshold(int threshold) {
+		if (threshold < 1)
+			throw new IllegalArgumentException("Invalid threshold: "
+					+ threshold);
+
+		m_FailureThreshold = threshold;
+	}
+
+	/**
+	 * Returns the delay after the breaker opened for the first time.
+	 *
+	 * @return the delay in milliseconds.
+	 */
+	public int getInitialBackoff() {
+		return m_InitialBackoff;
+	}
+
+	/**
+	 * Sets the delay after the breaker opened for the first time. The
+	 * default is defined as <tt>DEFAULT_INITIAL_BACKOFF</tt>.
+	 *
+	 * @param delay
+	 *            the delay in milliseconds.
+	 */
+	public void setInitialBackoff(int delay) {
+		if (delay < 1)
+			throw new IllegalArgumentException("Invalid delay: " + delay);
+
+		m_InitialBackoff = delay;
+	}
+
+	/**
+	 * Returns the upper limit of the delay.
+	 *
+	 * @return the delay in milliseconds.
+	 */
+	public int getMaxBackoff() {
+		return m_MaxBackoff;
+	}
+
+	/**
+	 * Sets the upper limit of the delay. The default is defined as
+	 * <tt>DEFAULT_MAX_BACKOFF</tt>.
+	 *
+	 * @param delay
+	 *            the delay in milliseconds.
+	 */
+	public void setMaxBackoff(int delay) {
+		if (delay < 1)
+			throw new IllegalArgumentException("Invalid delay: " + delay);
+
+		m_MaxBackoff = delay;
+	}
+
+	/**
+	 * Returns the largest fraction by which a delay is randomly shortened.
+	 *
+	 * @return the jitter, between <tt>0</tt> and <tt>1</tt>.
+	 */
+	public double getJitter() {
+		return m_Jitter;
+	}
+
+	/**
+	 * Sets the largest fraction by which a delay is randomly shortened. The
+	 * default is defined as <tt>DEFAULT_JITTER</tt>; <tt>0</tt> disables
+	 * the jitter.
+	 *
+	 * @param jitter
+	 *            the jitter, between <tt>0</tt> and <tt>1</tt>.
+	 */
+	public void setJitter(double jitter) {
+		if (jitter < 0 || jitter > 1)
+			throw new IllegalArgumentException("Invalid jitter: " + jitter);
+
+		m_Jitter = jitter;
+	}
+
+	/**
+	 * Returns the state of this breaker. An open breaker whose delay has
+	 * passed is reported as half open.
+	 *
+	 * @return one of <tt>CLOSED</tt>, <tt>OPEN</tt> or <tt>HALF_OPEN</tt>.
+	 */
+	public synchronized int getState() {
+		if (m_State == OPEN && System.currentTimeMillis() >= m_RetryAt)
+			return HALF_OPEN;
+
+		return m_State;
+	}
+
+	/**
+	 * Tests if requests of the calling thread currently fail at once,
+	 * because the backoff delay has not passed or another thread is making
+	 * the trial request. Schedulers use this to skip unreachable devices.
+	 *
+	 * @return true if requests fail at once, false otherwise.
+	 */
+	public synchronized boolean isOpen() {
+		return getState() == OPEN || isTrialElsewhere();
+	}
+
+	/**
+	 * Returns the time left until requests are let through again.
+	 *
+	 * @return the delay in milliseconds, or <tt>0</tt> unless open.
+	 */
+	public synchronized long getRetryDelay() {
+		if (m_State != OPEN)
+			return 0;
+
+		return Math.max(0, m_RetryAt - System.currentTimeMillis());
+	}
+
+	/**
+	 * Returns the number of consecutive failures recorded.
+	 *
+	 * @return the failure count.
+	 */
+	public synchronized int getFailureCount() {
+		return m_Failures;
+	}
+
+	/**
+	 * Returns how often this breaker has opened.
+	 *
+	 * @return the trip count.
+	 */
+	public synchronized long getTripCount() {
+		return m_TripCount;
+	}
+
+	/**
+	 * Tests if a request may be made. An open breaker whose delay has passed
+	 * becomes half open, and the calling thread makes the trial request;
+	 * it may ask again while making it, for instance to connect.
+	 *
+	 * @return true if the request may be made, false if it should fail at
+	 *         once.
+	 */
+	public synchronized boolean allowRequest() {
+		if (m_State == OPEN) {
+			if (System.currentTimeMillis() < m_RetryAt)
+				return false;
+
+			m_State = HALF_OPEN;
+			m_Trial = null;
+		}
+		if (m_State == HALF_OPEN) {
+			if (isTrialElsewhere())
+				return false;
+
+			if (m_Trial == null) {
+				m_Trial = Thread.currentThread();
+				m_TrialStarted = System.currentTimeMillis();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Records that the slave has been reached. The breaker is closed and the
+	 * backoff delay is reset.
+	 */
+	public synchronized void recordSuccess() {
+		m_State = CLOSED;
+		m_Failures = 0;
+		m_Trips = 0;
+		m_Trial = null;
+	}
+
+	/**
+	 * Records that the slave could not be reached. The breaker opens once the
+	 * failure threshold is reached, or at once while half open.
+	 */
+	public synchronized void recordFailure() {
+		m_Failures++;
+		if (m_State == HALF_OPEN
+				|| (m_State == CLOSED && m_Failures >= m_FailureThreshold))
+			trip();
+	}
+
+	/**
+	 * Closes the breaker and clears the failures.
+	 */
+	public void reset() {
+		recordSuccess();
+	}
+
+	public synchronized String toString() {
+		String state = getState() == CLOSED ? "closed"
+				: (getState() == OPEN ? "open" : "half open");
+
+		return "CircuitBreaker " + state + " (failures=" + m_Failures
+				+ ", trips=" + m_TripCount + ")";
+	}
+
+	/**
+	 * Tests if another thread is making the trial request, which has not
+	 * been given up yet. Must be called holding the monitor.
+	 */
+	private boolean isTrialElsewhere() {
+		if (m_State != HALF_OPEN || m_Trial == null
+				|| m_Trial == Thread.currentThread())
+			return false;
+
+		if (System.currentTimeMillis() - m_TrialStarted >= m_MaxBackoff) {
+			m_Trial = null;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Opens the breaker, doubling the delay of the previous trip.
+	 */
+	private void trip() {
+		long delay = Math.min((long) m_InitialBackoff << Math.min(m_Trips, 30),
+				m_MaxBackoff);
+
+		delay -= (long) (delay * m_Jitter * ThreadLocalRandom.current()
+				.nextDouble());
+
+		m_State = OPEN;
+		m_Trial = null;
+		m_RetryAt = System.currentTimeMillis() + delay;
+		m_Trips++;
+		m_TripCount++;
+	}
+}
@@ -0,0 +1,228 @@
+//License
+/***
+ * Java Modbus Library (jamod)
+ * Copyright (c) 2002-2004, jamod development team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.net;
+
+import java.net.InetAddress;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.ModbusSlaveException;
+import com.ghgande.j2mod.modbus.msg.ExceptionResponse;
+import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+
+/**
+ * Class holding the outcome of a request sent to many slaves at once with
+ * <tt>UDPMasterChannel.fanOut()</tt> or
+ * <tt>UDPMasterChannel.broadcast()</tt>, by slave address.
+ *
+ * <p>
+ * Every slave the request was addressed to either has a response, or an
+ * exception describing why it failed. A slave exception counts as a
+ * failure; its <tt>ExceptionResponse</tt> is available as well. After a
+ * broadcast, only the slaves which answered are known.
+ */
+public class FanOutResult {
+
+	// instance attributes
+	private Set<InetAddress> m_Targets;
+	private Map<InetAddress, ModbusResponse> m_Responses = new LinkedHashMap<InetAddress, ModbusResponse>();
+	private Map<InetAddress, ModbusException> m_Exceptions = new LinkedHashMap<InetAddress, ModbusException>();
+
+	/**
+	 * Constructs a new <tt>FanOutResult</tt> with no outcome yet for any of
+	 * the given slaves.
+	 *
+	 * @param targets
+	 *            the addresses of the slaves, or <tt>null</tt> for a
+	 *            broadcast.
+	 */
+	FanOutResult(Collection<InetAddress> targets) {
+		if (targets != null)
+			m_Targets = new LinkedHashSet<InetAddress>(targets);
+	}
+
+	/**
+	 * Returns the addresses of the slaves with an outcome.
+	 *
+	 * @return the slave addresses, in the order the request was addressed
+	 *         to them, or answered after a broadcast.
+	 */
+	public Set<InetAddress> getAddresses() {
+		Set<InetAddress> result = new LinkedHashSet<InetAddress>();
+
+		if (m_Targets != null)
+			result.addAll(m_Targets);
+		result.addAll(m_Responses.keySet());
+		result.addAll(m_Exceptions.keySet());
+
+		return result;
+	}
+
+	/**
+	 * Returns the responses received.
+	 *
+	 * @return the responses, which may be <tt>ExceptionResponse</tt>s, by
+	 *         slave address.
+	 */
+	public Map<InetAddress, ModbusResponse> getResponses() {
+		return Collections.unmodifiableMap(m_Responses);
+	}
+
+	/**
+	 * Returns the exceptions describing why slaves failed.
+	 *
+	 * @return the exceptions by slave address.
+	 */
+	public Map<InetAddress, ModbusException> getExceptions() {
+		return Collections.unmodifiableMap(m_Exceptions);
+	}
+
+	/**
+	 * Returns the response of a slave.
+	 *
+	 * @param addr
+	 *            the address of the slave.
+	 * @return the <tt>ModbusResponse</tt>, which may be an
+	 *         <tt>ExceptionResponse</tt>, or <tt>null</tt> if none was
+	 *         received.
+	 */
+	public ModbusResponse getResponse(InetAddress addr) {
+		return m_Responses.get(addr);
+	}
+
+	/**
+	 * Returns the exception describing why a slave failed.
+	 *
+	 * @param addr
+	 *            the address of the slave.
+	 * @return a <tt>ModbusSlaveException</tt> if the slave returned an
+	 *         exception response, another <tt>ModbusException</tt> if no
+	 *         response was received, or <tt>null</tt> if the slave
+	 *         answered normally.
+	 */
+	public ModbusException getException(InetAddress addr) {
+		return m_Exceptions.get(addr);
+	}
+
+	/**
+	 * Tests if a slave answered normally.
+	 *
+	 * @param addr
+	 *            the address of the slave.
+	 * @return true if a normal response was received, false otherwise.
+	 */
+	public boolean isSuccessful(InetAddress addr) {
+		return m_Exceptions.get(addr) == null && m_Responses.get(addr) != null;
+	}
+
+	/**
+	 * Tests if every slave answered normally.
+	 *
+	 * @return true if every slave has a normal response, false otherwise.
+	 */
+	public boolean isSuccessful() {
+		return getFailureCount() == 0;
+	}
+
+	/**
+	 * Returns the number of slaves with an outcome.
+	 *
+	 * @return the number of slaves.
+	 */
+	public int size() {
+		return getAddresses().size();
+	}
+
+	/**
+	 * Returns the number of slaves which failed.
+	 *
+	 * @return the failure count.
+	 */
+	public int getFailureCount() {
+		return m_Exceptions.size();
+	}
+
+	/**
+	 * Tests if every slave the request was addressed to has an outcome,
+	 * which is never the case for a broadcast.
+	 */
+	boolean isComplete() {
+		return m_Targets != null
+				&& m_Responses.size() + m_Exceptions.size() >= m_Targets.size();
+	}
+
+	/**
+	 * Records the response of a slave, unless it is not one of the slaves
+	 * the request was addressed to, or has an outcome already.
+	 *
+	 * @return false if the response was not recorded.
+	 */
+	boolean setResponse(InetAddress addr, ModbusResponse response) {
+		if (m_Targets != null && !m_Targets.contains(addr))
+			return false;
+		if (m_Responses.containsKey(addr) || m_Exceptions.containsKey(addr))
+			return false;
+
+		m_Responses.put(addr, response);
+		if (response instanceof ExceptionResponse)
+			m_Exceptions.put(addr, new ModbusSlaveException(
+					((ExceptionResponse) response).getExceptionCode()));
+		return true;
+	}
+
+	/**
+	 * Records why a slave failed.
+	 */
+	void setException(InetAddress addr, ModbusException ex) {
+		m_Exceptions.put(addr, ex);
+	}
+
+	/**
+	 * Records the same failure for every slave without an outcome.
+	 */
+	void failRemaining(ModbusException ex) {
+		if (m_Targets == null)
+			return;
+
+		for (InetAddress addr : m_Targets)
+			if (!m_Responses.containsKey(addr)
+					&& !m_Exceptions.containsKey(addr))
+				m_Exceptions.put(addr, ex);
+	}
+}
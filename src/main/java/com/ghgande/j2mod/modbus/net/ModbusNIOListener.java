@@ -0,0 +1,415 @@
+//License
+/***
+ * Java Modbus Library (jamod)
+ * Copyright (c) 2002-2004, jamod development team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.ghgande.j2mod.modbus.Modbus;
+
+/**
+ * Class implementing a non-blocking Modbus/TCP listener.
+ *
+ * <p>
+ * Unlike <tt>ModbusTCPListener</tt>, which ties up a thread for every
+ * connection, the listener serves all of its connections from a small,
+ * fixed number of selector threads. Accepted connections are spread over
+ * the threads in turn, so that several threads can share the load across
+ * cores. Thousands of masters can be connected at once.
+ *
+ * <p>
+ * Requests are answered through <tt>ModbusRequest.createResponse()</tt>
+ * on the selector thread, just as <tt>TCPConnectionHandler</tt> does, so
+ * the <tt>ProcessImage</tt> should not block. Slow data sources are served
+ * through a <tt>ModbusRequestHandler</tt>, whose responses are queued for
+ * the selector thread when they complete.
+ */
+public class ModbusNIOListener implements ModbusListener {
+
+	/**
+	 * Defines the default number of selector threads (=<tt>1</tt>).
+	 */
+	public static final int DEFAULT_THREADS = 1;
+
+	/**
+	 * Defines the default length of the queue of connections which have not
+	 * been accepted yet (=<tt>128</tt>).
+	 */
+	public static final int DEFAULT_BACKLOG = 128;
+
+	// instance attributes and associations
+	private ServerSocketChannel m_ServerChannel;
+	private SelectorLoop[] m_Loops;
+	private int m_NextLoop;
+	private AtomicInteger m_ConnectionCount = new AtomicInteger();
+	private Thread m_Listener;
+	private int m_Port = Modbus.DEFAULT_PORT;
+	private volatile int m_Unit = 0;
+	private volatile UnitRouter m_Router;
+	private volatile ModbusRequestHandler m_Handler;
+	private int m_Backlog = DEFAULT_BACKLOG;
+	private volatile boolean m_Listening;
+	private InetAddress m_Address;
+
+	/**
+	 * Constructs a new <tt>ModbusNIOListener</tt> with
+	 * <tt>DEFAULT_THREADS</tt> selector threads, listening on the wildcard
+	 * address.
+	 */
+	public ModbusNIOListener() {
+		this(DEFAULT_THREADS);
+	}
+
+	/**
+	 * Constructs a new <tt>ModbusNIOListener</tt> listening on the wildcard
+	 * address.
+	 *
+	 * @param threads
+	 *            the number of selector threads.
+	 */
+	public ModbusNIOListener(int threads) {
+		this(threads, null);
+		try {
+			m_Address = InetAddress.getByAddress(new byte[] { 0, 0, 0, 0 });
+		} catch (UnknownHostException ex) {
+			// Can't happen -- size is fixed.
+		}
+	}
+
+	/**
+	 * Constructs a new <tt>ModbusNIOListener</tt>.
+	 *
+	 * @param threads
+	 *            the number of selector threads.
+	 * @param addr
+	 *            the interface to use for listening.
+	 */
+	public ModbusNIOListener(int threads, InetAddress addr) {
+		if (threads < 1)
+			throw new IllegalArgumentException("Invalid thread count: "
+					+ threads);
+
+		m_Loops = new SelectorLoop[threads];
+		m_Address = addr;
+	}
+
+	/**
+	 * Sets the port to be listened to.
+	 *
+	 * @param port
+	 *            the number of the IP port as <tt>int</tt>.
+	 */
+	public void setPort(int port) {
+		m_Port = port;
+	}
+
+	/**
+	 * Sets the address of the interface to be listened to.
+	 *
+	 * @param addr
+	 *            an <tt>InetAddress</tt> instance.
+	 */
+	public void setAddress(InetAddress addr) {
+		m_Address = addr;
+	}
+
+	/**
+	 * Gets the unit number answered by this listener. If the unit number is
+	 * non-zero, requests for any other unit number are discarded.
+	 *
+	 * @returns unit number supported by this interface.
+	 */
+	public int getUnit() {
+		return m_Unit;
+	}
+
+	/**
+	 * Sets the unit number to be answered. The default of <tt>0</tt>
+	 * answers every unit number.
+	 *
+	 * @param unit
+	 *            the number of the Modbus unit as <tt>int</tt>.
+	 */
+	public void setUnit(int unit) {
+		m_Unit = unit;
+	}
+
+	/**
+	 * Returns the <tt>UnitRouter</tt> which selects the process image
+	 * answering a request.
+	 * 
+	 * @return the <tt>UnitRouter</tt>, or <tt>null</tt> if requests are
+	 *         answered from the <tt>ProcessImage</tt> of the
+	 *         <tt>ModbusCoupler</tt>.
+	 */
+	public UnitRouter getUnitRouter() {
+		return m_Router;
+	}
+
+	/**
+	 * Sets the <tt>UnitRouter</tt> which selects the process image answering
+	 * a request, so that this listener serves several units. Requests for
+	 * units without a process image are not answered. The default of
+	 * <tt>null</tt> answers requests from the <tt>ProcessImage</tt> of the
+	 * <tt>ModbusCoupler</tt>.
+	 * 
+	 * @param router
+	 *            the <tt>UnitRouter</tt>, or <tt>null</tt>.
+	 */
+	public void setUnitRouter(UnitRouter router) {
+		m_Router = router;
+	}
+
+	/**
+	 * Returns the handler answering requests.
+	 * 
+	 * @return the <tt>ModbusRequestHandler</tt>, or <tt>null</tt> if requests
+	 *         are answered as selected by the <tt>UnitRouter</tt>.
+	 */
+	public ModbusRequestHandler getRequestHandler() {
+		return m_Handler;
+	}
+
+	/**
+	 * Sets the handler answering requests, which takes precedence over the
+	 * <tt>UnitRouter</tt>. Requests whose response is not complete yet do not
+	 * hold up the requests received after them.
+	 * 
+	 * @param handler
+	 *            the <tt>ModbusRequestHandler</tt>, or <tt>null</tt>.
+	 */
+	public void setRequestHandler(ModbusRequestHandler handler) {
+		m_Handler = handler;
+	}
+
+	/**
+	 * Returns the handler in effect, or <tt>null</tt> if requests are
+	 * answered from the <tt>ProcessImage</tt> of the <tt>ModbusCoupler</tt>.
+	 */
+	ModbusRequestHandler getEffectiveHandler() {
+		ModbusRequestHandler handler = m_Handler;
+
+		return handler != null ? handler : m_Router;
+	}
+
+	/**
+	 * Returns the length of the queue of connections which have not been
+	 * accepted yet.
+	 *
+	 * @return the backlog.
+	 */
+	public int getBacklog() {
+		return m_Backlog;
+	}
+
+	/**
+	 * Sets the length of the queue of connections which have not been
+	 * accepted yet. It takes effect when the listener is started. The
+	 * default is defined as <tt>DEFAULT_BACKLOG</tt>.
+	 *
+	 * @param backlog
+	 *            the backlog.
+	 */
+	public void setBacklog(int backlog) {
+		m_Backlog = backlog;
+	}
+
+	/**
+	 * Returns the number of selector threads.
+	 *
+	 * @return the thread count.
+	 */
+	public int getThreadCount() {
+		return m_Loops.length;
+	}
+
+	/**
+	 * Returns the number of connections currently open.
+	 *
+	 * @return the connection count.
+	 */
+	public int getConnectionCount() {
+		return m_ConnectionCount.get();
+	}
+
+	/**
+	 * Set the listening state of this <tt>ModbusNIOListener</tt>. Once it
+	 * is set to <tt>false</tt>, no further connections are accepted.
+	 *
+	 * @param b
+	 *            true if listening, false otherwise.
+	 */
+	public void setListening(boolean b) {
+		m_Listening = b;
+	}
+
+	/**
+	 * Tests if this <tt>ModbusNIOListener</tt> is listening and accepting
+	 * incoming connections.
+	 *
+	 * @return true if listening, false otherwise.
+	 */
+	public boolean isListening() {
+		return m_Listening;
+	}
+
+	/**
+	 * Start the listener thread for this interface.
+	 */
+	public Thread listen() {
+		m_Listening = true;
+		m_Listener = new Thread(this);
+		m_Listener.start();
+
+		return m_Listener;
+	}
+
+	/**
+	 * Stops this <tt>ModbusNIOListener</tt>. Every connection is closed.
+	 */
+	public void stop() {
+		m_Listening = false;
+		try {
+			if (m_ServerChannel != null)
+				m_ServerChannel.close();
+			if (m_Listener != null && m_Listener != Thread.currentThread())
+				m_Listener.join();
+		} catch (Exception ex) {
+			// ?
+		}
+	}
+
+	/**
+	 * Starts the selector threads and accepts incoming connections, handing
+	 * them to the selector threads in turn.
+	 */
+	public void run() {
+		m_Listener = Thread.currentThread();
+		try {
+			m_ServerChannel = ServerSocketChannel.open();
+			m_ServerChannel.bind(new InetSocketAddress(m_Address, m_Port),
+					m_Backlog);
+			if (Modbus.debug)
+				System.out.println("Listening to " + m_ServerChannel
+						+ " (Port " + m_Port + ")");
+
+			for (int i = 0; i < m_Loops.length; i++) {
+				m_Loops[i] = new SelectorLoop(Selector.open());
+				Thread thread = new Thread(m_Loops[i], "ModbusNIOListener-" + i);
+				thread.setDaemon(true);
+				thread.start();
+			}
+
+			m_Listening = true;
+			while (m_Listening) {
+				SocketChannel channel = m_ServerChannel.accept();
+				if (m_Listening)
+					accept(channel);
+				else
+					channel.close();
+			}
+		} catch (ClosedChannelException ex) {
+			// Stopped.
+		} catch (IOException ex) {
+			if (Modbus.debug)
+				ex.printStackTrace();
+		} finally {
+			m_Listening = false;
+			try {
+				if (m_ServerChannel != null)
+					m_ServerChannel.close();
+			} catch (IOException ex) {
+				// Nothing left to release.
+			}
+			for (int i = 0; i < m_Loops.length; i++) {
+				if (m_Loops[i] != null) {
+					m_Loops[i].stop();
+					m_Loops[i] = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Counts a connection as closed. Called on the selector thread.
+	 */
+	void connectionClosed() {
+		m_ConnectionCount.decrementAndGet();
+	}
+
+	/**
+	 * Hands an accepted connection to the next selector thread.
+	 */
+	private void accept(SocketChannel channel) throws IOException {
+		if (Modbus.debug)
+			System.out.println("Making new connection " + channel);
+
+		final SelectorLoop loop = m_Loops[m_NextLoop];
+		if (++m_NextLoop == m_Loops.length)
+			m_NextLoop = 0;
+
+		final NIOSlaveConnection con = new NIOSlaveConnection(this, channel);
+		m_ConnectionCount.incrementAndGet();
+		try {
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+		} catch (IOException ex) {
+			con.close();
+			return;
+		}
+
+		if (!loop.execute(new Runnable() {
+			public void run() {
+				if (!loop.isRunning()) {
+					con.close();
+					return;
+				}
+				try {
+					con.register(loop);
+				} catch (IOException ex) {
+					con.close();
+				}
+			}
+		}))
+			con.close();
+	}
+}
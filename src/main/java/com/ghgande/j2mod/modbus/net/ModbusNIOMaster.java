@@ -0,0 +1,165 @@
+//License
+/***
+ * Java Modbus Library (jamod)
+ * Copyright (c) 2002-2004, jamod development team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.channels.Selector;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.ghgande.j2mod.modbus.ModbusIOException;
+
+/**
+ * Class implementing a non-blocking Modbus/TCP master engine.
+ *
+ * <p>
+ * The engine runs a small, fixed number of selector threads. Every
+ * <tt>NIOMasterConnection</tt> created by the engine is bound to one of
+ * them, which connects the channel, writes the requests and completes the
+ * responses. Thousands of slaves can be polled this way without a thread
+ * per connection.
+ *
+ * <p>
+ * Requests and responses are encoded and decoded by the usual
+ * <tt>ModbusRequest</tt> and <tt>ModbusResponse</tt> classes.
+ */
+public class ModbusNIOMaster {
+
+	/**
+	 * Defines the default number of selector threads (=<tt>1</tt>).
+	 */
+	public static final int DEFAULT_THREADS = 1;
+
+	// instance attributes and associations
+	private SelectorLoop[] m_Loops;
+	private AtomicInteger m_NextLoop = new AtomicInteger();
+	private volatile boolean m_Running;
+
+	/**
+	 * Constructs a new <tt>ModbusNIOMaster</tt> with
+	 * <tt>DEFAULT_THREADS</tt> selector threads.
+	 */
+	public ModbusNIOMaster() {
+		this(DEFAULT_THREADS);
+	}
+
+	/**
+	 * Constructs a new <tt>ModbusNIOMaster</tt> with the given number of
+	 * selector threads.
+	 *
+	 * @param threads
+	 *            the number of selector threads.
+	 */
+	public ModbusNIOMaster(int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("Invalid thread count: "
+					+ threads);
+
+		m_Loops = new SelectorLoop[threads];
+	}
+
+	/**
+	 * Starts the selector threads.
+	 *
+	 * @throws IOException
+	 *             if a selector could not be opened.
+	 */
+	public synchronized void start() throws IOException {
+		if (m_Running)
+			return;
+
+		try {
+			for (int i = 0; i < m_Loops.length; i++) {
+				m_Loops[i] = new SelectorLoop(Selector.open());
+				Thread thread = new Thread(m_Loops[i], "ModbusNIOMaster-" + i);
+				thread.setDaemon(true);
+				thread.start();
+			}
+		} catch (IOException ex) {
+			stop();
+			throw ex;
+		}
+		m_Running = true;
+	}
+
+	/**
+	 * Stops the selector threads. Every connection is closed and every
+	 * request still waiting for a response fails with a
+	 * <tt>ModbusIOException</tt>.
+	 */
+	public synchronized void stop() {
+		m_Running = false;
+		for (int i = 0; i < m_Loops.length; i++) {
+			if (m_Loops[i] != null) {
+				m_Loops[i].stop();
+				m_Loops[i] = null;
+			}
+		}
+	}
+
+	/**
+	 * Tests if this <tt>ModbusNIOMaster</tt> is running.
+	 *
+	 * @return true if running, false otherwise.
+	 */
+	public boolean isRunning() {
+		return m_Running;
+	}
+
+	/**
+	 * Creates a connection to a slave. The connection is opened when the
+	 * first request is submitted, and re-opened after it has been lost.
+	 *
+	 * @param addr
+	 *            the address of the slave.
+	 * @param port
+	 *            the port of the slave.
+	 * @return the new <tt>NIOMasterConnection</tt>.
+	 * @throws ModbusIOException
+	 *             if the engine is not running.
+	 */
+	public NIOMasterConnection createConnection(InetAddress addr, int port)
+			throws ModbusIOException {
+		SelectorLoop loop;
+
+		synchronized (this) {
+			if (!m_Running)
+				throw new ModbusIOException("Master not running.");
+
+			loop = m_Loops[(m_NextLoop.getAndIncrement() & Integer.MAX_VALUE)
+					% m_Loops.length];
+		}
+		return new NIOMasterConnection(loop, addr, port);
+	}
+}
@@ -0,0 +1,73 @@
+//License
+/***
+ * Java Modbus Library (jamod)
+ * Copyright (c) 2002-2004, jamod development team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.net;
+
+import java.util.concurrent.CompletionStage;
+
+import com.ghgande.j2mod.modbus.msg.ModbusRequest;
+import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+
+/**
+ * Interface defining a handler answering the requests received by a slave,
+ * which may be backed by a slow data source such as a database or another
+ * bus.
+ * 
+ * <p>
+ * The handler returns at once with a <tt>CompletionStage</tt>, and completes
+ * it when the response is known, from any thread. Meanwhile the listener
+ * carries on receiving and answering other requests, from the same or other
+ * masters; responses to Modbus/TCP and Modbus/UDP requests may therefore be
+ * sent in a different order than the requests were received in, as the
+ * transaction identifier tells them apart. A stage which is already complete
+ * is answered at once, with no hand-off to another thread.
+ * 
+ * <p>
+ * A handler is installed with <tt>setRequestHandler()</tt> on the TCP, UDP
+ * and serial listeners. <tt>UnitRouter</tt> is a handler which answers from
+ * process images, and may itself route units to other handlers.
+ */
+public interface ModbusRequestHandler {
+
+	/**
+	 * Handles a request. The stage completes with the response, or with
+	 * <tt>null</tt> if the request is not to be answered, as for a device
+	 * which does not exist. A stage completing exceptionally is answered with
+	 * a <tt>slave device failure</tt> exception response.
+	 * 
+	 * @param request
+	 *            the <tt>ModbusRequest</tt> received.
+	 * @return the <tt>CompletionStage</tt> of the <tt>ModbusResponse</tt>.
+	 */
+	public CompletionStage<ModbusResponse> handleRequest(ModbusRequest request);
+}
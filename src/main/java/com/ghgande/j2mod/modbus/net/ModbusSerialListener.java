@@ -66,9 +66,12 @@
  ***/
 package com.ghgande.j2mod.modbus.net;
 
+import java.util.concurrent.CompletionStage;
+
 import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.ModbusCoupler;
 import com.ghgande.j2mod.modbus.ModbusIOException;
+import com.ghgande.j2mod.modbus.io.ModbusSerialTransport;
 import com.ghgande.j2mod.modbus.io.ModbusTransport;
 import com.ghgande.j2mod.modbus.msg.ModbusRequest;
 import com.ghgande.j2mod.modbus.msg.ModbusResponse;
@@ -89,6 +92,8 @@ public class ModbusSerialListener implements ModbusListener {
 	private boolean m_Running = true;
 	private SerialConnection m_SerialCon;
 	private int m_Unit = 0;
+	private volatile UnitRouter m_Router;
+	private volatile ModbusRequestHandler m_Handler;
 
 	/**
 	 * run
@@ -119,12 +124,30 @@ public class ModbusSerialListener implements ModbusListener {
 							continue;
 
 						/*
-						 * Create the response using a ProcessImage. A Modbus
-						 * ILLEGAL FUNCTION exception will be thrown if there is
-						 * no ProcessImage.
+						 * Create the response with the request handler, or
+						 * using a ProcessImage. A Modbus ILLEGAL FUNCTION
+						 * exception will be thrown if there is no ProcessImage.
+						 * 
+						 * The bus is half duplex, so a response must be sent
+						 * in turn, before the next request is read. A handler
+						 * which has not answered within the receive timeout
+						 * gets no response sent at all, since the master has
+						 * given up on it by then.
 						 */
 						ModbusResponse response = null;
-						if (ModbusCoupler.getReference().getProcessImage() == null) {
+						ModbusRequestHandler handler = getEffectiveHandler();
+						if (handler != null) {
+							CompletionStage<ModbusResponse> stage = RequestDispatcher
+									.handle(handler, request);
+							if (RequestDispatcher.isDone(stage))
+								response = RequestDispatcher.getResponse(
+										request, stage);
+							else
+								response = RequestDispatcher.await(request,
+										stage, getReceiveTimeout(transport));
+							if (response == null)
+								continue;
+						} else if (ModbusCoupler.getReference().getProcessImage() == null) {
 							response = request
 									.createExceptionResponse(Modbus.ILLEGAL_FUNCTION_EXCEPTION);
 						} else {
@@ -179,6 +202,16 @@ public class ModbusSerialListener implements ModbusListener {
 		}
 	}
 
+	/**
+	 * Returns the time to wait for a request handler which answers later.
+	 */
+	private static int getReceiveTimeout(ModbusTransport transport) {
+		if (transport instanceof ModbusSerialTransport)
+			return ((ModbusSerialTransport) transport).getReceiveTimeout();
+
+		return Modbus.DEFAULT_TIMEOUT;
+	}
+
 	/**
 	 * Sets the Modbus unit number for this <tt>ModbusSerialListener</tt>
 	 * 
@@ -198,6 +231,65 @@ public class ModbusSerialListener implements ModbusListener {
 		return m_Unit;
 	}
 
+	/**
+	 * Returns the <tt>UnitRouter</tt> which selects the process image
+	 * answering a request.
+	 * 
+	 * @return the <tt>UnitRouter</tt>, or <tt>null</tt> if requests are
+	 *         answered from the <tt>ProcessImage</tt> of the
+	 *         <tt>ModbusCoupler</tt>.
+	 */
+	public UnitRouter getUnitRouter() {
+		return m_Router;
+	}
+
+	/**
+	 * Sets the <tt>UnitRouter</tt> which selects the process image answering
+	 * a request, so that this listener serves several units. Requests for
+	 * units without a process image are not answered. The default of
+	 * <tt>null</tt> answers requests from the <tt>ProcessImage</tt> of the
+	 * <tt>ModbusCoupler</tt>.
+	 * 
+	 * @param router
+	 *            the <tt>UnitRouter</tt>, or <tt>null</tt>.
+	 */
+	public void setUnitRouter(UnitRouter router) {
+		m_Router = router;
+	}
+
+	/**
+	 * Returns the handler answering requests.
+	 * 
+	 * @return the <tt>ModbusRequestHandler</tt>, or <tt>null</tt> if requests
+	 *         are answered as selected by the <tt>UnitRouter</tt>.
+	 */
+	public ModbusRequestHandler getRequestHandler() {
+		return m_Handler;
+	}
+
+	/**
+	 * Sets the handler answering requests, which takes precedence over the
+	 * <tt>UnitRouter</tt>. Since the bus is half duplex, a response which is
+	 * not complete yet is waited for up to the receive timeout of the serial
+	 * port, and dropped if it takes longer.
+	 * 
+	 * @param handler
+	 *            the <tt>ModbusRequestHandler</tt>, or <tt>null</tt>.
+	 */
+	public void setRequestHandler(ModbusRequestHandler handler) {
+		m_Handler = handler;
+	}
+
+	/**
+	 * Returns the handler in effect, or <tt>null</tt> if requests are
+	 * answered from the <tt>ProcessImage</tt> of the <tt>ModbusCoupler</tt>.
+	 */
+	private ModbusRequestHandler getEffectiveHandler() {
+		ModbusRequestHandler handler = m_Handler;
+
+		return handler != null ? handler : m_Router;
+	}
+
 	/**
 	 * Sets the listening flag of this <tt>ModbusTCPListener</tt>.
 	 * 
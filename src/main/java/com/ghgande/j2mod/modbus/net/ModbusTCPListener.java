@@ -72,8 +72,14 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.ModbusIOException;
+import com.ghgande.j2mod.modbus.io.ModbusTransport;
+import com.ghgande.j2mod.modbus.msg.ModbusRequest;
+import com.ghgande.j2mod.modbus.util.ModbusThreadFactory;
 import com.ghgande.j2mod.modbus.util.ThreadPool;
 
 /**
@@ -90,11 +96,55 @@ import com.ghgande.j2mod.modbus.util.ThreadPool;
  * @version 0.97 (8/11/2012)
  */
 public class ModbusTCPListener implements ModbusListener {
+
+	/**
+	 * Defines the overload policy which closes connections the
+	 * <tt>ThreadPool</tt> has no room for (=<tt>0</tt>).
+	 */
+	public static final int OVERLOAD_CLOSE = 0;
+
+	/**
+	 * Defines the overload policy which answers the first request of a
+	 * connection the <tt>ThreadPool</tt> has no room for with a slave busy
+	 * exception, and then closes it (=<tt>1</tt>).
+	 */
+	public static final int OVERLOAD_BUSY = 1;
+
+	/**
+	 * Defines the time allowed to a rejected connection for sending the
+	 * request to be answered with a slave busy exception (=<tt>100</tt>
+	 * ms).
+	 */
+	public static final int BUSY_TIMEOUT = 100;
+
+	/**
+	 * Defines the number of threads answering rejected connections with a
+	 * slave busy exception (=<tt>4</tt>). Rejected connections which find
+	 * them all busy, and their queue full, are closed at once, so that the
+	 * listener keeps accepting connections.
+	 */
+	public static final int BUSY_THREADS = 4;
+
+	/**
+	 * Defines the time <tt>stop()</tt> waits for the handlers to end
+	 * (=<tt>5000</tt> ms).
+	 */
+	public static final int SHUTDOWN_TIMEOUT = 5000;
+
 	private ServerSocket m_ServerSocket = null;
 	private ThreadPool m_ThreadPool;
+	private ThreadPool m_BusyPool;
+	private int m_PoolSize;
+	private int m_QueueSize = ThreadPool.DEFAULT_QUEUE_SIZE;
+	private volatile int m_OverloadPolicy = OVERLOAD_CLOSE;
+	private Set<TCPSlaveConnection> m_Connections = ConcurrentHashMap
+			.<TCPSlaveConnection> newKeySet();
+	private boolean m_Virtual = ModbusThreadFactory.isVirtualDefault();
 	private Thread m_Listener;
 	private int m_Port = Modbus.DEFAULT_PORT;
 	private int m_Unit = 0;
+	private volatile UnitRouter m_Router;
+	private volatile ModbusRequestHandler m_Handler;
 	private int m_FloodProtection = 5;
 	private boolean m_Listening;
 	private InetAddress m_Address;
@@ -134,6 +184,64 @@ public class ModbusTCPListener implements ModbusListener {
 		m_Unit = unit;
 	}
 
+	/**
+	 * Returns the <tt>UnitRouter</tt> which selects the process image
+	 * answering a request.
+	 * 
+	 * @return the <tt>UnitRouter</tt>, or <tt>null</tt> if requests are
+	 *         answered from the <tt>ProcessImage</tt> of the
+	 *         <tt>ModbusCoupler</tt>.
+	 */
+	public UnitRouter getUnitRouter() {
+		return m_Router;
+	}
+
+	/**
+	 * Sets the <tt>UnitRouter</tt> which selects the process image answering
+	 * a request, so that this listener serves several units. Requests for
+	 * units without a process image are not answered. The default of
+	 * <tt>null</tt> answers requests from the <tt>ProcessImage</tt> of the
+	 * <tt>ModbusCoupler</tt>.
+	 * 
+	 * @param router
+	 *            the <tt>UnitRouter</tt>, or <tt>null</tt>.
+	 */
+	public void setUnitRouter(UnitRouter router) {
+		m_Router = router;
+	}
+
+	/**
+	 * Returns the handler answering requests.
+	 * 
+	 * @return the <tt>ModbusRequestHandler</tt>, or <tt>null</tt> if requests
+	 *         are answered as selected by the <tt>UnitRouter</tt>.
+	 */
+	public ModbusRequestHandler getRequestHandler() {
+		return m_Handler;
+	}
+
+	/**
+	 * Sets the handler answering requests, which takes precedence over the
+	 * <tt>UnitRouter</tt>. Requests whose response is not complete yet do not
+	 * hold up the requests received after them.
+	 * 
+	 * @param handler
+	 *            the <tt>ModbusRequestHandler</tt>, or <tt>null</tt>.
+	 */
+	public void setRequestHandler(ModbusRequestHandler handler) {
+		m_Handler = handler;
+	}
+
+	/**
+	 * Returns the handler in effect, or <tt>null</tt> if requests are
+	 * answered from the <tt>ProcessImage</tt> of the <tt>ModbusCoupler</tt>.
+	 */
+	private ModbusRequestHandler getEffectiveHandler() {
+		ModbusRequestHandler handler = m_Handler;
+
+		return handler != null ? handler : m_Router;
+	}
+
 	/**
 	 * Sets the address of the interface to be listened to.
 	 * 
@@ -144,6 +252,89 @@ public class ModbusTCPListener implements ModbusListener {
 		m_Address = addr;
 	}
 
+	/**
+	 * Sets the flag that controls whether every incoming connection is
+	 * handled by a virtual thread of its own, rather than by the
+	 * <tt>ThreadPool</tt>. The number of connections served at once is then
+	 * no longer limited by the size of the pool. The flag is ignored on
+	 * runtimes without virtual threads, and takes effect for connections
+	 * accepted after it has been set. The default is defined by
+	 * <tt>ModbusThreadFactory.isVirtualDefault()</tt>.
+	 * 
+	 * @param b
+	 *            true if connections should be handled by virtual threads,
+	 *            false otherwise.
+	 */
+	public void setVirtualThreads(boolean b) {
+		m_Virtual = b;
+	}
+
+	/**
+	 * Tests if incoming connections are handled by virtual threads.
+	 * 
+	 * @return true if virtual threads are used, false otherwise.
+	 */
+	public boolean isVirtualThreads() {
+		return m_Virtual && ModbusThreadFactory.isVirtualSupported();
+	}
+
+	/**
+	 * Sets the number of connections which may wait for a thread of the
+	 * <tt>ThreadPool</tt> when every thread is busy. It takes effect when
+	 * the pool is created, that is when the first connection is accepted.
+	 * The default is defined as <tt>ThreadPool.DEFAULT_QUEUE_SIZE</tt>.
+	 * 
+	 * @param size
+	 *            the size of the queue.
+	 */
+	public void setQueueSize(int size) {
+		m_QueueSize = size;
+	}
+
+	/**
+	 * Returns the number of connections which may wait for a thread of the
+	 * <tt>ThreadPool</tt>.
+	 * 
+	 * @return the size of the queue.
+	 */
+	public int getQueueSize() {
+		return m_QueueSize;
+	}
+
+	/**
+	 * Sets how connections are treated which the <tt>ThreadPool</tt> has
+	 * no room for. The default is <tt>OVERLOAD_CLOSE</tt>.
+	 * 
+	 * @param policy
+	 *            <tt>OVERLOAD_CLOSE</tt> or <tt>OVERLOAD_BUSY</tt>.
+	 */
+	public void setOverloadPolicy(int policy) {
+		if (policy != OVERLOAD_CLOSE && policy != OVERLOAD_BUSY)
+			throw new IllegalArgumentException("Invalid policy: " + policy);
+
+		m_OverloadPolicy = policy;
+	}
+
+	/**
+	 * Returns how connections are treated which the <tt>ThreadPool</tt>
+	 * has no room for.
+	 * 
+	 * @return <tt>OVERLOAD_CLOSE</tt> or <tt>OVERLOAD_BUSY</tt>.
+	 */
+	public int getOverloadPolicy() {
+		return m_OverloadPolicy;
+	}
+
+	/**
+	 * Returns the number of connections currently open, including those
+	 * waiting for a thread.
+	 * 
+	 * @return the connection count.
+	 */
+	public int getConnectionCount() {
+		return m_Connections.size();
+	}
+
 	/**
 	 * Starts this <tt>ModbusTCPListener</tt>.
 	 * 
@@ -157,7 +348,9 @@ public class ModbusTCPListener implements ModbusListener {
 	}
 
 	/**
-	 * Stops this <tt>ModbusTCPListener</tt>.
+	 * Stops this <tt>ModbusTCPListener</tt>. No further connections are
+	 * accepted, every open connection is closed, and the
+	 * <tt>ThreadPool</tt> is shut down once its handlers have ended.
 	 */
 	public void stop() {
 		m_Listening = false;
@@ -167,6 +360,30 @@ public class ModbusTCPListener implements ModbusListener {
 		} catch (Exception ex) {
 			// ?
 		}
+
+		ThreadPool pool;
+		ThreadPool busy;
+		synchronized (this) {
+			pool = m_ThreadPool;
+			m_ThreadPool = null;
+			busy = m_BusyPool;
+			m_BusyPool = null;
+		}
+		if (pool != null)
+			pool.shutdown();
+		if (busy != null)
+			busy.shutdownNow();
+
+		for (TCPSlaveConnection con : m_Connections)
+			con.close();
+
+		try {
+			if (pool != null && !pool.awaitTermination(SHUTDOWN_TIMEOUT))
+				pool.shutdownNow();
+		} catch (InterruptedException ex) {
+			pool.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
 	}
 
 	/**
@@ -201,9 +418,30 @@ public class ModbusTCPListener implements ModbusListener {
 							+ incoming.toString());
 
 				if (m_Listening) {
-					// FIXME: Replace with object pool due to resource issues
-					m_ThreadPool.execute(new TCPConnectionHandler(
-							new TCPSlaveConnection(incoming)));
+					final TCPSlaveConnection con = new TCPSlaveConnection(
+							incoming);
+					final TCPConnectionHandler handler = new TCPConnectionHandler(
+							con, getEffectiveHandler());
+					Runnable task = new Runnable() {
+						public void run() {
+							try {
+								handler.run();
+							} finally {
+								m_Connections.remove(con);
+							}
+						}
+					};
+
+					m_Connections.add(con);
+					if (isVirtualThreads()) {
+						ModbusThreadFactory.newThread(task,
+								"TCPConnectionHandler " + incoming.getInetAddress()
+										+ ":" + incoming.getPort(), true, true)
+								.start();
+					} else if (!getThreadPool().execute(task)) {
+						m_Connections.remove(con);
+						reject(con);
+					}
 				} else {
 					incoming.close();
 				}
@@ -242,6 +480,71 @@ public class ModbusTCPListener implements ModbusListener {
 		return m_Listening;
 	}
 	
+	/**
+	 * Returns the pool of handler threads, creating it the first time it is
+	 * needed. Its counters tell how many connections are being handled and
+	 * waiting, and how many have been rejected.
+	 * 
+	 * @return the <tt>ThreadPool</tt>.
+	 */
+	public synchronized ThreadPool getThreadPool() {
+		if (m_ThreadPool == null)
+			m_ThreadPool = new ThreadPool(m_PoolSize, m_QueueSize,
+					"TCPConnectionHandler");
+
+		return m_ThreadPool;
+	}
+
+	/**
+	 * Returns the pool answering rejected connections, creating it the first
+	 * time it is needed.
+	 */
+	private synchronized ThreadPool getBusyPool() {
+		if (m_BusyPool == null)
+			m_BusyPool = new ThreadPool(BUSY_THREADS,
+					ThreadPool.DEFAULT_QUEUE_SIZE, "ModbusTCPListener busy");
+
+		return m_BusyPool;
+	}
+
+	/**
+	 * Treats a connection the <tt>ThreadPool</tt> has no room for
+	 * according to the overload policy. The busy reply is left to its own
+	 * pool, since waiting for the request here would hold up the accept
+	 * loop.
+	 */
+	private void reject(final TCPSlaveConnection con) {
+		if (Modbus.debug)
+			System.err.println("Rejecting connection from "
+					+ con.getAddress() + ":" + con.getPort());
+
+		if (m_OverloadPolicy != OVERLOAD_BUSY
+				|| !getBusyPool().execute(new Runnable() {
+					public void run() {
+						answerBusy(con);
+					}
+				}))
+			con.close();
+	}
+
+	/**
+	 * Answers the first request of a rejected connection with a slave busy
+	 * exception, and closes it.
+	 */
+	private void answerBusy(TCPSlaveConnection con) {
+		try {
+			con.setTimeout(BUSY_TIMEOUT);
+			ModbusTransport transport = con.getModbusTransport();
+			ModbusRequest request = transport.readRequest();
+			transport.writeMessage(request
+					.createExceptionResponse(Modbus.SLAVE_BUSY_EXCEPTION));
+		} catch (ModbusIOException ex) {
+			// Nothing to answer.
+		} finally {
+			con.close();
+		}
+	}
+
 	/**
 	 * Start the listener thread for this serial interface.
 	 */
@@ -263,7 +566,7 @@ public class ModbusTCPListener implements ModbusListener {
 	 *            the interface to use for listening.
 	 */
 	public ModbusTCPListener(int poolsize, InetAddress addr) {
-		m_ThreadPool = new ThreadPool(poolsize);
+		m_PoolSize = poolsize;
 		m_Address = addr;
 	}
 
@@ -278,7 +581,7 @@ public class ModbusTCPListener implements ModbusListener {
 	 *            requests.
 	 */
 	public ModbusTCPListener(int poolsize) {
-		m_ThreadPool = new ThreadPool(poolsize);
+		m_PoolSize = poolsize;
 		try {
 			/*
 			 * TODO -- Check for an IPv6 interface and listen on that
@@ -66,16 +66,24 @@
  ***/
 package com.ghgande.j2mod.modbus.net;
 
+import java.io.EOFException;
+import java.io.IOException;
 import java.net.InetAddress;
+import java.net.SocketAddress;
 import java.net.UnknownHostException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionStage;
+import java.util.function.BiConsumer;
 
 import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.ModbusCoupler;
-import com.ghgande.j2mod.modbus.ModbusIOException;
-import com.ghgande.j2mod.modbus.io.ModbusTransport;
+import com.ghgande.j2mod.modbus.io.BytesInputStream;
+import com.ghgande.j2mod.modbus.io.BytesOutputStream;
 import com.ghgande.j2mod.modbus.io.ModbusUDPTransport;
 import com.ghgande.j2mod.modbus.msg.ModbusRequest;
 import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+import com.ghgande.j2mod.modbus.util.ModbusThreadFactory;
 
 /**
  * Class that implements a ModbusUDPListener.<br>
@@ -93,8 +101,10 @@ public class ModbusUDPListener implements ModbusListener {
 	private boolean m_Continue = false;
 	private InetAddress m_Interface;
 	private UDPSlaveTerminal m_Terminal;
-	private ModbusTransport m_Transport;
+	private int m_WorkerCount = Runtime.getRuntime().availableProcessors();
 	private	int m_Unit = 0;
+	private volatile UnitRouter m_Router;
+	private volatile ModbusRequestHandler m_Handler;
 
 	public int getUnit() {
 		return m_Unit;
@@ -103,6 +113,64 @@ public class ModbusUDPListener implements ModbusListener {
 	public void setUnit(int unit) {
 		m_Unit = unit;
 	}
+
+	/**
+	 * Returns the <tt>UnitRouter</tt> which selects the process image
+	 * answering a request.
+	 * 
+	 * @return the <tt>UnitRouter</tt>, or <tt>null</tt> if requests are
+	 *         answered from the <tt>ProcessImage</tt> of the
+	 *         <tt>ModbusCoupler</tt>.
+	 */
+	public UnitRouter getUnitRouter() {
+		return m_Router;
+	}
+
+	/**
+	 * Sets the <tt>UnitRouter</tt> which selects the process image answering
+	 * a request, so that this listener serves several units. Requests for
+	 * units without a process image are not answered. The default of
+	 * <tt>null</tt> answers requests from the <tt>ProcessImage</tt> of the
+	 * <tt>ModbusCoupler</tt>.
+	 * 
+	 * @param router
+	 *            the <tt>UnitRouter</tt>, or <tt>null</tt>.
+	 */
+	public void setUnitRouter(UnitRouter router) {
+		m_Router = router;
+	}
+
+	/**
+	 * Returns the handler answering requests.
+	 * 
+	 * @return the <tt>ModbusRequestHandler</tt>, or <tt>null</tt> if requests
+	 *         are answered as selected by the <tt>UnitRouter</tt>.
+	 */
+	public ModbusRequestHandler getRequestHandler() {
+		return m_Handler;
+	}
+
+	/**
+	 * Sets the handler answering requests, which takes precedence over the
+	 * <tt>UnitRouter</tt>. Requests whose response is not complete yet do not
+	 * hold up the requests received after them.
+	 * 
+	 * @param handler
+	 *            the <tt>ModbusRequestHandler</tt>, or <tt>null</tt>.
+	 */
+	public void setRequestHandler(ModbusRequestHandler handler) {
+		m_Handler = handler;
+	}
+
+	/**
+	 * Returns the handler in effect, or <tt>null</tt> if requests are
+	 * answered from the <tt>ProcessImage</tt> of the <tt>ModbusCoupler</tt>.
+	 */
+	private ModbusRequestHandler getEffectiveHandler() {
+		ModbusRequestHandler handler = m_Handler;
+
+		return handler != null ? handler : m_Router;
+	}
 	
 	/**
 	 * Returns the number of the port this <tt>ModbusUDPListener</tt> is
@@ -125,6 +193,35 @@ public class ModbusUDPListener implements ModbusListener {
 		m_Port = ((port > 0) ? port : Modbus.DEFAULT_PORT);
 	}
 
+	/**
+	 * Returns the number of threads answering requests.
+	 * 
+	 * @return the number of workers.
+	 */
+	public int getWorkerCount() {
+		return m_WorkerCount;
+	}
+
+	/**
+	 * Sets the number of threads answering requests. The requests of one
+	 * source address are always answered by the same worker, in the order
+	 * they were received, so that a slow request only holds up the sources
+	 * sharing its worker. Requests arriving while their worker has fallen
+	 * behind are dropped, and never hold up the other workers. It takes
+	 * effect when the listener is started. The default is the number of
+	 * available processors.
+	 * 
+	 * @param count
+	 *            the number of workers.
+	 */
+	public void setWorkerCount(int count) {
+		if (count < 1)
+			throw new IllegalArgumentException("Invalid worker count: "
+					+ count);
+
+		m_WorkerCount = count;
+	}
+
 	/**
 	 * Starts this <tt>ModbusUDPListener</tt>.
 	 */
@@ -138,8 +235,6 @@ public class ModbusUDPListener implements ModbusListener {
 			}
 			m_Terminal.setLocalPort(m_Port);
 			m_Terminal.activate();
-
-			m_Transport = new ModbusUDPTransport(m_Terminal);
 		} catch (Exception e) {
 			/*
 			 * TODO -- Make sure the methods in the try block are throwing
@@ -155,45 +250,42 @@ public class ModbusUDPListener implements ModbusListener {
 		m_Listening = true;
 		m_Continue = true;
 
+		Worker[] workers = new Worker[m_WorkerCount];
+		Thread[] threads = new Thread[workers.length];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Worker();
+			threads[i] = ModbusThreadFactory.newThread(workers[i],
+					"ModbusUDPListener worker " + i, true,
+					ModbusThreadFactory.isVirtualDefault());
+			threads[i].start();
+		}
+
 		try {
 			while (m_Continue) {
 
 				/*
-				 * Get the request from the transport. It will be processed
-				 * using an associated process image.
+				 * Hand the datagram to the worker serving its source. A
+				 * worker which has fallen behind drops it rather than hold
+				 * up the other workers, as a busy device would.
 				 */
-				ModbusRequest request = m_Transport.readRequest();
-				ModbusResponse response = null;
-
-				/*
-				 * Make sure there is a process image to handle the request.
-				 */
-				if (ModbusCoupler.getReference().getProcessImage() == null) {
-					response = request
-							.createExceptionResponse(Modbus.ILLEGAL_FUNCTION_EXCEPTION);
-				} else {
-					response = request.createResponse();
-				}
-				/* DEBUG */
-				if (Modbus.debug) {
-					System.err.println("Request:" + request.getHexMessage());
-
-					System.err.println("Response:" + response.getHexMessage());
+				UDPSlaveTerminal.Packet packet = m_Terminal.take();
+				SocketAddress source = packet.getSource();
+				int hash = source.hashCode() & 0x7fffffff;
+				if (!workers[hash % workers.length].m_Queue.offer(packet)) {
+					m_Terminal.release(packet);
+					if (Modbus.debug)
+						System.err.println("Request from " + source
+								+ " dropped: worker busy");
 				}
-				m_Transport.writeMessage(response);
-			}
-		} catch (ModbusIOException ex) {
-			if (!ex.isEOF()) {
-				// FIXME: other troubles, output for debug
-				ex.printStackTrace();
 			}
+		} catch (EOFException ex) {
+			// deactivated
+		} catch (InterruptedException ex) {
+			// stopped
 		} finally {
-			try {
-				m_Terminal.deactivate();
-				m_Transport.close();
-			} catch (Exception ex) {
-				// ignore
-			}
+			m_Terminal.deactivate();
+			for (int i = 0; i < threads.length; i++)
+				threads[i].interrupt();
 		}
 	}
 
@@ -263,4 +355,117 @@ public class ModbusUDPListener implements ModbusListener {
 			// Can't happen -- length is fixed by code.
 		}
 	}
+
+	/**
+	 * Answers the requests of the source addresses assigned to it, in the
+	 * order they were received.
+	 */
+	private class Worker implements Runnable {
+
+		/*
+		 * Smaller than the pool, so that a worker which has fallen behind
+		 * leaves buffers for the others.
+		 */
+		private final BlockingQueue<UDPSlaveTerminal.Packet> m_Queue = new ArrayBlockingQueue<UDPSlaveTerminal.Packet>(
+				UDPSlaveTerminal.POOL_SIZE / 4);
+		private final BytesInputStream m_In = new BytesInputStream(
+				UDPSlaveTerminal.PACKET_SIZE);
+		private final BytesOutputStream m_Out = new BytesOutputStream(
+				Modbus.MAX_MESSAGE_LENGTH);
+
+		public void run() {
+			try {
+				while (true) {
+					UDPSlaveTerminal.Packet packet = m_Queue.take();
+					SocketAddress source = packet.getSource();
+					try {
+						m_In.reset(packet.copyTo(m_In.getBuffer()));
+					} finally {
+						m_Terminal.release(packet);
+					}
+					try {
+						process(source);
+					} catch (IOException ex) {
+						if (Modbus.debug)
+							System.err.println("Request from " + source
+									+ " dropped: " + ex);
+					} catch (RuntimeException ex) {
+						/*
+						 * A malformed request cannot be decoded.
+						 */
+						if (Modbus.debug)
+							System.err.println("Request from " + source
+									+ " dropped: " + ex);
+					}
+				}
+			} catch (InterruptedException ex) {
+				// stopped
+			}
+		}
+
+		private void process(SocketAddress source) throws IOException {
+			/*
+			 * Get the request from the datagram. It will be processed using
+			 * an associated process image.
+			 */
+			ModbusRequest request = ModbusUDPTransport.decodeRequest(m_In);
+			ModbusResponse response = null;
+
+			/*
+			 * Make sure there is a process image to handle the request. A
+			 * handler may answer later, or not at all.
+			 */
+			ModbusRequestHandler handler = getEffectiveHandler();
+			if (handler != null) {
+				CompletionStage<ModbusResponse> stage = RequestDispatcher
+						.handle(handler, request);
+				if (!RequestDispatcher.isDone(stage)) {
+					respondLater(request, stage, source);
+					return;
+				}
+				response = RequestDispatcher.getResponse(request, stage);
+				if (response == null)
+					return;
+			} else if (ModbusCoupler.getReference().getProcessImage() == null) {
+				response = request
+						.createExceptionResponse(Modbus.ILLEGAL_FUNCTION_EXCEPTION);
+			} else {
+				response = request.createResponse();
+			}
+			/* DEBUG */
+			if (Modbus.debug) {
+				System.err.println("Request:" + request.getHexMessage());
+
+				System.err.println("Response:" + response.getHexMessage());
+			}
+			int length = ModbusUDPTransport.encode(response, m_Out);
+			m_Terminal.send(m_Out.getBuffer(), length, source);
+		}
+	}
+
+	/**
+	 * Sends the response of a stage to the source of its request once it
+	 * completes.
+	 */
+	private void respondLater(final ModbusRequest request,
+			CompletionStage<ModbusResponse> stage, final SocketAddress source) {
+		final UDPSlaveTerminal terminal = m_Terminal;
+		stage.whenComplete(new BiConsumer<ModbusResponse, Throwable>() {
+			public void accept(ModbusResponse response, Throwable ex) {
+				response = RequestDispatcher.getResponse(request, response, ex);
+				if (response == null)
+					return;
+
+				try {
+					BytesOutputStream out = new BytesOutputStream(
+							Modbus.MAX_MESSAGE_LENGTH);
+					int length = ModbusUDPTransport.encode(response, out);
+					terminal.send(out.getBuffer(), length, source);
+				} catch (IOException e) {
+					if (Modbus.debug)
+						System.err.println("Response dropped: " + e);
+				}
+			}
+		});
+	}
 }
@@ -0,0 +1,562 @@
+//License
+/***
+ * Java Modbus Library (jamod)
+ * Copyright (c) 2002-2004, jamod development team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.ModbusIOException;
+import com.ghgande.j2mod.modbus.io.BytesInputStream;
+import com.ghgande.j2mod.modbus.msg.ModbusRequest;
+import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+import com.ghgande.j2mod.modbus.util.ModbusTimer;
+import com.ghgande.j2mod.modbus.util.ModbusUtil;
+
+/**
+ * Class implementing a non-blocking connection to a Modbus/TCP slave.
+ *
+ * <p>
+ * Connections are created by <tt>ModbusNIOMaster.createConnection()</tt>
+ * and driven by one of its selector threads. Requests may be submitted from
+ * any thread. At most <tt>getMaxOutstanding()</tt> of them are written
+ * before their responses arrive; the others wait in order of submission.
+ * Most slaves handle one transaction at a time, so the default is
+ * <tt>1</tt>.
+ *
+ * <p>
+ * The connection owns the transaction identifiers of the requests it
+ * sends. A request instance must not be submitted again until its response
+ * has been received.
+ */
+public class NIOMasterConnection implements SelectorLoop.Handler {
+
+	/*
+	 * Room for 32 frames of maximum length.
+	 */
+	private static final int OUTPUT_BUFFER_SIZE = 32 * (Modbus.MAX_MESSAGE_LENGTH
+			+ 6);
+
+	// instance attributes and associations
+	private SelectorLoop m_Loop;
+	private InetAddress m_Address;
+	private int m_Port;
+	private volatile int m_Timeout = Modbus.DEFAULT_TIMEOUT;
+	private volatile int m_MaxOutstanding = 1;
+	private volatile boolean m_Connected;
+
+	/*
+	 * Owned by the selector thread.
+	 */
+	private SocketChannel m_Channel;
+	private SelectionKey m_Key;
+	private ArrayDeque<Exchange> m_Waiting = new ArrayDeque<Exchange>();
+	private HashMap<Integer, Exchange> m_InFlight = new HashMap<Integer, Exchange>();
+	private ByteBuffer m_Output = ByteBuffer
+			.allocateDirect(OUTPUT_BUFFER_SIZE);
+	private ByteBuffer m_Input = ByteBuffer
+			.allocate(Modbus.MAX_MESSAGE_LENGTH + 6);
+	private BytesInputStream m_ByteIn = new BytesInputStream(
+			Modbus.MAX_MESSAGE_LENGTH + 6);
+	private int m_NextTransactionID = 1;
+
+	/**
+	 * Constructs a new <tt>NIOMasterConnection</tt>.
+	 */
+	NIOMasterConnection(SelectorLoop loop, InetAddress addr,
+			int port) {
+		m_Loop = loop;
+		m_Address = addr;
+		m_Port = port;
+	}
+
+	/**
+	 * Returns the address of the slave.
+	 *
+	 * @return the destination address as <tt>InetAddress</tt>.
+	 */
+	public InetAddress getAddress() {
+		return m_Address;
+	}
+
+	/**
+	 * Returns the port of the slave.
+	 *
+	 * @return the port number as <tt>int</tt>.
+	 */
+	public int getPort() {
+		return m_Port;
+	}
+
+	/**
+	 * Returns the timeout of this connection.
+	 *
+	 * @return the timeout in milliseconds.
+	 */
+	public int getTimeout() {
+		return m_Timeout;
+	}
+
+	/**
+	 * Sets the timeout for opening this connection, which is also the
+	 * timeout of requests submitted without one. The default is defined as
+	 * <tt>Modbus.DEFAULT_TIMEOUT</tt>.
+	 *
+	 * @param timeout
+	 *            the timeout in milliseconds.
+	 */
+	public void setTimeout(int timeout) {
+		m_Timeout = timeout;
+	}
+
+	/**
+	 * Returns the number of requests which may be in flight at once.
+	 *
+	 * @return the number of outstanding requests.
+	 */
+	public int getMaxOutstanding() {
+		return m_MaxOutstanding;
+	}
+
+	/**
+	 * Sets the number of requests which may be in flight at once. The
+	 * default is <tt>1</tt>.
+	 *
+	 * @param max
+	 *            the number of outstanding requests.
+	 */
+	public void setMaxOutstanding(int max) {
+		if (max < 1)
+			throw new IllegalArgumentException("Invalid window: " + max);
+
+		m_MaxOutstanding = max;
+	}
+
+	/**
+	 * Tests if this connection is open.
+	 *
+	 * @return true if connected, false otherwise.
+	 */
+	public boolean isConnected() {
+		return m_Connected;
+	}
+
+	/**
+	 * Sends a request, using the timeout of this connection.
+	 *
+	 * @param request
+	 *            the <tt>ModbusRequest</tt> to be sent.
+	 * @return the future response.
+	 * @see #submit(ModbusRequest, int)
+	 */
+	public CompletableFuture<ModbusResponse> submit(ModbusRequest request) {
+		return submit(request, m_Timeout);
+	}
+
+	/**
+	 * Sends a request and returns a future for its response. The connection
+	 * is opened first if necessary.
+	 *
+	 * <p>
+	 * The future completes with the response, which may be an
+	 * <tt>ExceptionResponse</tt>, or exceptionally with a
+	 * <tt>ModbusIOException</tt> if the request could not be sent or no
+	 * response arrived within the timeout.
+	 *
+	 * @param request
+	 *            the <tt>ModbusRequest</tt> to be sent.
+	 * @param timeout
+	 *            the time to wait for the response, in milliseconds.
+	 * @return the future response.
+	 */
+	public CompletableFuture<ModbusResponse> submit(ModbusRequest request,
+			int timeout) {
+		final Exchange ex = new Exchange(request);
+
+		if (!m_Loop.execute(new Runnable() {
+			public void run() {
+				enqueue(ex);
+			}
+		})) {
+			ex.m_Future.completeExceptionally(new ModbusIOException(
+					"Master not running.", true));
+			return ex.m_Future;
+		}
+
+		ModbusTimer.expire(ex.m_Future, timeout, new Runnable() {
+			public void run() {
+				ex.m_Future.completeExceptionally(new ModbusIOException(
+						"Timeout waiting for response"));
+				m_Loop.execute(new Runnable() {
+					public void run() {
+						expire(ex);
+					}
+				});
+			}
+		});
+		return ex.m_Future;
+	}
+
+	/**
+	 * Closes this connection. Requests which are still waiting for a
+	 * response fail with a <tt>ModbusIOException</tt>.
+	 */
+	public void close() {
+		m_Loop.execute(new Runnable() {
+			public void run() {
+				fail(new ModbusIOException("Connection closed.", true), true);
+			}
+		});
+	}
+
+	/**
+	 * Handles the ready operations of the channel. Called on the selector
+	 * thread.
+	 */
+	public void handle(SelectionKey key) {
+		try {
+			if (!key.isValid())
+				return;
+
+			if (key.isConnectable()) {
+				m_Channel.finishConnect();
+				connected();
+			}
+			if (key.isValid() && key.isReadable())
+				read();
+			if (key.isValid() && key.isWritable())
+				dispatch();
+		} catch (IOException ex) {
+			if (Modbus.debug)
+				System.err.println(this + ": " + ex);
+			fail(new ModbusIOException("I/O exception - connection lost.",
+					true), !m_Connected);
+		} catch (RuntimeException ex) {
+			/*
+			 * A malformed response cannot be decoded, and the stream cannot
+			 * be trusted after it.
+			 */
+			if (Modbus.debug)
+				System.err.println(this + ": " + ex);
+			fail(new ModbusIOException("Malformed response.", true),
+					!m_Connected);
+		}
+	}
+
+	/**
+	 * Fails every request once the selector thread has stopped.
+	 */
+	public void stopped() {
+		fail(new ModbusIOException("Master stopped.", true), true);
+	}
+
+	/**
+	 * Closes the channel and fails the requests which have been written.
+	 * Requests which have not been written yet are failed as well if
+	 * <tt>all</tt> is set; otherwise the connection is opened again for
+	 * them.
+	 */
+	void fail(ModbusIOException ex, boolean all) {
+		closeChannel();
+
+		for (Exchange e : m_InFlight.values())
+			e.m_Future.completeExceptionally(ex);
+		m_InFlight.clear();
+
+		if (all || !m_Loop.isRunning()) {
+			for (Exchange e : m_Waiting)
+				e.m_Future.completeExceptionally(ex);
+			m_Waiting.clear();
+		} else if (!m_Waiting.isEmpty()) {
+			open();
+		}
+	}
+
+	public String toString() {
+		return "NIOMasterConnection " + m_Address.getHostAddress() + ":"
+				+ m_Port;
+	}
+
+	private void enqueue(Exchange ex) {
+		if (ex.m_Future.isDone())
+			return;
+
+		if (!m_Loop.isRunning()) {
+			ex.m_Future.completeExceptionally(new ModbusIOException(
+					"Master not running.", true));
+			return;
+		}
+
+		m_Waiting.add(ex);
+		if (m_Channel == null)
+			open();
+		else
+			dispatch();
+	}
+
+	private void expire(Exchange ex) {
+		if (m_InFlight.remove(ex.m_TransactionID, ex))
+			dispatch();
+		else
+			m_Waiting.remove(ex);
+	}
+
+	/**
+	 * Starts opening the channel. The attempt is abandoned after the
+	 * timeout of this connection.
+	 */
+	private void open() {
+		try {
+			m_Channel = SocketChannel.open();
+			m_Channel.configureBlocking(false);
+			m_Channel.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+			m_Channel.setOption(StandardSocketOptions.SO_KEEPALIVE, Boolean.TRUE);
+
+			if (m_Channel.connect(new InetSocketAddress(m_Address, m_Port))) {
+				m_Key = m_Channel.register(m_Loop.getSelector(),
+						SelectionKey.OP_READ, this);
+				connected();
+				return;
+			}
+			m_Key = m_Channel.register(m_Loop.getSelector(),
+					SelectionKey.OP_CONNECT, this);
+		} catch (IOException ex) {
+			fail(new ModbusIOException("Connection failed.", true), true);
+			return;
+		}
+
+		final SocketChannel channel = m_Channel;
+		ModbusTimer.schedule(new Runnable() {
+			public void run() {
+				m_Loop.execute(new Runnable() {
+					public void run() {
+						if (m_Channel == channel && !m_Connected)
+							fail(new ModbusIOException("Connection failed.",
+									true), true);
+					}
+				});
+			}
+		}, m_Timeout);
+	}
+
+	private void connected() {
+		if (Modbus.debug)
+			System.err.println(this + " connected");
+
+		m_Connected = true;
+		m_Key.interestOps(SelectionKey.OP_READ);
+		dispatch();
+	}
+
+	private void closeChannel() {
+		m_Connected = false;
+		if (m_Channel == null)
+			return;
+
+		if (m_Key != null)
+			m_Key.cancel();
+		try {
+			m_Channel.close();
+		} catch (IOException ex) {
+			// Nothing left to release.
+		}
+		m_Channel = null;
+		m_Key = null;
+		m_Output.clear();
+		m_Input.clear();
+	}
+
+	/**
+	 * Writes waiting requests while the window allows.
+	 */
+	private void dispatch() {
+		if (!m_Connected)
+			return;
+
+		while (m_InFlight.size() < m_MaxOutstanding && !m_Waiting.isEmpty()
+				&& m_Output.remaining() >= Modbus.MAX_MESSAGE_LENGTH + 6) {
+			Exchange ex = m_Waiting.poll();
+			if (ex.m_Future.isDone())
+				continue;
+
+			int start = m_Output.position();
+			try {
+				ex.m_TransactionID = nextTransactionID();
+				encode(ex.m_Request, ex.m_TransactionID);
+				m_InFlight.put(ex.m_TransactionID, ex);
+			} catch (IOException e) {
+				m_Output.position(start);
+				ex.m_Future.completeExceptionally(new ModbusIOException(
+						"I/O exception - failed to write."));
+			}
+		}
+
+		try {
+			flush();
+		} catch (IOException ex) {
+			fail(new ModbusIOException("I/O exception - failed to write.",
+					true), false);
+		}
+	}
+
+	/**
+	 * Writes the output buffer until it is empty or the socket buffer is
+	 * full. Frames written by <tt>dispatch()</tt> since the last flush go
+	 * out in a single write.
+	 */
+	private void flush() throws IOException {
+		m_Output.flip();
+		try {
+			if (m_Output.hasRemaining())
+				m_Channel.write(m_Output);
+		} finally {
+			m_Output.compact();
+		}
+		if (m_Output.position() > 0)
+			m_Key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		else
+			m_Key.interestOps(SelectionKey.OP_READ);
+	}
+
+	/**
+	 * Reads what has arrived and completes every whole response in it.
+	 */
+	private void read() throws IOException {
+		if (m_Channel.read(m_Input) < 0)
+			throw new IOException("Premature end of stream");
+
+		m_Input.flip();
+		try {
+			while (m_Input.remaining() >= 6) {
+				int count = m_Input.getShort(m_Input.position() + 4) & 0xFFFF;
+				if (count < 2 || count > Modbus.MAX_MESSAGE_LENGTH)
+					throw new IOException("Invalid frame length " + count);
+
+				if (m_Input.remaining() < 6 + count)
+					break;
+
+				byte[] buffer = m_ByteIn.getBuffer();
+				m_Input.get(buffer, 0, 6 + count);
+				m_ByteIn.reset(buffer, 6 + count);
+				complete(buffer, count);
+			}
+		} finally {
+			m_Input.compact();
+		}
+
+		dispatch();
+	}
+
+	private void complete(byte[] buffer, int count) throws IOException {
+		if (Modbus.debug)
+			System.err.println("Read: " + ModbusUtil.toHex(buffer, 0, count + 6));
+
+		ModbusResponse response = ModbusResponse
+				.createModbusResponse(buffer[7] & 0xFF);
+		response.readFrom(m_ByteIn);
+
+		Exchange ex = m_InFlight.remove(response.getTransactionID());
+		if (ex == null) {
+			if (Modbus.debug)
+				System.err.println("discarding response transaction ID = "
+						+ response.getTransactionID());
+			return;
+		}
+		ex.m_Future.complete(response);
+	}
+
+	/**
+	 * Encodes a request with its MBAP header at the end of the output
+	 * buffer.
+	 */
+	private void encode(ModbusRequest request, int tid) throws IOException {
+		int start = m_Output.position();
+
+		request.setTransactionID(tid);
+		if (request.isHeadless()) {
+			m_Output.putShort((short) tid);
+			m_Output.putShort((short) request.getProtocolID());
+			m_Output.putShort((short) 0);
+			request.writeTo(m_Output);
+			m_Output.putShort(start + 4,
+					(short) (m_Output.position() - start - 6));
+		} else {
+			request.writeTo(m_Output);
+		}
+
+		if (Modbus.debug) {
+			byte[] frame = new byte[m_Output.position() - start];
+			for (int i = 0; i < frame.length; i++)
+				frame[i] = m_Output.get(start + i);
+			System.err.println("Sent: " + ModbusUtil.toHex(frame));
+		}
+	}
+
+	/**
+	 * Returns the next transaction identifier which is not in use by a
+	 * request in flight.
+	 */
+	private int nextTransactionID() {
+		int tid;
+
+		do {
+			tid = m_NextTransactionID;
+			if (++m_NextTransactionID >= Modbus.MAX_TRANSACTION_ID)
+				m_NextTransactionID = 1;
+		} while (m_InFlight.containsKey(tid));
+
+		return tid;
+	}
+
+	/**
+	 * Inner class holding a submitted request and its future response.
+	 */
+	private static class Exchange {
+		private ModbusRequest m_Request;
+		private CompletableFuture<ModbusResponse> m_Future = new CompletableFuture<ModbusResponse>();
+		private int m_TransactionID;
+
+		Exchange(ModbusRequest request) {
+			m_Request = request;
+		}
+	}
+}
@@ -0,0 +1,306 @@
+//License
+/***
+ * Java Modbus Library (jamod)
+ * Copyright (c) 2002-2004, jamod development team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletionStage;
+import java.util.function.BiConsumer;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.io.BytesInputStream;
+import com.ghgande.j2mod.modbus.msg.ModbusRequest;
+import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+import com.ghgande.j2mod.modbus.util.ModbusUtil;
+
+/**
+ * Class implementing a non-blocking connection from a Modbus/TCP master,
+ * accepted by a <tt>ModbusNIOListener</tt> and driven by one of its
+ * selector threads.
+ *
+ * <p>
+ * Every complete request which has arrived is answered in order, and the
+ * responses are written together. While the output buffer has no room for
+ * another response, no further requests are read, so that a master which
+ * does not read its responses cannot make the slave buffer without limit.
+ */
+class NIOSlaveConnection implements SelectorLoop.Handler {
+
+	/*
+	 * Room for 4 frames of maximum length.
+	 */
+	private static final int BUFFER_SIZE = 4 * (Modbus.MAX_MESSAGE_LENGTH + 6);
+
+	// instance attributes and associations
+	private ModbusNIOListener m_Listener;
+	private SelectorLoop m_Loop;
+	private SocketChannel m_Channel;
+	private SelectionKey m_Key;
+	private boolean m_Closed;
+
+	/*
+	 * Owned by the selector thread.
+	 */
+	private ByteBuffer m_Input = ByteBuffer.allocate(BUFFER_SIZE);
+	private ByteBuffer m_Output = ByteBuffer.allocate(BUFFER_SIZE);
+	private BytesInputStream m_ByteIn = new BytesInputStream(
+			Modbus.MAX_MESSAGE_LENGTH + 6);
+	private ArrayDeque<ModbusResponse> m_Completed = new ArrayDeque<ModbusResponse>();
+
+	/**
+	 * Constructs a new <tt>NIOSlaveConnection</tt> for a non-blocking
+	 * channel.
+	 */
+	NIOSlaveConnection(ModbusNIOListener listener, SocketChannel channel) {
+		m_Listener = listener;
+		m_Channel = channel;
+	}
+
+	/**
+	 * Registers the channel for reading. Called on the selector thread.
+	 */
+	void register(SelectorLoop loop) throws IOException {
+		m_Loop = loop;
+		m_Key = m_Channel.register(loop.getSelector(), SelectionKey.OP_READ,
+				this);
+	}
+
+	/**
+	 * Handles the ready operations of the channel. Called on the selector
+	 * thread.
+	 */
+	public void handle(SelectionKey key) {
+		try {
+			if (!key.isValid())
+				return;
+
+			if (key.isReadable())
+				read();
+			if (key.isValid() && key.isWritable())
+				process();
+		} catch (IOException ex) {
+			if (Modbus.debug)
+				System.err.println(this + ": " + ex);
+			close();
+		} catch (RuntimeException ex) {
+			/*
+			 * A malformed request cannot be decoded; only this master loses
+			 * its connection.
+			 */
+			if (Modbus.debug)
+				System.err.println(this + ": " + ex);
+			close();
+		}
+	}
+
+	/**
+	 * Closes the channel once the selector thread has stopped.
+	 */
+	public void stopped() {
+		close();
+	}
+
+	/**
+	 * Closes the channel. Responses which have not been written yet are
+	 * dropped.
+	 */
+	void close() {
+		if (m_Closed)
+			return;
+
+		m_Closed = true;
+		if (m_Key != null)
+			m_Key.cancel();
+		try {
+			m_Channel.close();
+		} catch (IOException ex) {
+			// Nothing left to release.
+		}
+		m_Listener.connectionClosed();
+	}
+
+	public String toString() {
+		return "NIOSlaveConnection " + m_Channel.socket().getInetAddress()
+				+ ":" + m_Channel.socket().getPort();
+	}
+
+	/**
+	 * Reads what has arrived and answers every whole request in it.
+	 */
+	private void read() throws IOException {
+		if (m_Channel.read(m_Input) < 0) {
+			close();
+			return;
+		}
+		process();
+	}
+
+	/**
+	 * Answers the requests buffered while there is room for the responses,
+	 * and writes the responses. Responses completed by a request handler
+	 * meanwhile go first.
+	 */
+	private void process() throws IOException {
+		while (!m_Completed.isEmpty()
+				&& m_Output.remaining() >= Modbus.MAX_MESSAGE_LENGTH + 6)
+			m_Completed.poll().writeTo(m_Output);
+
+		m_Input.flip();
+		try {
+			while (m_Input.remaining() >= 6
+					&& m_Output.remaining() >= Modbus.MAX_MESSAGE_LENGTH + 6) {
+				int count = m_Input.getShort(m_Input.position() + 4) & 0xFFFF;
+				if (count < 2 || count > Modbus.MAX_MESSAGE_LENGTH)
+					throw new IOException("Invalid frame length " + count);
+
+				if (m_Input.remaining() < 6 + count)
+					break;
+
+				byte[] buffer = m_ByteIn.getBuffer();
+				m_Input.get(buffer, 0, 6 + count);
+				m_ByteIn.reset(buffer, 6 + count);
+				answer(buffer, count);
+			}
+		} finally {
+			m_Input.compact();
+		}
+		flush();
+	}
+
+	/**
+	 * Decodes a request and encodes its response at the end of the output
+	 * buffer.
+	 */
+	private void answer(byte[] buffer, int count) throws IOException {
+		if (Modbus.debug)
+			System.err.println("Read: " + ModbusUtil.toHex(buffer, 0, count + 6));
+
+		ModbusRequest request = ModbusRequest
+				.createModbusRequest(buffer[7] & 0xFF);
+		request.setHeadless(false);
+		request.readFrom(m_ByteIn);
+
+		int unit = m_Listener.getUnit();
+		if (unit != 0 && request.getUnitID() != unit)
+			return;
+
+		ModbusRequestHandler handler = m_Listener.getEffectiveHandler();
+		ModbusResponse response;
+		if (handler == null) {
+			response = TCPConnectionHandler.createResponse(request);
+		} else {
+			CompletionStage<ModbusResponse> stage = RequestDispatcher.handle(
+					handler, request);
+			if (!RequestDispatcher.isDone(stage)) {
+				respondLater(request, stage);
+				return;
+			}
+			response = RequestDispatcher.getResponse(request, stage);
+		}
+		if (response == null)
+			return;
+
+		if (Modbus.debug)
+			System.err.println("Sent: " + response.getHexMessage());
+
+		response.writeTo(m_Output);
+	}
+
+	/**
+	 * Queues the response of a stage for the selector thread once it
+	 * completes. The response is dropped if the connection has been closed
+	 * meanwhile.
+	 */
+	private void respondLater(final ModbusRequest request,
+			CompletionStage<ModbusResponse> stage) {
+		stage.whenComplete(new BiConsumer<ModbusResponse, Throwable>() {
+			public void accept(ModbusResponse response, Throwable ex) {
+				final ModbusResponse result = RequestDispatcher.getResponse(
+						request, response, ex);
+				if (result == null)
+					return;
+
+				m_Loop.execute(new Runnable() {
+					public void run() {
+						if (m_Closed)
+							return;
+
+						if (Modbus.debug)
+							System.err.println("Sent: " + result.getHexMessage());
+
+						m_Completed.add(result);
+						try {
+							process();
+						} catch (IOException ex) {
+							if (Modbus.debug)
+								System.err.println(NIOSlaveConnection.this
+										+ ": " + ex);
+							close();
+						} catch (RuntimeException ex) {
+							if (Modbus.debug)
+								System.err.println(NIOSlaveConnection.this
+										+ ": " + ex);
+							close();
+						}
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Writes the output buffer until it is empty or the socket buffer is
+	 * full, and selects the operations to wait for: reading while there is
+	 * room for another response, writing while responses are left.
+	 */
+	private void flush() throws IOException {
+		m_Output.flip();
+		try {
+			if (m_Output.hasRemaining())
+				m_Channel.write(m_Output);
+		} finally {
+			m_Output.compact();
+		}
+
+		int ops = 0;
+		if (m_Output.position() > 0)
+			ops |= SelectionKey.OP_WRITE;
+		if (m_Output.remaining() >= Modbus.MAX_MESSAGE_LENGTH + 6)
+			ops |= SelectionKey.OP_READ;
+		m_Key.interestOps(ops);
+	}
+}
@@ -0,0 +1,247 @@
+//License
+/***
+ * Java Modbus Library (jamod)
+ * Copyright (c) 2002-2004, jamod development team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.net;
+
+import com.ghgande.j2mod.modbus.Modbus;
+
+/**
+ * Class implementing an adaptive retransmission timeout for one slave
+ * endpoint.
+ *
+ * <p>
+ * The estimator keeps the smoothed round trip time of the slave and its
+ * variance as described in RFC 6298, and derives the time to wait for a
+ * response from them, bounded by <tt>getMinTimeout()</tt> and
+ * <tt>getMaxTimeout()</tt>. Until the first sample has been taken the
+ * maximum is used, so the first request waits as long as it would without
+ * the estimator.
+ *
+ * <p>
+ * Every timeout doubles the time to wait, up to the maximum. Following
+ * Karn's rule, callers only sample requests which were sent once, since the
+ * response to a request sent again cannot be told apart from the response
+ * to its earlier attempts; the doubled timeout is kept until such a sample
+ * has been taken.
+ *
+ * <p>
+ * An estimator is shared by every transaction to the same endpoint.
+ * Instances are thread safe.
+ */
+public class RTTEstimator {
+
+	/**
+	 * Defines the default lower limit of the timeout (=<tt>20</tt> ms).
+	 */
+	public static final int DEFAULT_MIN_TIMEOUT = 20;
+
+	/*
+	 * Smoothing factors of RFC 6298, as shifts: alpha = 1/8, beta = 1/4.
+	 */
+	private static final int ALPHA_SHIFT = 3;
+	private static final int BETA_SHIFT = 2;
+
+	/*
+	 * Granularity of the clock in microseconds.
+	 */
+	private static final long GRANULARITY = 1000;
+
+	// configuration
+	private volatile int m_MinTimeout = DEFAULT_MIN_TIMEOUT;
+	private volatile int m_MaxTimeout = Modbus.DEFAULT_TIMEOUT;
+
+	// state, in microseconds
+	private long m_SmoothedRTT;
+	private long m_Variance;
+	private long m_Samples;
+	private int m_Backoff;
+
+	/**
+	 * Constructs a new <tt>RTTEstimator</tt> with the default limits.
+	 */
+	public RTTEstimator() {
+	}
+
+	/**
+	 * Constructs a new <tt>RTTEstimator</tt>.
+	 *
+	 * @param minTimeout
+	 *            the lower limit of the timeout, in milliseconds.
+	 * @param maxTimeout
+	 *            the upper limit of the timeout, in milliseconds.
+	 */
+	public RTTEstimator(int minTimeout, int maxTimeout) {
+		setMaxTimeout(maxTimeout);
+		setMinTimeout(minTimeout);
+	}
+
+	/**
+	 * Returns the lower limit of the timeout.
+	 *
+	 * @return the limit in milliseconds.
+	 */
+	public int getMinTimeout() {
+		return m_MinTimeout;
+	}
+
+	/**
+	 * Sets the lower limit of the timeout. The default is defined as
+	 * <tt>DEFAULT_MIN_TIMEOUT</tt>.
+	 *
+	 * @param timeout
+	 *            the limit in milliseconds.
+	 */
+	public void setMinTimeout(int timeout) {
+		if (timeout < 1)
+			throw new IllegalArgumentException("Invalid timeout: " + timeout);
+
+		m_MinTimeout = timeout;
+	}
+
+	/**
+	 * Returns the upper limit of the timeout, which is also the timeout
+	 * before the first sample.
+	 *
+	 * @return the limit in milliseconds.
+	 */
+	public int getMaxTimeout() {
+		return m_MaxTimeout;
+	}
+
+	/**
+	 * Sets the upper limit of the timeout, which is also the timeout before
+	 * the first sample. The default is defined as
+	 * <tt>Modbus.DEFAULT_TIMEOUT</tt>.
+	 *
+	 * @param timeout
+	 *            the limit in milliseconds.
+	 */
+	public void setMaxTimeout(int timeout) {
+		if (timeout < 1)
+			throw new IllegalArgumentException("Invalid timeout: " + timeout);
+
+		m_MaxTimeout = timeout;
+	}
+
+	/**
+	 * Returns the time to wait for the next response.
+	 *
+	 * @return the timeout in milliseconds.
+	 */
+	public synchronized int getTimeout() {
+		int min = m_MinTimeout;
+		int max = Math.max(min, m_MaxTimeout);
+
+		if (m_Samples == 0)
+			return max;
+
+		long rto = m_SmoothedRTT + Math.max(GRANULARITY, 4 * m_Variance);
+		long timeout = Math.max(min, (rto + 999) / 1000) << m_Backoff;
+
+		return (int) Math.min(max, timeout);
+	}
+
+	/**
+	 * Returns the smoothed round trip time.
+	 *
+	 * @return the round trip time in microseconds, or <tt>0</tt> before the
+	 *         first sample.
+	 */
+	public synchronized long getSmoothedRTT() {
+		return m_SmoothedRTT;
+	}
+
+	/**
+	 * Returns the mean deviation of the round trip time.
+	 *
+	 * @return the deviation in microseconds.
+	 */
+	public synchronized long getRTTVariance() {
+		return m_Variance;
+	}
+
+	/**
+	 * Returns the number of samples taken.
+	 *
+	 * @return the sample count.
+	 */
+	public synchronized long getSampleCount() {
+		return m_Samples;
+	}
+
+	/**
+	 * Records the round trip time of a request which was sent once, and
+	 * clears the backoff.
+	 *
+	 * @param nanos
+	 *            the time between sending the request and receiving its
+	 *            response, in nanoseconds.
+	 */
+	public synchronized void addSample(long nanos) {
+		long rtt = Math.max(0, nanos / 1000);
+
+		if (m_Samples++ == 0) {
+			m_SmoothedRTT = rtt;
+			m_Variance = rtt / 2;
+		} else {
+			m_Variance += (Math.abs(m_SmoothedRTT - rtt) - m_Variance) >> BETA_SHIFT;
+			m_SmoothedRTT += (rtt - m_SmoothedRTT) >> ALPHA_SHIFT;
+		}
+		m_Backoff = 0;
+	}
+
+	/**
+	 * Doubles the timeout after a request went unanswered, up to the upper
+	 * limit.
+	 */
+	public synchronized void backoff() {
+		if (m_Backoff < 16 && getTimeout() < m_MaxTimeout)
+			m_Backoff++;
+	}
+
+	/**
+	 * Forgets every sample and the backoff.
+	 */
+	public synchronized void reset() {
+		m_SmoothedRTT = 0;
+		m_Variance = 0;
+		m_Samples = 0;
+		m_Backoff = 0;
+	}
+
+	public synchronized String toString() {
+		return "RTTEstimator[srtt=" + m_SmoothedRTT + "us, rttvar="
+				+ m_Variance + "us, rto=" + getTimeout() + "ms, backoff="
+				+ m_Backoff + "]";
+	}
+}
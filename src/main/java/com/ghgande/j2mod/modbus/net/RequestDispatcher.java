@@ -0,0 +1,175 @@
+//License
+/***
+ * Java Modbus Library (jamod)
+ * Copyright (c) 2002-2004, jamod development team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.net;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.ModbusIOException;
+import com.ghgande.j2mod.modbus.io.ModbusTransport;
+import com.ghgande.j2mod.modbus.msg.ModbusRequest;
+import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+
+/**
+ * Class holding the helpers shared by the listeners for calling a
+ * <tt>ModbusRequestHandler</tt>.
+ */
+final class RequestDispatcher {
+
+	private RequestDispatcher() {
+	}
+
+	/**
+	 * Calls a handler. A handler which throws, or returns no stage, is
+	 * treated as having completed the stage accordingly.
+	 */
+	static CompletionStage<ModbusResponse> handle(
+			ModbusRequestHandler handler, ModbusRequest request) {
+		try {
+			CompletionStage<ModbusResponse> stage = handler
+					.handleRequest(request);
+			if (stage != null)
+				return stage;
+
+			return CompletableFuture.completedFuture(null);
+		} catch (RuntimeException ex) {
+			CompletableFuture<ModbusResponse> failed = new CompletableFuture<ModbusResponse>();
+			failed.completeExceptionally(ex);
+
+			return failed;
+		}
+	}
+
+	/**
+	 * Tests if a stage is known to be complete, so that it can be answered
+	 * at once.
+	 */
+	static boolean isDone(CompletionStage<ModbusResponse> stage) {
+		return stage instanceof CompletableFuture
+				&& ((CompletableFuture<ModbusResponse>) stage).isDone();
+	}
+
+	/**
+	 * Returns the response of a complete stage.
+	 */
+	static ModbusResponse getResponse(ModbusRequest request,
+			CompletionStage<ModbusResponse> stage) {
+		try {
+			return ((CompletableFuture<ModbusResponse>) stage).join();
+		} catch (RuntimeException ex) {
+			return getResponse(request, null, ex);
+		}
+	}
+
+	/**
+	 * Returns the response to send for the outcome of a stage, which is a
+	 * <tt>slave device failure</tt> exception response if it failed.
+	 */
+	static ModbusResponse getResponse(ModbusRequest request,
+			ModbusResponse response, Throwable ex) {
+		if (ex == null)
+			return response;
+
+		if (Modbus.debug)
+			System.err.println("Request handler failed: " + ex);
+
+		return request.createExceptionResponse(Modbus.SLAVE_DEVICE_FAILURE);
+	}
+
+	/**
+	 * Waits for the response of a stage, for a listener which has to answer
+	 * in turn, such as a slave on a serial bus.
+	 *
+	 * @return the response, or <tt>null</tt> if there is none or the stage
+	 *         did not complete within the timeout.
+	 */
+	static ModbusResponse await(ModbusRequest request,
+			CompletionStage<ModbusResponse> stage, int timeout) {
+		final CompletableFuture<ModbusResponse> result = new CompletableFuture<ModbusResponse>();
+		stage.whenComplete(new BiConsumer<ModbusResponse, Throwable>() {
+			public void accept(ModbusResponse response, Throwable ex) {
+				if (ex != null)
+					result.completeExceptionally(ex);
+				else
+					result.complete(response);
+			}
+		});
+		try {
+			return result.get(timeout, TimeUnit.MILLISECONDS);
+		} catch (ExecutionException ex) {
+			return getResponse(request, null, ex.getCause());
+		} catch (TimeoutException ex) {
+			if (Modbus.debug)
+				System.err.println("Request handler too slow, response dropped");
+
+			return null;
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the response of a stage to a transport once it completes. The
+	 * response is dropped if the transport has been closed meanwhile. Only
+	 * for transports on which responses may be sent out of turn, as on TCP.
+	 */
+	static void respondLater(final ModbusRequest request,
+			CompletionStage<ModbusResponse> stage,
+			final ModbusTransport transport) {
+		stage.whenComplete(new BiConsumer<ModbusResponse, Throwable>() {
+			public void accept(ModbusResponse response, Throwable ex) {
+				response = getResponse(request, response, ex);
+				if (response == null)
+					return;
+
+				if (Modbus.debug) {
+					System.out.println("Request:" + request.getHexMessage());
+					System.out.println("Response:" + response.getHexMessage());
+				}
+				try {
+					transport.writeMessage(response);
+				} catch (ModbusIOException e) {
+					if (Modbus.debug)
+						System.err.println("Response dropped: " + e);
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,249 @@
+//License
+/***
+ * Java Modbus Library (jamod)
+ * Copyright (c) 2002-2004, jamod development team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.net;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.msg.EncodedResponse;
+import com.ghgande.j2mod.modbus.msg.ExceptionResponse;
+import com.ghgande.j2mod.modbus.msg.ModbusRequest;
+import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+import com.ghgande.j2mod.modbus.msg.ReadCoilsRequest;
+import com.ghgande.j2mod.modbus.msg.ReadInputDiscretesRequest;
+import com.ghgande.j2mod.modbus.msg.ReadInputRegistersRequest;
+import com.ghgande.j2mod.modbus.msg.ReadMultipleRegistersRequest;
+import com.ghgande.j2mod.modbus.procimg.ProcessImage;
+import com.ghgande.j2mod.modbus.procimg.VersionedProcessImage;
+
+/**
+ * Class implementing a cache of encoded responses to the read requests of a
+ * slave, so that a range which is read over and over is encoded once, and
+ * copied into every later response.
+ * 
+ * <p>
+ * Responses are cached by unit, function code, reference and count, for
+ * reading coils, discrete inputs, input registers and holding registers. A
+ * cached response is reused as long as the version of its range in the
+ * process image is unchanged, so only images implementing
+ * <tt>VersionedProcessImage</tt>, such as <tt>SimpleProcessImage</tt>, are
+ * cached; every other request is answered as usual. Ranges without a
+ * version are not cached either. A <tt>SimpleProcessImage</tt> only knows
+ * when observable objects such as <tt>ObservableRegister</tt> change, so
+ * ranges holding <tt>SimpleRegister</tt>, <tt>SimpleInputRegister</tt> or
+ * other objects whose values are set directly are always read from the
+ * image.
+ * 
+ * <p>
+ * A cache is installed with <tt>UnitRouter.setResponseCache()</tt>. Once it
+ * holds <tt>getCapacity()</tt> responses it is cleared, so that ranges which
+ * are no longer read do not stay in memory. Instances are thread safe.
+ */
+public class ResponseCache {
+
+	/**
+	 * Defines the default number of responses held (=<tt>1024</tt>).
+	 */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	// instance attributes
+	private int m_Capacity;
+	private ConcurrentHashMap<Long, Entry> m_Entries = new ConcurrentHashMap<Long, Entry>();
+	private AtomicLong m_Hits = new AtomicLong();
+	private AtomicLong m_Misses = new AtomicLong();
+
+	/**
+	 * Constructs a new <tt>ResponseCache</tt> holding up to
+	 * <tt>DEFAULT_CAPACITY</tt> responses.
+	 */
+	public ResponseCache() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Constructs a new <tt>ResponseCache</tt>.
+	 * 
+	 * @param capacity
+	 *            the number of responses held.
+	 */
+	public ResponseCache(int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("Invalid capacity: " + capacity);
+
+		m_Capacity = capacity;
+	}
+
+	/**
+	 * Returns the number of responses held before the cache is cleared.
+	 * 
+	 * @return the capacity.
+	 */
+	public int getCapacity() {
+		return m_Capacity;
+	}
+
+	/**
+	 * Returns the number of responses currently held.
+	 * 
+	 * @return the size.
+	 */
+	public int size() {
+		return m_Entries.size();
+	}
+
+	/**
+	 * Returns the number of requests answered from the cache.
+	 * 
+	 * @return the hit count.
+	 */
+	public long getHitCount() {
+		return m_Hits.get();
+	}
+
+	/**
+	 * Returns the number of cacheable requests which had to be answered from
+	 * the process image.
+	 * 
+	 * @return the miss count.
+	 */
+	public long getMissCount() {
+		return m_Misses.get();
+	}
+
+	/**
+	 * Removes every response.
+	 */
+	public void clear() {
+		m_Entries.clear();
+	}
+
+	/**
+	 * Creates the response to a request, from the cache if the range read is
+	 * unchanged since it was cached, and from the process image otherwise.
+	 * 
+	 * @param request
+	 *            the <tt>ModbusRequest</tt> received.
+	 * @param procimg
+	 *            the <tt>ProcessImage</tt> of the unit.
+	 * @return the <tt>ModbusResponse</tt>.
+	 */
+	public ModbusResponse createResponse(ModbusRequest request,
+			ProcessImage procimg) {
+		if (!(procimg instanceof VersionedProcessImage))
+			return request.createResponse(procimg);
+
+		int type;
+		int ref;
+		int count;
+
+		switch (request.getFunctionCode()) {
+		case Modbus.READ_COILS:
+			type = VersionedProcessImage.DIGITAL_OUT;
+			ref = ((ReadCoilsRequest) request).getReference();
+			count = ((ReadCoilsRequest) request).getBitCount();
+			break;
+		case Modbus.READ_INPUT_DISCRETES:
+			type = VersionedProcessImage.DIGITAL_IN;
+			ref = ((ReadInputDiscretesRequest) request).getReference();
+			count = ((ReadInputDiscretesRequest) request).getBitCount();
+			break;
+		case Modbus.READ_INPUT_REGISTERS:
+			type = VersionedProcessImage.INPUT_REGISTER;
+			ref = ((ReadInputRegistersRequest) request).getReference();
+			count = ((ReadInputRegistersRequest) request).getWordCount();
+			break;
+		case Modbus.READ_MULTIPLE_REGISTERS:
+			type = VersionedProcessImage.REGISTER;
+			ref = ((ReadMultipleRegistersRequest) request).getReference();
+			count = ((ReadMultipleRegistersRequest) request).getWordCount();
+			break;
+		default:
+			return request.createResponse(procimg);
+		}
+
+		/*
+		 * The version is read before the values, so that a change made while
+		 * they are being encoded invalidates the new entry.
+		 */
+		VersionedProcessImage image = (VersionedProcessImage) procimg;
+		long version = image.getVersion(type, ref, count);
+		if (version == VersionedProcessImage.UNVERSIONED)
+			return request.createResponse(procimg);
+
+		Long key = Long.valueOf(((long) request.getUnitID() & 0xFF) << 40
+				| (long) request.getFunctionCode() << 32
+				| (ref & 0xFFFFL) << 16 | (count & 0xFFFFL));
+
+		Entry entry = m_Entries.get(key);
+		if (entry != null && entry.m_Image == procimg
+				&& entry.m_Version == version) {
+			m_Hits.incrementAndGet();
+			return new EncodedResponse(request, entry.m_Data);
+		}
+		m_Misses.incrementAndGet();
+
+		ModbusResponse response = request.createResponse(procimg);
+		if (response == null || response instanceof ExceptionResponse)
+			return response;
+
+		byte[] data = EncodedResponse.encode(response);
+		if (m_Entries.size() >= m_Capacity)
+			m_Entries.clear();
+
+		m_Entries.put(key, new Entry(procimg, version, data));
+
+		return new EncodedResponse(request, data);
+	}
+
+	public String toString() {
+		return "ResponseCache (size=" + size() + ", hits=" + getHitCount()
+				+ ", misses=" + getMissCount() + ")";
+	}
+
+	/**
+	 * Class holding a cached response.
+	 */
+	private static final class Entry {
+		final ProcessImage m_Image;
+		final long m_Version;
+		final byte[] m_Data;
+
+		Entry(ProcessImage image, long version, byte[] data) {
+			m_Image = image;
+			m_Version = version;
+			m_Data = data;
+		}
+	}
+}
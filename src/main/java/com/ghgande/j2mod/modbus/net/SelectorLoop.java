@@ -0,0 +1,167 @@
+//License
+/***
+ * Java Modbus Library (jamod)
+ * Copyright (c) 2002-2004, jamod development team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.net;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.ghgande.j2mod.modbus.Modbus;
+
+/**
+ * Class implementing one selector thread of the non-blocking master and
+ * listener. Everything which touches the channels of the thread runs on
+ * the thread itself; other threads hand their work over with
+ * <tt>execute()</tt>.
+ *
+ * <p>
+ * Every selection key registered with the selector must have a
+ * <tt>Handler</tt> attached. A task or handler which throws an unchecked
+ * exception does not stop the thread, since it is shared by many
+ * connections.
+ */
+class SelectorLoop implements Runnable {
+
+	/**
+	 * Interface implemented by the attachments of the selection keys.
+	 */
+	interface Handler {
+
+		/**
+		 * Handles the ready operations of a key.
+		 */
+		void handle(SelectionKey key);
+
+		/**
+		 * Releases the channel once the loop has stopped.
+		 */
+		void stopped();
+	}
+
+	private Selector m_Selector;
+	private ConcurrentLinkedQueue<Runnable> m_Tasks = new ConcurrentLinkedQueue<Runnable>();
+	private volatile boolean m_Running = true;
+
+	SelectorLoop(Selector selector) {
+		m_Selector = selector;
+	}
+
+	Selector getSelector() {
+		return m_Selector;
+	}
+
+	/**
+	 * Runs a task on the selector thread.
+	 *
+	 * @return false if the thread has stopped.
+	 */
+	boolean execute(Runnable task) {
+		if (!m_Running)
+			return false;
+
+		m_Tasks.add(task);
+		m_Selector.wakeup();
+		return true;
+	}
+
+	boolean isRunning() {
+		return m_Running;
+	}
+
+	void stop() {
+		m_Running = false;
+		m_Selector.wakeup();
+	}
+
+	public void run() {
+		while (m_Running) {
+			try {
+				m_Selector.select();
+			} catch (IOException ex) {
+				if (Modbus.debug)
+					System.err.println("select failed: " + ex);
+				break;
+			}
+
+			Runnable task;
+			while ((task = m_Tasks.poll()) != null)
+				runTask(task);
+
+			Iterator<SelectionKey> keys = m_Selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+
+				try {
+					((Handler) key.attachment()).handle(key);
+				} catch (RuntimeException ex) {
+					if (Modbus.debug)
+						ex.printStackTrace();
+				}
+			}
+		}
+
+		m_Running = false;
+		for (SelectionKey key : new ArrayList<SelectionKey>(m_Selector.keys())) {
+			try {
+				((Handler) key.attachment()).stopped();
+			} catch (RuntimeException ex) {
+				if (Modbus.debug)
+					ex.printStackTrace();
+			}
+		}
+
+		Runnable task;
+		while ((task = m_Tasks.poll()) != null)
+			runTask(task);
+
+		try {
+			m_Selector.close();
+		} catch (IOException e) {
+			// Nothing left to release.
+		}
+	}
+
+	private void runTask(Runnable task) {
+		try {
+			task.run();
+		} catch (RuntimeException ex) {
+			if (Modbus.debug)
+				ex.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,453 @@
+//License
+/***
+ * Java Modbus Library (jamod)
+ * Copyright (c) 2002-2004, jamod development team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.net;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.ModbusIOException;
+import com.ghgande.j2mod.modbus.io.ModbusTransport;
+import com.ghgande.j2mod.modbus.msg.EncodedResponse;
+import com.ghgande.j2mod.modbus.msg.ModbusRequest;
+import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+import com.ghgande.j2mod.modbus.util.ModbusThreadFactory;
+
+/**
+ * Class implementing a serial bus behind a Modbus gateway, which passes the
+ * requests received by a TCP or UDP listener on to the slaves of the bus.
+ * 
+ * <p>
+ * A bus has a thread of its own, which sends one request at a time and waits
+ * for its response, so that requests for different buses run in parallel.
+ * Requests waiting for the bus are queued per unit, and the units take turns,
+ * so that a busy unit or master does not hold up the others. A request which
+ * has waited longer than <tt>getDeadline()</tt> is dropped without being
+ * sent, as its master will have given up on it. Requests arriving while
+ * <tt>getQueueSize()</tt> requests are waiting are answered with a
+ * <tt>gateway path unavailable</tt> exception, and requests which the slave
+ * does not answer with a <tt>gateway target failed to respond</tt>
+ * exception. Broadcasts to unit <tt>0</tt> are sent without waiting for a
+ * response.
+ * 
+ * <p>
+ * A bus is a <tt>ModbusRequestHandler</tt>, and its units are routed to it
+ * with <tt>UnitRouter.setRequestHandler()</tt>:
+ * 
+ * <pre>
+ * SerialBus bus = new SerialBus(new SerialConnection(params));
+ * bus.start();
+ * UnitRouter router = new UnitRouter();
+ * for (int unit = 1; unit &lt;= 10; unit++)
+ * 	router.setRequestHandler(unit, bus);
+ * listener.setRequestHandler(router);
+ * </pre>
+ */
+public class SerialBus implements ModbusRequestHandler, Runnable {
+
+	/**
+	 * Defines the default number of requests waiting for the bus
+	 * (=<tt>64</tt>).
+	 */
+	public static final int DEFAULT_QUEUE_SIZE = 64;
+
+	/**
+	 * Defines the default time a request may wait for the bus (=<tt>3000</tt>
+	 * ms).
+	 */
+	public static final int DEFAULT_DEADLINE = 3000;
+
+	// instance attributes and associations
+	private SerialConnection m_Connection;
+	private ModbusTransport m_Transport;
+	private String m_Name;
+	private volatile int m_QueueSize = DEFAULT_QUEUE_SIZE;
+	private volatile int m_Deadline = DEFAULT_DEADLINE;
+	private Thread m_Thread;
+	private volatile boolean m_Running;
+
+	// queues, guarded by m_Lock
+	private final ReentrantLock m_Lock = new ReentrantLock();
+	private final Condition m_NotEmpty = m_Lock.newCondition();
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private ArrayDeque<Pending>[] m_Queues = new ArrayDeque[256];
+	private int m_NextUnit;
+	private int m_Depth;
+
+	// statistics
+	private AtomicLong m_Completed = new AtomicLong();
+	private AtomicLong m_Dropped = new AtomicLong();
+	private AtomicLong m_Rejected = new AtomicLong();
+	private AtomicLong m_Failed = new AtomicLong();
+
+	/**
+	 * Constructs a new <tt>SerialBus</tt> for a serial connection, which is
+	 * opened when the bus is started.
+	 * 
+	 * @param con
+	 *            the <tt>SerialConnection</tt> of the bus.
+	 */
+	public SerialBus(SerialConnection con) {
+		m_Connection = con;
+		m_Name = "SerialBus " + con;
+	}
+
+	/**
+	 * Constructs a new <tt>SerialBus</tt> for a transport which is ready for
+	 * use, such as the <tt>ModbusRTUTransport</tt> of an open
+	 * <tt>SerialConnection</tt>.
+	 * 
+	 * @param transport
+	 *            the <tt>ModbusTransport</tt> of the bus.
+	 */
+	public SerialBus(ModbusTransport transport) {
+		m_Transport = transport;
+		m_Name = "SerialBus " + transport;
+	}
+
+	/**
+	 * Returns the number of requests which may wait for the bus.
+	 * 
+	 * @return the queue size.
+	 */
+	public int getQueueSize() {
+		return m_QueueSize;
+	}
+
+	/**
+	 * Sets the number of requests which may wait for the bus. The default is
+	 * defined as <tt>DEFAULT_QUEUE_SIZE</tt>.
+	 * 
+	 * @param size
+	 *            the queue size.
+	 */
+	public void setQueueSize(int size) {
+		if (size < 1)
+			throw new IllegalArgumentException("Invalid queue size: " + size);
+
+		m_QueueSize = size;
+	}
+
+	/**
+	 * Returns the time a request may wait for the bus before it is dropped.
+	 * 
+	 * @return the deadline in milliseconds, or <tt>0</tt> if requests are
+	 *         never dropped.
+	 */
+	public int getDeadline() {
+		return m_Deadline;
+	}
+
+	/**
+	 * Sets the time a request may wait for the bus before it is dropped. It
+	 * should not be longer than the timeout of the masters. The default is
+	 * defined as <tt>DEFAULT_DEADLINE</tt>.
+	 * 
+	 * @param ms
+	 *            the deadline in milliseconds, or <tt>0</tt> to never drop
+	 *            requests.
+	 */
+	public void setDeadline(int ms) {
+		if (ms < 0)
+			throw new IllegalArgumentException("Invalid deadline: " + ms);
+
+		m_Deadline = ms;
+	}
+
+	/**
+	 * Returns the number of requests waiting for the bus.
+	 * 
+	 * @return the queue depth.
+	 */
+	public int getQueueDepth() {
+		m_Lock.lock();
+		try {
+			return m_Depth;
+		} finally {
+			m_Lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of requests which have been answered by a slave.
+	 * 
+	 * @return the completed count.
+	 */
+	public long getCompletedCount() {
+		return m_Completed.get();
+	}
+
+	/**
+	 * Returns the number of requests dropped because they missed their
+	 * deadline.
+	 * 
+	 * @return the dropped count.
+	 */
+	public long getDroppedCount() {
+		return m_Dropped.get();
+	}
+
+	/**
+	 * Returns the number of requests rejected because the queue was full.
+	 * 
+	 * @return the rejected count.
+	 */
+	public long getRejectedCount() {
+		return m_Rejected.get();
+	}
+
+	/**
+	 * Returns the number of requests which a slave did not answer.
+	 * 
+	 * @return the failed count.
+	 */
+	public long getFailedCount() {
+		return m_Failed.get();
+	}
+
+	/**
+	 * Tests if this bus is running.
+	 * 
+	 * @return true if running, false otherwise.
+	 */
+	public boolean isRunning() {
+		return m_Running;
+	}
+
+	/**
+	 * Opens the serial connection, if there is one, and starts the thread of
+	 * this bus.
+	 * 
+	 * @throws Exception
+	 *             if the serial connection cannot be opened.
+	 */
+	public synchronized void start() throws Exception {
+		if (m_Running)
+			return;
+
+		if (m_Connection != null) {
+			if (!m_Connection.isOpen())
+				m_Connection.open();
+			m_Transport = m_Connection.getModbusTransport();
+		}
+		m_Running = true;
+		m_Thread = ModbusThreadFactory.newThread(this, m_Name, true, false);
+		m_Thread.start();
+	}
+
+	/**
+	 * Stops the thread of this bus, and closes the serial connection, if
+	 * there is one. Requests still waiting are not answered.
+	 */
+	public synchronized void stop() {
+		if (!m_Running)
+			return;
+
+		m_Running = false;
+		m_Thread.interrupt();
+		try {
+			m_Thread.join(1000);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+
+		m_Lock.lock();
+		try {
+			for (int i = 0; i < m_Queues.length; i++) {
+				if (m_Queues[i] == null)
+					continue;
+
+				Pending pending;
+				while ((pending = m_Queues[i].poll()) != null)
+					pending.m_Future.complete(null);
+			}
+			m_Depth = 0;
+		} finally {
+			m_Lock.unlock();
+		}
+
+		if (m_Connection != null)
+			m_Connection.close();
+	}
+
+	/**
+	 * Queues a request for the bus.
+	 * 
+	 * @param request
+	 *            the <tt>ModbusRequest</tt> received by the gateway.
+	 * @return the <tt>CompletionStage</tt> of the <tt>ModbusResponse</tt>,
+	 *         which completes with <tt>null</tt> for broadcasts and dropped
+	 *         requests.
+	 */
+	public CompletionStage<ModbusResponse> handleRequest(ModbusRequest request) {
+		Pending pending = new Pending(request);
+		int unit = request.getUnitID() & 0xFF;
+
+		m_Lock.lock();
+		try {
+			if (!m_Running || m_Depth >= m_QueueSize) {
+				m_Rejected.incrementAndGet();
+				pending.m_Future.complete(request
+						.createExceptionResponse(Modbus.GATEWAY_PATH_UNAVAILABLE));
+				return pending.m_Future;
+			}
+			if (m_Queues[unit] == null)
+				m_Queues[unit] = new ArrayDeque<Pending>();
+			m_Queues[unit].add(pending);
+			m_Depth++;
+			m_NotEmpty.signal();
+		} finally {
+			m_Lock.unlock();
+		}
+		return pending.m_Future;
+	}
+
+	/**
+	 * Sends the queued requests, one at a time.
+	 */
+	public void run() {
+		try {
+			while (m_Running) {
+				Pending pending = take();
+				int deadline = m_Deadline;
+
+				if (deadline > 0
+						&& System.nanoTime() - pending.m_Queued > TimeUnit.MILLISECONDS
+								.toNanos(deadline)) {
+					if (Modbus.debug)
+						System.err.println(m_Name + ": dropped "
+								+ pending.m_Request.getHexMessage());
+					m_Dropped.incrementAndGet();
+					pending.m_Future.complete(null);
+					continue;
+				}
+				try {
+					pending.m_Future.complete(execute(pending.m_Request));
+				} catch (RuntimeException ex) {
+					m_Failed.incrementAndGet();
+					pending.m_Future.completeExceptionally(ex);
+				}
+			}
+		} catch (InterruptedException ex) {
+			// Stopped.
+		}
+	}
+
+	public String toString() {
+		return m_Name + " (queued=" + getQueueDepth() + ", completed="
+				+ getCompletedCount() + ", dropped=" + getDroppedCount()
+				+ ", rejected=" + getRejectedCount() + ", failed="
+				+ getFailedCount() + ")";
+	}
+
+	/**
+	 * Takes the next request, from the unit after the one served last.
+	 */
+	private Pending take() throws InterruptedException {
+		m_Lock.lock();
+		try {
+			while (m_Depth == 0)
+				m_NotEmpty.await();
+
+			for (int i = 0; i < m_Queues.length; i++) {
+				int unit = (m_NextUnit + i) & 0xFF;
+				if (m_Queues[unit] == null || m_Queues[unit].isEmpty())
+					continue;
+
+				m_NextUnit = unit + 1;
+				m_Depth--;
+				return m_Queues[unit].poll();
+			}
+			throw new IllegalStateException("Queue depth " + m_Depth);
+		} finally {
+			m_Lock.unlock();
+		}
+	}
+
+	/**
+	 * Sends a request on the bus and reads the response, which is given the
+	 * header of the request as it was received by the gateway.
+	 */
+	private ModbusResponse execute(ModbusRequest request) {
+		boolean headless = request.isHeadless();
+		int tid = request.getTransactionID();
+		int pid = request.getProtocolID();
+
+		try {
+			ModbusResponse response;
+			try {
+				m_Transport.writeMessage(request);
+				if (request.getUnitID() == 0)
+					return null;
+
+				response = m_Transport.readResponse();
+			} finally {
+				request.setHeadless(headless);
+			}
+			m_Completed.incrementAndGet();
+
+			response.setHeadless(headless);
+			response.setTransactionID(tid);
+			response.setProtocolID(pid);
+			response.setDataLength(EncodedResponse.encode(response).length);
+
+			return response;
+		} catch (ModbusIOException ex) {
+			if (Modbus.debug)
+				System.err.println(m_Name + ": " + ex.getMessage());
+			m_Failed.incrementAndGet();
+
+			return request
+					.createExceptionResponse(Modbus.GATEWAY_TARGET_NO_RESPONSE);
+		}
+	}
+
+	/**
+	 * Class holding a request waiting for the bus.
+	 */
+	private static final class Pending {
+		final ModbusRequest m_Request;
+		final CompletableFuture<ModbusResponse> m_Future = new CompletableFuture<ModbusResponse>();
+		final long m_Queued = System.nanoTime();
+
+		Pending(ModbusRequest request) {
+			m_Request = request;
+		}
+	}
+}
@@ -33,10 +33,13 @@
  ***/
 package com.ghgande.j2mod.modbus.net;
 
+import java.util.ArrayList;
+import java.util.concurrent.CompletionStage;
+
 import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.ModbusCoupler;
 import com.ghgande.j2mod.modbus.ModbusIOException;
-import com.ghgande.j2mod.modbus.io.ModbusTransport;
+import com.ghgande.j2mod.modbus.io.ModbusTCPTransport;
 import com.ghgande.j2mod.modbus.msg.ModbusRequest;
 import com.ghgande.j2mod.modbus.msg.ModbusResponse;
 import com.ghgande.j2mod.modbus.procimg.ProcessImage;
@@ -44,12 +47,18 @@ import com.ghgande.j2mod.modbus.procimg.ProcessImage;
 /**
  * Class implementing a handler for incoming Modbus/TCP requests.
  * 
+ * <p>
+ * Requests which a master has pipelined, and which have therefore been
+ * received together, are answered in order, and their responses are sent
+ * with a single flush.
+ * 
  * @author Dieter Wimberger
  * @version 1.2rc1 (09/11/2004)
  */
 public class TCPConnectionHandler implements Runnable {
 	private TCPSlaveConnection m_Connection;
-	private ModbusTransport m_Transport;
+	private ModbusTCPTransport m_Transport;
+	private ModbusRequestHandler m_Handler;
 
 	/**
 	 * Constructs a new <tt>TCPConnectionHandler</tt> instance.
@@ -66,6 +75,28 @@ public class TCPConnectionHandler implements Runnable {
 		setConnection(con);
 	}
 
+	/**
+	 * Constructs a new <tt>TCPConnectionHandler</tt> instance which answers
+	 * requests with a <tt>ModbusRequestHandler</tt>, such as a
+	 * <tt>UnitRouter</tt>.
+	 * 
+	 * <p>
+	 * Requests whose response is not complete yet do not hold up the
+	 * requests received after them; their responses are sent when they
+	 * complete.
+	 * 
+	 * @param con
+	 *            an incoming connection.
+	 * @param handler
+	 *            the <tt>ModbusRequestHandler</tt>, or <tt>null</tt> to use
+	 *            the <tt>ModbusCoupler</tt>.
+	 */
+	public TCPConnectionHandler(TCPSlaveConnection con,
+			ModbusRequestHandler handler) {
+		setConnection(con);
+		m_Handler = handler;
+	}
+
 	/**
 	 * Sets a connection to be handled by this <tt>
 	 * TCPConnectionHandler</tt>.
@@ -75,47 +106,47 @@ public class TCPConnectionHandler implements Runnable {
 	 */
 	public void setConnection(TCPSlaveConnection con) {
 		m_Connection = con;
-		m_Transport = m_Connection.getModbusTransport();
+		m_Transport = (ModbusTCPTransport) m_Connection.getModbusTransport();
 	}
 
 	public void run() {
+		ArrayList<ModbusResponse> responses = new ArrayList<ModbusResponse>();
+
 		try {
 			do {
-				// 1. read the request
-				ModbusRequest request = m_Transport.readRequest();
-				ModbusResponse response = null;
-
-				/*
-				 * test if Process image exists.
-				 */
-				ProcessImage image = ModbusCoupler.getReference()
-						.getProcessImage();
-				if (image == null) {
-					/*
-					 * Do nothing -- non-existent devices do not respond to
-					 * messages.
-					 */
-					continue;
-				}
-				if (image.getUnitID() != 0
-						&& request.getUnitID() != image.getUnitID()) {
-					/*
-					 * Do nothing -- non-existent units do not respond to
-					 * message.
-					 */
-					continue;
-				}
+				responses.clear();
+				do {
+					// 1. read the request
+					ModbusRequest request = m_Transport.readRequest();
 
-				// 2. create the response.
-				response = request.createResponse();
+					// 2. create the response.
+					ModbusResponse response;
+					if (m_Handler == null) {
+						response = createResponse(request);
+					} else {
+						CompletionStage<ModbusResponse> stage = RequestDispatcher
+								.handle(m_Handler, request);
+						if (!RequestDispatcher.isDone(stage)) {
+							RequestDispatcher.respondLater(request, stage,
+									m_Transport);
+							continue;
+						}
+						response = RequestDispatcher.getResponse(request, stage);
+					}
+					if (response == null)
+						continue;
 
-				if (Modbus.debug) {
-					System.out.println("Request:" + request.getHexMessage());
-					System.out.println("Response:" + response.getHexMessage());
-				}
+					if (Modbus.debug) {
+						System.out.println("Request:" + request.getHexMessage());
+						System.out.println("Response:"
+								+ response.getHexMessage());
+					}
+					responses.add(response);
+				} while (m_Transport.isMessageAvailable());
 
-				// 3. write the response message.
-				m_Transport.writeMessage(response);
+				// 3. write the response messages.
+				if (!responses.isEmpty())
+					m_Transport.writeMessages(responses);
 			} while (true);
 		} catch (ModbusIOException ex) {
 			if (!ex.isEOF() && Modbus.debug)
@@ -128,4 +159,34 @@ public class TCPConnectionHandler implements Runnable {
 			}
 		}
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Creates the response to a request from the <tt>ProcessImage</tt> of
+	 * the <tt>ModbusCoupler</tt>.
+	 * 
+	 * @param request
+	 *            the <tt>ModbusRequest</tt> received.
+	 * @return the <tt>ModbusResponse</tt>, or <tt>null</tt> if the request is
+	 *         not to be answered.
+	 */
+	static ModbusResponse createResponse(ModbusRequest request) {
+		/*
+		 * test if Process image exists.
+		 */
+		ProcessImage image = ModbusCoupler.getReference().getProcessImage();
+		if (image == null) {
+			/*
+			 * Do nothing -- non-existent devices do not respond to messages.
+			 */
+			return null;
+		}
+		if (image.getUnitID() != 0 && request.getUnitID() != image.getUnitID()) {
+			/*
+			 * Do nothing -- non-existent units do not respond to message.
+			 */
+			return null;
+		}
+
+		return request.createResponse();
+	}
+}
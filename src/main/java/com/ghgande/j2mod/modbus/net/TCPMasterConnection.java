@@ -35,9 +35,14 @@ package com.ghgande.j2mod.modbus.net;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.ModbusIOException;
+import com.ghgande.j2mod.modbus.io.ModbusTCPPipeline;
 import com.ghgande.j2mod.modbus.io.ModbusTCPTransport;
 import com.ghgande.j2mod.modbus.io.ModbusTransport;
 
@@ -52,13 +57,25 @@ public class TCPMasterConnection {
 	// instance attributes
 	private Socket m_Socket;
 	private int m_Timeout = Modbus.DEFAULT_TIMEOUT;
-	private boolean m_Connected;
+	private int m_ConnectTimeout = Modbus.DEFAULT_TIMEOUT;
+	private volatile boolean m_Connected;
+	private CircuitBreaker m_Breaker;
 
 	private InetAddress m_Address;
 	private int m_Port = Modbus.DEFAULT_PORT;
 
 	// private int m_Retries = Modbus.DEFAULT_RETRIES;
 	private ModbusTCPTransport m_ModbusTransport;
+
+	private boolean m_Pipelined = false;
+	private int m_MaxOutstanding = ModbusTCPPipeline.DEFAULT_MAX_OUTSTANDING;
+	private volatile ModbusTCPPipeline m_Pipeline;
+
+	/*
+	 * Held while connecting. A lock rather than a monitor, so that a virtual
+	 * thread blocked in connect does not pin its carrier thread.
+	 */
+	private final ReentrantLock m_Lock = new ReentrantLock();
 	
 	/**
 	 * Prepares the associated <tt>ModbusTransport</tt> of this
@@ -78,23 +95,58 @@ public class TCPMasterConnection {
 	/**
 	 * Opens this <tt>TCPMasterConnection</tt>.
 	 * 
+	 * <p>
+	 * The attempt is given up after <tt>getConnectTimeout()</tt>
+	 * milliseconds. If the connection has a <tt>CircuitBreaker</tt>, the
+	 * outcome is recorded with it, and the attempt fails at once while the
+	 * breaker is open.
+	 * 
 	 * @throws Exception
 	 *             if there is a network failure.
 	 */
-	public synchronized void connect() throws Exception {
-		if (! isConnected()) {
-			if (Modbus.debug)
-				System.out.println("connect()");
-			
-			m_Socket = new Socket(m_Address, m_Port);
-			m_Socket.setReuseAddress(true);
-			m_Socket.setSoLinger(true, 1);
-			m_Socket.setKeepAlive(true);
+	public void connect() throws Exception {
+		m_Lock.lock();
+		try {
+			if (! isConnected()) {
+				if (Modbus.debug)
+					System.out.println("connect()");
+
+				if (m_Breaker != null && !m_Breaker.allowRequest())
+					throw new ModbusIOException("Circuit breaker open for "
+							+ m_Address.getHostAddress() + ":" + m_Port);
+
+				Socket socket = new Socket();
+				try {
+					socket.connect(new InetSocketAddress(m_Address, m_Port),
+							m_ConnectTimeout);
+				} catch (IOException ex) {
+					try {
+						socket.close();
+					} catch (IOException e) {
+						// Nothing left to release.
+					}
+					if (m_Breaker != null)
+						m_Breaker.recordFailure();
+
+					throw ex;
+				}
+				m_Socket = socket;
+				m_Socket.setReuseAddress(true);
+				m_Socket.setSoLinger(true, 1);
+				m_Socket.setKeepAlive(true);
 			
-			setTimeout(m_Timeout);
-			prepareTransport();
+				setTimeout(m_Timeout);
+				prepareTransport();
 			
-			m_Connected = true;
+				m_Connected = true;
+
+				if (m_Pipelined) {
+					m_Pipeline = new ModbusTCPPipeline(this, m_MaxOutstanding);
+					m_Pipeline.start();
+				}
+			}
+		} finally {
+			m_Lock.unlock();
 		}
 	}// connect
 
@@ -103,25 +155,126 @@ public class TCPMasterConnection {
 	 * 
 	 * @return <tt>true</tt> if connected, <tt>false</tt> otherwise.
 	 */
-	public synchronized boolean isConnected() {
+	public boolean isConnected() {
 		return m_Connected;
 	}// isConnected
 
 	/**
-	 * Closes this <tt>TCPMasterConnection</tt>.
+	 * Tests if this <tt>TCPMasterConnection</tt> can carry a transaction.
+	 * The connection is not valid if the socket has been closed or shut
+	 * down, or if there is unread data which would be taken for the
+	 * response to the next request.
+	 * 
+	 * @return <tt>true</tt> if valid, <tt>false</tt> otherwise.
+	 */
+	public boolean isValid() {
+		if (!m_Connected || m_Socket.isClosed() || m_Socket.isInputShutdown()
+				|| m_Socket.isOutputShutdown())
+			return false;
+
+		if (m_Pipeline != null && !m_Pipeline.isRunning())
+			return false;
+
+		try {
+			if (m_ModbusTransport != null)
+				return m_ModbusTransport.available() == 0;
+
+			return m_Socket.getInputStream().available() == 0;
+		} catch (IOException ex) {
+			return false;
+		}
+	}// isValid
+
+	/**
+	 * Closes this <tt>TCPMasterConnection</tt>. The reader of a pipeline is
+	 * waited for, so that it does not read from the socket of the next
+	 * connection.
 	 */
 	public void close() {
-		if (m_Connected) {
-			try {
-				m_ModbusTransport.close();
-			} catch (IOException ex) {
-				if (Modbus.debug)
-					System.out.println("close()");
+		m_Lock.lock();
+		try {
+			if (m_Connected) {
+				ModbusTCPPipeline pipeline = m_Pipeline;
+				if (pipeline != null) {
+					pipeline.stop();
+					m_Pipeline = null;
+				}
+				try {
+					m_ModbusTransport.close();
+				} catch (IOException ex) {
+					if (Modbus.debug)
+						System.out.println("close()");
+				}
+				if (pipeline != null)
+					pipeline.join();
+
+				m_Connected = false;
 			}
-			m_Connected = false;
+		} finally {
+			m_Lock.unlock();
 		}
 	}// close
 
+	/**
+	 * Closes this <tt>TCPMasterConnection</tt> if the given pipeline is still
+	 * the pipeline of the connection. A pipeline whose reader has failed
+	 * closes the connection this way, so that it does not close a
+	 * connection which has been opened again meanwhile.
+	 * 
+	 * @param pipeline
+	 *            the pipeline which has failed.
+	 */
+	public void closeIfCurrent(ModbusTCPPipeline pipeline) {
+		/*
+		 * The reader calls this, while close() may hold the lock waiting for
+		 * the reader to finish. Once the pipeline has been replaced there is
+		 * nothing left to close, so stop trying then.
+		 */
+		try {
+			while (!m_Lock.tryLock(10, TimeUnit.MILLISECONDS)) {
+				if (m_Pipeline != pipeline)
+					return;
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		try {
+			if (m_Pipeline == pipeline)
+				close();
+		} finally {
+			m_Lock.unlock();
+		}
+	}// closeIfCurrent
+
+	/**
+	 * Reopens this <tt>TCPMasterConnection</tt> if the given pipeline has
+	 * stopped and is still the pipeline of the connection. Callers sharing
+	 * the connection which find the same dead pipeline reconnect only once,
+	 * and a pipeline opened by another caller meanwhile is left alone.
+	 * 
+	 * @param pipeline
+	 *            the pipeline the caller found, or <tt>null</tt>.
+	 * @return the current pipeline, or <tt>null</tt> if the connection is
+	 *         not pipelined.
+	 * @throws Exception
+	 *             if there is a network failure.
+	 */
+	public ModbusTCPPipeline reconnectIfDead(ModbusTCPPipeline pipeline)
+			throws Exception {
+		m_Lock.lock();
+		try {
+			if (m_Pipeline == pipeline
+					&& (pipeline == null || !pipeline.isRunning())) {
+				close();
+				connect();
+			}
+			return m_Pipeline;
+		} finally {
+			m_Lock.unlock();
+		}
+	}// reconnectIfDead
+
 	/**
 	 * Returns the <tt>ModbusTransport</tt> associated with this
 	 * <tt>TCPMasterConnection</tt>.
@@ -140,6 +293,63 @@ public class TCPMasterConnection {
 		m_ModbusTransport = trans;
 	}
 
+	/**
+	 * Sets the flag that controls whether requests on this
+	 * <tt>TCPMasterConnection</tt> are pipelined. A pipelined connection
+	 * allows many transactions to be in flight at once, with responses
+	 * matched to their requests by transaction identifier.
+	 *
+	 * <p>
+	 * The flag takes effect the next time the connection is opened.
+	 *
+	 * @param b
+	 *            true if requests should be pipelined, false otherwise.
+	 */
+	public void setPipelined(boolean b) {
+		m_Pipelined = b;
+	}
+
+	/**
+	 * Tests if requests on this <tt>TCPMasterConnection</tt> are pipelined.
+	 *
+	 * @return true if pipelined, false otherwise.
+	 */
+	public boolean isPipelined() {
+		return m_Pipelined;
+	}
+
+	/**
+	 * Sets the number of requests which may be in flight at once on a
+	 * pipelined connection. The default is defined as
+	 * <tt>ModbusTCPPipeline.DEFAULT_MAX_OUTSTANDING</tt>.
+	 *
+	 * @param max
+	 *            the number of outstanding requests.
+	 */
+	public void setMaxOutstanding(int max) {
+		m_MaxOutstanding = max;
+	}
+
+	/**
+	 * Returns the number of requests which may be in flight at once on a
+	 * pipelined connection.
+	 *
+	 * @return the number of outstanding requests.
+	 */
+	public int getMaxOutstanding() {
+		return m_MaxOutstanding;
+	}
+
+	/**
+	 * Returns the <tt>ModbusTCPPipeline</tt> of this connection.
+	 *
+	 * @return the pipeline, or <tt>null</tt> if the connection is closed or
+	 *         not pipelined.
+	 */
+	public ModbusTCPPipeline getPipeline() {
+		return m_Pipeline;
+	}
+
 	/**
 	 * Returns the timeout for this <tt>TCPMasterConnection</tt>.
 	 * 
@@ -157,6 +367,9 @@ public class TCPMasterConnection {
 	 */
 	public void setTimeout(int timeout) {
 		m_Timeout = timeout;
+		if (m_Socket == null)
+			return;
+
 		try {
 			m_Socket.setSoTimeout(m_Timeout);
 		} catch (IOException ex) {
@@ -164,6 +377,50 @@ public class TCPMasterConnection {
 		}
 	}// setTimeout
 
+	/**
+	 * Returns the timeout for opening this <tt>TCPMasterConnection</tt>.
+	 * 
+	 * @return the connect timeout in milliseconds.
+	 */
+	public int getConnectTimeout() {
+		return m_ConnectTimeout;
+	}// getConnectTimeout
+
+	/**
+	 * Sets the timeout for opening this <tt>TCPMasterConnection</tt>. The
+	 * default is defined as <tt>Modbus.DEFAULT_TIMEOUT</tt>; <tt>0</tt>
+	 * leaves the timeout to the operating system.
+	 * 
+	 * @param timeout
+	 *            the connect timeout in milliseconds.
+	 */
+	public void setConnectTimeout(int timeout) {
+		m_ConnectTimeout = timeout;
+	}// setConnectTimeout
+
+	/**
+	 * Returns the circuit breaker of the endpoint of this
+	 * <tt>TCPMasterConnection</tt>.
+	 * 
+	 * @return the <tt>CircuitBreaker</tt>, or <tt>null</tt> if none is
+	 *         used.
+	 */
+	public CircuitBreaker getCircuitBreaker() {
+		return m_Breaker;
+	}// getCircuitBreaker
+
+	/**
+	 * Sets the circuit breaker of the endpoint of this
+	 * <tt>TCPMasterConnection</tt>. Connections to the same endpoint should
+	 * share one breaker. By default no breaker is used.
+	 * 
+	 * @param breaker
+	 *            the <tt>CircuitBreaker</tt>, or <tt>null</tt>.
+	 */
+	public void setCircuitBreaker(CircuitBreaker breaker) {
+		m_Breaker = breaker;
+	}// setCircuitBreaker
+
 	/**
 	 * Returns the destination port of this <tt>TCPMasterConnection</tt>.
 	 * 
@@ -0,0 +1,611 @@
+//License
+/***
+ * Java Modbus Library (jamod)
+ * Copyright (c) 2002-2004, jamod development team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.net;
+
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.ModbusIOException;
+
+/**
+ * Class implementing a pool of <tt>TCPMasterConnection</tt> instances, kept
+ * per slave endpoint (address and port).
+ *
+ * <p>
+ * A connection is borrowed for one transaction and returned afterwards.
+ * Each endpoint has at most <tt>getMaxSize()</tt> connections open; callers
+ * beyond that wait for a connection to be returned, first come first
+ * served, for up to <tt>getBorrowTimeout()</tt> milliseconds. Idle
+ * connections are closed after <tt>getIdleTimeout()</tt> milliseconds, while
+ * keeping <tt>getMinSize()</tt> connections open to every endpoint which
+ * has been used.
+ *
+ * <p>
+ * A <tt>ModbusTCPTransaction</tt> constructed with a pool borrows a
+ * connection every time it is executed, so several transactions to the
+ * same slave are carried on separate sockets at the same time.
+ *
+ * <p>
+ * Every endpoint has a <tt>CircuitBreaker</tt>. While it is open, borrowing
+ * a connection to the endpoint fails at once.
+ */
+public class TCPMasterConnectionPool {
+
+	/**
+	 * Defines the default number of connections per endpoint (=<tt>4</tt>).
+	 */
+	public static final int DEFAULT_MAX_SIZE = 4;
+
+	/**
+	 * Defines the default time after which an idle connection is closed
+	 * (=<tt>60000</tt> ms).
+	 */
+	public static final int DEFAULT_IDLE_TIMEOUT = 60000;
+
+	// instance attributes and associations
+	private ConcurrentHashMap<String, Endpoint> m_Endpoints;
+	private int m_MinSize = 0;
+	private int m_MaxSize = DEFAULT_MAX_SIZE;
+	private int m_IdleTimeout = DEFAULT_IDLE_TIMEOUT;
+	private int m_BorrowTimeout = Modbus.DEFAULT_TIMEOUT;
+	private int m_Timeout = Modbus.DEFAULT_TIMEOUT;
+	private int m_ConnectTimeout = Modbus.DEFAULT_TIMEOUT;
+	private boolean m_Validating = true;
+	private ScheduledThreadPoolExecutor m_Maintenance;
+	private volatile boolean m_Closed;
+
+	/**
+	 * Constructs a new <tt>TCPMasterConnectionPool</tt>.
+	 */
+	public TCPMasterConnectionPool() {
+		m_Endpoints = new ConcurrentHashMap<String, Endpoint>();
+	}
+
+	/**
+	 * Constructs a new <tt>TCPMasterConnectionPool</tt> with the given
+	 * number of connections per endpoint.
+	 *
+	 * @param minSize
+	 *            the number of connections kept open to a used endpoint.
+	 * @param maxSize
+	 *            the maximum number of connections to an endpoint.
+	 */
+	public TCPMasterConnectionPool(int minSize, int maxSize) {
+		this();
+		setMaxSize(maxSize);
+		setMinSize(minSize);
+	}
+
+	/**
+	 * Returns the number of connections kept open to every endpoint which
+	 * has been used.
+	 *
+	 * @return the minimum pool size per endpoint.
+	 */
+	public int getMinSize() {
+		return m_MinSize;
+	}
+
+	/**
+	 * Sets the number of connections kept open to every endpoint which has
+	 * been used. The default is <tt>0</tt>.
+	 *
+	 * @param size
+	 *            the minimum pool size per endpoint.
+	 */
+	public void setMinSize(int size) {
+		if (size < 0 || size > m_MaxSize)
+			throw new IllegalArgumentException("Invalid minimum size: " + size);
+
+		m_MinSize = size;
+	}
+
+	/**
+	 * Returns the maximum number of connections to an endpoint.
+	 *
+	 * @return the maximum pool size per endpoint.
+	 */
+	public int getMaxSize() {
+		return m_MaxSize;
+	}
+
+	/**
+	 * Sets the maximum number of connections to an endpoint. The default is
+	 * defined as <tt>DEFAULT_MAX_SIZE</tt>. The size must be set before the
+	 * pool is first used.
+	 *
+	 * @param size
+	 *            the maximum pool size per endpoint.
+	 */
+	public void setMaxSize(int size) {
+		if (size < 1 || size < m_MinSize)
+			throw new IllegalArgumentException("Invalid maximum size: " + size);
+
+		m_MaxSize = size;
+	}
+
+	/**
+	 * Returns the time after which an idle connection is closed.
+	 *
+	 * @return the idle timeout in milliseconds.
+	 */
+	public int getIdleTimeout() {
+		return m_IdleTimeout;
+	}
+
+	/**
+	 * Sets the time after which an idle connection is closed. The default is
+	 * defined as <tt>DEFAULT_IDLE_TIMEOUT</tt>.
+	 *
+	 * @param timeout
+	 *            the idle timeout in milliseconds.
+	 */
+	public void setIdleTimeout(int timeout) {
+		m_IdleTimeout = timeout;
+	}
+
+	/**
+	 * Returns the time a caller waits for a connection when all the
+	 * connections to an endpoint are in use.
+	 *
+	 * @return the borrow timeout in milliseconds.
+	 */
+	public int getBorrowTimeout() {
+		return m_BorrowTimeout;
+	}
+
+	/**
+	 * Sets the time a caller waits for a connection when all the connections
+	 * to an endpoint are in use. The default is defined as
+	 * <tt>Modbus.DEFAULT_TIMEOUT</tt>.
+	 *
+	 * @param timeout
+	 *            the borrow timeout in milliseconds.
+	 */
+	public void setBorrowTimeout(int timeout) {
+		m_BorrowTimeout = timeout;
+	}
+
+	/**
+	 * Returns the timeout of the connections opened by this pool.
+	 *
+	 * @return the connection timeout in milliseconds.
+	 */
+	public int getTimeout() {
+		return m_Timeout;
+	}
+
+	/**
+	 * Sets the timeout of the connections opened by this pool. The default is
+	 * defined as <tt>Modbus.DEFAULT_TIMEOUT</tt>.
+	 *
+	 * @param timeout
+	 *            the connection timeout in milliseconds.
+	 */
+	public void setTimeout(int timeout) {
+		m_Timeout = timeout;
+	}
+
+	/**
+	 * Returns the timeout for opening the connections of this pool.
+	 *
+	 * @return the connect timeout in milliseconds.
+	 */
+	public int getConnectTimeout() {
+		return m_ConnectTimeout;
+	}
+
+	/**
+	 * Sets the timeout for opening the connections of this pool. The default
+	 * is defined as <tt>Modbus.DEFAULT_TIMEOUT</tt>.
+	 *
+	 * @param timeout
+	 *            the connect timeout in milliseconds.
+	 */
+	public void setConnectTimeout(int timeout) {
+		m_ConnectTimeout = timeout;
+	}
+
+	/**
+	 * Returns the circuit breaker of the given endpoint. It is shared by
+	 * every connection of this pool to the endpoint, and may be configured
+	 * or queried by the application.
+	 *
+	 * @param addr
+	 *            the address of the slave.
+	 * @param port
+	 *            the port of the slave.
+	 * @return the <tt>CircuitBreaker</tt> of the endpoint.
+	 */
+	public CircuitBreaker getCircuitBreaker(InetAddress addr, int port) {
+		return getEndpoint(addr, port).m_Breaker;
+	}
+
+	/**
+	 * Tests if idle connections are checked before they are handed out.
+	 *
+	 * @return true if validating, false otherwise.
+	 */
+	public boolean isValidating() {
+		return m_Validating;
+	}
+
+	/**
+	 * Sets the flag that controls whether an idle connection is checked with
+	 * <tt>TCPMasterConnection.isValid()</tt> before it is handed out. A
+	 * connection which fails the check is closed and replaced.
+	 *
+	 * @param b
+	 *            true if validating, false otherwise.
+	 */
+	public void setValidating(boolean b) {
+		m_Validating = b;
+	}
+
+	/**
+	 * Borrows a connection to the given endpoint. The connection is opened
+	 * if no idle connection is available.
+	 *
+	 * <p>
+	 * The connection must be given back with <tt>release()</tt>, or with
+	 * <tt>invalidate()</tt> if it has failed.
+	 *
+	 * @param addr
+	 *            the address of the slave.
+	 * @param port
+	 *            the port of the slave.
+	 * @return an open <tt>TCPMasterConnection</tt>.
+	 * @throws ModbusIOException
+	 *             if no connection became available within the borrow
+	 *             timeout, the connection could not be opened, or the
+	 *             circuit breaker of the endpoint is open.
+	 */
+	public TCPMasterConnection borrow(InetAddress addr, int port)
+			throws ModbusIOException {
+		if (m_Closed)
+			throw new ModbusIOException("Connection pool closed.");
+
+		Endpoint ep = getEndpoint(addr, port);
+		if (!ep.m_Breaker.allowRequest())
+			throw new ModbusIOException("Circuit breaker open for "
+					+ ep.m_Key);
+
+		try {
+			if (!ep.m_Permits.tryAcquire(m_BorrowTimeout,
+					TimeUnit.MILLISECONDS))
+				throw new ModbusIOException("Timeout waiting for connection");
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new ModbusIOException("Interrupted waiting for connection");
+		}
+
+		TCPMasterConnection con;
+		while ((con = ep.poll()) != null) {
+			if (!m_Validating || con.isValid())
+				return con;
+
+			if (Modbus.debug)
+				System.err.println("discarding stale connection to "
+						+ ep.m_Key);
+			ep.discard(con);
+		}
+
+		try {
+			return ep.open();
+		} catch (Exception ex) {
+			ep.m_Permits.release();
+			throw new ModbusIOException("Connection failed.");
+		}
+	}
+
+	/**
+	 * Gives back a connection which was borrowed from this pool. A
+	 * connection which has been closed meanwhile is dropped from the pool.
+	 *
+	 * @param con
+	 *            the borrowed <tt>TCPMasterConnection</tt>.
+	 */
+	public void release(TCPMasterConnection con) {
+		Endpoint ep = m_Endpoints.get(keyOf(con.getAddress(), con.getPort()));
+		if (ep == null) {
+			con.close();
+			return;
+		}
+
+		if (m_Closed || !con.isConnected())
+			ep.discard(con);
+		else
+			ep.offer(con);
+
+		ep.m_Permits.release();
+	}
+
+	/**
+	 * Gives back a borrowed connection which has failed. The connection is
+	 * closed and dropped from the pool.
+	 *
+	 * @param con
+	 *            the borrowed <tt>TCPMasterConnection</tt>.
+	 */
+	public void invalidate(TCPMasterConnection con) {
+		Endpoint ep = m_Endpoints.get(keyOf(con.getAddress(), con.getPort()));
+		if (ep == null) {
+			con.close();
+			return;
+		}
+
+		ep.discard(con);
+		ep.m_Permits.release();
+	}
+
+	/**
+	 * Returns the number of idle connections to the given endpoint.
+	 *
+	 * @param addr
+	 *            the address of the slave.
+	 * @param port
+	 *            the port of the slave.
+	 * @return the number of idle connections.
+	 */
+	public int getIdleCount(InetAddress addr, int port) {
+		Endpoint ep = m_Endpoints.get(keyOf(addr, port));
+
+		return ep == null ? 0 : ep.getIdleCount();
+	}
+
+	/**
+	 * Returns the number of connections to the given endpoint which are
+	 * currently borrowed.
+	 *
+	 * @param addr
+	 *            the address of the slave.
+	 * @param port
+	 *            the port of the slave.
+	 * @return the number of busy connections.
+	 */
+	public int getActiveCount(InetAddress addr, int port) {
+		Endpoint ep = m_Endpoints.get(keyOf(addr, port));
+
+		return ep == null ? 0 : m_MaxSize - ep.m_Permits.availablePermits();
+	}
+
+	/**
+	 * Closes every idle connection and stops the maintenance thread.
+	 * Connections which are still borrowed are closed when they are given
+	 * back.
+	 */
+	public synchronized void close() {
+		m_Closed = true;
+		if (m_Maintenance != null) {
+			m_Maintenance.shutdownNow();
+			m_Maintenance = null;
+		}
+		for (Endpoint ep : m_Endpoints.values())
+			ep.evict(0, 0);
+	}
+
+	/**
+	 * Closes the connections which have been idle for too long, and opens
+	 * connections to endpoints which have fewer than the minimum.
+	 */
+	private void maintain() {
+		for (Endpoint ep : m_Endpoints.values()) {
+			if (m_Closed)
+				return;
+
+			ep.evict(m_IdleTimeout, m_MinSize);
+			ep.fill(m_MinSize);
+		}
+	}
+
+	/**
+	 * Returns the pool of the given endpoint, creating it and starting the
+	 * maintenance thread the first time it is needed.
+	 */
+	private Endpoint getEndpoint(InetAddress addr, int port) {
+		String key = keyOf(addr, port);
+		Endpoint ep = m_Endpoints.get(key);
+
+		if (ep == null) {
+			synchronized (this) {
+				ep = m_Endpoints.get(key);
+				if (ep == null) {
+					ep = new Endpoint(key, addr, port);
+					m_Endpoints.put(key, ep);
+				}
+				if (m_Maintenance == null && !m_Closed)
+					startMaintenance();
+			}
+		}
+		return ep;
+	}
+
+	/**
+	 * Starts the thread which evicts idle connections. Must be called
+	 * holding the lock of this pool.
+	 */
+	private void startMaintenance() {
+		long period = Math.max(m_IdleTimeout / 2, 100);
+
+		m_Maintenance = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread result = new Thread(task, "TCPMasterConnectionPool");
+				result.setDaemon(true);
+				return result;
+			}
+		});
+		m_Maintenance.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				maintain();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	private static String keyOf(InetAddress addr, int port) {
+		return addr.getHostAddress() + ":" + port;
+	}
+
+	/**
+	 * Inner class holding the connections to one endpoint.
+	 */
+	private class Endpoint {
+		private String m_Key;
+		private InetAddress m_Address;
+		private int m_Port;
+		private Semaphore m_Permits;
+		private CircuitBreaker m_Breaker = new CircuitBreaker();
+		private ArrayDeque<Idle> m_Idle = new ArrayDeque<Idle>();
+		private int m_Open;
+
+		Endpoint(String key, InetAddress addr, int port) {
+			m_Key = key;
+			m_Address = addr;
+			m_Port = port;
+			m_Permits = new Semaphore(m_MaxSize, true);
+		}
+
+		/**
+		 * Returns the most recently used idle connection, so that the others
+		 * age and are evicted when the load drops.
+		 */
+		synchronized TCPMasterConnection poll() {
+			Idle idle = m_Idle.pollFirst();
+
+			return idle == null ? null : idle.m_Connection;
+		}
+
+		synchronized void offer(TCPMasterConnection con) {
+			m_Idle.addFirst(new Idle(con, System.currentTimeMillis()));
+		}
+
+		synchronized int getIdleCount() {
+			return m_Idle.size();
+		}
+
+		TCPMasterConnection open() throws Exception {
+			TCPMasterConnection con = new TCPMasterConnection(m_Address);
+
+			con.setPort(m_Port);
+			con.setTimeout(m_Timeout);
+			con.setConnectTimeout(m_ConnectTimeout);
+			con.setCircuitBreaker(m_Breaker);
+			con.connect();
+			synchronized (this) {
+				m_Open++;
+			}
+			return con;
+		}
+
+		void discard(TCPMasterConnection con) {
+			con.close();
+			synchronized (this) {
+				m_Open--;
+			}
+		}
+
+		/**
+		 * Closes the idle connections released more than <tt>timeout</tt>
+		 * milliseconds ago, keeping at least <tt>keep</tt> connections open.
+		 */
+		void evict(int timeout, int keep) {
+			List<TCPMasterConnection> stale = new ArrayList<TCPMasterConnection>();
+			long deadline = System.currentTimeMillis() - timeout;
+
+			synchronized (this) {
+				Iterator<Idle> oldest = m_Idle.descendingIterator();
+				while (oldest.hasNext() && m_Open - stale.size() > keep) {
+					Idle idle = oldest.next();
+					if (idle.m_Released > deadline)
+						break;
+
+					oldest.remove();
+					stale.add(idle.m_Connection);
+				}
+			}
+			for (TCPMasterConnection con : stale) {
+				if (Modbus.debug)
+					System.err.println("evicting idle connection to " + m_Key);
+				discard(con);
+			}
+		}
+
+		/**
+		 * Opens idle connections until <tt>size</tt> connections are open.
+		 * Failures are left to the next round of maintenance, and nothing is
+		 * opened unless the circuit breaker is closed, so that the trial
+		 * request of a half open breaker is left to a transaction.
+		 */
+		void fill(int size) {
+			while (!m_Closed
+					&& m_Breaker.getState() == CircuitBreaker.CLOSED) {
+				synchronized (this) {
+					if (m_Open >= size)
+						return;
+				}
+				if (!m_Permits.tryAcquire())
+					return;
+
+				try {
+					offer(open());
+				} catch (Exception ex) {
+					return;
+				} finally {
+					m_Permits.release();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Inner class holding an idle connection and the time it was released.
+	 */
+	private static class Idle {
+		private TCPMasterConnection m_Connection;
+		private long m_Released;
+
+		Idle(TCPMasterConnection con, long released) {
+			m_Connection = con;
+			m_Released = released;
+		}
+	}
+}
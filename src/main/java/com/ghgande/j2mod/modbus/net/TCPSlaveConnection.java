@@ -133,6 +133,13 @@ public class TCPSlaveConnection {
 	 */
 	private void setSocket(Socket socket) throws IOException {
 		m_Socket = socket;
+
+		/*
+		 * Responses completed by a request handler are written one at a
+		 * time, and must not wait for the acknowledgement of the previous
+		 * one.
+		 */
+		m_Socket.setTcpNoDelay(true);
 		
 		if (m_ModbusTransport == null)
 			m_ModbusTransport = new ModbusTCPTransport(m_Socket);
@@ -0,0 +1,850 @@
+//License
+/***
+ * Java Modbus Library (jamod)
+ * Copyright (c) 2002-2004, jamod development team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.ModbusIOException;
+import com.ghgande.j2mod.modbus.io.BytesInputStream;
+import com.ghgande.j2mod.modbus.io.BytesOutputStream;
+import com.ghgande.j2mod.modbus.io.ModbusUDPTransport;
+import com.ghgande.j2mod.modbus.msg.ModbusRequest;
+import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+import com.ghgande.j2mod.modbus.util.ModbusTimer;
+import com.ghgande.j2mod.modbus.util.ModbusUtil;
+
+/**
+ * Class implementing a Modbus UDP master which keeps many requests to many
+ * slaves in flight on a single <tt>DatagramChannel</tt>.
+ *
+ * <p>
+ * One selector thread sends the requests and completes the responses.
+ * Requests may be submitted from any thread. At most
+ * <tt>getMaxOutstanding()</tt> requests to the same slave are in flight at
+ * once; the others wait in order of submission. Every request is given a
+ * transaction identifier which is unique among the requests in flight, and
+ * a response completes a request only if it comes from the address and
+ * port the request was sent to; late and duplicate responses are
+ * discarded. A request which has not been answered within the timeout is
+ * sent again with the same transaction identifier, up to
+ * <tt>getRetries()</tt> times, so a late response to an earlier attempt
+ * still completes it.
+ *
+ * <p>
+ * Unless a request is submitted with a fixed timeout, the timeout adapts to
+ * the round trip time of its slave, as estimated by the
+ * <tt>RTTEstimator</tt> of the slave, and doubles with every
+ * retransmission.
+ *
+ * <p>
+ * A request may also be sent to many slaves at once with
+ * <tt>fanOut()</tt> or <tt>broadcast()</tt>. It is encoded once and sent to
+ * every slave in one burst under a single transaction identifier, and the
+ * responses are collected until a deadline.
+ *
+ * <p>
+ * Requests and responses are encoded and decoded by
+ * <tt>ModbusUDPTransport</tt>. A request instance must not be submitted
+ * again until its response has been received.
+ */
+public class UDPMasterChannel implements SelectorLoop.Handler {
+
+	/*
+	 * The longest possible datagram is 256 bytes (Modbus message limit)
+	 * plus the 6 byte header.
+	 */
+	private static final int PACKET_SIZE = Modbus.MAX_MESSAGE_LENGTH + 6;
+
+	/*
+	 * Requested size of the socket receive buffer, which the system may
+	 * limit.
+	 */
+	private static final int RECEIVE_BUFFER = 1 << 20;
+
+	// instance attributes and associations
+	private InetAddress m_LocalAddress;
+	private int m_LocalPort;
+	private volatile int m_Timeout = Modbus.DEFAULT_TIMEOUT;
+	private volatile int m_Retries = Modbus.DEFAULT_RETRIES;
+	private volatile int m_MaxOutstanding = 1;
+	private volatile SelectorLoop m_Loop;
+	private volatile boolean m_Running;
+
+	private volatile long m_Retransmissions;
+	private volatile long m_Discarded;
+	private volatile int m_InFlightCount;
+
+	/*
+	 * Owned by the selector thread.
+	 */
+	private DatagramChannel m_Channel;
+	private Exchange[] m_InFlight = new Exchange[65536];
+	private ConcurrentHashMap<SocketAddress, Peer> m_Peers = new ConcurrentHashMap<SocketAddress, Peer>();
+	private ArrayDeque<Peer> m_Starved = new ArrayDeque<Peer>();
+	private int m_NextTransactionID = 1;
+	private ByteBuffer m_Output = ByteBuffer.allocateDirect(PACKET_SIZE);
+	private ByteBuffer m_Input = ByteBuffer.allocateDirect(PACKET_SIZE);
+	private BytesOutputStream m_ByteOut = new BytesOutputStream(PACKET_SIZE);
+	private BytesInputStream m_ByteIn = new BytesInputStream(PACKET_SIZE);
+
+	/**
+	 * Constructs a new <tt>UDPMasterChannel</tt> bound to an ephemeral port
+	 * on the wildcard address.
+	 */
+	public UDPMasterChannel() {
+	}
+
+	/**
+	 * Constructs a new <tt>UDPMasterChannel</tt> bound to the given local
+	 * address and port.
+	 *
+	 * @param addr
+	 *            the local address, or <tt>null</tt> for the wildcard
+	 *            address.
+	 * @param port
+	 *            the local port, or <tt>0</tt> for an ephemeral port.
+	 */
+	public UDPMasterChannel(InetAddress addr, int port) {
+		m_LocalAddress = addr;
+		m_LocalPort = port;
+	}
+
+	/**
+	 * Returns the local port of the channel.
+	 *
+	 * @return the port number as <tt>int</tt>.
+	 */
+	public int getLocalPort() {
+		return m_LocalPort;
+	}
+
+	/**
+	 * Returns the upper limit of the time to wait for a response before a
+	 * request is sent again, which is also the timeout until the round trip
+	 * time of a slave is known.
+	 *
+	 * @return the timeout in milliseconds.
+	 */
+	public int getTimeout() {
+		return m_Timeout;
+	}
+
+	/**
+	 * Sets the upper limit of the time to wait for a response before a
+	 * request is sent again, which is also the timeout until the round trip
+	 * time of a slave is known. The default is defined as
+	 * <tt>Modbus.DEFAULT_TIMEOUT</tt>.
+	 *
+	 * @param timeout
+	 *            the timeout in milliseconds.
+	 */
+	public void setTimeout(int timeout) {
+		if (timeout < 1)
+			throw new IllegalArgumentException("Invalid timeout: " + timeout);
+
+		m_Timeout = timeout;
+	}
+
+	/**
+	 * Returns the number of times a request is sent again before it fails.
+	 *
+	 * @return the number of retries.
+	 */
+	public int getRetries() {
+		return m_Retries;
+	}
+
+	/**
+	 * Sets the number of times a request is sent again before it fails. The
+	 * default is defined as <tt>Modbus.DEFAULT_RETRIES</tt>.
+	 *
+	 * @param retries
+	 *            the number of retries.
+	 */
+	public void setRetries(int retries) {
+		if (retries < 0)
+			throw new IllegalArgumentException("Invalid retries: " + retries);
+
+		m_Retries = retries;
+	}
+
+	/**
+	 * Returns the number of requests to the same slave which may be in
+	 * flight at once.
+	 *
+	 * @return the number of outstanding requests.
+	 */
+	public int getMaxOutstanding() {
+		return m_MaxOutstanding;
+	}
+
+	/**
+	 * Sets the number of requests to the same slave which may be in flight
+	 * at once. Most slaves handle one transaction at a time, so the default
+	 * is <tt>1</tt>.
+	 *
+	 * @param max
+	 *            the number of outstanding requests.
+	 */
+	public void setMaxOutstanding(int max) {
+		if (max < 1)
+			throw new IllegalArgumentException("Invalid window: " + max);
+
+		m_MaxOutstanding = max;
+	}
+
+	/**
+	 * Returns the round trip time estimator of a slave.
+	 *
+	 * @param addr
+	 *            the address of the slave.
+	 * @param port
+	 *            the port of the slave.
+	 * @return the <tt>RTTEstimator</tt>, or <tt>null</tt> if no request has
+	 *         been sent to the slave yet.
+	 */
+	public RTTEstimator getRTTEstimator(InetAddress addr, int port) {
+		Peer peer = m_Peers.get(new InetSocketAddress(addr, port));
+
+		return peer != null ? peer.m_Estimator : null;
+	}
+
+	/**
+	 * Returns the number of requests which have been sent again.
+	 *
+	 * @return the number of retransmissions.
+	 */
+	public long getRetransmissionCount() {
+		return m_Retransmissions;
+	}
+
+	/**
+	 * Returns the number of datagrams which did not answer a request in
+	 * flight.
+	 *
+	 * @return the number of discarded datagrams.
+	 */
+	public long getDiscardedCount() {
+		return m_Discarded;
+	}
+
+	/**
+	 * Returns the number of requests waiting for a response.
+	 *
+	 * @return the number of requests in flight.
+	 */
+	public int getInFlightCount() {
+		return m_InFlightCount;
+	}
+
+	/**
+	 * Opens the channel and starts the selector thread.
+	 *
+	 * @throws IOException
+	 *             if the channel could not be opened.
+	 */
+	public synchronized void start() throws IOException {
+		if (m_Running)
+			return;
+
+		Selector selector = Selector.open();
+		try {
+			m_Channel = DatagramChannel.open();
+			m_Channel.configureBlocking(false);
+			m_Channel.setOption(StandardSocketOptions.SO_BROADCAST,
+					Boolean.TRUE);
+			/*
+			 * A fan-out is answered by every slave at once, and the kernel
+			 * charges far more than the payload for each small datagram.
+			 */
+			m_Channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER);
+			m_Channel.bind(new InetSocketAddress(m_LocalAddress, m_LocalPort));
+			m_LocalPort = m_Channel.socket().getLocalPort();
+			m_Channel.register(selector, SelectionKey.OP_READ, this);
+		} catch (IOException ex) {
+			if (m_Channel != null)
+				m_Channel.close();
+			selector.close();
+			throw ex;
+		}
+
+		m_Loop = new SelectorLoop(selector);
+		Thread thread = new Thread(m_Loop, "UDPMasterChannel-" + m_LocalPort);
+		thread.setDaemon(true);
+		thread.start();
+		m_Running = true;
+	}
+
+	/**
+	 * Stops the selector thread and closes the channel. Every request still
+	 * waiting for a response fails with a <tt>ModbusIOException</tt>.
+	 */
+	public synchronized void stop() {
+		m_Running = false;
+		if (m_Loop != null) {
+			m_Loop.stop();
+			m_Loop = null;
+		}
+	}
+
+	/**
+	 * Tests if this <tt>UDPMasterChannel</tt> is running.
+	 *
+	 * @return true if running, false otherwise.
+	 */
+	public boolean isRunning() {
+		return m_Running;
+	}
+
+	/**
+	 * Sends a request, using the adaptive timeout of its slave and the
+	 * retries of this channel.
+	 *
+	 * @param addr
+	 *            the address of the slave.
+	 * @param port
+	 *            the port of the slave.
+	 * @param request
+	 *            the <tt>ModbusRequest</tt> to be sent.
+	 * @return the future response.
+	 * @see #submit(InetAddress, int, ModbusRequest, int, int)
+	 */
+	public CompletableFuture<ModbusResponse> submit(InetAddress addr,
+			int port, ModbusRequest request) {
+		return submit(addr, port, request, 0, m_Retries);
+	}
+
+	/**
+	 * Sends a request and returns a future for its response.
+	 *
+	 * <p>
+	 * The future completes with the response, which may be an
+	 * <tt>ExceptionResponse</tt>, or exceptionally with a
+	 * <tt>ModbusIOException</tt> if the request could not be sent or no
+	 * response arrived after the last retry.
+	 *
+	 * @param addr
+	 *            the address of the slave.
+	 * @param port
+	 *            the port of the slave.
+	 * @param request
+	 *            the <tt>ModbusRequest</tt> to be sent.
+	 * @param timeout
+	 *            the time to wait for a response before the request is sent
+	 *            again, in milliseconds, or <tt>0</tt> for the adaptive
+	 *            timeout of the slave.
+	 * @param retries
+	 *            the number of times the request is sent again.
+	 * @return the future response.
+	 */
+	public CompletableFuture<ModbusResponse> submit(InetAddress addr,
+			int port, ModbusRequest request, int timeout, int retries) {
+		final Exchange ex = new Exchange(new InetSocketAddress(addr, port),
+				request, timeout, retries);
+		SelectorLoop loop = m_Loop;
+
+		if (loop == null || !loop.execute(new Runnable() {
+			public void run() {
+				enqueue(ex);
+			}
+		})) {
+			ex.m_Future.completeExceptionally(new ModbusIOException(
+					"Master not running.", true));
+		}
+		return ex.m_Future;
+	}
+
+	/**
+	 * Sends a request to many slaves at once and collects their responses.
+	 * The request is sent to every slave in one burst, without retries;
+	 * the result is complete once every slave has answered, or the deadline
+	 * has passed.
+	 *
+	 * <p>
+	 * The future completes with a <tt>FanOutResult</tt> holding the
+	 * response of every slave which answered, and a
+	 * <tt>ModbusIOException</tt> for every slave which did not. It
+	 * completes exceptionally only if this channel is not running.
+	 *
+	 * @param addrs
+	 *            the addresses of the slaves.
+	 * @param port
+	 *            the port of the slaves.
+	 * @param request
+	 *            the <tt>ModbusRequest</tt> to be sent.
+	 * @param deadline
+	 *            the time to wait for the responses, in milliseconds.
+	 * @return the future result.
+	 */
+	public CompletableFuture<FanOutResult> fanOut(
+			Collection<InetAddress> addrs, int port, ModbusRequest request,
+			int deadline) {
+		return fanOut(new FanOutResult(addrs), addrs, port, request,
+				deadline);
+	}
+
+	/**
+	 * Sends a request to a broadcast address and collects the responses
+	 * which arrive until the deadline. Any slave answering from the given
+	 * port is accepted; slaves which do not answer are not known, so the
+	 * result holds no failures for them.
+	 *
+	 * @param addr
+	 *            the broadcast address.
+	 * @param port
+	 *            the port of the slaves.
+	 * @param request
+	 *            the <tt>ModbusRequest</tt> to be sent.
+	 * @param deadline
+	 *            the time to wait for the responses, in milliseconds.
+	 * @return the future result.
+	 * @see #fanOut(Collection, int, ModbusRequest, int)
+	 */
+	public CompletableFuture<FanOutResult> broadcast(InetAddress addr,
+			int port, ModbusRequest request, int deadline) {
+		return fanOut(new FanOutResult(null),
+				Collections.singletonList(addr), port, request, deadline);
+	}
+
+	private CompletableFuture<FanOutResult> fanOut(FanOutResult result,
+			Collection<InetAddress> addrs, int port, ModbusRequest request,
+			int deadline) {
+		final Exchange ex = new Exchange(null, request, deadline, 0);
+		ex.m_Targets = new InetSocketAddress[addrs.size()];
+		int i = 0;
+		for (InetAddress addr : addrs)
+			ex.m_Targets[i++] = new InetSocketAddress(addr, port);
+		ex.m_Port = port;
+		ex.m_Result = result;
+		ex.m_ResultFuture = new CompletableFuture<FanOutResult>();
+		SelectorLoop loop = m_Loop;
+
+		if (loop == null || !loop.execute(new Runnable() {
+			public void run() {
+				enqueue(ex);
+			}
+		})) {
+			ex.m_ResultFuture.completeExceptionally(new ModbusIOException(
+					"Master not running.", true));
+		}
+		return ex.m_ResultFuture;
+	}
+
+	/**
+	 * Reads the datagrams which have arrived. Called on the selector
+	 * thread.
+	 */
+	public void handle(SelectionKey key) {
+		try {
+			if (!key.isValid() || !key.isReadable())
+				return;
+
+			SocketAddress source;
+			while ((source = m_Channel.receive(m_Input)) != null) {
+				m_Input.flip();
+				try {
+					complete(source);
+				} finally {
+					m_Input.clear();
+				}
+			}
+		} catch (IOException ex) {
+			if (Modbus.debug)
+				System.err.println(this + ": " + ex);
+		}
+	}
+
+	/**
+	 * Fails every request and closes the channel once the selector thread
+	 * has stopped.
+	 */
+	public void stopped() {
+		ModbusIOException ex = new ModbusIOException("Master stopped.", true);
+		for (Peer peer : m_Peers.values()) {
+			for (Exchange e : peer.m_Waiting)
+				e.m_Future.completeExceptionally(ex);
+			peer.m_Waiting.clear();
+		}
+		m_Starved.clear();
+		for (int tid = 0; tid < m_InFlight.length; tid++) {
+			if (m_InFlight[tid] != null)
+				finish(m_InFlight[tid], null, ex);
+		}
+
+		try {
+			m_Channel.close();
+		} catch (IOException e) {
+			// Nothing left to release.
+		}
+	}
+
+	public String toString() {
+		return "UDPMasterChannel :" + m_LocalPort;
+	}
+
+	private void enqueue(Exchange ex) {
+		if (ex.m_Result != null) {
+			sendAll(ex);
+			return;
+		}
+		if (ex.m_Future.isDone())
+			return;
+
+		Peer peer = m_Peers.get(ex.m_Target);
+		if (peer == null) {
+			peer = new Peer(new RTTEstimator());
+			m_Peers.put(ex.m_Target, peer);
+		}
+		ex.m_Peer = peer;
+		peer.m_Waiting.add(ex);
+		dispatch(peer);
+	}
+
+	/**
+	 * Sends the waiting requests to a slave while its window allows. A
+	 * slave which has to wait for a free transaction identifier is served
+	 * once one has been released.
+	 */
+	private void dispatch(Peer peer) {
+		while (peer.m_InFlight < m_MaxOutstanding
+				&& !peer.m_Waiting.isEmpty()) {
+			if (m_InFlightCount >= Modbus.MAX_TRANSACTION_ID - 1) {
+				if (!m_Starved.contains(peer))
+					m_Starved.add(peer);
+				return;
+			}
+			Exchange ex = peer.m_Waiting.poll();
+			if (ex.m_Future.isDone())
+				continue;
+
+			ex.m_TransactionID = nextTransactionID();
+			m_InFlight[ex.m_TransactionID] = ex;
+			m_InFlightCount++;
+			peer.m_InFlight++;
+			send(ex);
+		}
+	}
+
+	/**
+	 * Sends a request to many slaves and starts the timer for its deadline.
+	 * A slave which the datagram could not be sent to has failed.
+	 */
+	private void sendAll(Exchange ex) {
+		if (m_InFlightCount >= Modbus.MAX_TRANSACTION_ID - 1) {
+			ex.m_Result.failRemaining(new ModbusIOException(
+					"No transaction ID available."));
+			ex.m_ResultFuture.complete(ex.m_Result);
+			return;
+		}
+		ex.m_TransactionID = nextTransactionID();
+		m_InFlight[ex.m_TransactionID] = ex;
+		m_InFlightCount++;
+		ex.m_Attempts = 1;
+
+		try {
+			ex.m_Request.setTransactionID(ex.m_TransactionID);
+			int length = ModbusUDPTransport.encode(ex.m_Request, m_ByteOut);
+			m_Output.clear();
+			m_Output.put(m_ByteOut.getBuffer(), 0, length);
+			m_Output.flip();
+		} catch (IOException e) {
+			finish(ex, null, new ModbusIOException(
+					"I/O exception - failed to write."));
+			return;
+		}
+
+		for (int i = 0; i < ex.m_Targets.length; i++) {
+			InetSocketAddress target = ex.m_Targets[i];
+			m_Output.rewind();
+			try {
+				if (m_Channel.send(m_Output, target) > 0)
+					continue;
+			} catch (IOException e) {
+				if (Modbus.debug)
+					System.err.println(this + ": " + target + ": " + e);
+			}
+			ex.m_Result.setException(target.getAddress(),
+					new ModbusIOException("I/O exception - failed to write."));
+		}
+
+		if (ex.m_Result.isComplete())
+			finish(ex, null, null);
+		else
+			schedule(ex, 1, ex.m_Timeout);
+	}
+
+	/**
+	 * Sends a request and starts its retransmission timer. A datagram which
+	 * the socket has no room for is treated as lost.
+	 */
+	private void send(final Exchange ex) {
+		final int attempt = ++ex.m_Attempts;
+		RTTEstimator estimator = ex.m_Peer.m_Estimator;
+		estimator.setMaxTimeout(m_Timeout);
+		int timeout = ex.m_Timeout > 0 ? ex.m_Timeout : estimator.getTimeout();
+
+		try {
+			ex.m_Request.setTransactionID(ex.m_TransactionID);
+			int length = ModbusUDPTransport.encode(ex.m_Request, m_ByteOut);
+			if (Modbus.debug)
+				System.err.println("Sent: "
+						+ ModbusUtil.toHex(m_ByteOut.getBuffer(), 0, length)
+						+ " to " + ex.m_Target);
+
+			m_Output.clear();
+			m_Output.put(m_ByteOut.getBuffer(), 0, length);
+			m_Output.flip();
+			ex.m_SentAt = System.nanoTime();
+			m_Channel.send(m_Output, ex.m_Target);
+		} catch (IOException e) {
+			if (Modbus.debug)
+				System.err.println(this + ": " + e);
+		}
+		schedule(ex, attempt, timeout);
+	}
+
+	/**
+	 * Starts the timer which expires an attempt of a request.
+	 */
+	private void schedule(final Exchange ex, final int attempt, int timeout) {
+		ex.m_Timer = ModbusTimer.schedule(new Runnable() {
+			public void run() {
+				SelectorLoop loop = m_Loop;
+				if (loop != null) {
+					loop.execute(new Runnable() {
+						public void run() {
+							expire(ex, attempt);
+						}
+					});
+				}
+			}
+		}, timeout);
+	}
+
+	/**
+	 * Sends a request again, or fails it if it has no retries left.
+	 */
+	private void expire(Exchange ex, int attempt) {
+		if (m_InFlight[ex.m_TransactionID] != ex || ex.m_Attempts != attempt)
+			return;
+
+		if (ex.m_Future.isDone() || ex.m_Attempts > ex.m_Retries) {
+			finish(ex, null, new ModbusIOException(
+					"Timeout waiting for response"));
+			return;
+		}
+		m_Retransmissions++;
+		ex.m_Peer.m_Estimator.backoff();
+		send(ex);
+	}
+
+	/**
+	 * Completes the request a datagram answers. Datagrams from another
+	 * source, or for no request in flight, are discarded.
+	 */
+	private void complete(SocketAddress source) {
+		if (m_Input.remaining() < 8) {
+			m_Discarded++;
+			return;
+		}
+		int tid = m_Input.getShort(0) & 0xFFFF;
+		Exchange ex = m_InFlight[tid];
+		if (ex != null && ex.m_Result != null) {
+			collect(ex, (InetSocketAddress) source);
+			return;
+		}
+		if (ex == null || !ex.m_Target.equals(source)) {
+			if (Modbus.debug)
+				System.err.println("discarding response transaction ID = "
+						+ tid + " from " + source);
+			m_Discarded++;
+			return;
+		}
+
+		byte[] buffer = m_ByteIn.getBuffer();
+		int length = Math.min(m_Input.remaining(), buffer.length);
+		m_Input.get(buffer, 0, length);
+		m_ByteIn.reset(length);
+		if (Modbus.debug)
+			System.err.println("Read: " + ModbusUtil.toHex(buffer, 0, length));
+
+		try {
+			ModbusResponse response = ModbusUDPTransport
+					.decodeResponse(m_ByteIn);
+			if (ex.m_Attempts == 1)
+				ex.m_Peer.m_Estimator.addSample(System.nanoTime()
+						- ex.m_SentAt);
+			finish(ex, response, null);
+		} catch (IOException e) {
+			m_Discarded++;
+		}
+	}
+
+	/**
+	 * Records the response of one of the slaves a request was sent to at
+	 * once. Responses from other ports or slaves, and second responses, are
+	 * discarded.
+	 */
+	private void collect(Exchange ex, InetSocketAddress source) {
+		if (source.getPort() != ex.m_Port) {
+			m_Discarded++;
+			return;
+		}
+
+		byte[] buffer = m_ByteIn.getBuffer();
+		int length = Math.min(m_Input.remaining(), buffer.length);
+		m_Input.get(buffer, 0, length);
+		m_ByteIn.reset(length);
+		if (Modbus.debug)
+			System.err.println("Read: " + ModbusUtil.toHex(buffer, 0, length)
+					+ " from " + source);
+
+		try {
+			ModbusResponse response = ModbusUDPTransport
+					.decodeResponse(m_ByteIn);
+			if (!ex.m_Result.setResponse(source.getAddress(), response))
+				m_Discarded++;
+		} catch (IOException e) {
+			m_Discarded++;
+		}
+		if (ex.m_Result.isComplete())
+			finish(ex, null, null);
+	}
+
+	/**
+	 * Removes a request from the requests in flight and completes it.
+	 */
+	private void finish(Exchange ex, ModbusResponse response,
+			ModbusIOException failure) {
+		m_InFlight[ex.m_TransactionID] = null;
+		m_InFlightCount--;
+		if (ex.m_Timer != null)
+			ex.m_Timer.cancel(false);
+
+		if (ex.m_Result != null) {
+			if (failure != null)
+				ex.m_Result.failRemaining(failure);
+			ex.m_ResultFuture.complete(ex.m_Result);
+
+			Peer starved = m_Starved.poll();
+			if (starved != null)
+				dispatch(starved);
+			return;
+		}
+
+		ex.m_Peer.m_InFlight--;
+		if (failure != null)
+			ex.m_Future.completeExceptionally(failure);
+		else
+			ex.m_Future.complete(response);
+
+		Peer starved = m_Starved.poll();
+		if (starved != null)
+			dispatch(starved);
+		dispatch(ex.m_Peer);
+	}
+
+	/**
+	 * Returns the next transaction identifier which is not in use by a
+	 * request in flight.
+	 */
+	private int nextTransactionID() {
+		int tid;
+
+		do {
+			tid = m_NextTransactionID;
+			if (++m_NextTransactionID >= Modbus.MAX_TRANSACTION_ID)
+				m_NextTransactionID = 1;
+		} while (m_InFlight[tid] != null);
+
+		return tid;
+	}
+
+	/**
+	 * Inner class holding a submitted request and its future response, or
+	 * the future result of a request sent to many slaves at once.
+	 */
+	private static class Exchange {
+		private InetSocketAddress m_Target;
+		private ModbusRequest m_Request;
+		private CompletableFuture<ModbusResponse> m_Future = new CompletableFuture<ModbusResponse>();
+		private int m_Timeout;
+		private int m_Retries;
+		private int m_TransactionID;
+		private int m_Attempts;
+		private long m_SentAt;
+		private ScheduledFuture<?> m_Timer;
+		private Peer m_Peer;
+		private InetSocketAddress[] m_Targets;
+		private int m_Port;
+		private FanOutResult m_Result;
+		private CompletableFuture<FanOutResult> m_ResultFuture;
+
+		Exchange(InetSocketAddress target, ModbusRequest request,
+				int timeout, int retries) {
+			m_Target = target;
+			m_Request = request;
+			m_Timeout = timeout;
+			m_Retries = retries;
+		}
+	}
+
+	/**
+	 * Inner class holding the requests to one slave.
+	 */
+	private static class Peer {
+		private RTTEstimator m_Estimator;
+		private ArrayDeque<Exchange> m_Waiting = new ArrayDeque<Exchange>();
+		private int m_InFlight;
+
+		Peer(RTTEstimator estimator) {
+			m_Estimator = estimator;
+		}
+	}
+}
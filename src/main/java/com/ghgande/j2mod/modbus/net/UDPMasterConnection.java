@@ -50,6 +50,7 @@ public class UDPMasterConnection {
   //instance attributes
   private UDPMasterTerminal m_Terminal;
   private int m_Timeout = Modbus.DEFAULT_TIMEOUT;
+  private RTTEstimator m_Estimator = new RTTEstimator();
   private boolean m_Connected;
 
   private InetAddress m_Address;
@@ -133,9 +134,23 @@ public class UDPMasterConnection {
    */
   public void setTimeout(int timeout) {
     m_Timeout = timeout;
-    m_Terminal.setTimeout(timeout);
+    if (m_Terminal != null) {
+      m_Terminal.setTimeout(timeout);
+    }
   }//setTimeout
 
+  /**
+   * Returns the round trip time estimator of the slave, which transactions
+   * on this connection use to decide how long to wait for a response
+   * before sending a request again. The timeout of the connection is the
+   * upper limit.
+   *
+   * @return the <tt>RTTEstimator</tt> of this connection.
+   */
+  public RTTEstimator getRTTEstimator() {
+    return m_Estimator;
+  }//getRTTEstimator
+
   /**
    * Returns the destination port of this
    * <tt>UDPMasterConnection</tt>.
@@ -36,6 +36,7 @@ package com.ghgande.j2mod.modbus.net;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.io.ModbusUDPTransport;
@@ -49,6 +50,7 @@ import com.ghgande.j2mod.modbus.io.ModbusUDPTransport;
 class UDPMasterTerminal implements UDPTerminal {
 
 	private DatagramSocket m_Socket;
+	private final ReentrantLock m_Lock = new ReentrantLock(); // socket I/O
 	private int m_Timeout = Modbus.DEFAULT_TIMEOUT;
 	private boolean m_Active;
 	protected InetAddress m_LocalAddress;
@@ -212,11 +214,18 @@ class UDPMasterTerminal implements UDPTerminal {
 	}
 
 	public void sendMessage(byte[] msg) throws Exception {
+		sendMessage(msg, msg.length);
+	}
+
+	public void sendMessage(byte[] msg, int length) throws Exception {
 
-		DatagramPacket req = new DatagramPacket(msg, msg.length,
+		DatagramPacket req = new DatagramPacket(msg, length,
 				m_RemoteAddress, m_RemotePort);
-		synchronized (m_Socket) {
+		m_Lock.lock();
+		try {
 			m_Socket.send(req);
+		} finally {
+			m_Lock.unlock();
 		}
 	}
 
@@ -228,19 +237,26 @@ class UDPMasterTerminal implements UDPTerminal {
 		 */
 		byte[] buffer = new byte[262];
 		DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-		synchronized (m_Socket) {
+		m_Lock.lock();
+		try {
 			m_Socket.setSoTimeout(m_Timeout);
 			m_Socket.receive(packet);
+		} finally {
+			m_Lock.unlock();
 		}
 		return buffer;
 	}
 
-	public void receiveMessage(byte[] buffer) throws Exception {
+	public int receiveMessage(byte[] buffer) throws Exception {
 		DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-		synchronized (m_Socket) {
+		m_Lock.lock();
+		try {
 			m_Socket.setSoTimeout(m_Timeout);
 			m_Socket.receive(packet);
+		} finally {
+			m_Lock.unlock();
 		}
+		return packet.getLength();
 	}
 
 	/**
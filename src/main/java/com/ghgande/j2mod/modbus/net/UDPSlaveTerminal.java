@@ -33,51 +33,86 @@
  ***/
 package com.ghgande.j2mod.modbus.net;
 
+import java.io.EOFException;
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.util.Hashtable;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.io.ModbusUDPTransport;
-import com.ghgande.j2mod.modbus.util.LinkedQueue;
-import com.ghgande.j2mod.modbus.util.ModbusUtil;
+import com.ghgande.j2mod.modbus.util.ModbusThreadFactory;
 
 /**
  * Class implementing a <tt>UDPSlaveTerminal</tt>.
- * 
+ * <p>
+ * Datagrams are received on a <tt>DatagramChannel</tt> into a fixed pool of
+ * direct buffers. The <tt>ModbusUDPListener</tt> takes the packets and
+ * answers each at its source address. Readers of the transport instead
+ * have the source of every request remembered in a table indexed by
+ * transaction identifier until its response is sent. Neither path
+ * allocates once the pools are warm.
+ *
  * @author Dieter Wimberger
  * @version 1.2rc1 (09/11/2004)
  */
 class UDPSlaveTerminal implements UDPTerminal {
-	private DatagramSocket m_Socket;
+
+	/**
+	 * The longest possible datagram is 256 bytes (Modbus message limit) plus
+	 * the 6 byte header.
+	 */
+	static final int PACKET_SIZE = Modbus.MAX_MESSAGE_LENGTH + 6;
+
+	/**
+	 * Number of datagrams that may be waiting to be read.
+	 */
+	static final int POOL_SIZE = 64;
+
+	/**
+	 * Time after which a request that was never answered no longer holds its
+	 * entry in the pending table.
+	 */
+	static final long PENDING_TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+
+	/**
+	 * Queued to wake up readers once the terminal has been deactivated.
+	 */
+	private static final Packet c_Closed = new Packet(null);
+
+	private DatagramChannel m_Channel;
 	private int m_Timeout = Modbus.DEFAULT_TIMEOUT;
-	private boolean m_Active;
+	private volatile boolean m_Active;
 	protected InetAddress m_LocalAddress;
 	private int m_LocalPort = Modbus.DEFAULT_PORT;
 	protected ModbusUDPTransport m_ModbusTransport;
 
-	private LinkedQueue m_SendQueue;
-	private LinkedQueue m_ReceiveQueue;
-	private PacketSender m_PacketSender;
-	private PacketReceiver m_PacketReceiver;
+	private BlockingQueue<Packet> m_Free;
+	private BlockingQueue<Packet> m_Ready;
 	private Thread m_Receiver;
-	private Thread m_Sender;
 
-	protected Hashtable<Integer,DatagramPacket> m_Requests;
+	private final ReentrantLock m_SendLock = new ReentrantLock();
+	private final ByteBuffer m_SendBuffer = ByteBuffer
+			.allocateDirect(PACKET_SIZE);
+
+	private final ReentrantLock m_PendingLock = new ReentrantLock();
+	private final Pending[] m_Pending = new Pending[65536];
+	private Pending m_FreePending;
 
 	protected UDPSlaveTerminal() {
-		m_SendQueue = new LinkedQueue();
-		m_ReceiveQueue = new LinkedQueue();
-		m_Requests = new Hashtable<Integer,DatagramPacket>(342);
 	}
 
 	protected UDPSlaveTerminal(InetAddress localaddress) {
 		m_LocalAddress = localaddress;
-		m_SendQueue = new LinkedQueue();
-		m_ReceiveQueue = new LinkedQueue();
-		m_Requests = new Hashtable<Integer,DatagramPacket>(342);
 	}
 
 	public InetAddress getLocalAddress() {
@@ -94,7 +129,7 @@ class UDPSlaveTerminal implements UDPTerminal {
 
 	/**
 	 * Tests if this <tt>UDPSlaveTerminal</tt> is active.
-	 * 
+	 *
 	 * @return <tt>true</tt> if active, <tt>false</tt> otherwise.
 	 */
 	public boolean isActive() {
@@ -103,7 +138,7 @@ class UDPSlaveTerminal implements UDPTerminal {
 
 	/**
 	 * Activate this <tt>UDPTerminal</tt>.
-	 * 
+	 *
 	 * @throws Exception
 	 *             if there is a network failure.
 	 */
@@ -111,38 +146,48 @@ class UDPSlaveTerminal implements UDPTerminal {
 		if (! isActive()) {
 			if (Modbus.debug)
 				System.out.println("UDPSlaveTerminal.activate()");
-			if (m_Socket == null) {
-				if (m_LocalAddress != null && m_LocalPort != -1) {
-					m_Socket = new DatagramSocket(m_LocalPort, m_LocalAddress);
-				} else {
-					m_Socket = new DatagramSocket();
-					m_LocalPort = m_Socket.getLocalPort();
-					m_LocalAddress = m_Socket.getLocalAddress();
-				}
+			m_Channel = DatagramChannel.open();
+			if (m_LocalAddress != null && m_LocalPort != -1) {
+				m_Channel.bind(new InetSocketAddress(m_LocalAddress,
+						m_LocalPort));
+			} else {
+				m_Channel.bind(null);
+				m_LocalPort = m_Channel.socket().getLocalPort();
+				m_LocalAddress = m_Channel.socket().getLocalAddress();
 			}
-			if (Modbus.debug)
-				System.out.println("UDPSlaveTerminal::haveSocket():"
-						+ m_Socket.toString());
 			if (Modbus.debug)
 				System.out.println("UDPSlaveTerminal::addr=:"
 						+ m_LocalAddress.toString() + ":port=" + m_LocalPort);
 
-			m_Socket.setReceiveBufferSize(1024);
-			m_Socket.setSendBufferSize(1024);
-			m_PacketReceiver = new PacketReceiver();
-			m_Receiver = new Thread(m_PacketReceiver);
+			/*
+			 * Let the kernel hold a few pools worth of datagrams while the
+			 * readers catch up.
+			 */
+			m_Channel.setOption(StandardSocketOptions.SO_RCVBUF,
+					4 * POOL_SIZE * PACKET_SIZE);
+
+			/*
+			 * All packets share one direct buffer.
+			 */
+			ByteBuffer slab = ByteBuffer.allocateDirect(POOL_SIZE * PACKET_SIZE);
+			m_Free = new ArrayBlockingQueue<Packet>(POOL_SIZE);
+			m_Ready = new ArrayBlockingQueue<Packet>(POOL_SIZE + 1);
+			for (int i = 0; i < POOL_SIZE; i++) {
+				slab.limit((i + 1) * PACKET_SIZE);
+				slab.position(i * PACKET_SIZE);
+				m_Free.add(new Packet(slab.slice()));
+			}
+
+			m_Active = true;
+			m_Receiver = ModbusThreadFactory.newThread(new PacketReceiver(),
+					"UDPSlaveTerminal receiver", false,
+					ModbusThreadFactory.isVirtualDefault());
 			m_Receiver.start();
 			if (Modbus.debug)
 				System.out.println("UDPSlaveTerminal::receiver started()");
-			m_PacketSender = new PacketSender();
-			m_Sender = new Thread(m_PacketSender);
-			m_Sender.start();
-			if (Modbus.debug)
-				System.out.println("UDPSlaveTerminal::sender started()");
 			m_ModbusTransport = new ModbusUDPTransport(this);
 			if (Modbus.debug)
 				System.out.println("UDPSlaveTerminal::transport created");
-			m_Active = true;
 		}
 		if (Modbus.debug)
 			System.out.println("UDPSlaveTerminal::activated");
@@ -154,16 +199,15 @@ class UDPSlaveTerminal implements UDPTerminal {
 	public void deactivate() {
 		try {
 			if (m_Active) {
-				// 1. stop receiver
-				m_PacketReceiver.stop();
+				m_Active = false;
+				// 1. close channel, which stops the receiver
+				m_Channel.close();
+				m_Receiver.interrupt();
 				m_Receiver.join();
-				// 2. stop sender gracefully
-				m_PacketSender.stop();
-				m_Sender.join();
-				// 3. close socket
-				m_Socket.close();
+				// 2. wake up any reader still waiting for a request
+				m_Ready.clear();
+				m_Ready.offer(c_Closed);
 				m_ModbusTransport = null;
-				m_Active = false;
 			}
 		} catch (Exception ex) {
 			ex.printStackTrace();
@@ -173,7 +217,7 @@ class UDPSlaveTerminal implements UDPTerminal {
 	/**
 	 * Returns the <tt>ModbusTransport</tt> associated with this
 	 * <tt>TCPMasterConnection</tt>.
-	 * 
+	 *
 	 * @return the connection's <tt>ModbusTransport</tt>.
 	 */
 	public ModbusUDPTransport getModbusTransport() {
@@ -181,123 +225,269 @@ class UDPSlaveTerminal implements UDPTerminal {
 	}
 
 	protected boolean hasResponse() {
-		return !m_ReceiveQueue.isEmpty();
+		return m_Ready != null && !m_Ready.isEmpty();
 	}
 
 	/**
-	 * Sets the timeout in milliseconds for this <tt>UDPSlaveTerminal</tt>.
-	 * 
+	 * Returns the timeout for this <tt>UDPSlaveTerminal</tt>.
+	 *
 	 * @return the timeout as <tt>int</tt>.
-	 * 
-	 *         public int getTimeout() { return m_Timeout; }//getTimeout
-	 * 
-	 *         /** Sets the timeout for this <tt>UDPSlaveTerminal</tt>.
-	 * 
+	 */
+	public int getTimeout() {
+		return m_Timeout;
+	}
+
+	/**
+	 * Sets the timeout for this <tt>UDPSlaveTerminal</tt>.
+	 *
 	 * @param timeout
 	 *            the timeout as <tt>int</tt>.
 	 */
 	public void setTimeout(int timeout) {
 		m_Timeout = timeout;
-		
-		try {
-			m_Socket.setSoTimeout(m_Timeout);
-		} catch (IOException ex) {
-			ex.printStackTrace(); // handle? }
-		}
 	}
-	 
+
 	/**
 	 * Returns the socket of this <tt>UDPSlaveTerminal</tt>.
-	 * 
+	 *
 	 * @return the socket as <tt>DatagramSocket</tt>.
 	 */
 	public DatagramSocket getSocket() {
-		return m_Socket;
+		return m_Channel == null ? null : m_Channel.socket();
+	}
+
+	public void sendMessage(byte[] msg) throws Exception {
+		sendMessage(msg, msg.length);
 	}
 
 	/**
-	 * Sets the socket of this <tt>UDPTerminal</tt>.
-	 * 
-	 * @param sock
-	 *            the <tt>DatagramSocket</tt> for this terminal.
+	 * Sends a response to the source of the pending request with the same
+	 * transaction identifier. A response without such a request is dropped.
 	 */
-	protected void setSocket(DatagramSocket sock) {
-		m_Socket = sock;
+	public void sendMessage(byte[] msg, int length) throws Exception {
+		int tid = ((msg[0] & 0xff) << 8) | (msg[1] & 0xff);
+		SocketAddress target = remove(tid);
+		if (target == null) {
+			if (Modbus.debug)
+				System.out.println("UDPSlaveTerminal::no request for tid="
+						+ tid);
+			return;
+		}
+		send(msg, length, target);
 	}
 
-	public void sendMessage(byte[] msg) throws Exception {
-		m_SendQueue.put(msg);
+	/**
+	 * Sends a message to the given address.
+	 */
+	void send(byte[] msg, int length, SocketAddress target)
+			throws IOException {
+		m_SendLock.lock();
+		try {
+			m_SendBuffer.clear();
+			m_SendBuffer.put(msg, 0, length);
+			m_SendBuffer.flip();
+			m_Channel.send(m_SendBuffer, target);
+		} finally {
+			m_SendLock.unlock();
+		}
 	}
 
 	public byte[] receiveMessage() throws Exception {
-		return (byte[]) m_ReceiveQueue.take();
+		byte[] buffer = new byte[PACKET_SIZE];
+		int length = receiveMessage(buffer);
+		byte[] message = new byte[length];
+		System.arraycopy(buffer, 0, message, 0, length);
+
+		return message;
+	}// receiveMessage
+
+	/**
+	 * Waits for the next request and copies it into the given buffer.
+	 *
+	 * @throws EOFException
+	 *             if the terminal has been deactivated.
+	 */
+	public int receiveMessage(byte[] buffer) throws Exception {
+		Packet packet = take();
+		try {
+			int length = packet.copyTo(buffer);
+			put(((buffer[0] & 0xff) << 8) | (buffer[1] & 0xff),
+					packet.m_Source);
+
+			return length;
+		} finally {
+			release(packet);
+		}
 	}// receiveMessage
 
-	class PacketSender implements Runnable {
+	/**
+	 * Waits for the next datagram. The caller hands the packet back with
+	 * {@link #release(Packet)} once it has copied the data.
+	 *
+	 * @throws EOFException
+	 *             if the terminal has been deactivated.
+	 */
+	Packet take() throws EOFException, InterruptedException {
+		BlockingQueue<Packet> ready = m_Ready;
+		if (ready == null)
+			throw new EOFException();
 
-		private boolean m_Continue;
+		Packet packet = ready.take();
+		if (packet == c_Closed) {
+			ready.offer(c_Closed);
+			throw new EOFException();
+		}
+		return packet;
+	}
 
-		public PacketSender() {
-			m_Continue = true;
-		}// constructor
+	/**
+	 * Returns a packet to the pool.
+	 */
+	void release(Packet packet) {
+		packet.m_Source = null;
+		m_Free.offer(packet);
+	}
 
-		public void run() {
-			do {
-				try {
-					// 1. pickup the message and corresponding request
-					byte[] message = (byte[]) m_SendQueue.take();
-					DatagramPacket req = (DatagramPacket) m_Requests
-							.remove(new Integer(ModbusUtil
-									.registersToInt(message)));
-					// 2. create new Package with corresponding address and port
-					DatagramPacket res = new DatagramPacket(message,
-							message.length, req.getAddress(), req.getPort());
-					m_Socket.send(res);
-					if (Modbus.debug)
-						System.out.println("Sent package from queue.");
-				} catch (Exception ex) {
-					ex.printStackTrace();
+	/**
+	 * Remembers the source of a request. A request with the same transaction
+	 * identifier from the same source replaces the earlier one, and requests
+	 * that were never answered are dropped once they are stale.
+	 */
+	private void put(int tid, SocketAddress source) {
+		long now = System.nanoTime();
+		m_PendingLock.lock();
+		try {
+			Pending last = null;
+			for (Pending p = m_Pending[tid]; p != null;) {
+				Pending next = p.m_Next;
+				if (p.m_Source.equals(source)
+						|| now - p.m_Time > PENDING_TIMEOUT) {
+					unlink(tid, last, p);
+				} else {
+					last = p;
 				}
-			} while (m_Continue || !m_SendQueue.isEmpty());
-		}// run
+				p = next;
+			}
+			Pending entry = m_FreePending;
+			if (entry == null) {
+				entry = new Pending();
+			} else {
+				m_FreePending = entry.m_Next;
+			}
+			entry.m_Source = source;
+			entry.m_Time = now;
+			entry.m_Next = null;
+			if (last == null)
+				m_Pending[tid] = entry;
+			else
+				last.m_Next = entry;
+		} finally {
+			m_PendingLock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the oldest request with the given transaction identifier.
+	 *
+	 * @return its source, or <tt>null</tt> if there is none.
+	 */
+	private SocketAddress remove(int tid) {
+		m_PendingLock.lock();
+		try {
+			Pending p = m_Pending[tid];
+			if (p == null)
+				return null;
+
+			SocketAddress source = p.m_Source;
+			unlink(tid, null, p);
+			return source;
+		} finally {
+			m_PendingLock.unlock();
+		}
+	}
 
-		public void stop() {
-			m_Continue = false;
-		}// stop
+	private void unlink(int tid, Pending previous, Pending p) {
+		if (previous == null)
+			m_Pending[tid] = p.m_Next;
+		else
+			previous.m_Next = p.m_Next;
 
-	}// PacketSender
+		p.m_Source = null;
+		p.m_Next = m_FreePending;
+		m_FreePending = p;
+	}
 
-	class PacketReceiver implements Runnable {
+	/**
+	 * A pooled receive buffer and the source of the datagram it holds.
+	 */
+	static final class Packet {
+		final ByteBuffer m_Data;
+		SocketAddress m_Source;
+
+		Packet(ByteBuffer data) {
+			m_Data = data;
+		}
+
+		/**
+		 * Returns the source of the datagram.
+		 */
+		SocketAddress getSource() {
+			return m_Source;
+		}
 
-		private boolean m_Continue;
+		/**
+		 * Copies the datagram into a buffer, truncating it if the buffer is
+		 * too short.
+		 *
+		 * @return the number of bytes copied.
+		 */
+		int copyTo(byte[] buffer) {
+			int length = Math.min(m_Data.remaining(), buffer.length);
+			m_Data.get(buffer, 0, length);
 
-		public PacketReceiver() {
-			m_Continue = true;
-		}// constructor
+			return length;
+		}
+	}
+
+	/**
+	 * Source of a request that has not been answered yet.
+	 */
+	private static final class Pending {
+		SocketAddress m_Source;
+		long m_Time;
+		Pending m_Next;
+	}
+
+	class PacketReceiver implements Runnable {
 
 		public void run() {
-			do {
+			while (m_Active) {
+				Packet packet = null;
 				try {
-					// 1. Prepare buffer and receive package
-					byte[] buffer = new byte[256];// max size
-					DatagramPacket packet = new DatagramPacket(buffer,
-							buffer.length);
-					m_Socket.receive(packet);
-					// 2. Extract TID and remember request
-					Integer tid = new Integer(ModbusUtil.registersToInt(buffer));
-					m_Requests.put(tid, packet);
-					// 3. place the data buffer in the queue
-					m_ReceiveQueue.put(buffer);
+					// 1. Take a free buffer and receive into it
+					packet = m_Free.take();
+					packet.m_Data.clear();
+					packet.m_Source = m_Channel.receive(packet.m_Data);
+					packet.m_Data.flip();
+
+					// 2. Drop anything too short to carry a header
+					if (packet.m_Data.remaining() < 8) {
+						release(packet);
+						continue;
+					}
+					// 3. Hand it to the readers
+					m_Ready.put(packet);
+				} catch (ClosedChannelException ex) {
+					break;
+				} catch (InterruptedException ex) {
+					break;
+				} catch (IOException ex) {
+					if (packet != null)
+						release(packet);
 					if (Modbus.debug)
-						System.out.println("Received package to queue.");
-				} catch (Exception ex) {
-					ex.printStackTrace();
+						ex.printStackTrace();
 				}
-			} while (m_Continue);
-		}
-
-		public void stop() {
-			m_Continue = false;
+			}
 		}
 	}
 }
@@ -79,6 +79,20 @@ public interface UDPTerminal {
    */
   public void deactivate();
 
+  /**
+   * Returns the time to wait for a message.
+   *
+   * @return the timeout in milliseconds.
+   */
+  public int getTimeout();
+
+  /**
+   * Sets the time to wait for a message.
+   *
+   * @param timeout the timeout in milliseconds.
+   */
+  public void setTimeout(int timeout);
+
   /**
    * Returns the <tt>ModbusTransport</tt> associated with this
    * <tt>UDPTerminal</tt>.
@@ -95,6 +109,15 @@ public interface UDPTerminal {
    */
   public void sendMessage(byte[] msg) throws Exception;
 
+  /**
+   * Sends the first <tt>length</tt> bytes of the given buffer as a message.
+   *
+   * @param msg the buffer holding the message.
+   * @param length the length of the message.
+   * @throws Exception if sending the message fails.
+   */
+  public void sendMessage(byte[] msg, int length) throws Exception;
+
   /**
    * Receives and returns a message.
    *
@@ -103,4 +126,13 @@ public interface UDPTerminal {
    */
   public byte[] receiveMessage() throws Exception;
 
+  /**
+   * Receives a message into the given buffer.
+   *
+   * @param buffer the buffer to receive into.
+   * @return the length of the message.
+   * @throws Exception if receiving a message fails.
+   */
+  public int receiveMessage(byte[] buffer) throws Exception;
+
 }//interface UDPTerminal
@@ -0,0 +1,253 @@
+//License
+/***
+ * Java Modbus Library (jamod)
+ * Copyright (c) 2002-2004, jamod development team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.net;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.ghgande.j2mod.modbus.msg.ModbusRequest;
+import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+import com.ghgande.j2mod.modbus.procimg.ProcessImage;
+
+/**
+ * Class implementing the routing of requests to one of several process
+ * images or request handlers by unit identifier, so that a single listener
+ * can serve many devices.
+ * 
+ * <p>
+ * The router holds a table with an entry for each of the 256 unit
+ * identifiers. A unit with a <tt>ModbusRequestHandler</tt> is answered by
+ * the handler, which takes precedence over its process image. Units
+ * without an entry of their own are answered from the default image, if
+ * one is set; requests for other units are not answered, as for a device
+ * which does not exist. Lookups take no lock, so the table can be changed
+ * while listeners are serving requests.
+ * 
+ * <p>
+ * A router is installed with <tt>setUnitRouter()</tt> on the TCP, UDP and
+ * serial listeners. Listeners without a router answer every request from the
+ * process image of the <tt>ModbusCoupler</tt>, as before. Read requests may be
+ * answered from a <tt>ResponseCache</tt>, which is set on the router.
+ */
+public class UnitRouter implements ModbusRequestHandler {
+
+	// instance attributes
+	private AtomicReferenceArray<ProcessImage> m_Images = new AtomicReferenceArray<ProcessImage>(
+			256);
+	private AtomicReferenceArray<ModbusRequestHandler> m_Handlers = new AtomicReferenceArray<ModbusRequestHandler>(
+			256);
+	private volatile ProcessImage m_Default;
+	private volatile ResponseCache m_Cache;
+
+	/**
+	 * Sets the process image of a unit.
+	 * 
+	 * @param unit
+	 *            the unit identifier, between <tt>0</tt> and <tt>255</tt>.
+	 * @param procimg
+	 *            the <tt>ProcessImage</tt>, or <tt>null</tt> to remove the
+	 *            entry of the unit.
+	 */
+	public void setProcessImage(int unit, ProcessImage procimg) {
+		m_Images.set(checkUnit(unit), procimg);
+	}
+
+	/**
+	 * Returns the process image of a unit.
+	 * 
+	 * @param unit
+	 *            the unit identifier, between <tt>0</tt> and <tt>255</tt>.
+	 * @return the <tt>ProcessImage</tt> of the unit, or <tt>null</tt> if it
+	 *         has no entry of its own.
+	 */
+	public ProcessImage getProcessImage(int unit) {
+		return m_Images.get(checkUnit(unit));
+	}
+
+	/**
+	 * Removes the process image of a unit.
+	 * 
+	 * @param unit
+	 *            the unit identifier, between <tt>0</tt> and <tt>255</tt>.
+	 */
+	public void removeProcessImage(int unit) {
+		setProcessImage(unit, null);
+	}
+
+	/**
+	 * Sets the handler of a unit, which answers its requests instead of a
+	 * process image.
+	 * 
+	 * @param unit
+	 *            the unit identifier, between <tt>0</tt> and <tt>255</tt>.
+	 * @param handler
+	 *            the <tt>ModbusRequestHandler</tt>, or <tt>null</tt> to remove
+	 *            the handler of the unit.
+	 */
+	public void setRequestHandler(int unit, ModbusRequestHandler handler) {
+		m_Handlers.set(checkUnit(unit), handler);
+	}
+
+	/**
+	 * Returns the handler of a unit.
+	 * 
+	 * @param unit
+	 *            the unit identifier, between <tt>0</tt> and <tt>255</tt>.
+	 * @return the <tt>ModbusRequestHandler</tt> of the unit, or <tt>null</tt>
+	 *         if it is answered from a process image.
+	 */
+	public ModbusRequestHandler getRequestHandler(int unit) {
+		return m_Handlers.get(checkUnit(unit));
+	}
+
+	/**
+	 * Sets the process image answering units without an entry of their own.
+	 * 
+	 * @param procimg
+	 *            the default <tt>ProcessImage</tt>, or <tt>null</tt> to leave
+	 *            such units unanswered.
+	 */
+	public void setDefaultProcessImage(ProcessImage procimg) {
+		m_Default = procimg;
+	}
+
+	/**
+	 * Returns the process image answering units without an entry of their
+	 * own.
+	 * 
+	 * @return the default <tt>ProcessImage</tt>, or <tt>null</tt>.
+	 */
+	public ProcessImage getDefaultProcessImage() {
+		return m_Default;
+	}
+
+	/**
+	 * Returns the cache of encoded responses.
+	 * 
+	 * @return the <tt>ResponseCache</tt>, or <tt>null</tt> if responses are
+	 *         not cached.
+	 */
+	public ResponseCache getResponseCache() {
+		return m_Cache;
+	}
+
+	/**
+	 * Sets the cache of encoded responses, which answers read requests for
+	 * ranges that have not changed since they were last read. Only ranges
+	 * whose process image can tell when their values change are cached, such
+	 * as ranges of <tt>ObservableRegister</tt> or <tt>ObservableDigitalOut</tt>
+	 * objects in a <tt>SimpleProcessImage</tt>. The default of <tt>null</tt>
+	 * answers every request from the process image.
+	 * 
+	 * @param cache
+	 *            the <tt>ResponseCache</tt>, or <tt>null</tt>.
+	 */
+	public void setResponseCache(ResponseCache cache) {
+		m_Cache = cache;
+	}
+
+	/**
+	 * Returns the number of units with an entry of their own.
+	 * 
+	 * @return the unit count.
+	 */
+	public int getUnitCount() {
+		int count = 0;
+
+		for (int i = 0; i < 256; i++)
+			if (m_Images.get(i) != null || m_Handlers.get(i) != null)
+				count++;
+
+		return count;
+	}
+
+	/**
+	 * Returns the process image which answers a unit.
+	 * 
+	 * @param unit
+	 *            the unit identifier.
+	 * @return the <tt>ProcessImage</tt> of the unit, the default image, or
+	 *         <tt>null</tt> if the unit is not served.
+	 */
+	public ProcessImage route(int unit) {
+		ProcessImage procimg = m_Images.get(unit & 0xFF);
+
+		return procimg != null ? procimg : m_Default;
+	}
+
+	/**
+	 * Creates the response to a request from the process image of its unit.
+	 * 
+	 * @param request
+	 *            the <tt>ModbusRequest</tt> received.
+	 * @return the <tt>ModbusResponse</tt>, or <tt>null</tt> if the unit is
+	 *         not served.
+	 */
+	public ModbusResponse createResponse(ModbusRequest request) {
+		ProcessImage procimg = route(request.getUnitID());
+		if (procimg == null)
+			return null;
+
+		ResponseCache cache = m_Cache;
+		if (cache != null)
+			return cache.createResponse(request, procimg);
+
+		return request.createResponse(procimg);
+	}
+
+	/**
+	 * Handles a request, with the handler of its unit if it has one, and
+	 * from the process image of the unit otherwise.
+	 * 
+	 * @param request
+	 *            the <tt>ModbusRequest</tt> received.
+	 * @return the <tt>CompletionStage</tt> of the <tt>ModbusResponse</tt>,
+	 *         which completes with <tt>null</tt> if the unit is not served.
+	 */
+	public CompletionStage<ModbusResponse> handleRequest(ModbusRequest request) {
+		ModbusRequestHandler handler = m_Handlers.get(request.getUnitID() & 0xFF);
+		if (handler != null)
+			return handler.handleRequest(request);
+
+		return CompletableFuture.completedFuture(createResponse(request));
+	}
+
+	private static int checkUnit(int unit) {
+		if (unit < 0 || unit > 255)
+			throw new IllegalArgumentException("Invalid unit: " + unit);
+
+		return unit;
+	}
+}
@@ -67,6 +67,11 @@
 package com.ghgande.j2mod.modbus.procimg;
 
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.ghgande.j2mod.modbus.util.Observable;
+import com.ghgande.j2mod.modbus.util.Observer;
 
 /**
  * Class implementing a simple process image to be able to run unit tests or
@@ -77,12 +82,27 @@ import java.util.Vector;
  * objects. Holes may be created by adding a object with a reference after the
  * last object reference of that type.
  * 
+ * <p>
+ * The image keeps a version for every block of 64 references of each type,
+ * which is incremented when objects are added, replaced or removed, and by
+ * the write requests. Objects which are <tt>Observable</tt>, such as
+ * <tt>ObservableRegister</tt> and <tt>ObservableDigitalOut</tt>, increment
+ * the version of their block whenever their value changes. Any other object
+ * cannot report a change of its value, so a range holding one has no
+ * version. The counters are only allocated once a version has been asked
+ * for.
+ * 
  * @author Dieter Wimberger
  * @version 1.2rc1 (09/11/2004)
  * 
  * @author Julie Added support for files of records.
  */
-public class SimpleProcessImage implements ProcessImageImplementation {
+public class SimpleProcessImage implements ProcessImageImplementation,
+		VersionedProcessImage {
+
+	// number of references sharing a version, as a power of two
+	private static final int VERSION_SHIFT = 6;
+	private static final int VERSION_BLOCKS = 65536 >> VERSION_SHIFT;
 
 	// instance attributes
 	protected Vector<DigitalIn> m_DigitalInputs;
@@ -93,6 +113,8 @@ public class SimpleProcessImage implements ProcessImageImplementation {
 	protected Vector<FIFO> m_FIFOs;
 	protected boolean m_Locked = false;
 	protected int m_Unit = 0;
+	private volatile AtomicLongArray m_Versions;
+	private AtomicLong m_VersionCounter = new AtomicLong();
 
 	/**
 	 * Constructs a new <tt>SimpleProcessImage</tt> instance.
@@ -151,9 +173,104 @@ public class SimpleProcessImage implements ProcessImageImplementation {
 		return m_Unit;
 	}
 
+	public long getVersion(int type, int ref, int count) {
+		if (!observe(checkType(type), ref, count))
+			return UNVERSIONED;
+
+		AtomicLongArray versions = m_Versions;
+		if (versions == null) {
+			synchronized (this) {
+				if (m_Versions == null)
+					m_Versions = new AtomicLongArray(4 * (VERSION_BLOCKS + 1));
+
+				versions = m_Versions;
+			}
+		}
+		int base = checkType(type) * (VERSION_BLOCKS + 1);
+		long version = versions.get(base + VERSION_BLOCKS);
+		int first = Math.max(ref, 0) >> VERSION_SHIFT;
+		int last = Math.min(ref + Math.max(count, 1) - 1, 65535) >> VERSION_SHIFT;
+
+		for (int i = first; i <= last; i++)
+			version = Math.max(version, versions.get(base + i));
+
+		return version;
+	}
+
+	public void incrementVersion(int type, int ref, int count) {
+		AtomicLongArray versions = m_Versions;
+		if (versions == null)
+			return;
+
+		int base = checkType(type) * (VERSION_BLOCKS + 1);
+		int first = Math.max(ref, 0) >> VERSION_SHIFT;
+		int last = Math.min(ref + Math.max(count, 1) - 1, 65535) >> VERSION_SHIFT;
+		long version = m_VersionCounter.incrementAndGet();
+
+		for (int i = first; i <= last; i++)
+			versions.set(base + i, version);
+	}
+
+	/**
+	 * Increments the version of every object of a type, after objects have
+	 * been added, replaced or removed.
+	 */
+	private void incrementVersion(int type) {
+		AtomicLongArray versions = m_Versions;
+		if (versions == null)
+			return;
+
+		versions.set(type * (VERSION_BLOCKS + 1) + VERSION_BLOCKS,
+				m_VersionCounter.incrementAndGet());
+	}
+
+	/**
+	 * Makes every object of a range report its changes to this image.
+	 * 
+	 * @return false if an object of the range cannot report its changes.
+	 */
+	private boolean observe(int type, int ref, int count) {
+		Vector<?> objects = getObjects(type);
+
+		synchronized (objects) {
+			int last = Math.min(ref + count, objects.size());
+			for (int i = Math.max(ref, 0); i < last; i++) {
+				Object object = objects.elementAt(i);
+				if (object == null)
+					continue;
+				if (!(object instanceof Observable))
+					return false;
+
+				((Observable) object).addObserver(new VersionObserver(type, i));
+			}
+		}
+		return true;
+	}
+
+	private Vector<?> getObjects(int type) {
+		switch (type) {
+		case DIGITAL_IN:
+			return m_DigitalInputs;
+		case DIGITAL_OUT:
+			return m_DigitalOutputs;
+		case INPUT_REGISTER:
+			return m_InputRegisters;
+		default:
+			return m_Registers;
+		}
+	}
+
+	private static int checkType(int type) {
+		if (type < DIGITAL_IN || type > REGISTER)
+			throw new IllegalArgumentException("Invalid type: " + type);
+
+		return type;
+	}
+
 	public void addDigitalIn(DigitalIn di) {
 		if (!isLocked()) {
 			m_DigitalInputs.addElement(di);
+			incrementVersion(DIGITAL_IN);
 		}
 	}
 	
@@ -165,10 +282,12 @@ public class SimpleProcessImage implements ProcessImageImplementation {
 			synchronized (m_DigitalInputs) {
 				if (ref < m_DigitalInputs.size()) {
 					m_DigitalInputs.setElementAt(d1, ref);
+					incrementVersion(DIGITAL_IN);
 					return;
 				}
 				m_DigitalInputs.setSize(ref + 1);
 				m_DigitalInputs.setElementAt(d1, ref);
+				incrementVersion(DIGITAL_IN);
 			}
 		}
 	}
@@ -176,6 +295,7 @@ public class SimpleProcessImage implements ProcessImageImplementation {
 	public void removeDigitalIn(DigitalIn di) {
 		if (!isLocked()) {
 			m_DigitalInputs.removeElement(di);
+			incrementVersion(DIGITAL_IN);
 		}
 	}
 
@@ -187,6 +307,7 @@ public class SimpleProcessImage implements ProcessImageImplementation {
 					throw new IllegalAddressException();
 				
 				m_DigitalInputs.setElementAt(di, ref);
+				incrementVersion(DIGITAL_IN);
 			} catch (IndexOutOfBoundsException ex) {
 				throw new IllegalAddressException();
 			}
@@ -225,6 +346,7 @@ public class SimpleProcessImage implements ProcessImageImplementation {
 	public void addDigitalOut(DigitalOut _do) {
 		if (!isLocked()) {
 			m_DigitalOutputs.addElement(_do);
+			incrementVersion(DIGITAL_OUT);
 		}
 	}
 
@@ -236,10 +358,12 @@ public class SimpleProcessImage implements ProcessImageImplementation {
 			synchronized (m_DigitalOutputs) {
 				if (ref < m_DigitalOutputs.size()) {
 					m_DigitalOutputs.setElementAt(dout, ref);
+					incrementVersion(DIGITAL_OUT);
 					return;
 				}
 				m_DigitalOutputs.setSize(ref + 1);
 				m_DigitalOutputs.setElementAt(dout, ref);
+				incrementVersion(DIGITAL_OUT);
 			}
 		}
 	}
@@ -247,6 +371,7 @@ public class SimpleProcessImage implements ProcessImageImplementation {
 	public void removeDigitalOut(DigitalOut _do) {
 		if (!isLocked()) {
 			m_DigitalOutputs.removeElement(_do);
+			incrementVersion(DIGITAL_OUT);
 		}
 	}
 
@@ -258,6 +383,7 @@ public class SimpleProcessImage implements ProcessImageImplementation {
 					throw new IllegalAddressException();
 				
 				m_DigitalOutputs.setElementAt(_do, ref);
+				incrementVersion(DIGITAL_OUT);
 			} catch (IndexOutOfBoundsException ex) {
 				throw new IllegalAddressException();
 			}
@@ -296,6 +422,7 @@ public class SimpleProcessImage implements ProcessImageImplementation {
 	public void addInputRegister(InputRegister reg) {
 		if (!isLocked()) {
 			m_InputRegisters.addElement(reg);
+			incrementVersion(INPUT_REGISTER);
 		}
 	}
 
@@ -307,10 +434,12 @@ public class SimpleProcessImage implements ProcessImageImplementation {
 			synchronized (m_InputRegisters) {
 				if (ref < m_InputRegisters.size()) {
 					m_InputRegisters.setElementAt(inReg, ref);
+					incrementVersion(INPUT_REGISTER);
 					return;
 				}
 				m_InputRegisters.setSize(ref + 1);
 				m_InputRegisters.setElementAt(inReg, ref);
+				incrementVersion(INPUT_REGISTER);
 			}
 		}
 	}
@@ -318,6 +447,7 @@ public class SimpleProcessImage implements ProcessImageImplementation {
 	public void removeInputRegister(InputRegister reg) {
 		if (!isLocked()) {
 			m_InputRegisters.removeElement(reg);
+			incrementVersion(INPUT_REGISTER);
 		}
 	}
 
@@ -329,6 +459,7 @@ public class SimpleProcessImage implements ProcessImageImplementation {
 					throw new IllegalAddressException();
 				
 				m_InputRegisters.setElementAt(reg, ref);
+				incrementVersion(INPUT_REGISTER);
 			} catch (IndexOutOfBoundsException ex) {
 				throw new IllegalAddressException();
 			}
@@ -367,6 +498,7 @@ public class SimpleProcessImage implements ProcessImageImplementation {
 	public void addRegister(Register reg) {
 		if (!isLocked()) {
 			m_Registers.addElement(reg);
+			incrementVersion(REGISTER);
 		}
 	}
 
@@ -378,10 +510,12 @@ public class SimpleProcessImage implements ProcessImageImplementation {
 			synchronized (m_Registers) {
 				if (ref < m_Registers.size()) {
 					m_Registers.setElementAt(reg, ref);
+					incrementVersion(REGISTER);
 					return;
 				}
 				m_Registers.setSize(ref + 1);
 				m_Registers.setElementAt(reg, ref);
+				incrementVersion(REGISTER);
 			}
 		}
 	}
@@ -389,6 +523,7 @@ public class SimpleProcessImage implements ProcessImageImplementation {
 	public void removeRegister(Register reg) {
 		if (!isLocked()) {
 			m_Registers.removeElement(reg);
+			incrementVersion(REGISTER);
 		}
 	}
 
@@ -400,6 +535,7 @@ public class SimpleProcessImage implements ProcessImageImplementation {
 					throw new IllegalAddressException();
 				
 				m_Registers.setElementAt(reg, ref);
+				incrementVersion(REGISTER);
 			} catch (IndexOutOfBoundsException ex) {
 				throw new IllegalAddressException();
 			}
@@ -570,4 +706,42 @@ public class SimpleProcessImage implements ProcessImageImplementation {
 		return null;
 	}
 
+
+	/**
+	 * Class incrementing the version of the block of an object when its value
+	 * changes. Observers are equal if they watch the same reference of the
+	 * same image, so that an object is observed only once for every place it
+	 * has in the image.
+	 */
+	private final class VersionObserver implements Observer {
+		private final int m_Type;
+		private final int m_Reference;
+
+		VersionObserver(int type, int ref) {
+			m_Type = type;
+			m_Reference = ref;
+		}
+
+		public void update(Observable o, Object arg) {
+			incrementVersion(m_Type, m_Reference, 1);
+		}
+
+		private SimpleProcessImage getImage() {
+			return SimpleProcessImage.this;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof VersionObserver))
+				return false;
+
+			VersionObserver other = (VersionObserver) o;
+			return other.getImage() == getImage() && other.m_Type == m_Type
+					&& other.m_Reference == m_Reference;
+		}
+
+		public int hashCode() {
+			return System.identityHashCode(getImage()) * 31
+					+ (m_Type << 16 | m_Reference);
+		}
+	}
 }
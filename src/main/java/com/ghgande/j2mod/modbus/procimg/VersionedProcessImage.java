@@ -0,0 +1,104 @@
+//License
+/***
+ * Java Modbus Library (jamod)
+ * Copyright (c) 2002-2004, jamod development team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.procimg;
+
+/**
+ * Interface defining a process image which keeps version counters for
+ * ranges of its objects, so that a value derived from a range, such as an
+ * encoded response, can be reused until the range changes.
+ * 
+ * <p>
+ * The write requests increment the versions of the ranges they change. An
+ * image which cannot tell when the values of a range change, for instance
+ * because an application sets them directly, must return
+ * <tt>UNVERSIONED</tt> for it, unless the application calls
+ * <tt>incrementVersion()</tt> after every change.
+ */
+public interface VersionedProcessImage extends ProcessImage {
+
+	/**
+	 * Defines the type of the <tt>DigitalIn</tt> objects (=<tt>0</tt>).
+	 */
+	public static final int DIGITAL_IN = 0;
+
+	/**
+	 * Defines the type of the <tt>DigitalOut</tt> objects (=<tt>1</tt>).
+	 */
+	public static final int DIGITAL_OUT = 1;
+
+	/**
+	 * Defines the type of the <tt>InputRegister</tt> objects (=<tt>2</tt>).
+	 */
+	public static final int INPUT_REGISTER = 2;
+
+	/**
+	 * Defines the type of the <tt>Register</tt> objects (=<tt>3</tt>).
+	 */
+	public static final int REGISTER = 3;
+
+	/**
+	 * Defines the version of a range whose changes cannot be told
+	 * (=<tt>-1</tt>).
+	 */
+	public static final long UNVERSIONED = -1;
+
+	/**
+	 * Returns the version of a range of objects. The version changes
+	 * whenever an object of the range is changed or replaced.
+	 * <tt>UNVERSIONED</tt> is returned if an object of the range may change
+	 * without the version changing as well.
+	 * 
+	 * @param type
+	 *            the type of the objects.
+	 * @param ref
+	 *            the reference of the first object.
+	 * @param count
+	 *            the number of objects.
+	 * @return the version of the range, or <tt>UNVERSIONED</tt>.
+	 */
+	public long getVersion(int type, int ref, int count);
+
+	/**
+	 * Increments the version of a range of objects, after they have been
+	 * changed.
+	 * 
+	 * @param type
+	 *            the type of the objects.
+	 * @param ref
+	 *            the reference of the first object.
+	 * @param count
+	 *            the number of objects.
+	 */
+	public void incrementVersion(int type, int ref, int count);
+}
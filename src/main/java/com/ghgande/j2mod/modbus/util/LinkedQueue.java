@@ -38,6 +38,13 @@
  ***/
 package com.ghgande.j2mod.modbus.util;
 
+/**
+ * Class implementing an unbounded, blocking FIFO queue.
+ *
+ * @deprecated Use a <tt>java.util.concurrent.BlockingQueue</tt> instead;
+ *             <tt>ThreadPool</tt> no longer uses this class.
+ */
+@Deprecated
 public class LinkedQueue {
 
   /**
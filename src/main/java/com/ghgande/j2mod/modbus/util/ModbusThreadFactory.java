@@ -0,0 +1,201 @@
+//License
+/***
+ * Java Modbus Library (jamod)
+ * Copyright (c) 2002-2004, jamod development team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.ghgande.j2mod.modbus.Modbus;
+
+/**
+ * Class implementing the <tt>ThreadFactory</tt> used for handler and worker
+ * threads, which creates virtual threads when asked to and the runtime
+ * supports them (Java 21 and later), and platform threads otherwise.
+ * <p>
+ * Virtual threads are cheap enough to give every connection or device its
+ * own thread, so that the blocking transports scale to many thousands of
+ * connections. They are always daemon threads.
+ * <p>
+ * The library is built for older runtimes, so virtual threads are created
+ * through reflection. Whether they are used by default is controlled with
+ * <tt>setVirtualDefault()</tt>; threads which keep the JVM alive, such as
+ * those returned by <tt>listen()</tt>, are never virtual.
+ */
+public class ModbusThreadFactory implements ThreadFactory {
+
+  //virtual thread support
+  private static final Method c_OfVirtual;
+  private static final Method c_Name;
+  private static final Method c_Unstarted;
+  private static volatile boolean c_VirtualDefault = false;
+
+  static {
+    Method ofVirtual = null;
+    Method name = null;
+    Method unstarted = null;
+    try {
+      Class<?> builder = Class.forName("java.lang.Thread$Builder");
+      ofVirtual = Thread.class.getMethod("ofVirtual");
+      name = builder.getMethod("name", String.class);
+      unstarted = builder.getMethod("unstarted", Runnable.class);
+
+      //preview builds have the methods, but may refuse to create threads
+      unstarted.invoke(name.invoke(ofVirtual.invoke(null), "probe"),
+          new Runnable() {
+            public void run() {
+            }
+          });
+    } catch (Exception ex) {
+      ofVirtual = null;
+    } catch (LinkageError ex) {
+      ofVirtual = null;
+    }
+    c_OfVirtual = ofVirtual;
+    c_Name = name;
+    c_Unstarted = unstarted;
+  }
+
+  //instance attributes
+  private String m_Name;
+  private boolean m_Daemon;
+  private boolean m_Virtual;
+  private AtomicInteger m_Count = new AtomicInteger();
+
+  /**
+   * Constructs a new <tt>ModbusThreadFactory</tt> which creates virtual
+   * threads if they are enabled by default.
+   *
+   * @param name the prefix of the thread names.
+   * @param daemon true if platform threads should be daemon threads.
+   */
+  public ModbusThreadFactory(String name, boolean daemon) {
+    this(name, daemon, c_VirtualDefault);
+  }//constructor
+
+  /**
+   * Constructs a new <tt>ModbusThreadFactory</tt>.
+   *
+   * @param name the prefix of the thread names.
+   * @param daemon true if platform threads should be daemon threads.
+   * @param virtual true if virtual threads should be created where
+   *        supported.
+   */
+  public ModbusThreadFactory(String name, boolean daemon, boolean virtual) {
+    m_Name = name;
+    m_Daemon = daemon;
+    m_Virtual = virtual;
+  }//constructor
+
+  /**
+   * Tests if this factory creates virtual threads.
+   *
+   * @return true if virtual, false otherwise.
+   */
+  public boolean isVirtual() {
+    return m_Virtual && isVirtualSupported();
+  }//isVirtual
+
+  /**
+   * Creates a new, unstarted thread, named after the prefix and a sequence
+   * number.
+   *
+   * @param task the <tt>Runnable</tt> to be run by the thread.
+   * @return the new <tt>Thread</tt>.
+   */
+  public Thread newThread(Runnable task) {
+    return newThread(task, m_Name + "-" + m_Count.getAndIncrement(),
+        m_Daemon, m_Virtual);
+  }//newThread
+
+  /**
+   * Creates a new, unstarted thread.
+   *
+   * @param task the <tt>Runnable</tt> to be run by the thread.
+   * @param name the name of the thread.
+   * @param daemon true if a platform thread should be a daemon thread.
+   * @param virtual true if a virtual thread should be created where
+   *        supported.
+   * @return the new <tt>Thread</tt>.
+   */
+  public static Thread newThread(Runnable task, String name, boolean daemon,
+                                 boolean virtual) {
+    if (virtual && c_OfVirtual != null) {
+      try {
+        return (Thread) c_Unstarted.invoke(
+            c_Name.invoke(c_OfVirtual.invoke(null), name), task);
+      } catch (Exception ex) {
+        if (Modbus.debug) {
+          System.err.println("virtual thread not created: " + ex);
+        }
+      }
+    }
+    Thread result = new Thread(task, name);
+    result.setDaemon(daemon);
+    return result;
+  }//newThread
+
+  /**
+   * Tests if the runtime supports virtual threads.
+   *
+   * @return true if supported, false otherwise.
+   */
+  public static boolean isVirtualSupported() {
+    return c_OfVirtual != null;
+  }//isVirtualSupported
+
+  /**
+   * Tests if handler and worker threads are virtual by default.
+   *
+   * @return true if virtual by default, false otherwise.
+   */
+  public static boolean isVirtualDefault() {
+    return c_VirtualDefault;
+  }//isVirtualDefault
+
+  /**
+   * Sets whether handler and worker threads created from now on are
+   * virtual by default. This covers the workers of the asynchronous facade
+   * methods, the readers of <tt>ModbusTCPPipeline</tt>, the threads of
+   * <tt>UDPSlaveTerminal</tt> and the connection handlers of
+   * <tt>ModbusTCPListener</tt>. It has no effect on
+   * runtimes without virtual threads. The default is <tt>false</tt>.
+   *
+   * @param b true if virtual by default, false otherwise.
+   */
+  public static void setVirtualDefault(boolean b) {
+    c_VirtualDefault = b;
+  }//setVirtualDefault
+
+}//class ModbusThreadFactory
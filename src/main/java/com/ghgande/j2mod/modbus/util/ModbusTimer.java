@@ -0,0 +1,118 @@
+//License
+/***
+ * Java Modbus Library (jamod)
+ * Copyright (c) 2002-2004, jamod development team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.util;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Class implementing a shared timer for request timeouts.
+ *
+ * <p>
+ * A single daemon thread runs every timeout of the library. Timeouts are
+ * removed as soon as the operation they guard completes, so the timer never
+ * holds more entries than there are operations in flight.
+ */
+public final class ModbusTimer {
+
+	// class attributes
+	private static ScheduledThreadPoolExecutor c_Timer;
+
+	/**
+	 * Prevents instantiation.
+	 */
+	private ModbusTimer() {
+	}
+
+	/**
+	 * Returns the shared timer, creating it the first time it is needed.
+	 *
+	 * @return the <tt>ScheduledThreadPoolExecutor</tt> running the timeouts.
+	 */
+	public static synchronized ScheduledThreadPoolExecutor getTimer() {
+		if (c_Timer == null) {
+			c_Timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				public Thread newThread(Runnable task) {
+					Thread result = new Thread(task, "ModbusTimer");
+					result.setDaemon(true);
+					return result;
+				}
+			});
+			c_Timer.setRemoveOnCancelPolicy(true);
+		}
+		return c_Timer;
+	}
+
+	/**
+	 * Runs a task after the given delay.
+	 *
+	 * @param task
+	 *            the <tt>Runnable</tt> to be run.
+	 * @param delay
+	 *            the delay in milliseconds.
+	 * @return the <tt>ScheduledFuture</tt> which can be used to cancel the
+	 *         task.
+	 */
+	public static ScheduledFuture<?> schedule(Runnable task, long delay) {
+		return getTimer().schedule(task, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Runs a task if the given future has not completed within the timeout.
+	 * The task is cancelled as soon as the future completes.
+	 *
+	 * @param future
+	 *            the future to be guarded.
+	 * @param timeout
+	 *            the timeout in milliseconds.
+	 * @param onTimeout
+	 *            the task which expires the future.
+	 */
+	public static <T> void expire(CompletableFuture<T> future, long timeout,
+			Runnable onTimeout) {
+		if (future.isDone())
+			return;
+
+		final ScheduledFuture<?> timer = schedule(onTimeout, timeout);
+		future.whenComplete(new BiConsumer<T, Throwable>() {
+			public void accept(T result, Throwable failure) {
+				timer.cancel(false);
+			}
+		});
+	}
+}
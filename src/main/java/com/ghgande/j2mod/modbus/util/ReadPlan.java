@@ -0,0 +1,327 @@
+//License
+/***
+ * Java Modbus Library (jamod)
+ * Copyright (c) 2002-2004, jamod development team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.util;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.ModbusSlaveException;
+import com.ghgande.j2mod.modbus.io.ModbusTransaction;
+import com.ghgande.j2mod.modbus.msg.ExceptionResponse;
+import com.ghgande.j2mod.modbus.msg.ModbusRequest;
+import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+import com.ghgande.j2mod.modbus.msg.ReadCoilsRequest;
+import com.ghgande.j2mod.modbus.msg.ReadCoilsResponse;
+import com.ghgande.j2mod.modbus.msg.ReadInputDiscretesRequest;
+import com.ghgande.j2mod.modbus.msg.ReadInputDiscretesResponse;
+import com.ghgande.j2mod.modbus.msg.ReadInputRegistersRequest;
+import com.ghgande.j2mod.modbus.msg.ReadInputRegistersResponse;
+import com.ghgande.j2mod.modbus.msg.ReadMultipleRegistersRequest;
+import com.ghgande.j2mod.modbus.msg.ReadMultipleRegistersResponse;
+
+/**
+ * Class holding the requests planned by a <tt>ReadPlanner</tt>, and the
+ * mapping of their responses back to the original ranges.
+ * <p>
+ * A plan is immutable. It can be executed any number of times, also by
+ * several threads at once, as long as each execution uses its own
+ * <tt>Result</tt>.
+ */
+public class ReadPlan {
+
+  //instance attributes
+  private ReadRange[] m_Ranges;
+  private int[][] m_Blocks;
+  private int[][] m_Segments;
+
+  /**
+   * Constructs a new <tt>ReadPlan</tt>.
+   *
+   * @param ranges the ranges to be read.
+   * @param blocks the requests, as {unit, function, ref, count}.
+   * @param segments the parts of the blocks each range is copied from, as
+   *        {block, block offset, range offset, count} entries.
+   */
+  ReadPlan(ReadRange[] ranges, int[][] blocks, int[][] segments) {
+    m_Ranges = ranges;
+    m_Blocks = blocks;
+
+    //index the segments by block, as {range, block offset, range offset, count}
+    int[] sizes = new int[blocks.length];
+    for (int r = 0; r < segments.length; r++) {
+      for (int p = 0; p < segments[r].length; p += 4) {
+        sizes[segments[r][p]] += 4;
+      }
+    }
+    m_Segments = new int[blocks.length][];
+    for (int b = 0; b < blocks.length; b++) {
+      m_Segments[b] = new int[sizes[b]];
+      sizes[b] = 0;
+    }
+    for (int r = 0; r < segments.length; r++) {
+      for (int p = 0; p < segments[r].length; p += 4) {
+        int[] parts = m_Segments[segments[r][p]];
+        int n = sizes[segments[r][p]];
+        parts[n] = r;
+        System.arraycopy(segments[r], p + 1, parts, n + 1, 3);
+        sizes[segments[r][p]] = n + 4;
+      }
+    }
+  }//constructor
+
+  /**
+   * Returns the number of ranges read by this plan.
+   *
+   * @return the number of ranges.
+   */
+  public int getRangeCount() {
+    return m_Ranges.length;
+  }//getRangeCount
+
+  /**
+   * Returns a range read by this plan.
+   *
+   * @param index the index of the range, as passed to the planner.
+   * @return the <tt>ReadRange</tt>.
+   */
+  public ReadRange getRange(int index) {
+    return m_Ranges[index];
+  }//getRange
+
+  /**
+   * Returns the number of requests needed to read every range.
+   *
+   * @return the number of requests.
+   */
+  public int getRequestCount() {
+    return m_Blocks.length;
+  }//getRequestCount
+
+  /**
+   * Creates a new instance of one of the planned requests.
+   *
+   * @param index the index of the request.
+   * @return the <tt>ModbusRequest</tt>, with its unit id set.
+   */
+  public ModbusRequest createRequest(int index) {
+    int[] block = m_Blocks[index];
+    ModbusRequest request;
+
+    switch (block[1]) {
+      case Modbus.READ_COILS:
+        request = new ReadCoilsRequest(block[2], block[3]);
+        break;
+      case Modbus.READ_INPUT_DISCRETES:
+        request = new ReadInputDiscretesRequest(block[2], block[3]);
+        break;
+      case Modbus.READ_INPUT_REGISTERS:
+        request = new ReadInputRegistersRequest(block[2], block[3]);
+        break;
+      default:
+        request = new ReadMultipleRegistersRequest(block[2], block[3]);
+        break;
+    }
+    request.setUnitID(block[0]);
+    return request;
+  }//createRequest
+
+  /**
+   * Creates a new instance of every planned request.
+   *
+   * @return the <tt>ModbusRequest</tt> instances, in plan order.
+   */
+  public ModbusRequest[] createRequests() {
+    ModbusRequest[] requests = new ModbusRequest[m_Blocks.length];
+    for (int i = 0; i < requests.length; i++) {
+      requests[i] = createRequest(i);
+    }
+    return requests;
+  }//createRequests
+
+  /**
+   * Creates an empty result for one execution of this plan.
+   *
+   * @return a new <tt>Result</tt>.
+   */
+  public Result newResult() {
+    return new Result(this);
+  }//newResult
+
+  /**
+   * Copies the values of a response to the ranges it covers.
+   *
+   * @param index the index of the request the response belongs to.
+   * @param response the <tt>ModbusResponse</tt> received.
+   * @param result the <tt>Result</tt> to be filled in.
+   * @throws ModbusSlaveException if the response is an exception response.
+   * @throws ModbusException if the response does not match the request.
+   */
+  public void apply(int index, ModbusResponse response, Result result)
+      throws ModbusException {
+    int[] block = m_Blocks[index];
+
+    if (response instanceof ExceptionResponse) {
+      throw new ModbusSlaveException(
+          ((ExceptionResponse) response).getExceptionCode());
+    }
+    if (response == null || response.getFunctionCode() != block[1]
+        || count(response) < block[3]) {
+      throw new ModbusException("Response does not match request " + index);
+    }
+
+    int[] values = new int[block[3]];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = value(response, i);
+    }
+
+    int[] parts = m_Segments[index];
+    for (int p = 0; p < parts.length; p += 4) {
+      System.arraycopy(values, parts[p + 1], result.m_Values[parts[p]],
+          parts[p + 2], parts[p + 3]);
+    }
+    if (!result.m_Received[index]) {
+      result.m_Received[index] = true;
+      result.m_Pending--;
+    }
+  }//apply
+
+  /**
+   * Executes every planned request on the given transaction, one after
+   * the other.
+   *
+   * @param trans the <tt>ModbusTransaction</tt> to be used.
+   * @return the <tt>Result</tt> holding the values of every range.
+   * @throws ModbusException if a request fails.
+   */
+  public Result execute(ModbusTransaction trans) throws ModbusException {
+    Result result = newResult();
+
+    for (int i = 0; i < m_Blocks.length; i++) {
+      trans.setRequest(createRequest(i));
+      trans.execute();
+      apply(i, trans.getResponse(), result);
+    }
+    return result;
+  }//execute
+
+  private static int count(ModbusResponse response) {
+    switch (response.getFunctionCode()) {
+      case Modbus.READ_COILS:
+        return ((ReadCoilsResponse) response).getBitCount();
+      case Modbus.READ_INPUT_DISCRETES:
+        return ((ReadInputDiscretesResponse) response).getDiscretes().size();
+      case Modbus.READ_INPUT_REGISTERS:
+        return ((ReadInputRegistersResponse) response).getWordCount();
+      default:
+        return ((ReadMultipleRegistersResponse) response).getWordCount();
+    }
+  }//count
+
+  private static int value(ModbusResponse response, int i) {
+    switch (response.getFunctionCode()) {
+      case Modbus.READ_COILS:
+        return ((ReadCoilsResponse) response).getCoilStatus(i) ? 1 : 0;
+      case Modbus.READ_INPUT_DISCRETES:
+        return ((ReadInputDiscretesResponse) response)
+            .getDiscreteStatus(i) ? 1 : 0;
+      case Modbus.READ_INPUT_REGISTERS:
+        return ((ReadInputRegistersResponse) response).getRegisterValue(i);
+      default:
+        return ((ReadMultipleRegistersResponse) response).getRegisterValue(i);
+    }
+  }//value
+
+  /**
+   * Class holding the values read by one execution of a <tt>ReadPlan</tt>,
+   * per range. Register values are unsigned; bits are <tt>0</tt> or
+   * <tt>1</tt>.
+   */
+  public static class Result {
+
+    private int[][] m_Values;
+    private boolean[] m_Received;
+    private int m_Pending;
+
+    private Result(ReadPlan plan) {
+      m_Values = new int[plan.m_Ranges.length][];
+      for (int i = 0; i < m_Values.length; i++) {
+        m_Values[i] = new int[plan.m_Ranges[i].getCount()];
+      }
+      m_Received = new boolean[plan.m_Blocks.length];
+      m_Pending = m_Received.length;
+    }//constructor
+
+    /**
+     * Tests if a response has been applied for every request.
+     *
+     * @return true if every range holds the values read, false otherwise.
+     */
+    public boolean isComplete() {
+      return m_Pending == 0;
+    }//isComplete
+
+    /**
+     * Returns the values of a range.
+     *
+     * @param range the index of the range.
+     * @return the values, one per coil, discrete or register.
+     */
+    public int[] getValues(int range) {
+      return m_Values[range];
+    }//getValues
+
+    /**
+     * Returns one register value of a range.
+     *
+     * @param range the index of the range.
+     * @param index the index of the register within the range.
+     * @return the unsigned register value.
+     */
+    public int getValue(int range, int index) {
+      return m_Values[range][index];
+    }//getValue
+
+    /**
+     * Returns one bit of a coil or input discrete range.
+     *
+     * @param range the index of the range.
+     * @param index the index of the bit within the range.
+     * @return the state of the bit.
+     */
+    public boolean getBit(int range, int index) {
+      return m_Values[range][index] != 0;
+    }//getBit
+
+  }//class Result
+
+}//class ReadPlan
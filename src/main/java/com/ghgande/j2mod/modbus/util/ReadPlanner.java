@@ -0,0 +1,318 @@
+//License
+/***
+ * Java Modbus Library (jamod)
+ * Copyright (c) 2002-2004, jamod development team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Class implementing a planner which merges many small read ranges into the
+ * fewest read requests.
+ * <p>
+ * Ranges of the same unit and function are sorted and merged as long as the
+ * merged request stays within the PDU limit (125 registers or 2000 bits by
+ * default) and the hole between two ranges is no larger than the gap
+ * threshold. Reading a few unused registers is usually much cheaper than
+ * another round trip. A range which is larger than the limit is split over
+ * several requests.
+ * <p>
+ * The resulting <tt>ReadPlan</tt> does not depend on the planner and may be
+ * executed any number of times.
+ */
+public class ReadPlanner {
+
+  /**
+   * Defines the maximum number of registers in a read request
+   * (=<tt>125</tt>).
+   */
+  public static final int MAX_REGISTERS = 125;
+
+  /**
+   * Defines the maximum number of bits in a read request
+   * (=<tt>2000</tt>).
+   */
+  public static final int MAX_BITS = 2000;
+
+  //instance attributes
+  private int m_MaxRegisters = MAX_REGISTERS;
+  private int m_MaxBits = MAX_BITS;
+  private int m_RegisterGap = 0;
+  private int m_BitGap = 0;
+
+  /**
+   * Constructs a new <tt>ReadPlanner</tt> which only merges ranges
+   * that overlap or touch.
+   */
+  public ReadPlanner() {
+  }//constructor
+
+  /**
+   * Constructs a new <tt>ReadPlanner</tt> with the given gap thresholds.
+   *
+   * @param registerGap the largest number of unused registers read to merge
+   *        two register ranges.
+   * @param bitGap the largest number of unused bits read to merge two bit
+   *        ranges.
+   */
+  public ReadPlanner(int registerGap, int bitGap) {
+    setRegisterGap(registerGap);
+    setBitGap(bitGap);
+  }//constructor
+
+  /**
+   * Returns the largest number of unused registers read to merge two
+   * register ranges.
+   *
+   * @return the register gap threshold.
+   */
+  public int getRegisterGap() {
+    return m_RegisterGap;
+  }//getRegisterGap
+
+  /**
+   * Sets the largest number of unused registers read to merge two register
+   * ranges. The default is <tt>0</tt>.
+   *
+   * @param gap the register gap threshold.
+   */
+  public void setRegisterGap(int gap) {
+    if (gap < 0) {
+      throw new IllegalArgumentException("Invalid gap: " + gap);
+    }
+    m_RegisterGap = gap;
+  }//setRegisterGap
+
+  /**
+   * Returns the largest number of unused bits read to merge two bit ranges.
+   *
+   * @return the bit gap threshold.
+   */
+  public int getBitGap() {
+    return m_BitGap;
+  }//getBitGap
+
+  /**
+   * Sets the largest number of unused bits read to merge two bit ranges.
+   * The default is <tt>0</tt>.
+   *
+   * @param gap the bit gap threshold.
+   */
+  public void setBitGap(int gap) {
+    if (gap < 0) {
+      throw new IllegalArgumentException("Invalid gap: " + gap);
+    }
+    m_BitGap = gap;
+  }//setBitGap
+
+  /**
+   * Returns the maximum number of registers in one request.
+   *
+   * @return the register limit.
+   */
+  public int getMaxRegisters() {
+    return m_MaxRegisters;
+  }//getMaxRegisters
+
+  /**
+   * Sets the maximum number of registers in one request, for slaves which
+   * accept less than the protocol allows. The default is defined as
+   * <tt>MAX_REGISTERS</tt>.
+   *
+   * @param max the register limit.
+   */
+  public void setMaxRegisters(int max) {
+    if (max < 1 || max > MAX_REGISTERS) {
+      throw new IllegalArgumentException("Invalid limit: " + max);
+    }
+    m_MaxRegisters = max;
+  }//setMaxRegisters
+
+  /**
+   * Returns the maximum number of bits in one request.
+   *
+   * @return the bit limit.
+   */
+  public int getMaxBits() {
+    return m_MaxBits;
+  }//getMaxBits
+
+  /**
+   * Sets the maximum number of bits in one request, for slaves which
+   * accept less than the protocol allows. The default is defined as
+   * <tt>MAX_BITS</tt>.
+   *
+   * @param max the bit limit.
+   */
+  public void setMaxBits(int max) {
+    if (max < 1 || max > MAX_BITS) {
+      throw new IllegalArgumentException("Invalid limit: " + max);
+    }
+    m_MaxBits = max;
+  }//setMaxBits
+
+  /**
+   * Plans the requests needed to read the given ranges.
+   *
+   * @param ranges the ranges to be read.
+   * @return the <tt>ReadPlan</tt>; the ranges keep their index in it.
+   */
+  public ReadPlan plan(ReadRange[] ranges) {
+    return plan(Arrays.asList(ranges));
+  }//plan
+
+  /**
+   * Plans the requests needed to read the given ranges.
+   *
+   * @param ranges the ranges to be read.
+   * @return the <tt>ReadPlan</tt>; the ranges keep their index in it.
+   */
+  public ReadPlan plan(List<ReadRange> ranges) {
+    final ReadRange[] rs = ranges.toArray(new ReadRange[ranges.size()]);
+    Integer[] order = new Integer[rs.length];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = Integer.valueOf(i);
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        ReadRange x = rs[a.intValue()];
+        ReadRange y = rs[b.intValue()];
+        if (x.getUnitID() != y.getUnitID()) {
+          return x.getUnitID() < y.getUnitID() ? -1 : 1;
+        }
+        if (x.getFunctionCode() != y.getFunctionCode()) {
+          return x.getFunctionCode() < y.getFunctionCode() ? -1 : 1;
+        }
+        if (x.getReference() != y.getReference()) {
+          return x.getReference() < y.getReference() ? -1 : 1;
+        }
+        return 0;
+      }
+    });
+
+    //blocks as {unit, function, ref, count}
+    List<int[]> blocks = new ArrayList<int[]>();
+    int[] block = null;
+    for (int i = 0; i < order.length; i++) {
+      ReadRange r = rs[order[i].intValue()];
+      int start = r.getReference();
+      int end = start + r.getCount();
+      int limit = r.isBitRange() ? m_MaxBits : m_MaxRegisters;
+      int gap = r.isBitRange() ? m_BitGap : m_RegisterGap;
+
+      if (block != null && (block[0] != r.getUnitID()
+          || block[1] != r.getFunctionCode())) {
+        block = null;
+      }
+      if (block != null) {
+        int blockEnd = block[2] + block[3];
+        if (start <= blockEnd + gap && end - block[2] <= limit) {
+          block[3] = Math.max(blockEnd, end) - block[2];
+          continue;
+        }
+        //read only what the current block does not cover
+        start = Math.max(start, blockEnd);
+      }
+      while (end - start > limit) {
+        blocks.add(new int[]{r.getUnitID(), r.getFunctionCode(), start, limit});
+        start += limit;
+      }
+      block = new int[]{r.getUnitID(), r.getFunctionCode(), start, end - start};
+      blocks.add(block);
+    }
+    return new ReadPlan(rs, blocks.toArray(new int[blocks.size()][]),
+        segments(rs, blocks));
+  }//plan
+
+  /**
+   * Returns, for every range, the parts of the blocks it is copied from, as
+   * {block, block offset, range offset, count} entries.
+   */
+  private int[][] segments(ReadRange[] rs, List<int[]> blocks) {
+    int[][] result = new int[rs.length][];
+    List<Integer> parts = new ArrayList<Integer>();
+
+    for (int i = 0; i < rs.length; i++) {
+      ReadRange r = rs[i];
+      int start = r.getReference();
+      int end = start + r.getCount();
+
+      parts.clear();
+      int b = first(blocks, r.getUnitID(), r.getFunctionCode(), start);
+      for (; b < blocks.size(); b++) {
+        int[] block = blocks.get(b);
+        if (block[0] != r.getUnitID() || block[1] != r.getFunctionCode()
+            || block[2] >= end) {
+          break;
+        }
+        int from = Math.max(start, block[2]);
+        int to = Math.min(end, block[2] + block[3]);
+        if (from < to) {
+          parts.add(Integer.valueOf(b));
+          parts.add(Integer.valueOf(from - block[2]));
+          parts.add(Integer.valueOf(from - start));
+          parts.add(Integer.valueOf(to - from));
+        }
+      }
+      result[i] = new int[parts.size()];
+      for (int j = 0; j < result[i].length; j++) {
+        result[i][j] = parts.get(j).intValue();
+      }
+    }
+    return result;
+  }//segments
+
+  /**
+   * Returns the index of the first block of the given unit and function
+   * which ends after <tt>ref</tt>. Blocks are sorted by unit, function and
+   * reference.
+   */
+  private static int first(List<int[]> blocks, final int unit,
+                           final int function, final int ref) {
+    return -Collections.binarySearch(blocks, null, new Comparator<int[]>() {
+      public int compare(int[] block, int[] key) {
+        if (block[0] != unit) {
+          return block[0] < unit ? -1 : 1;
+        }
+        if (block[1] != function) {
+          return block[1] < function ? -1 : 1;
+        }
+        return block[2] + block[3] <= ref ? -1 : 1;
+      }
+    }) - 1;
+  }//first
+
+}//class ReadPlanner
@@ -0,0 +1,149 @@
+//License
+/***
+ * Java Modbus Library (jamod)
+ * Copyright (c) 2002-2004, jamod development team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.util;
+
+import com.ghgande.j2mod.modbus.Modbus;
+
+/**
+ * Class describing a range of coils, input discretes, input registers or
+ * holding registers to be read from a slave.
+ *
+ * @see ReadPlanner
+ */
+public final class ReadRange {
+
+  //instance attributes
+  private int m_UnitID;
+  private int m_FunctionCode;
+  private int m_Reference;
+  private int m_Count;
+
+  /**
+   * Constructs a new <tt>ReadRange</tt> for the default unit.
+   *
+   * @param functionCode the read function, one of <tt>Modbus.READ_COILS</tt>,
+   *        <tt>Modbus.READ_INPUT_DISCRETES</tt>,
+   *        <tt>Modbus.READ_INPUT_REGISTERS</tt> or
+   *        <tt>Modbus.READ_MULTIPLE_REGISTERS</tt>.
+   * @param ref the reference of the first item.
+   * @param count the number of items.
+   */
+  public ReadRange(int functionCode, int ref, int count) {
+    this(Modbus.DEFAULT_UNIT_ID, functionCode, ref, count);
+  }//constructor
+
+  /**
+   * Constructs a new <tt>ReadRange</tt>.
+   *
+   * @param unitid the slave unit id.
+   * @param functionCode the read function, one of <tt>Modbus.READ_COILS</tt>,
+   *        <tt>Modbus.READ_INPUT_DISCRETES</tt>,
+   *        <tt>Modbus.READ_INPUT_REGISTERS</tt> or
+   *        <tt>Modbus.READ_MULTIPLE_REGISTERS</tt>.
+   * @param ref the reference of the first item.
+   * @param count the number of items.
+   */
+  public ReadRange(int unitid, int functionCode, int ref, int count) {
+    switch (functionCode) {
+      case Modbus.READ_COILS:
+      case Modbus.READ_INPUT_DISCRETES:
+      case Modbus.READ_INPUT_REGISTERS:
+      case Modbus.READ_MULTIPLE_REGISTERS:
+        break;
+      default:
+        throw new IllegalArgumentException(
+            "Not a read function: " + functionCode);
+    }
+    if (ref < 0 || count < 1 || ref + count > 65536) {
+      throw new IllegalArgumentException(
+          "Invalid range: " + ref + "+" + count);
+    }
+    m_UnitID = unitid;
+    m_FunctionCode = functionCode;
+    m_Reference = ref;
+    m_Count = count;
+  }//constructor
+
+  /**
+   * Returns the unit id of the slave.
+   *
+   * @return the unit id.
+   */
+  public int getUnitID() {
+    return m_UnitID;
+  }//getUnitID
+
+  /**
+   * Returns the function code used to read this range.
+   *
+   * @return the function code.
+   */
+  public int getFunctionCode() {
+    return m_FunctionCode;
+  }//getFunctionCode
+
+  /**
+   * Returns the reference of the first item of this range.
+   *
+   * @return the reference.
+   */
+  public int getReference() {
+    return m_Reference;
+  }//getReference
+
+  /**
+   * Returns the number of items in this range.
+   *
+   * @return the number of coils, discretes or registers.
+   */
+  public int getCount() {
+    return m_Count;
+  }//getCount
+
+  /**
+   * Tests if this range holds single bits rather than registers.
+   *
+   * @return true for coils and input discretes, false otherwise.
+   */
+  public boolean isBitRange() {
+    return m_FunctionCode == Modbus.READ_COILS
+        || m_FunctionCode == Modbus.READ_INPUT_DISCRETES;
+  }//isBitRange
+
+  public String toString() {
+    return "unit " + m_UnitID + " FC" + m_FunctionCode + " "
+        + m_Reference + "+" + m_Count;
+  }//toString
+
+}//class ReadRange
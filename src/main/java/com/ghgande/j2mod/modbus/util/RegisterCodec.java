@@ -0,0 +1,572 @@
+//License
+/***
+ * Java Modbus Library (jamod)
+ * Copyright (c) 2002-2004, jamod development team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.util;
+
+import com.ghgande.j2mod.modbus.procimg.Register;
+
+/**
+ * Class implementing conversions between values wider than a register and
+ * blocks of register values, as returned by the <tt>getRegisterValues()</tt>
+ * methods of the register responses and the <tt>int[]</tt> forms of the
+ * facade read methods.
+ * <p>
+ * Values are decoded straight from the <tt>int[]</tt> block, without
+ * creating <tt>Register</tt> instances or intermediate byte arrays, and the
+ * array forms convert a whole block in one call. The order in which devices
+ * store multi-register values varies, so a codec may swap the bytes within
+ * each register, the order of the registers within each value, or both:
+ * <ul>
+ *   <li><tt>ABCD</tt> - big endian, as defined by the Modbus specification;</li>
+ *   <li><tt>CDAB</tt> - registers swapped, bytes in order;</li>
+ *   <li><tt>BADC</tt> - bytes swapped, registers in order;</li>
+ *   <li><tt>DCBA</tt> - little endian.</li>
+ * </ul>
+ * For 64-bit values a register swap reverses all four registers. Strings are
+ * packed two characters per register, and are only affected by the byte
+ * swap.
+ * <p>
+ * Instances are immutable and thread safe.
+ */
+public final class RegisterCodec {
+
+  /**
+   * Defines the codec for big endian values (high register first, high
+   * byte first).
+   */
+  public static final RegisterCodec ABCD = new RegisterCodec(false, false);
+
+  /**
+   * Defines the codec for values with the low register first and the high
+   * byte first.
+   */
+  public static final RegisterCodec CDAB = new RegisterCodec(false, true);
+
+  /**
+   * Defines the codec for values with the high register first and the low
+   * byte first.
+   */
+  public static final RegisterCodec BADC = new RegisterCodec(true, false);
+
+  /**
+   * Defines the codec for little endian values (low register first, low
+   * byte first).
+   */
+  public static final RegisterCodec DCBA = new RegisterCodec(true, true);
+
+  //instance attributes
+  private final boolean m_ByteSwap;
+  private final boolean m_WordSwap;
+
+  /**
+   * Constructs a new <tt>RegisterCodec</tt>.
+   *
+   * @param byteSwap true if the bytes within each register are swapped.
+   * @param wordSwap true if the registers within each value are in
+   *        reverse order.
+   */
+  public RegisterCodec(boolean byteSwap, boolean wordSwap) {
+    m_ByteSwap = byteSwap;
+    m_WordSwap = wordSwap;
+  }//constructor
+
+  /**
+   * Tests if the bytes within each register are swapped.
+   *
+   * @return true if swapped, false otherwise.
+   */
+  public boolean isByteSwap() {
+    return m_ByteSwap;
+  }//isByteSwap
+
+  /**
+   * Tests if the registers within each value are in reverse order.
+   *
+   * @return true if swapped, false otherwise.
+   */
+  public boolean isWordSwap() {
+    return m_WordSwap;
+  }//isWordSwap
+
+  /**
+   * Decodes a signed 16-bit value from one register.
+   *
+   * @param regs the register values.
+   * @param off the index of the register.
+   * @return the value.
+   */
+  public short getShort(int[] regs, int off) {
+    return (short) word(regs[off]);
+  }//getShort
+
+  /**
+   * Decodes an unsigned 16-bit value from one register.
+   *
+   * @param regs the register values.
+   * @param off the index of the register.
+   * @return the value.
+   */
+  public int getUnsignedShort(int[] regs, int off) {
+    return word(regs[off]);
+  }//getUnsignedShort
+
+  /**
+   * Decodes a signed 32-bit value from two registers.
+   *
+   * @param regs the register values.
+   * @param off the index of the first register.
+   * @return the value.
+   */
+  public int getInt(int[] regs, int off) {
+    if (m_WordSwap) {
+      return (word(regs[off + 1]) << 16) | word(regs[off]);
+    }
+    return (word(regs[off]) << 16) | word(regs[off + 1]);
+  }//getInt
+
+  /**
+   * Decodes an unsigned 32-bit value from two registers.
+   *
+   * @param regs the register values.
+   * @param off the index of the first register.
+   * @return the value, between <tt>0</tt> and <tt>2<sup>32</sup>-1</tt>.
+   */
+  public long getUnsignedInt(int[] regs, int off) {
+    return getInt(regs, off) & 0xFFFFFFFFL;
+  }//getUnsignedInt
+
+  /**
+   * Decodes a signed 64-bit value from four registers.
+   *
+   * @param regs the register values.
+   * @param off the index of the first register.
+   * @return the value.
+   */
+  public long getLong(int[] regs, int off) {
+    long v = 0;
+    if (m_WordSwap) {
+      for (int i = 3; i >= 0; i--) {
+        v = (v << 16) | word(regs[off + i]);
+      }
+    } else {
+      for (int i = 0; i < 4; i++) {
+        v = (v << 16) | word(regs[off + i]);
+      }
+    }
+    return v;
+  }//getLong
+
+  /**
+   * Decodes an IEEE 754 single precision value from two registers.
+   *
+   * @param regs the register values.
+   * @param off the index of the first register.
+   * @return the value.
+   */
+  public float getFloat(int[] regs, int off) {
+    return Float.intBitsToFloat(getInt(regs, off));
+  }//getFloat
+
+  /**
+   * Decodes an IEEE 754 double precision value from four registers.
+   *
+   * @param regs the register values.
+   * @param off the index of the first register.
+   * @return the value.
+   */
+  public double getDouble(int[] regs, int off) {
+    return Double.longBitsToDouble(getLong(regs, off));
+  }//getDouble
+
+  /**
+   * Decodes a packed BCD value, four digits per register, from the given
+   * number of registers.
+   *
+   * @param regs the register values.
+   * @param off the index of the first register.
+   * @param count the number of registers, between <tt>1</tt> and
+   *        <tt>4</tt>.
+   * @return the value.
+   * @throws IllegalArgumentException if a digit is not a decimal digit.
+   */
+  public long getBCD(int[] regs, int off, int count) {
+    checkBCDCount(count);
+    long v = 0;
+    for (int i = 0; i < count; i++) {
+      int w = word(regs[off + (m_WordSwap ? count - 1 - i : i)]);
+      for (int shift = 12; shift >= 0; shift -= 4) {
+        int digit = (w >> shift) & 0xF;
+        if (digit > 9) {
+          throw new IllegalArgumentException("Invalid BCD digit: " + digit);
+        }
+        v = v * 10 + digit;
+      }
+    }
+    return v;
+  }//getBCD
+
+  /**
+   * Decodes a string of 8-bit characters, two per register. The string
+   * ends at the first <tt>NUL</tt> character, if any.
+   *
+   * @param regs the register values.
+   * @param off the index of the first register.
+   * @param count the number of registers.
+   * @return the string.
+   */
+  public String getString(int[] regs, int off, int count) {
+    char[] chars = new char[count * 2];
+    int length = 0;
+    for (int i = 0; i < count; i++) {
+      int w = word(regs[off + i]);
+      if ((chars[length] = (char) (w >> 8)) == 0) {
+        break;
+      }
+      length++;
+      if ((chars[length] = (char) (w & 0xFF)) == 0) {
+        break;
+      }
+      length++;
+    }
+    return new String(chars, 0, length);
+  }//getString
+
+  /**
+   * Decodes consecutive signed 32-bit values.
+   *
+   * @param regs the register values.
+   * @param off the index of the first register.
+   * @param dst the array receiving the values.
+   * @param dstOff the index in <tt>dst</tt> of the first value.
+   * @param count the number of values.
+   */
+  public void getInts(int[] regs, int off, int[] dst, int dstOff, int count) {
+    checkBlock(regs, off, count * 2);
+    for (int i = 0; i < count; i++, off += 2) {
+      dst[dstOff + i] = getInt(regs, off);
+    }
+  }//getInts
+
+  /**
+   * Decodes consecutive unsigned 32-bit values.
+   *
+   * @param regs the register values.
+   * @param off the index of the first register.
+   * @param dst the array receiving the values.
+   * @param dstOff the index in <tt>dst</tt> of the first value.
+   * @param count the number of values.
+   */
+  public void getUnsignedInts(int[] regs, int off, long[] dst, int dstOff,
+                              int count) {
+    checkBlock(regs, off, count * 2);
+    for (int i = 0; i < count; i++, off += 2) {
+      dst[dstOff + i] = getInt(regs, off) & 0xFFFFFFFFL;
+    }
+  }//getUnsignedInts
+
+  /**
+   * Decodes consecutive signed 64-bit values.
+   *
+   * @param regs the register values.
+   * @param off the index of the first register.
+   * @param dst the array receiving the values.
+   * @param dstOff the index in <tt>dst</tt> of the first value.
+   * @param count the number of values.
+   */
+  public void getLongs(int[] regs, int off, long[] dst, int dstOff,
+                       int count) {
+    checkBlock(regs, off, count * 4);
+    for (int i = 0; i < count; i++, off += 4) {
+      dst[dstOff + i] = getLong(regs, off);
+    }
+  }//getLongs
+
+  /**
+   * Decodes consecutive single precision values.
+   *
+   * @param regs the register values.
+   * @param off the index of the first register.
+   * @param dst the array receiving the values.
+   * @param dstOff the index in <tt>dst</tt> of the first value.
+   * @param count the number of values.
+   */
+  public void getFloats(int[] regs, int off, float[] dst, int dstOff,
+                        int count) {
+    checkBlock(regs, off, count * 2);
+    for (int i = 0; i < count; i++, off += 2) {
+      dst[dstOff + i] = Float.intBitsToFloat(getInt(regs, off));
+    }
+  }//getFloats
+
+  /**
+   * Decodes consecutive double precision values.
+   *
+   * @param regs the register values.
+   * @param off the index of the first register.
+   * @param dst the array receiving the values.
+   * @param dstOff the index in <tt>dst</tt> of the first value.
+   * @param count the number of values.
+   */
+  public void getDoubles(int[] regs, int off, double[] dst, int dstOff,
+                         int count) {
+    checkBlock(regs, off, count * 4);
+    for (int i = 0; i < count; i++, off += 4) {
+      dst[dstOff + i] = Double.longBitsToDouble(getLong(regs, off));
+    }
+  }//getDoubles
+
+  /**
+   * Encodes a 16-bit value into one register.
+   *
+   * @param v the value; only the low 16 bits are used.
+   * @param regs the register values.
+   * @param off the index of the register.
+   */
+  public void setShort(int v, int[] regs, int off) {
+    regs[off] = word(v & 0xFFFF);
+  }//setShort
+
+  /**
+   * Encodes a 32-bit value into two registers. Unsigned values are passed
+   * as their low 32 bits.
+   *
+   * @param v the value.
+   * @param regs the register values.
+   * @param off the index of the first register.
+   */
+  public void setInt(int v, int[] regs, int off) {
+    int hi = word(v >>> 16);
+    int lo = word(v & 0xFFFF);
+    regs[off] = m_WordSwap ? lo : hi;
+    regs[off + 1] = m_WordSwap ? hi : lo;
+  }//setInt
+
+  /**
+   * Encodes a 64-bit value into four registers.
+   *
+   * @param v the value.
+   * @param regs the register values.
+   * @param off the index of the first register.
+   */
+  public void setLong(long v, int[] regs, int off) {
+    for (int i = 0; i < 4; i++) {
+      int w = word((int) (v >>> (48 - 16 * i)) & 0xFFFF);
+      regs[off + (m_WordSwap ? 3 - i : i)] = w;
+    }
+  }//setLong
+
+  /**
+   * Encodes a single precision value into two registers.
+   *
+   * @param v the value.
+   * @param regs the register values.
+   * @param off the index of the first register.
+   */
+  public void setFloat(float v, int[] regs, int off) {
+    setInt(Float.floatToIntBits(v), regs, off);
+  }//setFloat
+
+  /**
+   * Encodes a double precision value into four registers.
+   *
+   * @param v the value.
+   * @param regs the register values.
+   * @param off the index of the first register.
+   */
+  public void setDouble(double v, int[] regs, int off) {
+    setLong(Double.doubleToLongBits(v), regs, off);
+  }//setDouble
+
+  /**
+   * Encodes a value as packed BCD, four digits per register, into the
+   * given number of registers.
+   *
+   * @param v the value.
+   * @param regs the register values.
+   * @param off the index of the first register.
+   * @param count the number of registers, between <tt>1</tt> and
+   *        <tt>4</tt>.
+   * @throws IllegalArgumentException if the value is negative or has more
+   *         digits than the registers hold.
+   */
+  public void setBCD(long v, int[] regs, int off, int count) {
+    checkBCDCount(count);
+    if (v < 0) {
+      throw new IllegalArgumentException("Negative BCD value: " + v);
+    }
+    long rest = v;
+    for (int i = count - 1; i >= 0; i--) {
+      int w = 0;
+      for (int shift = 0; shift < 16; shift += 4) {
+        w |= (int) (rest % 10) << shift;
+        rest /= 10;
+      }
+      regs[off + (m_WordSwap ? count - 1 - i : i)] = word(w);
+    }
+    if (rest != 0) {
+      throw new IllegalArgumentException("BCD value too large: " + v);
+    }
+  }//setBCD
+
+  /**
+   * Encodes a string of 8-bit characters, two per register, padded with
+   * <tt>NUL</tt> characters. Characters beyond the given number of
+   * registers are dropped.
+   *
+   * @param s the string.
+   * @param regs the register values.
+   * @param off the index of the first register.
+   * @param count the number of registers.
+   */
+  public void setString(String s, int[] regs, int off, int count) {
+    int length = s.length();
+    for (int i = 0; i < count; i++) {
+      int hi = 2 * i < length ? s.charAt(2 * i) & 0xFF : 0;
+      int lo = 2 * i + 1 < length ? s.charAt(2 * i + 1) & 0xFF : 0;
+      regs[off + i] = word((hi << 8) | lo);
+    }
+  }//setString
+
+  /**
+   * Encodes consecutive 32-bit values.
+   *
+   * @param src the values.
+   * @param srcOff the index in <tt>src</tt> of the first value.
+   * @param regs the register values.
+   * @param off the index of the first register.
+   * @param count the number of values.
+   */
+  public void setInts(int[] src, int srcOff, int[] regs, int off, int count) {
+    checkBlock(regs, off, count * 2);
+    for (int i = 0; i < count; i++, off += 2) {
+      setInt(src[srcOff + i], regs, off);
+    }
+  }//setInts
+
+  /**
+   * Encodes consecutive 64-bit values.
+   *
+   * @param src the values.
+   * @param srcOff the index in <tt>src</tt> of the first value.
+   * @param regs the register values.
+   * @param off the index of the first register.
+   * @param count the number of values.
+   */
+  public void setLongs(long[] src, int srcOff, int[] regs, int off,
+                       int count) {
+    checkBlock(regs, off, count * 4);
+    for (int i = 0; i < count; i++, off += 4) {
+      setLong(src[srcOff + i], regs, off);
+    }
+  }//setLongs
+
+  /**
+   * Encodes consecutive single precision values.
+   *
+   * @param src the values.
+   * @param srcOff the index in <tt>src</tt> of the first value.
+   * @param regs the register values.
+   * @param off the index of the first register.
+   * @param count the number of values.
+   */
+  public void setFloats(float[] src, int srcOff, int[] regs, int off,
+                        int count) {
+    checkBlock(regs, off, count * 2);
+    for (int i = 0; i < count; i++, off += 2) {
+      setInt(Float.floatToIntBits(src[srcOff + i]), regs, off);
+    }
+  }//setFloats
+
+  /**
+   * Encodes consecutive double precision values.
+   *
+   * @param src the values.
+   * @param srcOff the index in <tt>src</tt> of the first value.
+   * @param regs the register values.
+   * @param off the index of the first register.
+   * @param count the number of values.
+   */
+  public void setDoubles(double[] src, int srcOff, int[] regs, int off,
+                         int count) {
+    checkBlock(regs, off, count * 4);
+    for (int i = 0; i < count; i++, off += 4) {
+      setLong(Double.doubleToLongBits(src[srcOff + i]), regs, off);
+    }
+  }//setDoubles
+
+  /**
+   * Copies register values into existing registers, for instance those
+   * passed to <tt>writeMultipleRegisters()</tt>.
+   *
+   * @param regs the register values.
+   * @param off the index of the first value.
+   * @param dst the registers receiving the values.
+   * @param dstOff the index in <tt>dst</tt> of the first register.
+   * @param count the number of registers.
+   */
+  public static void setRegisterValues(int[] regs, int off, Register[] dst,
+                                       int dstOff, int count) {
+    for (int i = 0; i < count; i++) {
+      dst[dstOff + i].setValue(regs[off + i]);
+    }
+  }//setRegisterValues
+
+  public String toString() {
+    return "RegisterCodec " + (m_WordSwap ? (m_ByteSwap ? "DCBA" : "CDAB")
+        : (m_ByteSwap ? "BADC" : "ABCD"));
+  }//toString
+
+  /**
+   * Returns a register value as unsigned 16-bit word, swapping its bytes
+   * if required. The conversion is its own inverse.
+   */
+  private int word(int v) {
+    if (m_ByteSwap) {
+      return ((v & 0xFF) << 8) | ((v >> 8) & 0xFF);
+    }
+    return v & 0xFFFF;
+  }//word
+
+  private static void checkBlock(int[] regs, int off, int count) {
+    if (off < 0 || count < 0 || off + count > regs.length) {
+      throw new IndexOutOfBoundsException(off + count + " > " + regs.length);
+    }
+  }//checkBlock
+
+  private static void checkBCDCount(int count) {
+    if (count < 1 || count > 4) {
+      throw new IllegalArgumentException("Invalid register count: " + count);
+    }
+  }//checkBCDCount
+
+}//class RegisterCodec
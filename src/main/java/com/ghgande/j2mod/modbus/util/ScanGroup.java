@@ -0,0 +1,330 @@
+//License
+/***
+ * Java Modbus Library (jamod)
+ * Copyright (c) 2002-2004, jamod development team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.util;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.ghgande.j2mod.modbus.net.CircuitBreaker;
+
+/**
+ * Class implementing a group of points which is scanned periodically by a
+ * <tt>ScanScheduler</tt>.
+ * <p>
+ * The group keeps statistics about its scans. The tardiness of a scan is
+ * the time between its slot and the moment it actually started; a scan
+ * which runs past the start of the next slot causes the slots it covers to
+ * be skipped, and each skipped slot is counted as an overrun. A scan which
+ * throws is counted as failed, and scanning continues.
+ * <p>
+ * A group may be bound to the <tt>CircuitBreaker</tt> of the device it
+ * reads. Its scans are skipped while the breaker is open, so that an
+ * unreachable device does not hold up a scan thread for a timeout per slot.
+ */
+public class ScanGroup implements Runnable {
+
+  //instance attributes and associations
+  private ScanScheduler m_Scheduler;
+  private String m_Name;
+  private long m_Period;
+  private long m_Phase;
+  private Runnable m_Scan;
+  private CircuitBreaker m_Breaker;
+  private volatile boolean m_Active;
+  private ScheduledFuture<?> m_Future;
+  private long m_Due;
+
+  //statistics
+  private long m_ScanCount;
+  private long m_OverrunCount;
+  private long m_FailureCount;
+  private long m_SkipCount;
+  private long m_LastDuration;
+  private long m_MaxDuration;
+  private long m_LastTardiness;
+  private long m_MaxTardiness;
+  private long m_TotalTardiness;
+  private Throwable m_LastFailure;
+
+  /**
+   * Constructs a new <tt>ScanGroup</tt>.
+   */
+  ScanGroup(ScanScheduler scheduler, String name, long period, long phase,
+            CircuitBreaker breaker, Runnable scan) {
+    m_Scheduler = scheduler;
+    m_Name = name;
+    m_Period = period;
+    m_Phase = phase;
+    m_Breaker = breaker;
+    m_Scan = scan;
+  }//constructor
+
+  /**
+   * Returns the name of this group.
+   *
+   * @return the name.
+   */
+  public String getName() {
+    return m_Name;
+  }//getName
+
+  /**
+   * Returns the scan period of this group.
+   *
+   * @return the period in milliseconds.
+   */
+  public int getPeriod() {
+    return (int) TimeUnit.NANOSECONDS.toMillis(m_Period);
+  }//getPeriod
+
+  /**
+   * Returns the offset of the slots of this group from the time base of
+   * the scheduler.
+   *
+   * @return the phase in milliseconds.
+   */
+  public int getPhase() {
+    return (int) TimeUnit.NANOSECONDS.toMillis(m_Phase);
+  }//getPhase
+
+  /**
+   * Returns the number of scans completed, including failed ones.
+   *
+   * @return the scan count.
+   */
+  public synchronized long getScanCount() {
+    return m_ScanCount;
+  }//getScanCount
+
+  /**
+   * Returns the number of slots skipped because a scan took too long.
+   *
+   * @return the overrun count.
+   */
+  public synchronized long getOverrunCount() {
+    return m_OverrunCount;
+  }//getOverrunCount
+
+  /**
+   * Returns the number of scans which threw an exception.
+   *
+   * @return the failure count.
+   */
+  public synchronized long getFailureCount() {
+    return m_FailureCount;
+  }//getFailureCount
+
+  /**
+   * Returns the number of scans skipped because the circuit breaker of the
+   * group was open.
+   *
+   * @return the skip count.
+   */
+  public synchronized long getSkipCount() {
+    return m_SkipCount;
+  }//getSkipCount
+
+  /**
+   * Returns the circuit breaker the group is bound to.
+   *
+   * @return the <tt>CircuitBreaker</tt>, or <tt>null</tt>.
+   */
+  public CircuitBreaker getCircuitBreaker() {
+    return m_Breaker;
+  }//getCircuitBreaker
+
+  /**
+   * Returns the exception thrown by the last failed scan.
+   *
+   * @return the <tt>Throwable</tt>, or <tt>null</tt> if no scan failed.
+   */
+  public synchronized Throwable getLastFailure() {
+    return m_LastFailure;
+  }//getLastFailure
+
+  /**
+   * Returns the duration of the last scan.
+   *
+   * @return the duration in milliseconds.
+   */
+  public synchronized double getLastDuration() {
+    return m_LastDuration / 1e6;
+  }//getLastDuration
+
+  /**
+   * Returns the duration of the longest scan.
+   *
+   * @return the duration in milliseconds.
+   */
+  public synchronized double getMaxDuration() {
+    return m_MaxDuration / 1e6;
+  }//getMaxDuration
+
+  /**
+   * Returns how late the last scan started.
+   *
+   * @return the tardiness in milliseconds.
+   */
+  public synchronized double getLastTardiness() {
+    return m_LastTardiness / 1e6;
+  }//getLastTardiness
+
+  /**
+   * Returns the largest delay with which a scan started.
+   *
+   * @return the tardiness in milliseconds.
+   */
+  public synchronized double getMaxTardiness() {
+    return m_MaxTardiness / 1e6;
+  }//getMaxTardiness
+
+  /**
+   * Returns how late scans started on average.
+   *
+   * @return the mean tardiness in milliseconds.
+   */
+  public synchronized double getMeanTardiness() {
+    return m_ScanCount == 0 ? 0 : m_TotalTardiness / 1e6 / m_ScanCount;
+  }//getMeanTardiness
+
+  /**
+   * Clears the statistics of this group.
+   */
+  public synchronized void resetStatistics() {
+    m_ScanCount = 0;
+    m_OverrunCount = 0;
+    m_FailureCount = 0;
+    m_SkipCount = 0;
+    m_LastDuration = 0;
+    m_MaxDuration = 0;
+    m_LastTardiness = 0;
+    m_MaxTardiness = 0;
+    m_TotalTardiness = 0;
+    m_LastFailure = null;
+  }//resetStatistics
+
+  /**
+   * Runs one scan and schedules the next one. Called by the executor.
+   */
+  public void run() {
+    if (!m_Active) {
+      return;
+    }
+
+    long due;
+    synchronized (this) {
+      due = m_Due;
+    }
+    if (m_Breaker != null && m_Breaker.isOpen()) {
+      synchronized (this) {
+        m_SkipCount++;
+      }
+      long now = System.nanoTime();
+      long next = due + m_Period;
+      if (now > next) {
+        next += (now - next + m_Period - 1) / m_Period * m_Period;
+      }
+      m_Scheduler.reschedule(this, next, now);
+      return;
+    }
+    long start = System.nanoTime();
+    Throwable failure = null;
+    try {
+      m_Scan.run();
+    } catch (Throwable t) {
+      failure = t;
+    }
+    long end = System.nanoTime();
+
+    long next = due + m_Period;
+    long skipped = 0;
+    if (end > next) {
+      skipped = (end - next + m_Period - 1) / m_Period;
+      next += skipped * m_Period;
+    }
+
+    synchronized (this) {
+      long tardiness = Math.max(0, start - due);
+      m_ScanCount++;
+      m_OverrunCount += skipped;
+      m_LastDuration = end - start;
+      m_MaxDuration = Math.max(m_MaxDuration, m_LastDuration);
+      m_LastTardiness = tardiness;
+      m_MaxTardiness = Math.max(m_MaxTardiness, tardiness);
+      m_TotalTardiness += tardiness;
+      if (failure != null) {
+        m_FailureCount++;
+        m_LastFailure = failure;
+      }
+    }
+    m_Scheduler.reschedule(this, next, end);
+  }//run
+
+  public String toString() {
+    return "ScanGroup " + m_Name + " (" + getPeriod() + " ms)";
+  }//toString
+
+  long getPeriodNanos() {
+    return m_Period;
+  }//getPeriodNanos
+
+  long getPhaseNanos() {
+    return m_Phase;
+  }//getPhaseNanos
+
+  boolean isActive() {
+    return m_Active;
+  }//isActive
+
+  void start() {
+    m_Active = true;
+  }//start
+
+  synchronized void setDue(long due) {
+    m_Due = due;
+  }//setDue
+
+  synchronized void setFuture(ScheduledFuture<?> future) {
+    m_Future = future;
+  }//setFuture
+
+  synchronized void cancel() {
+    m_Active = false;
+    if (m_Future != null) {
+      m_Future.cancel(false);
+      m_Future = null;
+    }
+  }//cancel
+
+}//class ScanGroup
@@ -0,0 +1,309 @@
+//License
+/***
+ * Java Modbus Library (jamod)
+ * Copyright (c) 2002-2004, jamod development team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.ghgande.j2mod.modbus.net.CircuitBreaker;
+
+/**
+ * Class implementing a periodic scan scheduler.
+ * <p>
+ * Every <tt>ScanGroup</tt> has its own rate, and all groups are run by one
+ * shared <tt>ScheduledExecutorService</tt>, so thousands of groups need no
+ * more than a handful of threads. A group never runs twice at the same
+ * time.
+ * <p>
+ * Groups are aligned to a common time base. Groups with the same rate get
+ * evenly spread phase offsets, so that adding many groups with a rate of
+ * one second does not make all of them fire at the same instant. All
+ * groups of a rate are shifted by one offset of that rate, which is chosen
+ * so that the first groups of two rates never fire at the same instant;
+ * the first groups of rates of 500 ms and one second, for instance, do not
+ * line up every second. Once there are many groups of each rate, further
+ * groups may still share an instant with groups of another rate. A scan
+ * which runs past the start of its next slot skips the slots it missed;
+ * these are counted as overruns.
+ */
+public class ScanScheduler {
+
+  //class attributes
+  private static final int MAX_OFFSET_CANDIDATES = 64;
+
+  //instance attributes and associations
+  private ScheduledExecutorService m_Executor;
+  private boolean m_OwnsExecutor;
+  private long m_Epoch = System.nanoTime();
+  private List<ScanGroup> m_Groups = new ArrayList<ScanGroup>();
+  private Map<Long, Integer> m_PhaseCounters = new HashMap<Long, Integer>();
+  private Map<Long, Long> m_RateOffsets = new HashMap<Long, Long>();
+  private boolean m_Running;
+
+  /**
+   * Constructs a new <tt>ScanScheduler</tt> with its own executor.
+   *
+   * @param threads the number of threads running scans.
+   */
+  public ScanScheduler(int threads) {
+    ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(
+        threads, new ThreadFactory() {
+          private int m_Count = 0;
+
+          public synchronized Thread newThread(Runnable task) {
+            Thread result = new Thread(task, "ScanScheduler-" + m_Count++);
+            result.setDaemon(true);
+            return result;
+          }
+        });
+    executor.setRemoveOnCancelPolicy(true);
+    m_Executor = executor;
+    m_OwnsExecutor = true;
+  }//constructor
+
+  /**
+   * Constructs a new <tt>ScanScheduler</tt> which runs its scans on the
+   * given executor. The executor is not shut down when the scheduler is
+   * stopped.
+   *
+   * @param executor the shared <tt>ScheduledExecutorService</tt>.
+   */
+  public ScanScheduler(ScheduledExecutorService executor) {
+    m_Executor = executor;
+    m_OwnsExecutor = false;
+  }//constructor
+
+  /**
+   * Adds a group which is scanned at the given rate. The group starts
+   * right away if the scheduler is running.
+   *
+   * @param name the name of the group.
+   * @param period the scan period in milliseconds.
+   * @param scan the <tt>Runnable</tt> which performs one scan.
+   * @return the new <tt>ScanGroup</tt>.
+   */
+  public ScanGroup addGroup(String name, int period, Runnable scan) {
+    return addGroup(name, period, null, scan);
+  }//addGroup
+
+  /**
+   * Adds a group which is scanned at the given rate, unless the circuit
+   * breaker of its device is open. The group starts right away if the
+   * scheduler is running.
+   *
+   * @param name the name of the group.
+   * @param period the scan period in milliseconds.
+   * @param breaker the <tt>CircuitBreaker</tt> of the device, or
+   *        <tt>null</tt>.
+   * @param scan the <tt>Runnable</tt> which performs one scan.
+   * @return the new <tt>ScanGroup</tt>.
+   */
+  public synchronized ScanGroup addGroup(String name, int period,
+                                         CircuitBreaker breaker,
+                                         Runnable scan) {
+    if (period < 1) {
+      throw new IllegalArgumentException("Invalid period: " + period);
+    }
+
+    long nanos = TimeUnit.MILLISECONDS.toNanos(period);
+    Integer count = m_PhaseCounters.get(Long.valueOf(nanos));
+    int k = count == null ? 0 : count.intValue();
+    m_PhaseCounters.put(Long.valueOf(nanos), Integer.valueOf(k + 1));
+    Long offset = m_RateOffsets.get(Long.valueOf(nanos));
+    if (offset == null) {
+      offset = Long.valueOf(findOffset(nanos));
+      m_RateOffsets.put(Long.valueOf(nanos), offset);
+    }
+
+    long phase = (long) (nanos * spread(k)) + offset.longValue();
+    ScanGroup group = new ScanGroup(this, name, nanos, phase % nanos,
+        breaker, scan);
+    m_Groups.add(group);
+    if (m_Running) {
+      schedule(group, System.nanoTime());
+    }
+    return group;
+  }//addGroup
+
+  /**
+   * Removes a group. A scan of the group which is running is completed,
+   * but the group is not scanned again.
+   *
+   * @param group the <tt>ScanGroup</tt> to be removed.
+   */
+  public synchronized void removeGroup(ScanGroup group) {
+    if (m_Groups.remove(group)) {
+      group.cancel();
+    }
+  }//removeGroup
+
+  /**
+   * Returns the groups of this scheduler.
+   *
+   * @return a copy of the list of <tt>ScanGroup</tt> instances.
+   */
+  public synchronized List<ScanGroup> getGroups() {
+    return new ArrayList<ScanGroup>(m_Groups);
+  }//getGroups
+
+  /**
+   * Starts scanning every group.
+   */
+  public synchronized void start() {
+    if (m_Running) {
+      return;
+    }
+    m_Running = true;
+
+    long now = System.nanoTime();
+    for (ScanGroup group : m_Groups) {
+      schedule(group, now);
+    }
+  }//start
+
+  /**
+   * Stops scanning. Scans which are running are completed. If the
+   * scheduler created its own executor, the executor is shut down and the
+   * scheduler cannot be started again.
+   */
+  public synchronized void stop() {
+    m_Running = false;
+    for (ScanGroup group : m_Groups) {
+      group.cancel();
+    }
+    if (m_OwnsExecutor) {
+      m_Executor.shutdown();
+    }
+  }//stop
+
+  /**
+   * Tests if this scheduler is running.
+   *
+   * @return true if running, false otherwise.
+   */
+  public synchronized boolean isRunning() {
+    return m_Running;
+  }//isRunning
+
+  /**
+   * Schedules the first slot of a group which starts at or after
+   * <tt>now</tt>.
+   */
+  private void schedule(ScanGroup group, long now) {
+    long base = m_Epoch + group.getPhaseNanos();
+    long period = group.getPeriodNanos();
+    long slots = now <= base ? 0 : (now - base + period - 1) / period;
+
+    group.start();
+    reschedule(group, base + slots * period, now);
+  }//schedule
+
+  /**
+   * Schedules the next run of a group, unless it has been cancelled.
+   */
+  synchronized void reschedule(ScanGroup group, long due, long now) {
+    if (!m_Running || !group.isActive()) {
+      return;
+    }
+    group.setDue(due);
+    group.setFuture(m_Executor.schedule(group, Math.max(0, due - now),
+        TimeUnit.NANOSECONDS));
+  }//reschedule
+
+  /**
+   * Returns the offset of a new rate. Candidates are spread over the
+   * greatest common divisor of all periods, and the first one is taken which
+   * does not share a slot with the offset of any other rate.
+   */
+  private long findOffset(long nanos) {
+    long unit = nanos;
+    for (Long other : m_RateOffsets.keySet()) {
+      unit = gcd(unit, other.longValue());
+    }
+    long offset = 0;
+    for (int i = 0; i < MAX_OFFSET_CANDIDATES; i++) {
+      offset = (long) (unit * spread(i));
+      if (!sharesSlot(nanos, offset)) {
+        break;
+      }
+    }
+    return offset;
+  }//findOffset
+
+  /**
+   * Tests if a rate with the given offset would fire at the same instant as
+   * the first group of any other rate. Two rates share a slot if their
+   * offsets are equal modulo the greatest common divisor of their periods.
+   */
+  private boolean sharesSlot(long nanos, long offset) {
+    for (Map.Entry<Long, Long> entry : m_RateOffsets.entrySet()) {
+      long g = gcd(nanos, entry.getKey().longValue());
+      if (offset % g == entry.getValue().longValue() % g) {
+        return true;
+      }
+    }
+    return false;
+  }//sharesSlot
+
+  private static long gcd(long a, long b) {
+    while (b != 0) {
+      long t = a % b;
+      a = b;
+      b = t;
+    }
+    return a;
+  }//gcd
+
+  /**
+   * Returns the <tt>k</tt>-th value of the base 2 van der Corput sequence,
+   * which spreads any number of phases evenly over [0, 1).
+   */
+  private static double spread(int k) {
+    double result = 0;
+    double f = 0.5;
+    for (; k > 0; k >>= 1, f /= 2) {
+      if ((k & 1) != 0) {
+        result += f;
+      }
+    }
+    return result;
+  }//spread
+
+}//class ScanScheduler
@@ -33,27 +33,98 @@
  ***/
 package com.ghgande.j2mod.modbus.util;
 
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ghgande.j2mod.modbus.Modbus;
+
 /**
  * Class implementing a simple thread pool.
+ * <p>
+ * The pool runs up to a fixed number of daemon threads, which are started
+ * as tasks arrive and end after they have been idle for a while. Tasks
+ * which find every thread busy wait in a bounded queue; once the queue is
+ * full as well, further tasks are rejected, so that an overloaded pool
+ * cannot grow without limit. A task which throws is counted as failed and
+ * does not end its thread.
+ * <p>
+ * The pool reports its queue depth, active threads and counts of
+ * completed, failed and rejected tasks, and can be shut down.
  *
  * @author Dieter Wimberger
  * @version 1.2rc1 (09/11/2004)
  */
 public class ThreadPool {
 
+  /**
+   * Defines the default number of tasks which may wait for a thread
+   * (=<tt>64</tt>).
+   */
+  public static final int DEFAULT_QUEUE_SIZE = 64;
+
+  /**
+   * Defines the time after which an idle thread ends (=<tt>60000</tt> ms).
+   */
+  public static final int KEEP_ALIVE = 60000;
+
   //instance attributes and associations
-  private LinkedQueue m_TaskPool;
+  private ThreadPoolExecutor m_Executor;
   private int m_Size = 1;
+  private int m_QueueSize;
+  private AtomicLong m_FailedCount = new AtomicLong();
+  private AtomicLong m_RejectedCount = new AtomicLong();
 
   /**
-   * Constructs a new <tt>ThreadPool</tt> instance.
+   * Constructs a new <tt>ThreadPool</tt> instance with a queue of
+   * <tt>DEFAULT_QUEUE_SIZE</tt> tasks.
    *
    * @param size the size of the thread pool.
    */
   public ThreadPool(int size) {
+    this(size, DEFAULT_QUEUE_SIZE);
+  }//constructor
+
+  /**
+   * Constructs a new <tt>ThreadPool</tt> instance.
+   *
+   * @param size the size of the thread pool.
+   * @param queueSize the number of tasks which may wait for a thread;
+   *        <tt>0</tt> rejects every task which finds all threads busy.
+   */
+  public ThreadPool(int size, int queueSize) {
+    this(size, queueSize, "ThreadPool");
+  }//constructor
+
+  /**
+   * Constructs a new <tt>ThreadPool</tt> instance.
+   *
+   * @param size the size of the thread pool.
+   * @param queueSize the number of tasks which may wait for a thread;
+   *        <tt>0</tt> rejects every task which finds all threads busy.
+   * @param name the prefix of the thread names.
+   */
+  public ThreadPool(int size, int queueSize, String name) {
+    if (size < 1) {
+      throw new IllegalArgumentException("Invalid pool size: " + size);
+    }
+    if (queueSize < 0) {
+      throw new IllegalArgumentException("Invalid queue size: " + queueSize);
+    }
     m_Size = size;
-    m_TaskPool = new LinkedQueue();
-    initPool();
+    m_QueueSize = queueSize;
+
+    BlockingQueue<Runnable> queue = queueSize == 0
+        ? new SynchronousQueue<Runnable>()
+        : new ArrayBlockingQueue<Runnable>(queueSize);
+    m_Executor = new ThreadPoolExecutor(size, size, KEEP_ALIVE,
+        TimeUnit.MILLISECONDS, queue,
+        new ModbusThreadFactory(name, true, false));
+    m_Executor.allowCoreThreadTimeOut(true);
   }//constructor
 
   /**
@@ -61,52 +132,144 @@ public class ThreadPool {
    * through a thread in this <tt>ThreadPool</tt>.
    *
    * @param task the <tt>Runnable</tt> to be executed.
+   * @return true if the task has been accepted, false if it has been
+   *         rejected because the pool is saturated or shut down.
    */
-  public synchronized void execute(Runnable task) {
+  public boolean execute(final Runnable task) {
     try {
-      m_TaskPool.put(task);
-    } catch (InterruptedException ex) {
-      //FIXME: Handle!?
+      m_Executor.execute(new Runnable() {
+        public void run() {
+          try {
+            task.run();
+          } catch (RuntimeException ex) {
+            m_FailedCount.incrementAndGet();
+            if (Modbus.debug) {
+              ex.printStackTrace();
+            }
+          }
+        }
+      });
+      return true;
+    } catch (RejectedExecutionException ex) {
+      m_RejectedCount.incrementAndGet();
+      return false;
     }
   }//execute
 
   /**
-   * Initializes the pool, populating it with
-   * n started threads.
+   * Returns the maximum number of threads.
+   *
+   * @return the size of the pool.
    */
-  protected void initPool() {
-    for (int i = m_Size; --i >= 0;) {
-      new PoolThread().start();
-    }
-  }//initPool
+  public int getSize() {
+    return m_Size;
+  }//getSize
 
   /**
-   * Inner class implementing a thread that can be
-   * run in a <tt>ThreadPool</tt>.
+   * Returns the number of tasks which may wait for a thread.
    *
-   * @author Dieter Wimberger
-   * @version 1.2rc1 (09/11/2004)
-   */
-  private class PoolThread extends Thread {
-
-    /**
-     * Runs the <tt>PoolThread</tt>.
-     * <p>
-     * This method will infinitely loop, picking
-     * up available tasks from the <tt>LinkedQueue</tt>.
-     */
-    public void run() {
-      //System.out.println("Running PoolThread");
-      do {
-        try {
-          //System.out.println(this.toString());
-          ((Runnable) m_TaskPool.take()).run();
-        } catch (Exception ex) {
-          //FIXME: Handle somehow!?
-          ex.printStackTrace();
-        }
-      } while (true);
-    }
-  }//PoolThread
+   * @return the capacity of the queue.
+   */
+  public int getQueueSize() {
+    return m_QueueSize;
+  }//getQueueSize
+
+  /**
+   * Returns the number of tasks waiting for a thread.
+   *
+   * @return the queue depth.
+   */
+  public int getQueueDepth() {
+    return m_Executor.getQueue().size();
+  }//getQueueDepth
+
+  /**
+   * Returns the number of threads running a task.
+   *
+   * @return the number of active threads.
+   */
+  public int getActiveCount() {
+    return m_Executor.getActiveCount();
+  }//getActiveCount
+
+  /**
+   * Returns the number of threads currently in the pool.
+   *
+   * @return the number of threads.
+   */
+  public int getPoolSize() {
+    return m_Executor.getPoolSize();
+  }//getPoolSize
+
+  /**
+   * Returns the number of tasks which have completed, including those
+   * which failed.
+   *
+   * @return the completed task count.
+   */
+  public long getCompletedCount() {
+    return m_Executor.getCompletedTaskCount();
+  }//getCompletedCount
+
+  /**
+   * Returns the number of tasks which threw an exception.
+   *
+   * @return the failed task count.
+   */
+  public long getFailedCount() {
+    return m_FailedCount.get();
+  }//getFailedCount
+
+  /**
+   * Returns the number of tasks which have been rejected.
+   *
+   * @return the rejected task count.
+   */
+  public long getRejectedCount() {
+    return m_RejectedCount.get();
+  }//getRejectedCount
+
+  /**
+   * Shuts this <tt>ThreadPool</tt> down. Tasks which have been accepted
+   * still run, while new tasks are rejected.
+   */
+  public void shutdown() {
+    m_Executor.shutdown();
+  }//shutdown
+
+  /**
+   * Shuts this <tt>ThreadPool</tt> down, discarding the waiting tasks and
+   * interrupting the running ones.
+   */
+  public void shutdownNow() {
+    m_Executor.shutdownNow();
+  }//shutdownNow
+
+  /**
+   * Waits for the tasks to complete after a shutdown.
+   *
+   * @param timeout the maximum time to wait, in milliseconds.
+   * @return true if every task has completed, false if the timeout
+   *         elapsed first.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  public boolean awaitTermination(long timeout) throws InterruptedException {
+    return m_Executor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+  }//awaitTermination
+
+  /**
+   * Tests if this <tt>ThreadPool</tt> has been shut down.
+   *
+   * @return true if shut down, false otherwise.
+   */
+  public boolean isShutdown() {
+    return m_Executor.isShutdown();
+  }//isShutdown
+
+  public String toString() {
+    return "ThreadPool (size=" + m_Size + ", active=" + getActiveCount()
+        + ", queued=" + getQueueDepth() + ", rejected=" + getRejectedCount()
+        + ")";
+  }//toString
 
 }//ThreadPool